@@ -0,0 +1,15 @@
+#!/bin/sh
+# Launches the ATM from build/enhanced-atm.jar in the current directory, using the AppCDS
+# archive when one has been recorded (see cds-archive.sh). The ATM is short-lived and
+# interactive, so C1 alone is enough and avoids C2 compiler threads at startup.
+#
+# Usage: scripts/atm.sh
+
+home="$(cd "$(dirname "$0")/.." && pwd)"
+
+if [ -f "$home/build/enhanced-atm.jsa" ]; then
+	exec java -XX:SharedArchiveFile="$home/build/enhanced-atm.jsa" -Xshare:auto -XX:TieredStopAtLevel=1 \
+		-cp "$home/build/enhanced-atm.jar" Tester "$@"
+else
+	exec java -XX:TieredStopAtLevel=1 -cp "$home/build/enhanced-atm.jar" Tester "$@"
+fi
@@ -0,0 +1,18 @@
+#!/bin/sh
+# Compiles the ATM and packages it as build/enhanced-atm.jar, with the sample ledger
+# bundled as a classpath resource (Database falls back to it when the working directory
+# has no ledger) and the native-image configuration under META-INF.
+#
+# Usage: scripts/build-jar.sh
+
+set -e
+cd "$(dirname "$0")/.."
+
+rm -rf build/classes
+mkdir -p build/classes
+javac --release 8 -encoding UTF-8 -d build/classes src/*.java
+cp src/accounts-db.txt build/classes/
+cp -R src/META-INF build/classes/
+jar cfe build/enhanced-atm.jar Tester -C build/classes .
+
+echo "Built build/enhanced-atm.jar"
@@ -0,0 +1,19 @@
+#!/bin/sh
+# Builds a native executable of the ATM (build/enhanced-atm) from build/enhanced-atm.jar
+# with GraalVM's native-image, which must be on the PATH. The configuration it needs is
+# bundled in the jar under META-INF/native-image.
+#
+# Usage: scripts/build-native.sh
+
+set -e
+cd "$(dirname "$0")/.."
+
+if ! command -v native-image > /dev/null 2>&1; then
+	echo "native-image not found; install GraalVM and put its bin directory on the PATH." >&2
+	exit 1
+fi
+
+scripts/build-jar.sh
+native-image -jar build/enhanced-atm.jar -o build/enhanced-atm
+
+echo "Built build/enhanced-atm"
@@ -0,0 +1,24 @@
+#!/bin/sh
+# Records an AppCDS archive (build/enhanced-atm.jsa) for build/enhanced-atm.jar by running
+# one scripted session, so later launches map the already-parsed and verified classes
+# instead of loading them from the jar. The archive is tied to the JDK that created it;
+# rerun this after upgrading the JDK or rebuilding the jar. Requires JDK 13 or later.
+#
+# Usage: scripts/cds-archive.sh
+
+set -e
+cd "$(dirname "$0")/.."
+
+[ -f build/enhanced-atm.jar ] || scripts/build-jar.sh
+
+root=$(pwd)
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+# train against a scratch copy of the sample ledger, so the real one is left alone
+cp src/accounts-db.txt "$work/"
+cd "$work"
+java -XX:ArchiveClassesAtExit="$root/build/enhanced-atm.jsa" -cp "$root/build/enhanced-atm.jar" Tester \
+	< "$root/scripts/training-session.txt" > /dev/null
+
+echo "Wrote build/enhanced-atm.jsa"
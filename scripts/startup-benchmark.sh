@@ -0,0 +1,60 @@
+#!/bin/bash
+# Measures cold start of the ATM, averaged over several runs:
+#   startup      time from launching the process until its welcome banner is printed
+#   first txn    time from launching the process until the balance of a freshly
+#                logged-in account is printed (includes the PIN hash check)
+# Compares the plain jar, the jar with the AppCDS archive, and the native executable
+# when one has been built (see build-native.sh).
+#
+# Usage: scripts/startup-benchmark.sh [runs]
+
+set -e
+cd "$(dirname "$0")/.."
+root=$(pwd)
+runs=${1:-10}
+
+[ -f build/enhanced-atm.jar ] || scripts/build-jar.sh
+[ -f build/enhanced-atm.jsa ] || scripts/cds-archive.sh
+
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+cd "$work"
+printf '2\n100000001\n1234\n4\n9\n3\n' > session.txt
+
+# prints the milliseconds until the command prints a line containing a pattern; every
+# run starts from a fresh copy of the sample ledger
+until_line() {
+	local pattern=$1 input=$2 start end
+	shift 2
+	rm -f accounts-db.txt*
+	cp "$root/src/accounts-db.txt" .
+	start=$(date +%s%N)
+	end=$("$@" < "$input" 2> /dev/null | {
+		while IFS= read -r line; do
+			case "$line" in *"$pattern"*) date +%s%N; break ;; esac
+		done
+		cat > /dev/null
+	})
+	echo $(( (end - start) / 1000000 ))
+}
+
+measure() {
+	local label=$1 startup=0 first=0
+	shift
+	until_line "Welcome" /dev/null "$@" > /dev/null		# warm the page cache
+	for ((i = 0; i < runs; i++)); do
+		startup=$((startup + $(until_line "Welcome" /dev/null "$@")))
+		first=$((first + $(until_line "Current balance" session.txt "$@")))
+	done
+	printf '%-20s %10d ms %10d ms\n' "$label" $((startup / runs)) $((first / runs))
+}
+
+printf '%-20s %13s %13s\n' "" "startup" "first txn"
+measure "jar" java -cp "$root/build/enhanced-atm.jar" Tester
+measure "jar + AppCDS" java -XX:SharedArchiveFile="$root/build/enhanced-atm.jsa" -Xshare:auto -XX:TieredStopAtLevel=1 \
+	-cp "$root/build/enhanced-atm.jar" Tester
+if [ -x "$root/build/enhanced-atm" ]; then
+	measure "native" "$root/build/enhanced-atm"
+else
+	echo "(no native executable; run scripts/build-native.sh to include it)"
+fi
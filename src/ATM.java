@@ -1,8 +1,11 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.InputMismatchException;
-import java.util.Scanner;
 
 /**
  * The ATM class is primarily responsible for user interaction.
@@ -17,12 +20,18 @@ public class ATM {
 	public final static int INSUFFICIENT_FUNDS = 2;
 	public final static int ACCOUNT_NOT_FOUND = 3;
 	public final static int SUCCESS = 4;
+	public final static int ACCOUNT_LOCKED = 5;
+	public final static int VELOCITY_EXCEEDED = 6;
+	public final static int DAILY_LIMIT_EXCEEDED = 7;
+	public final static int CUSTOMER_EXISTS = 8;
 	
-	private Scanner in;
+	private InputSource in;
+	private PrintStream out;
+	private boolean animated;
 	private BankAccount account;
-	private BankAccount destination;
-	private Database db;
-		
+	private AtmService service;
+	private boolean closing;		// true if the service was created for this ATM, and is closed with it
+	
 	/**
 	 * Constructs an instance of the ATM class.
 	 * 
@@ -32,63 +41,126 @@ public class ATM {
 	 */
 	
 	public ATM() throws FileNotFoundException, IOException {
+		this(new AtmService(openStore()), System.in, System.out);
+		this.closing = true;
+	}
+	
+	/**
+	 * Constructs an instance of the ATM class that shares a service and talks to
+	 * the supplied streams instead of the console.
+	 * 
+	 * @param service the service that carries out transactions
+	 * @param input the stream from which user input is read
+	 * @param out the stream to which prompts are written
+	 */
+	
+	public ATM(AtmService service, InputStream input, PrintStream out) {
+		this(service, new PrintStream(new SessionOutput(out), false), input);
+	}
+	
+	/*
+	 * Constructs an ATM whose input flushes its buffered output whenever it waits.
+	 * 
+	 * @param service the service that carries out transactions
+	 * @param session the session's buffered output
+	 * @param input the stream from which user input is read
+	 */
+	
+	private ATM(AtmService service, PrintStream session, InputStream input) {
+		this(service, new StreamInput(input, session), session);
+	}
+	
+	/**
+	 * Constructs an instance of the ATM class over any input source. Output is written to
+	 * out as is; to batch it per interaction, pass a PrintStream over a SessionOutput and an
+	 * input source that flushes it before waiting for input, as StreamInput does.
+	 * 
+	 * @param service the service that carries out transactions
+	 * @param in the source of user input
+	 * @param out the stream to which prompts are written
+	 */
+	
+	public ATM(AtmService service, InputSource in, PrintStream out) {
+		this.in = in;
+		this.out = out;
+		this.animated = true;
 		this.account = null;
-		this.destination = null;
-		this.db = new Database("accounts-db.txt");
+		this.service = service;
+		this.closing = false;
 	}
-
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Enables or disables the countdown animations (and their delays).
+	 * 
+	 * @param animated true to animate, false to print the messages immediately
+	 */
+	
+	public void setAnimated(boolean animated) {
+		this.animated = animated;
+	}
+	
 	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
-
+	
 	/**
-	 * Starts the ATM and handles all user interaction and routing.
+	 * Starts the ATM and handles all user interaction and routing. An ATM constructed
+	 * without a service closes its own when it powers off.
 	 * 
 	 * @throws InterruptedException 
 	 * @throws IOException 
 	 * @throws FileNotFoundException 
 	 */
-
+	
 	public void run() throws InterruptedException, FileNotFoundException, IOException {
-		in = new Scanner(System.in);
-		
-		boolean active = true;
-		boolean validated = false;
-		
-		System.out.println("Welcome to APCSA Enhanced ATM, the ATM of choice for the UCVTS community.");
-		System.out.println("To begin, create a new account or access an existing one.");
-		
-		while (active) {
-			try {
-				if (!validated) {
-					showMenu();
-					int selection = in.nextInt();
-					
-					switch (selection) {
-						case 1: validated = openAccount(); break;
-						case 2: validated = login(); break;
-						case 3: active = false; break;
-					}
-				} else {
-					showSubmenu();
-					int selection = in.nextInt();
-					
-					switch (selection) {
-						case 1: deposit(); break;
-						case 2: withdraw(); break;
-						case 3: transfer(); break;
-						case 4: viewBalance(); break;
-						case 5: viewPersonalInfo(); break;
-						case 6: updatePersonalInfo(); break;
-						case 7: validated = closeAccount(); break;
-						case 8: validated = logout(); break;
+		try {
+			boolean active = true;
+			boolean validated = false;
+			
+			out.println("Welcome to APCSA Enhanced ATM, the ATM of choice for the UCVTS community.");
+			out.println("To begin, create a new account or access an existing one.");
+			
+			while (active) {
+				try {
+					if (!validated) {
+						showMenu();
+						int selection = in.nextInt();
+						
+						switch (selection) {
+							case 1: validated = openAccount(); break;
+							case 2: validated = login(); break;
+							case 3: active = false; break;
+						}
+					} else {
+						showSubmenu();
+						int selection = in.nextInt();
+						
+						switch (selection) {
+							case 1: deposit(); break;
+							case 2: withdraw(); break;
+							case 3: transfer(); break;
+							case 4: viewBalance(); break;
+							case 5: viewRecentTransactions(); break;
+							case 6: viewPersonalInfo(); break;
+							case 7: updatePersonalInfo(); break;
+							case 8: validated = closeAccount(); break;
+							case 9: validated = logout(); break;
+						}
 					}
+				} catch (InputMismatchException e) {
+					in.nextLine();
 				}
-			} catch (InputMismatchException e) {
-				in.nextLine();
+			}
+			
+			showCountdown(out, animated, "Powering off", "Shutdown complete.");
+			in.close();
+		} finally {
+			out.flush();
+			
+			if (closing) {
+				service.close();
 			}
 		}
-		
-		ATM.showCountdown("Powering off", "Shutdown complete.");
-		in.close();
 	}
 	
 	/**
@@ -98,77 +170,74 @@ public class ATM {
 	 * @throws InterruptedException 
 	 */
 	
-	public boolean openAccount() throws InterruptedException {
-		System.out.println("\nAlright, so you're opening a new account. Enter your information, or -1 to cancel.\n");
+	public boolean openAccount() throws InterruptedException, IOException {
+		out.println("\nAlright, so you're opening a new account. Enter your information, or -1 to cancel.\n");
 		in.nextLine();
 		
 		String firstName = null;
 		while (!isValidText(firstName)) {
-			System.out.print("                First Name : ");
+			out.print("                First Name : ");
 			firstName = in.nextLine();
 			if (firstName.equals("-1")) return false;	
 		}
 		
 		String lastName = null;
 		while (!isValidText(lastName)) {
-			System.out.print("                 Last Name : ");
+			out.print("                 Last Name : ");
 			lastName = in.nextLine();
 			if (lastName.equals("-1")) return false;	
 		}
 		
 		String dob = null;
 		while (!isValidDOB(dob)) {
-			System.out.print("Date of Birth (MM/DD/YYYY) : ");
+			out.print("Date of Birth (MM/DD/YYYY) : ");
 			dob = in.nextLine();
 			if (dob.equals("-1")) return false;
 		}
 		
 		String phone = null;
 		while (!isValidPhone(phone)) {
-			System.out.print("Phone Number (digits only) : ");
+			out.print("Phone Number (digits only) : ");
 			phone = in.nextLine();
 			if (phone.equals("-1")) return false;
 		}
 		
 		String streetAddress = null;
 		while (!isValidText(streetAddress)) {
-			System.out.print("            Street Address : ");
+			out.print("            Street Address : ");
 			streetAddress = in.nextLine();
 			if (streetAddress.equals("-1")) return false;	
 		}
 		
 		String city = null;
 		while (!isValidText(city)) {
-			System.out.print("                      City : ");
+			out.print("                      City : ");
 			city = in.nextLine();
 			if (city.equals("-1")) return false;	
 		}
 		
 		String state = null;
 		while (!isValidState(state)) {
-			System.out.print("                     State : ");
+			out.print("                     State : ");
 			state = in.nextLine();
 			if (state.equals("-1")) return false;	
 		}
 		
 		String zip = null;
 		while (!isValidZip(zip)) {
-			System.out.print("               Postal Code : ");
+			out.print("               Postal Code : ");
 			zip = in.nextLine();
 			if (zip.equals("-1")) return false;	
 		}
 		
 		String pin = null;
 		while (!isValidPIN(pin)) {
-			System.out.print("                     PIN # : ");
+			out.print("                     PIN # : ");
 			pin = in.nextLine();
 			if (pin.equals("-1")) return false;	
 		}
 		
-		this.account = new BankAccount(
-			'Y',
-			db.getMaxAccountNumber() + 1,
-			0.0,
+		this.account = service.openAccount(
 			new User(
 				Integer.parseInt(pin),
 				format(dob),
@@ -182,30 +251,39 @@ public class ATM {
 			)
 		);
 		
-		ATM.showCountdown("Creating account", "Account successfully created.");
-		System.out.println("\nHi, " + account.getUser().getName() + "! What can I help you with?");
+		if (account == null) {
+			out.println("\nYou already have an account with us. Log in with it instead.");
+			return false;
+		}
+		
+		showCountdown(out, animated, "Creating account", "Account successfully created.");
+		out.println("\nHi, " + account.getUser().getName() + "! What can I help you with?");
 		
 		return true;
 	}
 	
 	public boolean closeAccount() throws IOException, InterruptedException {
-		System.out.println("\nAw, we're sorry to see you go... Are you sure?\n");
+		out.println("\nAw, we're sorry to see you go... Are you sure?\n");
 		in.nextLine();
 		
 		boolean validated = false;
 		while (!validated) {
-			System.out.print("Confirm (Y/N): ");
+			out.print("Confirm (Y/N): ");
 			String response = in.nextLine();
 			
 			if (response.toLowerCase().equals("y")) {
-				account.setStatus('N');
-				db.updateAccount(account, null);
+				int status = service.closeAccount(account.getAccountNumber());
 				account = null;
-				ATM.showCountdown("Closing account", "Account closed.");
+				
+				if (status == ATM.SUCCESS) {
+					showCountdown(out, animated, "Closing account", "Account closed.");
+				} else {
+					out.println("\nAccount not found. It may have already been closed.");
+				}
 				
 				return false;
 			} else if (response.toLowerCase().equals("n")) {
-				System.out.println("\nPhew! Thought we lost you for a minute...");
+				out.println("\nPhew! Thought we lost you for a minute...");
 				
 				return true;
 			}
@@ -226,25 +304,28 @@ public class ATM {
 		boolean validated = false;
 		long accountNumber = 0;
 		
-		System.out.println("\nPlease enter your account credentials, or -1 to cancel.\n");
+		out.println("\nPlease enter your account credentials, or -1 to cancel.\n");
 		while (!validated) {
 			try {
 				if (accountNumber == 0) {
-					System.out.print("Account # : ");
+					out.print("Account # : ");
 					accountNumber = in.nextLong();
 				} else if (accountNumber == -1) {
-					System.out.println("\nCanceling and returning to the previous menu.");
+					out.println("\nCanceling and returning to the previous menu.");
 					break;
 				} else {
-					System.out.print("    PIN # : ");
+					out.print("    PIN # : ");
 					int pin = in.nextInt();
 					
 					if (pin == -1) {
-						System.out.println("\nCanceling and returning to the previous menu.");
+						out.println("\nCanceling and returning to the previous menu.");
+						break;
+					} else if (service.isLocked(accountNumber)) {
+						out.println("\nToo many incorrect PINs. This account is locked; try again later.");
 						break;
 					} else if (isValidAccount(accountNumber, pin)) {
 						validated = true;
-						System.out.println("\nHi, " + account.getUser().getName() + "! What can I help you with?");
+						out.println("\nHi, " + account.getUser().getName() + "! What can I help you with?");
 					}
 				}
 			} catch (InputMismatchException e) {
@@ -263,90 +344,113 @@ public class ATM {
 	 */
 	
 	public boolean logout() throws IOException {
-		System.out.println("\nSee you later, " + account.getUser().getName() + "!");
+		out.println("\nSee you later, " + account.getUser().getName() + "!");
 		
-		db.updateAccount(account, destination);
 		account = null;
-		destination = null;
 		
 		return false;
 	}
-
+	
 	/**
 	 * Deposits a user-specified amount of money into the account.
+	 * 
+	 * @throws IOException
 	 */
 	
-	public void deposit() {
+	public void deposit() throws IOException {
 		if (account.getBalance() == BankAccount.ACCOUNT_MAXIMUM) {
-			System.out.println("\nYour account already holds the maximum amount. Try withdrawing or transfering some money first.");
+			out.println("\nYour account already holds the maximum amount. Try withdrawing or transfering some money first.");
 		} else {
-			System.out.println("\nTell me how much money you want to deposit, or enter -1 to cancel.");
+			out.println("\nTell me how much money you want to deposit, or enter -1 to cancel.");
 			boolean valid = false;
-
+			
 			while (!valid) {
 				try {
-					System.out.print("\nEnter Amount : ");
+					out.print("\nEnter Amount : ");
 					double amount = in.nextDouble();
 					
 					if (amount == -1) {
-						System.out.println("\nCanceling and returning to previous menu."); break;
+						out.println("\nCanceling and returning to previous menu."); break;
 					} else if (amount < 0.01) {
 						throw new IllegalArgumentException();
 					}
 					
-					switch (account.deposit(amount)) {
-						case ATM.INVALID_AMOUNT: System.out.println("\nAmount must be greater than $0.00."); break;
-						case ATM.EXCEEDS_MAXIMUM: System.out.println("\nAccount balance would exceed maximum. Deposit rejected."); break;
+					switch (service.deposit(account.getAccountNumber(), amount)) {
+						case ATM.INVALID_AMOUNT: out.println("\nAmount must be greater than $0.00."); break;
+						case ATM.EXCEEDS_MAXIMUM: out.println("\nAccount balance would exceed maximum. Deposit rejected."); break;
+						case ATM.ACCOUNT_NOT_FOUND:
+							out.println("\nAccount not found. It may have been closed. Deposit rejected.");
+							
+							valid = true;
+							break;
 						case ATM.SUCCESS:
-							System.out.println("\nDeposited " + format(amount) + ". Your updated balance is " + format(account.getBalance()) + ".");
+							out.println("\nDeposited " + format(amount) + "." + describeBalance());
 							valid = true;
 							break;
 					}
 				} catch (InputMismatchException e) {
 					in.nextLine();
-					System.out.println("\nAmount must be a numeric value.");
+					out.println("\nAmount must be a numeric value.");
 				} catch (IllegalArgumentException e) {
-					System.out.println("\nAmount must be greater than or equal to $0.01.");
+					out.println("\nAmount must be greater than or equal to $0.01.");
 				}
 			}	
 		}
 	}
-
+	
 	/**
 	 * Withdraws a user-specified amount of money from the account.
+	 * 
+	 * @throws IOException
 	 */
-
-	public void withdraw() {
+	
+	public void withdraw() throws IOException {
 		if (account.getBalance() == 0) {
-			System.out.println("\nYou don't have any money to withdraw. Try depositing money first.");
+			out.println("\nYou don't have any money to withdraw. Try depositing money first.");
 		} else {
-			System.out.println("\nTell me how much money you want to withdraw, or enter -1 to cancel.");
+			out.println("\nTell me how much money you want to withdraw, or enter -1 to cancel.");
 			boolean valid = false;
 			
 			while (!valid) {
 				try {
-					System.out.print("\nEnter Amount : ");
+					out.print("\nEnter Amount : ");
 					double amount = in.nextDouble();
 					
 					if (amount == -1) {
-						System.out.println("\nCanceling and returning to previous menu."); break;
+						out.println("\nCanceling and returning to previous menu."); break;
 					} else if (amount < 0.01) {
 						throw new IllegalArgumentException();
 					}
-
-					switch (account.withdraw(amount)) {
-						case ATM.INVALID_AMOUNT: System.out.println("\nAmount must be greater than $0.00."); break;
-						case ATM.INSUFFICIENT_FUNDS: System.out.println("\nInsufficient funds."); break;
+					
+					switch (service.withdraw(account.getAccountNumber(), amount)) {
+						case ATM.INVALID_AMOUNT: out.println("\nAmount must be greater than $0.00."); break;
+						case ATM.INSUFFICIENT_FUNDS: out.println("\nInsufficient funds."); break;
+						case ATM.VELOCITY_EXCEEDED:
+							out.println("\nToo many withdrawals in a short time. Try again in a minute.");
+							
+							valid = true;
+							break;
+						case ATM.DAILY_LIMIT_EXCEEDED:
+							out.println("\nThat would exceed your daily withdrawal limit. You can withdraw up to " +
+								format(service.getDailyAllowance(account.getAccountNumber())) + " more today.");
+							
+							valid = true;
+							break;
+						case ATM.ACCOUNT_NOT_FOUND:
+							out.println("\nAccount not found. It may have been closed. Withdrawal rejected.");
+							
+							valid = true;
+							break;
 						case ATM.SUCCESS:
-							System.out.println("\nWithdrew " + format(amount) + ". Your updated balance is " + format(account.getBalance()) + ".");
+							out.println("\nWithdrew " + format(amount) + "." + describeBalance());
 							valid = true;
 							break;
 					}	
 				} catch (InputMismatchException e) {
 					in.nextLine();
-					System.out.println("\nAmount must be a numeric value.");
+					out.println("\nAmount must be a numeric value.");
 				} catch (IllegalArgumentException e) {
-					System.out.println("\nAmount must be greater than or equal to $0.01.");
+					out.println("\nAmount must be greater than or equal to $0.01.");
 				}
 			}	
 		}
@@ -361,60 +465,64 @@ public class ATM {
 	
 	public void transfer() throws FileNotFoundException, IOException {
 		if (account.getBalance() == 0) {
-			System.out.println("\nYou don't have any money to transfer. Try depositing money first.");
+			out.println("\nYou don't have any money to transfer. Try depositing money first.");
 		} else {
-			System.out.println("\nTell me where and how much you want to transfer, or enter -1 to cancel.");
+			out.println("\nTell me where and how much you want to transfer, or enter -1 to cancel.");
 			boolean accountValid = false;
 			boolean amountValid = false;
 			long accountNumber = -1;
 			
-			System.out.println();
+			out.println();
 			while (!accountValid) {
 				amountValid = false;
 				try {
-					System.out.print("Enter Destination Account # : ");
+					out.print("Enter Destination Account # : ");
 					accountNumber = in.nextLong();
 					
 					if (accountNumber == -1) {
-						System.out.println("\nCanceling and returning to previous menu."); break;
-					} else if (String.valueOf(accountNumber).length() != 9) {
-						amountValid = true;
-					} else {
-						destination = db.getAccount(accountNumber);
+						out.println("\nCanceling and returning to previous menu."); break;
+					} else if (String.valueOf(accountNumber).length() < RecordLayout.V1.getWidth(RecordLayout.ACCOUNT_NUMBER) ||
+						String.valueOf(accountNumber).length() > RecordLayout.CURRENT.getWidth(RecordLayout.ACCOUNT_NUMBER)) {
+						amountValid = true;		// not an account number; ask again
 					}
 				} catch (InputMismatchException e) {
 					in.nextLine();
 				}
-			
+				
 				int attempts = 0;
 				while (!amountValid) {
 					try {
 						if (attempts++ == 0) {
-							System.out.print("               Enter Amount : ");
+							out.print("               Enter Amount : ");
 						} else {
-							System.out.print("\n               Enter Amount : ");
+							out.print("\n               Enter Amount : ");
 						}
 						double amount = in.nextDouble();
 						
 						if (amount == -1) {
-							System.out.println("\nCanceling and returning to previous menu."); break;
+							out.println("\nCanceling and returning to previous menu."); break;
 						} else if (amount < 0.01) {
 							throw new IllegalArgumentException();
 						}
 						
-						switch(account.transfer(destination, amount)) {
-							case ATM.INVALID_AMOUNT: System.out.println("\nAmount must be greater than $0.00."); break;
-							case ATM.EXCEEDS_MAXIMUM: System.out.println("\nAccount balance would exceed maximum. Transfer rejected."); break;
-							case ATM.INSUFFICIENT_FUNDS: System.out.println("\nInsufficient funds."); break;
+						switch(service.transfer(account.getAccountNumber(), accountNumber, amount)) {
+							case ATM.INVALID_AMOUNT: out.println("\nAmount must be greater than $0.00."); break;
+							case ATM.EXCEEDS_MAXIMUM: out.println("\nAccount balance would exceed maximum. Transfer rejected."); break;
+							case ATM.INSUFFICIENT_FUNDS: out.println("\nInsufficient funds."); break;
+							case ATM.VELOCITY_EXCEEDED:
+								out.println("\nThis transfer would exceed your daily transfer limit. Transfer rejected.");
+								
+								accountValid = true;
+								amountValid = true;
+								break;
 							case ATM.ACCOUNT_NOT_FOUND:
-								System.out.println("\nAccount not found.");
+								out.println("\nAccount not found.");
 								
 								accountValid = false;
 								amountValid = true;
 								break;
 							case ATM.SUCCESS:
-								System.out.println("\nTransferred " + format(amount) + " to " + accountNumber + ". Your updated balance is " +
-									format(account.getBalance()) + ".");
+								out.println("\nTransferred " + format(amount) + " to " + accountNumber + "." + describeBalance());
 								
 								accountValid = true;
 								amountValid = true;
@@ -422,21 +530,55 @@ public class ATM {
 						}
 					} catch (InputMismatchException e) {
 						in.nextLine();
-						System.out.println("\nAmount must be a numeric value.");
+						out.println("\nAmount must be a numeric value.");
 					} catch (IllegalArgumentException e) {
-						System.out.println("\nAmount must be greater than or equal to $0.01.");
+						out.println("\nAmount must be greater than or equal to $0.01.");
 					}
 				}
 			}
 		}
 	}
-
+	
 	/**
 	 * Displays the current account balance.
 	 */
 	
 	public void viewBalance() {
-		System.out.println("\nCurrent balance is " + format(account.getBalance()) + ".");
+		out.println("\nCurrent balance is " + format(account.getBalance()) + ".");
+	}
+	
+	/**
+	 * Displays the account's most recent transactions.
+	 */
+	
+	public void viewRecentTransactions() {
+		TransactionHistory history = service.getRecentTransactions(account.getAccountNumber());
+		
+		if (history.size() == 0) {
+			out.println("\nNo recent transactions.");
+			return;
+		}
+		
+		SimpleDateFormat date = new SimpleDateFormat("MM/dd/yyyy hh:mm a");
+		out.println();
+		for (int i = 0; i < history.size(); i++) {
+			String description;
+			switch (history.getType(i)) {
+				case TransactionHistory.DEPOSIT: description = "Deposit"; break;
+				case TransactionHistory.WITHDRAWAL: description = "Withdrawal"; break;
+				case TransactionHistory.TRANSFER_OUT: description = "Transfer to " + history.getCounterparty(i); break;
+				case TransactionHistory.TRANSFER_IN: description = "Transfer from " + history.getCounterparty(i); break;
+				case TransactionHistory.INTEREST: description = "Interest"; break;
+				default: description = "Unknown";
+			}
+			
+			out.println(String.format("%s   %-25s %18s %18s",
+				date.format(new Date(history.getTime(i))),
+				description,
+				format(history.getAmount(i) / 100.0),
+				format(history.getBalance(i) / 100.0)
+			));
+		}
 	}
 	
 	/**
@@ -444,20 +586,22 @@ public class ATM {
 	 */
 	
 	public void viewPersonalInfo() {
-		System.out.println("\n     Account # : " + account.getAccountNumber());
-		System.out.println("Account Holder : " + account.getUser().getName());
-		System.out.println("       Address : " + account.getUser().getStreetAddress());
-		System.out.println("                 " + account.getUser().getFormattedAddress());
-		System.out.println(" Date of Birth : " + account.getUser().getFormattedDOB());
-		System.out.println("     Telephone : " + account.getUser().getFormattedPhone());
+		out.println("\n     Account # : " + account.getAccountNumber());
+		out.println("Account Holder : " + account.getUser().getName());
+		out.println("       Address : " + account.getUser().getStreetAddress());
+		out.println("                 " + account.getUser().getFormattedAddress());
+		out.println(" Date of Birth : " + account.getUser().getFormattedDOB());
+		out.println("     Telephone : " + account.getUser().getFormattedPhone());
 	}
 	
 	/**
 	 * Updates the user's personal information.
+	 * 
+	 * @throws IOException
 	 */
 	
-	public void updatePersonalInfo() {
-		System.out.println("\nSelect the personal information you wish to update, or -1 to cancel.");
+	public void updatePersonalInfo() throws IOException {
+		out.println("\nSelect the personal information you wish to update, or -1 to cancel.");
 		boolean valid = false;
 		
 		while (!valid) {
@@ -482,51 +626,98 @@ public class ATM {
 	 * 
 	 * @param first the opening message
 	 * @param second the closing message
-	 * @param isShutdown whether or not the Scanner needs to be closed
 	 * @throws InterruptedException
 	 */
 	
 	public static void showCountdown(String first, String second) throws InterruptedException {
-		System.out.print("\n" + first);
-		Thread.sleep(750);
-		System.out.print(".");
-		Thread.sleep(750);
-		System.out.print(".");
-		Thread.sleep(750);
-		System.out.print(".");
-		Thread.sleep(1000);
-		System.out.println("\n" + second);
+		showCountdown(System.out, true, first, second);
+	}
+	
+	/**
+	 * Displays a countdown sequence with custom messages on the given stream.
+	 * 
+	 * @param out the stream to write to
+	 * @param animated whether or not to pause between the dots
+	 * @param first the opening message
+	 * @param second the closing message
+	 * @throws InterruptedException
+	 */
+	
+	public static void showCountdown(PrintStream out, boolean animated, String first, String second) throws InterruptedException {
+		out.print("\n" + first);
+		if (animated) pause(out, 750);
+		out.print(".");
+		if (animated) pause(out, 750);
+		out.print(".");
+		if (animated) pause(out, 750);
+		out.print(".");
+		if (animated) pause(out, 1000);
+		out.println("\n" + second);
 	}
 	
 	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
-
+	
+	/*
+	 * Shows what has been printed so far, then waits.
+	 * 
+	 * @param out the stream to flush
+	 * @param millis how long to wait
+	 * @throws InterruptedException
+	 */
+	
+	private static void pause(PrintStream out, long millis) throws InterruptedException {
+		out.flush();
+		Thread.sleep(millis);
+	}
+	
 	/*
 	 * Displays a menu of options.
 	 */
 	
 	public void showMenu() {
-		System.out.println("\n   [1] Open Account");
-		System.out.println("   [2] Login");
-		System.out.println("   [3] Quit");
+		out.println("\n   [1] Open Account");
+		out.println("   [2] Login");
+		out.println("   [3] Quit");
 		
-		System.out.print("\nMake a selection: ");
+		out.print("\nMake a selection: ");
 	}
-
+	
 	/*
 	 * Displays a submenu of options.
 	 */
 	
 	public void showSubmenu() {
-		System.out.println("\n   [1] Deposit");
-		System.out.println("   [2] Withdraw");
-		System.out.println("   [3] Transfer");
-		System.out.println("   [4] View Balance");
-		System.out.println("   [5] View Personal Information");
-		System.out.println("   [6] Update Personal Information");
-		System.out.println("   [7] Close Account");
-		System.out.println("   [8] Logout");
+		out.println("\n   [1] Deposit");
+		out.println("   [2] Withdraw");
+		out.println("   [3] Transfer");
+		out.println("   [4] View Balance");
+		out.println("   [5] View Recent Transactions");
+		out.println("   [6] View Personal Information");
+		out.println("   [7] Update Personal Information");
+		out.println("   [8] Close Account");
+		out.println("   [9] Logout");
+		
+		out.print("\nMake a selection: ");
+	}
+	
+	/*
+	 * Opens the account store selected by the atm.store system property. The text ledger
+	 * ships its commits to replication followers if the atm.replication.port system
+	 * property is set.
+	 * 
+	 * @return the store
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	
+	private static AccountStore openStore() throws FileNotFoundException, IOException {
+		AccountStore store = AccountStore.open("accounts-db.txt");
 		
-		System.out.print("\nMake a selection: ");
+		if (store instanceof Database) {
+			ReplicationPrimary.start((Database) store);
+		}
+		
+		return store;
 	}
 	
 	/*
@@ -534,11 +725,11 @@ public class ATM {
 	 */
 	
 	private void showUpdateMenu() {
-		System.out.println("\n   [1] PIN");
-		System.out.println("   [2] Telephone");
-		System.out.println("   [3] Address");
+		out.println("\n   [1] PIN");
+		out.println("   [2] Telephone");
+		out.println("   [3] Address");
 		
-		System.out.print("\nMake a selection: ");
+		out.print("\nMake a selection: ");
 	}
 	
 	/*
@@ -550,14 +741,12 @@ public class ATM {
 	* @throws FileNotFoundException
 	* @throws IOException
 	*/
-
+	
 	private boolean isValidAccount(long accountNumber, int pin) throws FileNotFoundException, IOException {
-		account = db.getAccount(accountNumber);
-		
-		if (account != null) {
-			if (account.getAccountNumber() == accountNumber && account.getUser().getPIN() == pin) {
-				return true;
-			}
+		if (service.login(accountNumber, pin) == ATM.SUCCESS) {
+			account = service.getAccount(accountNumber);
+			
+			return account != null;
 		}
 		account = null;
 		
@@ -568,24 +757,32 @@ public class ATM {
 	 * Updates the user's PIN.
 	 *  
 	 * @return true if the update is successful, false otherwise
+	 * @throws IOException
 	 */
 	
-	private boolean updatePIN() {
+	private boolean updatePIN() throws IOException {
 		String current = null;
 		boolean valid = false;
 		
-		System.out.println();
+		out.println();
 		while (!valid) {
 			try {
-				System.out.print("     Enter current PIN # : ");
+				out.print("     Enter current PIN # : ");
 				current = in.next();
 				
 				if (current.equals("-1")) {
-					System.out.println("\nCanceling and returning to the previous menu.");
+					out.println("\nCanceling and returning to the previous menu.");
 					
 					return false;
-				} else if (Integer.parseInt(current) == account.getUser().getPIN()) {
+				}
+				
+				int status = service.login(account.getAccountNumber(), Integer.parseInt(current));
+				if (status == ATM.SUCCESS) {
 					valid = true;
+				} else if (status == ATM.ACCOUNT_LOCKED) {
+					out.println("\nToo many incorrect PINs. This account is locked; try again later. No changes made.");
+					
+					return false;
 				}
 			} catch (NumberFormatException e) {
 				in.nextLine();
@@ -595,24 +792,39 @@ public class ATM {
 		
 		while (!valid) {
 			try {
-				System.out.print("Enter new, 4-digit PIN # : ");
+				out.print("Enter new, 4-digit PIN # : ");
 				String pin = in.next();
-					
+				
 				if (pin.equals("-1")) {
-					System.out.println("\nCanceling and returning to the previous menu.");
-						
+					out.println("\nCanceling and returning to the previous menu.");
+					
 					return false;
 				} else if (pin.length() != 4) {
 					// ignore entered PIN so prompt will repeat
 				} else {
-					account.getUser().setPIN(Integer.parseInt(current), Integer.parseInt(pin));
-					if (Integer.parseInt(current) != Integer.parseInt(pin)) {
-						System.out.println("\nSuccessfully changed PIN from " + current + " to " + pin + ".");
-					} else {
-						System.out.println("\nThe new PIN did not differ from the current PIN. No changes made.");
+					switch (service.updatePIN(account.getAccountNumber(), Integer.parseInt(current), Integer.parseInt(pin))) {
+						case ATM.INVALID_AMOUNT: break;
+						case ATM.ACCOUNT_NOT_FOUND:
+							out.println("\nAccount not found, or the current PIN is no longer correct. No changes made.");
+							
+							return false;
+						case ATM.ACCOUNT_LOCKED:
+							out.println("\nToo many incorrect PINs. This account is locked; try again later. No changes made.");
+							
+							return false;
+						case ATM.SUCCESS:
+							if (Integer.parseInt(current) != Integer.parseInt(pin)) {
+								out.println("\nSuccessfully changed PIN from " + current + " to " + pin + ".");
+							} else {
+								out.println("\nThe new PIN did not differ from the current PIN. No changes made.");
+							}
+							
+							return true;
+						default:
+							out.println("\nUnable to change PIN. No changes made.");
+							
+							return false;
 					}
-						
-					return true;	
 				}
 			} catch (InputMismatchException e) {
 				in.nextLine();
@@ -626,38 +838,54 @@ public class ATM {
 	 * Updates the user's phone number.
 	 * 
 	 * @return true if the update is successful, false otherwise
+	 * @throws IOException
 	 */
 	
-	private boolean updatePhone() {
+	private boolean updatePhone() throws IOException {
 		long phone = -1;
 		boolean valid = false;
 		
 		while (!valid) {
 			try {
-				System.out.print("\nEnter new phone number : ");
+				out.print("\nEnter new phone number : ");
 				phone = in.nextLong();
 				
 				if (phone == -1 ) {
-					System.out.println("\nCanceling and returning to the previous menu.");
+					out.println("\nCanceling and returning to the previous menu.");
 					
 					return false;
 				} else if (Long.toString(phone).length() != 10) {
-					System.out.println("\nPhone numbers should be exactly 10 digits and cannot start with 0. Try again.");
+					out.println("\nPhone numbers should be exactly 10 digits and cannot start with 0. Try again.");
 				} else {
 					String current = account.getUser().getFormattedPhone();
-					account.getUser().setPhone(phone);
+					BankAccount updated = null;
+					int status = service.updatePhone(account.getAccountNumber(), phone);
+					
+					if (status == ATM.CUSTOMER_EXISTS) {
+						out.println("\nAnother open account already has your name, date of birth and that phone number. No changes made.");
+						
+						return false;
+					} else if (status == ATM.SUCCESS) {
+						updated = service.getAccount(account.getAccountNumber());
+					}
+					if (updated == null) {
+						out.println("\nAccount not found. It may have been closed. No changes made.");
+						
+						return false;
+					}
+					account = updated;
 					
 					if (!current.equals(account.getUser().getFormattedPhone())) {
-						System.out.println("\nSuccessfully changed phone number from " + current + " to " + account.getUser().getFormattedPhone() + ".");
+						out.println("\nSuccessfully changed phone number from " + current + " to " + account.getUser().getFormattedPhone() + ".");
 					} else {
-						System.out.println("\nThe new phone number did not differ from the current phone number. No changes made.");
+						out.println("\nThe new phone number did not differ from the current phone number. No changes made.");
 					}
 					
 					return true;
 				}
 			} catch (InputMismatchException e) {
 				in.nextLine();
-				System.out.println("\nPhone numbers should contain digits only. Try again.");
+				out.println("\nPhone numbers should contain digits only. Try again.");
 			}
 		}
 		
@@ -668,23 +896,24 @@ public class ATM {
 	 * Updates the user's address.
 	 * 
 	 * @return true if the update is successful, false otherwise
+	 * @throws IOException
 	 */
 	
-	private boolean updateAddress() {
+	private boolean updateAddress() throws IOException {
 		String streetAddress = null;
 		String city = null;
 		String state = null;
 		String zip = null;
 		boolean valid = false;
 		in.nextLine();
-				
-		System.out.println();
+		
+		out.println();
 		while (!valid) {
-			System.out.print("Enter new street address : ");
+			out.print("Enter new street address : ");
 			streetAddress = in.nextLine();
 			if (streetAddress == null || streetAddress.equals("-1")) {
-				System.out.println("\nCanceling and returning to the previous menu.");
-						
+				out.println("\nCanceling and returning to the previous menu.");
+				
 				return false;
 			} else if (streetAddress.length() < 1) {
 				valid = false;
@@ -693,12 +922,12 @@ public class ATM {
 			}
 		}
 		valid = false;
-				
+		
 		while (!valid) {
-			System.out.print("          Enter new city : ");
+			out.print("          Enter new city : ");
 			city = in.nextLine();
 			if (city == null || city.equals("-1")) {
-				System.out.println("\nCanceling and returning to the previous menu.");
+				out.println("\nCanceling and returning to the previous menu.");
 				
 				return false;
 			} else if (city.length() < 1) {
@@ -708,12 +937,12 @@ public class ATM {
 			}
 		}
 		valid = false;
-				
+		
 		while (!valid) {
-			System.out.print("         Enter new state : ");
+			out.print("         Enter new state : ");
 			state = in.nextLine();
 			if (state == null || state.equals("-1")) {
-				System.out.println("\nCanceling and returning to the previous menu.");
+				out.println("\nCanceling and returning to the previous menu.");
 				
 				return false;
 			} else if (state.length() < 2) {
@@ -725,12 +954,12 @@ public class ATM {
 			}
 		}
 		valid = false;
-				
+		
 		while (!valid) {
-			System.out.print("   Enter new postal code : ");
+			out.print("   Enter new postal code : ");
 			zip = in.nextLine();
 			if (zip == null || zip.equals("-1")) {
-				System.out.println("\nCanceling and returning to the previous menu.");
+				out.println("\nCanceling and returning to the previous menu.");
 				
 				return false;
 			} else if (zip.length() != 5) {
@@ -739,19 +968,26 @@ public class ATM {
 				valid = true;
 			}
 		}
-				
+		
 		if (valid) {
 			String previous = account.getUser().getStreetAddress() + "\n" + account.getUser().getFormattedAddress();					
-			account.getUser().setStreetAddress(streetAddress);
-			account.getUser().setCity(city);
-			account.getUser().setState(state);
-			account.getUser().setZip(zip);
+			BankAccount updated = null;
+			
+			if (service.updateAddress(account.getAccountNumber(), streetAddress, city, state, zip) == ATM.SUCCESS) {
+				updated = service.getAccount(account.getAccountNumber());
+			}
+			if (updated == null) {
+				out.println("\nAccount not found. It may have been closed. No changes made.");
+				
+				return false;
+			}
+			account = updated;
 			String current = account.getUser().getStreetAddress() + "\n" + account.getUser().getFormattedAddress();
 			
 			if (!previous.equals(current)) {
-				System.out.println("\nSuccessfully changed address from :\n\n" + previous + "\n\nto :\n\n" + current);						
+				out.println("\nSuccessfully changed address from :\n\n" + previous + "\n\nto :\n\n" + current);						
 			} else {
-				System.out.println("\nThe new address did not differ from the current address. No changes made.");
+				out.println("\nThe new address did not differ from the current address. No changes made.");
 			}
 			
 			return true;
@@ -871,6 +1107,25 @@ public class ATM {
 		return true;
 	}
 	
+	/*
+	 * Reloads the account after a change and describes its updated balance. If the
+	 * account can no longer be found, the balance is left out.
+	 * 
+	 * @return the description, with a leading space, or an empty string
+	 * @throws IOException
+	 */
+	
+	private String describeBalance() throws IOException {
+		BankAccount updated = service.getAccount(account.getAccountNumber());
+		
+		if (updated == null) {
+			return "";
+		}
+		account = updated;
+		
+		return " Your updated balance is " + format(account.getBalance()) + ".";
+	}
+	
 	/*
 	 * Formats raw dollar amounts as $1,234.56.
 	 * 
@@ -0,0 +1,153 @@
+/**
+ * The AccountEvent class describes one change to an account, as published on an
+ * EventBus: an account opened or closed, money deposited, withdrawn or transferred, or
+ * interest credited. A transfer is published as two events, one for each account.
+ * Events are immutable.
+ */
+
+public class AccountEvent {
+	
+	public static final char OPEN = 'O';
+	public static final char CLOSE = 'C';
+	public static final char DEPOSIT = TransactionHistory.DEPOSIT;
+	public static final char WITHDRAWAL = TransactionHistory.WITHDRAWAL;
+	public static final char TRANSFER_OUT = TransactionHistory.TRANSFER_OUT;
+	public static final char TRANSFER_IN = TransactionHistory.TRANSFER_IN;
+	public static final char INTEREST = TransactionHistory.INTEREST;
+	
+	private static final String FORMAT = "%015d%013d%c%0" + RecordLayout.CURRENT.getWidth(RecordLayout.ACCOUNT_NUMBER) + "d%0" +
+		RecordLayout.CURRENT.getWidth(RecordLayout.ACCOUNT_NUMBER) + "d%015d%015d%s";
+	
+	private final long sequence;
+	private final long time;
+	private final char type;
+	private final long accountNumber;
+	private final long counterparty;
+	private final long amount;
+	private final long balance;
+	private final String transactionId;
+	
+	/**
+	 * Constructs an event.
+	 * 
+	 * @param sequence the event's position in the stream, from 0
+	 * @param time when the change was made, in milliseconds since the epoch
+	 * @param type the kind of change
+	 * @param accountNumber the account changed
+	 * @param counterparty the other account in a transfer, or 0
+	 * @param amount the amount moved, in cents
+	 * @param balance the account's balance afterwards, in cents
+	 * @param transactionId the client's transaction ID, or null
+	 */
+	
+	public AccountEvent(long sequence, long time, char type, long accountNumber, long counterparty, long amount, long balance, String transactionId) {
+		this.sequence = sequence;
+		this.time = time;
+		this.type = type;
+		this.accountNumber = accountNumber;
+		this.counterparty = counterparty;
+		this.amount = amount;
+		this.balance = balance;
+		this.transactionId = transactionId;
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the event's position in the stream. Positions are consecutive; events
+	 * dropped because the bus was full never get one (see EventBus.getDropped).
+	 * 
+	 * @return sequence
+	 */
+	
+	public long getSequence() {
+		return sequence;
+	}
+	
+	/**
+	 * Retrieves when the change was made.
+	 * 
+	 * @return time, in milliseconds since the epoch
+	 */
+	
+	public long getTime() {
+		return time;
+	}
+	
+	/**
+	 * Retrieves the kind of change.
+	 * 
+	 * @return type
+	 */
+	
+	public char getType() {
+		return type;
+	}
+	
+	/**
+	 * Retrieves the account changed.
+	 * 
+	 * @return accountNumber
+	 */
+	
+	public long getAccountNumber() {
+		return accountNumber;
+	}
+	
+	/**
+	 * Retrieves the other account in a transfer.
+	 * 
+	 * @return counterparty, or 0
+	 */
+	
+	public long getCounterparty() {
+		return counterparty;
+	}
+	
+	/**
+	 * Retrieves the amount moved.
+	 * 
+	 * @return amount, in cents
+	 */
+	
+	public long getAmount() {
+		return amount;
+	}
+	
+	/**
+	 * Retrieves the account's balance after the change.
+	 * 
+	 * @return balance, in cents
+	 */
+	
+	public long getBalance() {
+		return balance;
+	}
+	
+	/**
+	 * Retrieves the client's transaction ID.
+	 * 
+	 * @return transactionId, or null
+	 */
+	
+	public String getTransactionId() {
+		return transactionId;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Formats the event as one fixed-width line: sequence (15), time (13), type (1),
+	 * account number, counterparty, amount in cents (15) and balance in cents (15),
+	 * followed by the transaction ID when there is one. The account numbers are as wide as
+	 * the current record layout makes them.
+	 * 
+	 * @return the line, without a line separator
+	 */
+	
+	@Override
+	public String toString() {
+		return String.format(FORMAT, sequence, time, type, accountNumber, counterparty, amount, balance,
+			transactionId == null ? "" : transactionId);
+	}
+}
@@ -0,0 +1,234 @@
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+/**
+ * The AccountStore interface is the storage the ATM keeps its accounts in. Database, the
+ * fixed-width text file, is the default implementation; others are chosen with the
+ * atm.store system property and opened with AccountStore.open.
+ * 
+ * Every implementation updates accounts optimistically, as AtmService expects: an
+ * account is only written if its version still matches the stored one, and writing it
+ * increments the version.
+ */
+
+public interface AccountStore {
+	
+	public static final String STORE_PROPERTY = "atm.store";
+	public static final String TEXT = "text";
+	public static final String SLOTTED = "slotted";
+	public static final String BTREE = "btree";
+	public static final String LSM = "lsm";
+	
+	/**
+	 * Retrieves the path of the ledger the store was opened on, relative to the working
+	 * directory. Sidecar files such as the PIN store are kept next to it.
+	 * 
+	 * @return path
+	 */
+	
+	String getPath();
+	
+	/**
+	 * Retrieves a copy of an open account.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the account, or null if there is no open account with that number
+	 * @throws IOException
+	 */
+	
+	BankAccount get(long accountNumber) throws IOException;
+	
+	/**
+	 * Writes one account, or two together, provided neither has been written since it was
+	 * read. An account the store doesn't have is added. On success, the versions of the
+	 * accounts written are incremented.
+	 * 
+	 * @param account the primary account
+	 * @param destination the secondary account, or null
+	 * @return true if the accounts were written, false if either was stale
+	 * @throws IOException
+	 */
+	
+	boolean put(BankAccount account, BankAccount destination) throws IOException;
+	
+	/**
+	 * Visits every account, open or closed, in the store's own order.
+	 * 
+	 * @param visitor the visitor
+	 * @throws IOException
+	 */
+	
+	void scan(Visitor visitor) throws IOException;
+	
+	/**
+	 * Reserves the next unused account number.
+	 * 
+	 * @return the reserved account number
+	 * @throws IOException
+	 */
+	
+	long nextAccountNumber() throws IOException;
+	
+	/**
+	 * Releases the store's files. The store can't be used afterwards.
+	 * 
+	 * @throws IOException
+	 */
+	
+	void close() throws IOException;
+	
+	/**
+	 * Retrieves every account in columnar form, for reports that scan the whole ledger.
+	 * Stores that don't keep one in memory build it with a scan.
+	 * 
+	 * @return the ledger
+	 * @throws IOException
+	 */
+	
+	default OffHeapLedger columns() throws IOException {
+		final OffHeapLedger ledger = new OffHeapLedger(Database.CHUNK_SIZE);
+		
+		scan(account -> ledger.append(account));
+		
+		return ledger;
+	}
+	
+	/**
+	 * Recomputes the balance of every account, for batch jobs such as interest accrual.
+	 * New balances are computed in parallel over the columns, the update is told which
+	 * accounts will change, then each is written on its own; an account written by someone
+	 * else in the meantime is reread and given the same change in balance. Stores that can
+	 * write the whole batch at once do so instead.
+	 * 
+	 * @param update computes an account's new balance from its slot in the columns
+	 * @return the number of accounts whose balance changed
+	 * @throws IOException
+	 */
+	
+	default int updateBalances(BalanceUpdate update) throws IOException {
+		final OffHeapLedger ledger = columns();
+		final long[] balances = new long[ledger.size()];
+		int[] slots = new int[balances.length];
+		int count = 0;
+		int changed = 0;
+		
+		IntStream.range(0, balances.length)
+			.parallel()
+			.forEach(slot -> balances[slot] = update.apply(ledger, slot));
+		
+		for (int slot = 0; slot < balances.length; slot++) {
+			if (balances[slot] != ledger.getBalanceCents(slot)) {
+				slots[count++] = slot;
+			}
+		}
+		if (count > 0) {
+			update.prepare(ledger, slots, count);
+		}
+		
+		for (int i = 0; i < count; i++) {
+			int slot = slots[i];
+			long delta = balances[slot] - ledger.getBalanceCents(slot);
+			
+			ledger.setBalanceCents(slot, balances[slot]);
+			while (true) {
+				if (put(ledger.copy(slot), null)) {
+					changed++;
+					break;
+				}
+				
+				BankAccount current = get(ledger.getAccountNumber(slot));
+				if (current == null) {
+					break;									// closed meanwhile
+				}
+				ledger.set(slot, current);
+				ledger.setBalanceCents(slot, ledger.getBalanceCents(slot) + delta);
+			}
+		}
+		
+		return changed;
+	}
+	
+	/**
+	 * Opens the store selected by the atm.store system property: "text" (the default) for
+	 * the ledger file itself, "slotted" for a SlottedStore next to it, "btree" for a
+	 * BTreeStore, or "lsm" for an LsmStore.
+	 * 
+	 * @param path the ledger file, relative to the working directory
+	 * @return the store
+	 * @throws IOException
+	 */
+	
+	static AccountStore open(String path) throws IOException {
+		return open(path, System.getProperty(STORE_PROPERTY, TEXT));
+	}
+	
+	/**
+	 * Opens a store of a given kind.
+	 * 
+	 * @param path the ledger file, relative to the working directory
+	 * @param kind the kind of store: "text", "slotted", "btree" or "lsm"
+	 * @return the store
+	 * @throws IOException
+	 */
+	
+	static AccountStore open(String path, String kind) throws IOException {
+		if (kind.equals(TEXT)) {
+			return new Database(path);
+		} else if (kind.equals(SLOTTED)) {
+			return SlottedStore.open(path);
+		} else if (kind.equals(BTREE)) {
+			return BTreeStore.open(path);
+		} else if (kind.equals(LSM)) {
+			return LsmStore.open(path);
+		}
+		
+		throw new IllegalArgumentException("Unknown account store: " + kind + ".");
+	}
+	
+	/**
+	 * Computes one account's new balance for a batch update. Called from several threads
+	 * at once, so implementations must not share mutable state without synchronizing.
+	 */
+	
+	public interface BalanceUpdate {
+		
+		/**
+		 * Computes the new balance of the account in a slot.
+		 * 
+		 * @param ledger the columns
+		 * @param slot the slot
+		 * @return the new balance, in cents
+		 */
+		
+		long apply(OffHeapLedger ledger, int slot);
+		
+		/**
+		 * Is told which accounts are about to change, once every new balance has been
+		 * computed and before any is written. Throwing abandons the update.
+		 * 
+		 * @param ledger the columns, still holding the old balances
+		 * @param slots the slots of the accounts whose balance will change
+		 * @param count the number of slots
+		 * @throws IOException
+		 */
+		
+		default void prepare(OffHeapLedger ledger, int[] slots, int count) throws IOException {
+		}
+	}
+	
+	/**
+	 * Is shown each account in a scan.
+	 */
+	
+	public interface Visitor {
+		
+		/**
+		 * Visits an account.
+		 * 
+		 * @param account a copy of the account
+		 * @throws IOException
+		 */
+		
+		void visit(BankAccount account) throws IOException;
+	}
+}
@@ -0,0 +1,256 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * The Analytics class answers aggregate questions about the ledger. Queries read the
+ * primitive balance, state and zip code columns of the OffHeapLedger directly, never
+ * decoding accounts, and split the ledger into ranges that are scanned by a parallel
+ * stream. Each thread taking part fills its own primitive accumulator, however many
+ * ranges it scans, and the accumulators are merged at the end, so there is no contention
+ * between threads and no more accumulators than threads.
+ * 
+ * The accounts come from the store selected by the atm.store system property, as for the
+ * ATM. Stores that don't keep columns in memory are scanned into them once, on the first
+ * query.
+ * 
+ * Only active accounts are counted.
+ * 
+ * Usage: java Analytics [ledger file]
+ */
+
+public class Analytics {
+	
+	public static final int ZIP_CODES = 100000;
+	
+	private AccountStore store;
+	private OffHeapLedger ledger;
+	
+	/**
+	 * Constructs an analytics API over an account store.
+	 * 
+	 * @param store the account store
+	 */
+	
+	public Analytics(AccountStore store) {
+		this.store = store;
+	}
+	
+	/**
+	 * Main method. Prints every aggregate for a ledger.
+	 * 
+	 * @param args ledger file
+	 * @throws IOException
+	 */
+	
+	public static void main(String[] args) throws IOException {
+		AccountStore store = AccountStore.open(args.length > 0 ? args[0] : "accounts-db.txt");
+		Analytics analytics = new Analytics(store);
+		analytics.ledger();
+		
+		long start = System.nanoTime();
+		long total = analytics.totalDeposits();
+		long[] boundaries = { 0, 100 * 100L, 1000 * 100L, 10000 * 100L, 100000 * 100L };
+		long[] distribution = analytics.balanceDistribution(boundaries);
+		SortedMap<String, Long> states = analytics.accountsPerState();
+		SortedMap<String, Double> zips = analytics.averageBalanceByZip();
+		double elapsed = (System.nanoTime() - start) / 1e6;
+		store.close();
+		
+		System.out.println(String.format("Total deposits : $%,.2f", total / 100.0));
+		System.out.println("\nBalance distribution");
+		for (int i = 0; i < distribution.length; i++) {
+			String range = i == 0 ? String.format("below $%,d", boundaries[0] / 100)
+				: i == boundaries.length ? String.format("$%,d and up", boundaries[i - 1] / 100)
+				: String.format("$%,d to $%,d", boundaries[i - 1] / 100, boundaries[i] / 100);
+			System.out.println(String.format("   %-25s %,12d", range, distribution[i]));
+		}
+		
+		System.out.println("\nAccounts per state");
+		for (Map.Entry<String, Long> entry : states.entrySet()) {
+			System.out.println(String.format("   %-25s %,12d", entry.getKey(), entry.getValue()));
+		}
+		
+		System.out.println("\nAverage balance by zip code");
+		for (Map.Entry<String, Double> entry : zips.entrySet()) {
+			System.out.println(String.format("   %-25s %,15.2f", entry.getKey(), entry.getValue()));
+		}
+		
+		System.out.println(String.format("\nComputed in %,.1f ms.", elapsed));
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Sums the balances of all active accounts.
+	 * 
+	 * @return the total in cents
+	 * @throws IOException
+	 */
+	
+	public long totalDeposits() throws IOException {
+		OffHeapLedger ledger = ledger();
+		
+		return IntStream.range(0, ledger.size())
+			.parallel()
+			.filter(slot -> ledger.getStatus(slot) == 'Y')
+			.mapToLong(ledger::getBalanceCents)
+			.sum();
+	}
+	
+	/**
+	 * Counts active accounts by balance. Bucket 0 holds balances below the first boundary,
+	 * bucket i holds balances from boundary i - 1 up to (but not including) boundary i, and
+	 * the last bucket holds balances at or above the last boundary.
+	 * 
+	 * @param boundaries ascending bucket boundaries in cents
+	 * @return the number of accounts in each of the boundaries.length + 1 buckets
+	 * @throws IOException
+	 */
+	
+	public long[] balanceDistribution(long... boundaries) throws IOException {
+		final long[] sorted = boundaries.clone();
+		Arrays.sort(sorted);
+		
+		return scan(() -> new long[sorted.length + 1], (counts, ledger, slot) -> {
+			int bucket = Arrays.binarySearch(sorted, ledger.getBalanceCents(slot));
+			counts[bucket < 0 ? -bucket - 1 : bucket + 1]++;
+		}, Analytics::add);
+	}
+	
+	/**
+	 * Counts active accounts by state.
+	 * 
+	 * @return account counts keyed by state abbreviation, for states with accounts
+	 * @throws IOException
+	 */
+	
+	public SortedMap<String, Long> accountsPerState() throws IOException {
+		long[] counts = scan(() -> new long[User.STATE_ABBREVIATIONS.length], (c, ledger, slot) -> {
+			int state = ledger.getStateOrdinal(slot);
+			if (state >= 0) {
+				c[state]++;
+			}
+		}, Analytics::add);
+		
+		SortedMap<String, Long> states = new TreeMap<String, Long>();
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				states.put(User.STATE_ABBREVIATIONS[i].toUpperCase(), counts[i]);
+			}
+		}
+		
+		return states;
+	}
+	
+	/**
+	 * Averages the balances of active accounts by zip code.
+	 * 
+	 * @return average balances in dollars keyed by zip code, for zip codes with accounts
+	 * @throws IOException
+	 */
+	
+	public SortedMap<String, Double> averageBalanceByZip() throws IOException {
+		long[] totals = scan(() -> new long[2 * ZIP_CODES], (t, ledger, slot) -> {
+			int zip = ledger.getZipCode(slot);
+			if (zip >= 0) {
+				t[2 * zip] += ledger.getBalanceCents(slot);
+				t[2 * zip + 1]++;
+			}
+		}, Analytics::add);
+		
+		SortedMap<String, Double> zips = new TreeMap<String, Double>();
+		for (int zip = 0; zip < ZIP_CODES; zip++) {
+			long count = totals[2 * zip + 1];
+			
+			if (count > 0) {
+				zips.put(String.valueOf(ZIP_CODES + zip).substring(1), totals[2 * zip] / 100.0 / count);
+			}
+		}
+		
+		return zips;
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Runs an accumulation over every active account. The ledger is split into a few
+	 * ranges per processor, so the threads stay busy even if some ranges are slower; each
+	 * thread adds its ranges to an accumulator of its own, and the results are merged.
+	 * 
+	 * @param create creates an empty accumulator
+	 * @param action adds one slot to an accumulator
+	 * @param merge combines two accumulators
+	 * @return the merged accumulator
+	 * @throws IOException
+	 */
+	
+	private <T> T scan(Supplier<T> create, SlotAction<T> action, BinaryOperator<T> merge) throws IOException {
+		OffHeapLedger ledger = ledger();
+		int size = ledger.size();
+		int ranges = Math.max(1, Math.min(size / 4096, Runtime.getRuntime().availableProcessors() * 4));
+		ConcurrentHashMap<Thread, T> accumulators = new ConcurrentHashMap<Thread, T>();
+		
+		IntStream.range(0, ranges)
+			.parallel()
+			.forEach(range -> {
+				T accumulator = accumulators.computeIfAbsent(Thread.currentThread(), thread -> create.get());
+				int to = (int) ((long) size * (range + 1) / ranges);
+				
+				for (int slot = (int) ((long) size * range / ranges); slot < to; slot++) {
+					if (ledger.getStatus(slot) == 'Y') {
+						action.accept(accumulator, ledger, slot);
+					}
+				}
+			});
+		
+		return accumulators.values().stream()
+			.reduce(merge)
+			.orElseGet(create);
+	}
+	
+	/*
+	 * Retrieves the store's columns, reading them on first use.
+	 * 
+	 * @return the ledger
+	 * @throws IOException
+	 */
+	
+	private synchronized OffHeapLedger ledger() throws IOException {
+		if (ledger == null) {
+			ledger = store.columns();
+		}
+		
+		return ledger;
+	}
+	
+	/*
+	 * Adds one array of counters into another.
+	 * 
+	 * @param a the counters to add to
+	 * @param b the counters to add
+	 * @return a
+	 */
+	
+	private static long[] add(long[] a, long[] b) {
+		for (int i = 0; i < a.length; i++) {
+			a[i] += b[i];
+		}
+		
+		return a;
+	}
+	
+	/*
+	 * Folds one ledger slot into an accumulator.
+	 */
+	
+	private interface SlotAction<T> {
+		void accept(T accumulator, OffHeapLedger ledger, int slot);
+	}
+}
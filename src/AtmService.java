@@ -0,0 +1,679 @@
+import java.io.IOException;
+
+/**
+ * The AtmService class carries out ATM transactions without any user interaction.
+ * Every method takes the account(s) it operates on, persists its changes before
+ * returning, and reports the outcome with the status codes defined in ATM.
+ * 
+ * Changes are made optimistically: each method reads a fresh copy of the account,
+ * applies the change, and writes it back only if no other session wrote the account
+ * in between. When another session got there first, the method reads the account
+ * again and reapplies the change, so no lock is held across a transaction.
+ * 
+ * Withdrawals and transfers are also held to velocity limits: so many withdrawals per
+ * account a minute, and so many dollars transferred out of an account a day. The limits
+ * are set with the atm.velocity.withdrawals and atm.velocity.transfers system
+ * properties, where 0 turns a limit off. On top of these, each account may withdraw so
+ * many dollars a calendar day: the atm.daily.limit system property, unless the account
+ * has a limit of its own. Daily withdrawals are kept in a sidecar file next to the
+ * ledger, so they survive a restart. Like the velocity limits, they are enforced per
+ * process.
+ * 
+ * Every account opened or closed and every deposit, withdrawal and transfer made is
+ * published on the service's EventBus, for subscribers to pass on to other systems.
+ * Setting the atm.events system property to true appends the events to a sidecar file
+ * next to the ledger.
+ */
+
+public class AtmService {
+	
+	public static final String WITHDRAWAL_LIMIT_PROPERTY = "atm.velocity.withdrawals";
+	public static final String TRANSFER_LIMIT_PROPERTY = "atm.velocity.transfers";
+	public static final int DEFAULT_WITHDRAWAL_LIMIT = 5;		// withdrawals per minute
+	public static final int DEFAULT_TRANSFER_LIMIT = 10000;		// dollars per day
+	public static final String DAILY_LIMIT_PROPERTY = "atm.daily.limit";
+	public static final int DEFAULT_DAILY_LIMIT = 1000;			// dollars withdrawn per calendar day
+	public static final String EVENTS_PROPERTY = "atm.events";
+	
+	private AccountStore store;
+	private Authenticator authenticator;
+	private TransactionLog log;
+	private TransactionCache cache;
+	private CustomerIndex customers;		// built on first use
+	private VelocityLimiter withdrawals;	// counts withdrawals
+	private VelocityLimiter transfers;		// totals cents transferred
+	private DailyLimits limits;
+	private EventBus events;
+	private EventFileSink sink;				// or null
+	
+	/**
+	 * Constructs a service over the given account store. Hashed PINs and the transaction
+	 * log are kept in sidecar files next to the ledger; outcomes from the log that are
+	 * still within the retry window are loaded back into the dedup cache, once any commit
+	 * a crash left unsettled is checked against the store.
+	 * 
+	 * @param store the store holding the accounts
+	 * @throws IOException
+	 */
+	
+	public AtmService(AccountStore store) throws IOException {
+		this.store = store;
+		this.authenticator = new Authenticator(new PinStore(store.getPath() + PinStore.EXTENSION));
+		this.cache = new TransactionCache();
+		this.log = new TransactionLog(store.getPath() + TransactionLog.EXTENSION, cache);
+		log.resolve(store);
+		this.withdrawals = new VelocityLimiter(60 * 1000L, Integer.getInteger(WITHDRAWAL_LIMIT_PROPERTY, DEFAULT_WITHDRAWAL_LIMIT));
+		this.transfers = new VelocityLimiter(24 * 60 * 60 * 1000L, Integer.getInteger(TRANSFER_LIMIT_PROPERTY, DEFAULT_TRANSFER_LIMIT) * 100L);
+		this.limits = new DailyLimits(store.getPath() + DailyLimits.EXTENSION, Integer.getInteger(DAILY_LIMIT_PROPERTY, DEFAULT_DAILY_LIMIT) * 100L);
+		this.events = new EventBus(EventBus.DEFAULT_CAPACITY);
+		this.sink = Boolean.getBoolean(EVENTS_PROPERTY) ? new EventFileSink(store.getPath() + EventFileSink.EXTENSION) : null;
+		
+		if (sink != null) {
+			events.subscribe(sink);
+		}
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the bus account changes are published on.
+	 * 
+	 * @return events
+	 */
+	
+	public EventBus getEventBus() {
+		return events;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Validates an account number and PIN.
+	 * 
+	 * @param accountNumber the account number
+	 * @param pin the PIN
+	 * @return a status code (3: account not found or PIN incorrect, 4: success, 5: account locked)
+	 * @throws IOException
+	 */
+	
+	public int login(long accountNumber, int pin) throws IOException {
+		if (authenticator.isLocked(accountNumber)) {
+			return ATM.ACCOUNT_LOCKED;
+		}
+		
+		BankAccount account = store.get(accountNumber);
+		if (account == null) {
+			return ATM.ACCOUNT_NOT_FOUND;
+		}
+		
+		boolean cleartext = account.getUser().getPIN() != User.REDACTED_PIN;
+		int status = authenticator.authenticate(account, pin);
+		
+		while (status == ATM.SUCCESS && cleartext && !store.put(account, null)) {	// drop the newly hashed PIN from the ledger
+			account = store.get(accountNumber);
+			
+			if (account == null) {
+				break;
+			}
+			account.getUser().redactPIN();
+		}
+		
+		return status;
+	}
+	
+	/**
+	 * Determines whether or not an account is locked out after too many incorrect PINs.
+	 * 
+	 * @param accountNumber the account number
+	 * @return true if the account is locked, false otherwise
+	 */
+	
+	public boolean isLocked(long accountNumber) {
+		return authenticator.isLocked(accountNumber);
+	}
+	
+	/**
+	 * Retrieves a snapshot of an open account.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the account, or null if there is no open account with that number
+	 * @throws IOException
+	 */
+	
+	public BankAccount getAccount(long accountNumber) throws IOException {
+		return store.get(accountNumber);
+	}
+	
+	/**
+	 * Retrieves an account's most recent transactions. These are served from memory.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the recent transactions, most recent first
+	 */
+	
+	public TransactionHistory getRecentTransactions(long accountNumber) {
+		return log.getRecent(accountNumber);
+	}
+	
+	/**
+	 * Retrieves how much more can be withdrawn from an account today.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the amount in dollars, or Double.POSITIVE_INFINITY if the account has no
+	 *         daily limit
+	 */
+	
+	public double getDailyAllowance(long accountNumber) {
+		long remaining = limits.getRemaining(accountNumber);
+		
+		return remaining == DailyLimits.UNLIMITED ? Double.POSITIVE_INFINITY : remaining / 100.0;
+	}
+	
+	/**
+	 * Gives an account a daily withdrawal limit of its own.
+	 * 
+	 * @param accountNumber the account number
+	 * @param amount the limit in dollars, or -1 to hold the account to the default again
+	 * @throws IOException
+	 */
+	
+	public void setDailyLimit(long accountNumber, double amount) throws IOException {
+		limits.setLimit(accountNumber, amount < 0 ? -1 : Math.round(amount * 100));
+	}
+	
+	/**
+	 * Opens a new account for a user, unless the user already has one: someone with the
+	 * same name, date of birth and phone number.
+	 * 
+	 * @param user the account holder
+	 * @return the newly opened account, or null if the user already has an open account
+	 * @throws IOException
+	 */
+	
+	public BankAccount openAccount(User user) throws IOException {
+		CustomerIndex customers = customers();
+		
+		if (!customers.reserve(user)) {
+			return null;
+		}
+		
+		boolean opened = false;
+		try {
+			BankAccount account = new BankAccount('Y', store.nextAccountNumber(), 0.0, user);
+			authenticator.enroll(account, user.getPIN());
+			store.put(account, null);
+			customers.assign(user, account.getAccountNumber());
+			opened = true;
+			events.publish(AccountEvent.OPEN, account.getAccountNumber(), 0, 0, 0, null);
+			
+			return account;
+		} finally {
+			if (!opened) {
+				customers.release(user);
+			}
+		}
+	}
+	
+	/**
+	 * Closes an account.
+	 * 
+	 * @param accountNumber the account number
+	 * @return a status code (3: account not found, 4: success)
+	 * @throws IOException
+	 */
+	
+	public int closeAccount(long accountNumber) throws IOException {
+		CustomerIndex customers = customers();
+		BankAccount account;
+		
+		do {
+			account = store.get(accountNumber);
+			
+			if (account == null) {
+				return ATM.ACCOUNT_NOT_FOUND;
+			}
+			account.setStatus('N');
+		} while (!store.put(account, null));
+		
+		customers.remove(account);
+		events.publish(AccountEvent.CLOSE, accountNumber, 0, 0, Math.round(account.getBalance() * 100), null);
+		
+		return ATM.SUCCESS;
+	}
+	
+	/**
+	 * Deposits money into an account.
+	 * 
+	 * @param accountNumber the account number
+	 * @param amount the money to deposit
+	 * @return a status code (0: invalid amount, 1: exceeds max, 3: account not found, 4: success)
+	 * @throws IOException
+	 */
+	
+	public int deposit(long accountNumber, double amount) throws IOException {
+		return deposit(accountNumber, amount, null);
+	}
+	
+	/**
+	 * Deposits money into an account, at most once per transaction ID. A retry with the
+	 * same ID returns the original outcome instead of repeating the deposit.
+	 * 
+	 * @param accountNumber the account number
+	 * @param amount the money to deposit
+	 * @param transactionId the client's transaction ID, or null
+	 * @return a status code (0: invalid amount, 1: exceeds max, 3: account not found, 4: success)
+	 * @throws IOException
+	 */
+	
+	public int deposit(long accountNumber, double amount, String transactionId) throws IOException {
+		if (!Double.isFinite(amount)) {
+			return ATM.INVALID_AMOUNT;
+		}
+		
+		return once(TransactionHistory.DEPOSIT, accountNumber, transactionId, () -> {
+			BankAccount account;
+			int status;
+			
+			do {
+				account = store.get(accountNumber);
+				
+				if (account == null) {
+					return ATM.ACCOUNT_NOT_FOUND;
+				}
+				status = account.deposit(amount);
+			} while (status == ATM.SUCCESS && !commit(TransactionHistory.DEPOSIT, transactionId, account, null));
+			
+			if (status == ATM.SUCCESS) {
+				log.record(accountNumber, TransactionHistory.DEPOSIT, amount, account.getBalance(), 0, transactionId);
+				events.publish(AccountEvent.DEPOSIT, accountNumber, 0, Math.round(amount * 100), Math.round(account.getBalance() * 100), transactionId);
+			}
+			
+			return status;
+		});
+	}
+	
+	/**
+	 * Withdraws money from an account.
+	 * 
+	 * @param accountNumber the account number
+	 * @param amount the money to withdraw
+	 * @return a status code (0: invalid amount, 2: insufficient funds, 3: account not found, 4: success,
+	 *         6: velocity limit exceeded, 7: daily limit exceeded)
+	 * @throws IOException
+	 */
+	
+	public int withdraw(long accountNumber, double amount) throws IOException {
+		return withdraw(accountNumber, amount, null);
+	}
+	
+	/**
+	 * Withdraws money from an account, at most once per transaction ID. A retry with the
+	 * same ID returns the original outcome instead of repeating the withdrawal.
+	 * 
+	 * @param accountNumber the account number
+	 * @param amount the money to withdraw
+	 * @param transactionId the client's transaction ID, or null
+	 * @return a status code (0: invalid amount, 2: insufficient funds, 3: account not found, 4: success,
+	 *         6: velocity limit exceeded, 7: daily limit exceeded)
+	 * @throws IOException
+	 */
+	
+	public int withdraw(long accountNumber, double amount, String transactionId) throws IOException {
+		if (!Double.isFinite(amount)) {
+			return ATM.INVALID_AMOUNT;
+		}
+		
+		return once(TransactionHistory.WITHDRAWAL, accountNumber, transactionId, () -> {
+			long cents = Math.max(0, Math.round(amount * 100));
+			long stamp = withdrawals.acquire(accountNumber, 1);
+			long day;
+			
+			if (stamp == VelocityLimiter.REJECTED) {
+				return ATM.VELOCITY_EXCEEDED;
+			} else if ((day = limits.acquire(accountNumber, cents)) == DailyLimits.REJECTED) {
+				withdrawals.release(accountNumber, 1, stamp);
+				return ATM.DAILY_LIMIT_EXCEEDED;
+			}
+			
+			BankAccount account;
+			int status = ATM.ACCOUNT_NOT_FOUND;
+			
+			try {
+				do {
+					account = store.get(accountNumber);
+					
+					if (account == null) {
+						status = ATM.ACCOUNT_NOT_FOUND;
+						break;
+					}
+					status = account.withdraw(amount);
+				} while (status == ATM.SUCCESS && !commit(TransactionHistory.WITHDRAWAL, transactionId, account, null));
+				
+				if (status == ATM.SUCCESS) {
+					limits.commit(accountNumber, cents, day);
+					log.record(accountNumber, TransactionHistory.WITHDRAWAL, amount, account.getBalance(), 0, transactionId);
+					events.publish(AccountEvent.WITHDRAWAL, accountNumber, 0, cents, Math.round(account.getBalance() * 100), transactionId);
+				}
+			} finally {
+				if (status != ATM.SUCCESS) {
+					withdrawals.release(accountNumber, 1, stamp);
+					limits.release(accountNumber, cents, day);
+				}
+			}
+			
+			return status;
+		});
+	}
+	
+	/**
+	 * Transfers money between two accounts.
+	 * 
+	 * @param from the account number to transfer from
+	 * @param to the account number to transfer to
+	 * @param amount the money to transfer
+	 * @return a status code (0: invalid amount, 1: exceeds max, 2: insufficient funds, 3: account not found, 4: success,
+	 *         6: velocity limit exceeded)
+	 * @throws IOException
+	 */
+	
+	public int transfer(long from, long to, double amount) throws IOException {
+		return transfer(from, to, amount, null);
+	}
+	
+	/**
+	 * Transfers money between two accounts, at most once per transaction ID. A retry with the
+	 * same ID returns the original outcome instead of repeating the transfer.
+	 * 
+	 * @param from the account number to transfer from
+	 * @param to the account number to transfer to
+	 * @param amount the money to transfer
+	 * @param transactionId the client's transaction ID, or null
+	 * @return a status code (0: invalid amount, 1: exceeds max, 2: insufficient funds, 3: account not found, 4: success,
+	 *         6: velocity limit exceeded)
+	 * @throws IOException
+	 */
+	
+	public int transfer(long from, long to, double amount, String transactionId) throws IOException {
+		if (!Double.isFinite(amount)) {
+			return ATM.INVALID_AMOUNT;
+		}
+		
+		return once(TransactionHistory.TRANSFER_OUT, from, transactionId, () -> {
+			long cents = Math.max(0, Math.round(amount * 100));
+			long stamp = transfers.acquire(from, cents);
+			
+			if (stamp == VelocityLimiter.REJECTED) {
+				return ATM.VELOCITY_EXCEEDED;
+			}
+			
+			BankAccount account;
+			BankAccount destination = null;
+			int status = ATM.ACCOUNT_NOT_FOUND;
+			
+			try {
+				do {
+					account = store.get(from);
+					
+					if (account == null) {
+						status = ATM.ACCOUNT_NOT_FOUND;
+						break;
+					}
+					
+					destination = from == to ? account : store.get(to);
+					if (destination == null) {
+						status = ATM.ACCOUNT_NOT_FOUND;
+						break;
+					} else if (destination.getBalance() + amount > BankAccount.ACCOUNT_MAXIMUM && destination != account) {
+						status = ATM.EXCEEDS_MAXIMUM;
+						break;
+					}
+					
+					status = account.transfer(destination, amount);
+				} while (status == ATM.SUCCESS && !commit(TransactionHistory.TRANSFER_OUT, transactionId, account, destination == account ? null : destination));
+				
+				if (status == ATM.SUCCESS) {
+					log.record(from, TransactionHistory.TRANSFER_OUT, amount, account.getBalance(), to, transactionId);
+					log.record(to, TransactionHistory.TRANSFER_IN, amount, destination.getBalance(), from, transactionId);
+					events.publish(AccountEvent.TRANSFER_OUT, from, to, cents, Math.round(account.getBalance() * 100), transactionId);
+					events.publish(AccountEvent.TRANSFER_IN, to, from, cents, Math.round(destination.getBalance() * 100), transactionId);
+				}
+			} finally {
+				if (status != ATM.SUCCESS) {
+					transfers.release(from, cents, stamp);
+				}
+			}
+			
+			return status;
+		});
+	}
+	
+	/**
+	 * Changes an account's PIN.
+	 * 
+	 * @param accountNumber the account number
+	 * @param current the current PIN
+	 * @param pin the new PIN
+	 * @return a status code (0: invalid PIN, 3: account not found or PIN incorrect, 4: success, 5: account locked)
+	 * @throws IOException
+	 */
+	
+	public int updatePIN(long accountNumber, int current, int pin) throws IOException {
+		BankAccount account = store.get(accountNumber);
+		
+		if (account == null) {
+			return ATM.ACCOUNT_NOT_FOUND;
+		} else if (pin < 0 || pin > 9999) {
+			return ATM.INVALID_AMOUNT;
+		}
+		
+		int status = authenticator.authenticate(account, current);
+		if (status != ATM.SUCCESS) {
+			return status;
+		}
+		authenticator.enroll(account, pin);
+		
+		while (!store.put(account, null)) {
+			account = store.get(accountNumber);
+			
+			if (account == null) {
+				return ATM.ACCOUNT_NOT_FOUND;
+			}
+			account.getUser().redactPIN();
+		}
+		
+		return ATM.SUCCESS;
+	}
+	
+	/**
+	 * Changes an account holder's phone number.
+	 * 
+	 * @param accountNumber the account number
+	 * @param phone the new phone number
+	 * @return a status code (3: account not found, 4: success, 8: another open account
+	 *         belongs to a customer with these details)
+	 * @throws IOException
+	 */
+	
+	public int updatePhone(long accountNumber, long phone) throws IOException {
+		CustomerIndex customers = customers();
+		BankAccount account;
+		String previous;
+		User claimed = null;
+		
+		do {
+			account = store.get(accountNumber);
+			
+			if (account == null) {
+				if (claimed != null) {
+					customers.release(claimed);
+				}
+				return ATM.ACCOUNT_NOT_FOUND;
+			}
+			previous = CustomerIndex.key(account.getUser());
+			account.getUser().setPhone(phone);
+			
+			if (claimed == null) {
+				if (!customers.claim(account.getUser(), accountNumber)) {
+					return ATM.CUSTOMER_EXISTS;
+				}
+				claimed = account.getUser();
+			}
+		} while (!store.put(account, null));
+		
+		customers.move(previous, account);
+		return ATM.SUCCESS;
+	}
+	
+	/**
+	 * Changes an account holder's address.
+	 * 
+	 * @param accountNumber the account number
+	 * @param streetAddress the new street address
+	 * @param city the new city
+	 * @param state the new state
+	 * @param zip the new postal code
+	 * @return a status code (3: account not found, 4: success)
+	 * @throws IOException
+	 */
+	
+	public int updateAddress(long accountNumber, String streetAddress, String city, String state, String zip) throws IOException {
+		BankAccount account;
+		
+		do {
+			account = store.get(accountNumber);
+			
+			if (account == null) {
+				return ATM.ACCOUNT_NOT_FOUND;
+			}
+			account.getUser().setStreetAddress(streetAddress);
+			account.getUser().setCity(city);
+			account.getUser().setState(state);
+			account.getUser().setZip(zip);
+		} while (!store.put(account, null));
+		
+		return ATM.SUCCESS;
+	}
+	
+	/**
+	 * Shuts the service down: delivers the events already published, then closes the
+	 * events file, the transaction log (saving its checkpoint) and the daily limits. The
+	 * store is left open for whoever opened it to close.
+	 * 
+	 * @throws IOException
+	 */
+	
+	public void close() throws IOException {
+		try {
+			events.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		try {
+			if (sink != null) {
+				sink.close();
+			}
+			log.close();
+		} finally {
+			limits.close();
+		}
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Runs a transaction at most once per transaction ID, operation and account. A retry
+	 * of a transaction that already finished gets its original status back; a retry of one
+	 * still running waits for it. An outcome other than success is journaled before it is
+	 * returned (a success is journaled with the transaction). If the transaction fails
+	 * with an exception, the ID is released so it can be retried.
+	 * 
+	 * @param type the transaction type (see TransactionHistory)
+	 * @param accountNumber the account number, or the sending account of a transfer
+	 * @param transactionId the transaction ID, or null to run the transaction unconditionally
+	 * @param transaction the transaction
+	 * @return a status code
+	 * @throws IOException
+	 */
+	
+	private int once(char type, long accountNumber, String transactionId, Transaction transaction) throws IOException {
+		if (transactionId == null) {
+			return transaction.run();
+		}
+		
+		String key = TransactionCache.key(type, accountNumber, transactionId);
+		TransactionCache.Outcome previous;
+		while ((previous = cache.claim(key)) != null) {
+			try {
+				int status = previous.await();
+				
+				if (status != TransactionCache.ABANDONED) {
+					return status;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for transaction " + transactionId + ".", e);
+			}
+		}
+		
+		boolean completed = false;
+		try {
+			int status = transaction.run();
+			if (status != ATM.SUCCESS) {
+				log.conclude(type, accountNumber, status, transactionId);
+			}
+			cache.complete(key, status);
+			completed = true;
+			
+			return status;
+		} finally {
+			if (!completed) {
+				cache.abandon(key);
+			}
+		}
+	}
+	
+	/*
+	 * Writes one account, or two together, as AccountStore.put does, first journaling
+	 * the commit if it is made under a transaction ID.
+	 * 
+	 * @param type the transaction type (see TransactionHistory)
+	 * @param transactionId the transaction ID, or null
+	 * @param account the primary account
+	 * @param destination the secondary account, or null
+	 * @return true if the accounts were written, false if either was stale
+	 * @throws IOException
+	 */
+	
+	private boolean commit(char type, String transactionId, BankAccount account, BankAccount destination) throws IOException {
+		if (transactionId != null) {
+			log.intend(type, account.getAccountNumber(), account.getVersion() + 1, transactionId);
+		}
+		
+		return store.put(account, destination);
+	}
+	
+	/*
+	 * Retrieves the duplicate-customer index, building it from the store the first time.
+	 * Waiting until an account is opened or changed keeps startup from scanning the ledger.
+	 * 
+	 * @return the index
+	 * @throws IOException
+	 */
+	
+	private synchronized CustomerIndex customers() throws IOException {
+		if (customers == null) {
+			customers = new CustomerIndex(store);
+		}
+		
+		return customers;
+	}
+	
+	/*
+	 * A transaction to run under a transaction ID.
+	 */
+	
+	private interface Transaction {
+		int run() throws IOException;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The Authenticator class verifies PINs against the PinStore. Failed attempts are
+ * counted per account and lock the account out for a while once they pile up. A
+ * successful verification is remembered for a short time as a keyed digest, so a
+ * customer who logs in again (or re-enters a PIN) doesn't pay for the slow hash twice.
+ */
+
+public class Authenticator {
+	
+	public static final int MAX_ATTEMPTS = 5;
+	public static final long LOCKOUT_MILLIS = 5 * 60 * 1000L;
+	public static final long SESSION_MILLIS = 2 * 60 * 1000L;
+	public static final int MAX_SESSIONS = 100000;
+	
+	private PinStore pins;
+	private ConcurrentHashMap<Long, Attempts> failures;
+	private ConcurrentHashMap<Long, Session> sessions;
+	private ThreadLocal<Mac> macs;
+	private SecretKeySpec secret;
+	
+	/**
+	 * Constructs an authenticator over a PIN store.
+	 * 
+	 * @param pins the hashed PINs
+	 */
+	
+	public Authenticator(PinStore pins) {
+		this.pins = pins;
+		this.failures = new ConcurrentHashMap<Long, Attempts>();
+		this.sessions = new ConcurrentHashMap<Long, Session>();
+		this.macs = new ThreadLocal<Mac>() {
+			@Override
+			protected Mac initialValue() {
+				try {
+					Mac mac = Mac.getInstance("HmacSHA256");
+					mac.init(secret());
+					
+					return mac;
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException("HmacSHA256 is not available.", e);
+				}
+			}
+		};
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Determines whether or not an account is locked out after too many failed attempts.
+	 * 
+	 * @param accountNumber the account number
+	 * @return true if the account is locked, false otherwise
+	 */
+	
+	public boolean isLocked(long accountNumber) {
+		Attempts attempts = failures.get(accountNumber);
+		
+		if (attempts == null) {
+			return false;
+		}
+		
+		synchronized (attempts) {
+			return attempts.lockedUntil > System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Verifies a PIN. Accounts whose PIN is still held in the clear are checked against
+	 * the ledger and, on success, enrolled in the PIN store and redacted; callers should
+	 * write such accounts back.
+	 * 
+	 * @param account the account
+	 * @param pin the PIN entered
+	 * @return a status code (3: PIN incorrect, 5: account locked, 4: success)
+	 * @throws IOException
+	 */
+	
+	public int authenticate(BankAccount account, int pin) throws IOException {
+		long accountNumber = account.getAccountNumber();
+		
+		if (isLocked(accountNumber)) {
+			return ATM.ACCOUNT_LOCKED;
+		}
+		
+		byte[] digest = digest(accountNumber, pin);
+		Session session = sessions.get(accountNumber);
+		
+		if (session != null && session.expires > System.currentTimeMillis() && MessageDigest.isEqual(session.digest, digest)) {
+			return ATM.SUCCESS;
+		}
+		
+		boolean valid;
+		if (pins.contains(accountNumber)) {
+			valid = pins.verify(accountNumber, pin);
+		} else {
+			int stored = account.getUser().getPIN();
+			valid = stored != User.REDACTED_PIN && MessageDigest.isEqual(digest(accountNumber, stored), digest);
+			
+			if (valid) {
+				pins.enroll(accountNumber, pin);
+				account.getUser().redactPIN();
+			}
+		}
+		
+		if (!valid) {
+			fail(accountNumber);
+			
+			return ATM.ACCOUNT_NOT_FOUND;
+		}
+		
+		failures.remove(accountNumber);
+		remember(accountNumber, digest);
+		
+		return ATM.SUCCESS;
+	}
+	
+	/**
+	 * Sets a new PIN for an account and redacts it from the account record.
+	 * 
+	 * @param account the account
+	 * @param pin the new PIN
+	 * @throws IOException
+	 */
+	
+	public void enroll(BankAccount account, int pin) throws IOException {
+		sessions.remove(account.getAccountNumber());
+		pins.enroll(account.getAccountNumber(), pin);
+		account.getUser().redactPIN();
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Records a failed attempt, locking the account once the limit is reached.
+	 * 
+	 * @param accountNumber the account number
+	 */
+	
+	private void fail(long accountNumber) {
+		Attempts attempts = failures.get(accountNumber);
+		
+		if (attempts == null) {
+			Attempts created = new Attempts();
+			attempts = failures.putIfAbsent(accountNumber, created);
+			
+			if (attempts == null) {
+				attempts = created;
+			}
+		}
+		
+		synchronized (attempts) {
+			if (++attempts.count >= MAX_ATTEMPTS) {
+				attempts.count = 0;
+				attempts.lockedUntil = System.currentTimeMillis() + LOCKOUT_MILLIS;
+			}
+		}
+		sessions.remove(accountNumber);
+	}
+	
+	/*
+	 * Caches a verified PIN digest, dropping expired entries when the cache grows large.
+	 * 
+	 * @param accountNumber the account number
+	 * @param digest the keyed digest of the verified PIN
+	 */
+	
+	private void remember(long accountNumber, byte[] digest) {
+		long now = System.currentTimeMillis();
+		
+		if (sessions.size() >= MAX_SESSIONS) {
+			Iterator<Map.Entry<Long, Session>> it = sessions.entrySet().iterator();
+			
+			while (it.hasNext()) {
+				if (it.next().getValue().expires <= now) {
+					it.remove();
+				}
+			}
+		}
+		
+		if (sessions.size() < MAX_SESSIONS) {
+			sessions.put(accountNumber, new Session(digest, now + SESSION_MILLIS));
+		}
+	}
+	
+	/*
+	 * Computes a keyed digest of an account number and PIN. The key is random per
+	 * process, so cached digests are useless outside of it.
+	 * 
+	 * @param accountNumber the account number
+	 * @param pin the PIN
+	 * @return the digest
+	 */
+	
+	private byte[] digest(long accountNumber, int pin) {
+		return macs.get().doFinal(ByteBuffer.allocate(12).putLong(accountNumber).putInt(pin).array());
+	}
+	
+	/*
+	 * Retrieves the per-process digest key, generating it on first use so that seeding
+	 * the random number generator doesn't slow down startup.
+	 * 
+	 * @return the key
+	 */
+	
+	private synchronized SecretKeySpec secret() {
+		if (secret == null) {
+			byte[] key = new byte[32];
+			new SecureRandom().nextBytes(key);
+			secret = new SecretKeySpec(key, "HmacSHA256");
+		}
+		
+		return secret;
+	}
+	
+	/*
+	 * Failed attempts against one account.
+	 */
+	
+	private static class Attempts {
+		private int count;
+		private long lockedUntil;
+	}
+	
+	/*
+	 * A recently verified PIN.
+	 */
+	
+	private static class Session {
+		private final byte[] digest;
+		private final long expires;
+		
+		private Session(byte[] digest, long expires) {
+			this.digest = digest;
+			this.expires = expires;
+		}
+	}
+}
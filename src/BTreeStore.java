@@ -0,0 +1,787 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The BTreeStore class keeps accounts in a page-based B+tree file keyed by account
+ * number. Leaf pages hold the accounts' fixed-width records in account number order and
+ * are chained left to right, so a range of accounts is read leaf by leaf; internal pages
+ * hold separator keys and child page numbers. A lookup reads one page per level, and with
+ * over three hundred children per internal page, a million accounts take three levels.
+ * Pages are read through a BufferPool, so the upper levels stay in memory.
+ * 
+ * Updates are made in place in the leaf. New accounts are inserted in order; since
+ * account numbers are handed out in increasing order, a leaf that fills up at the right
+ * edge of the tree is split by starting a new leaf rather than halving it, so leaves stay
+ * full. Changed pages are written before each put returns. The file lives next to the
+ * text ledger, is built from it the first time the store is opened, and is locked for as
+ * long as the store is open, so only one process can use it at a time.
+ * 
+ * Page 0 is the header: magic number, page size, root page, tree height, account count
+ * and record length. Every other page starts with a type byte, an entry count and, in
+ * leaves, the next leaf's page number.
+ */
+
+public class BTreeStore implements AccountStore {
+	
+	public static final String EXTENSION = ".btree";
+	public static final String POOL_PROPERTY = "atm.btree.pages";	// pages kept in memory
+	public static final long MAGIC = 0x41544D4254524545L;			// "ATMBTREE"
+	public static final int PAGE_SIZE = 4096;
+	public static final int DEFAULT_POOL_PAGES = 1024;
+	
+	private static final byte LEAF = 1;
+	private static final byte INTERNAL = 2;
+	private static final int PAGE_HEADER = 16;							// type, count, next leaf
+	private static final int LEAF_ENTRY = 8 + Database.RECORD_LENGTH;	// key, record
+	private static final int LEAF_CAPACITY = (PAGE_SIZE - PAGE_HEADER) / LEAF_ENTRY;
+	private static final int INTERNAL_ENTRY = 12;						// key, child
+	private static final int INTERNAL_CAPACITY = (PAGE_SIZE - PAGE_HEADER - 4) / INTERNAL_ENTRY;
+	
+	private String path;
+	private FileChannel channel;
+	private BufferPool pool;
+	private int root;
+	private int height;							// levels, counting the leaves
+	private int count;
+	private long lastAccountNumber;
+	private int[] pathPages;					// the internal pages above the last leaf found, root first
+	private int[] pathIndexes;					// the child followed in each
+	
+	/**
+	 * Opens an existing B+tree file.
+	 * 
+	 * @param path the ledger file the tree was built from, relative to the working directory
+	 * @throws IOException if the file can't be read, isn't a B+tree file, or is in use
+	 */
+	
+	public BTreeStore(String path) throws IOException {
+		this.path = path;
+		this.channel = FileChannel.open(file(path + EXTENSION).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		
+		try {
+			if (channel.tryLock() == null) {
+				throw new IOException(path + EXTENSION + " is in use by another process.");
+			}
+			
+			this.pool = new BufferPool(channel, PAGE_SIZE, Integer.getInteger(POOL_PROPERTY, DEFAULT_POOL_PAGES));
+			
+			ByteBuffer header = pool.get(0);
+			if (header.getLong(0) != MAGIC || header.getInt(8) != PAGE_SIZE || header.getInt(24) != Database.RECORD_LENGTH) {
+				throw new IOException(path + EXTENSION + " is not a B+tree file.");
+			}
+			this.root = header.getInt(12);
+			this.height = header.getInt(16);
+			this.count = header.getInt(20);
+			this.pathPages = new int[height];
+			this.pathIndexes = new int[height];
+			this.lastAccountNumber = last();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Opens the B+tree file for a ledger, building it from the ledger first if there isn't
+	 * one.
+	 * 
+	 * @param path the ledger file, relative to the working directory
+	 * @return the store
+	 * @throws IOException
+	 */
+	
+	public static BTreeStore open(String path) throws IOException {
+		if (!file(path + EXTENSION).isFile()) {
+			create(path);
+		}
+		
+		return new BTreeStore(path);
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the path of the ledger the tree was built from.
+	 * 
+	 * @return path
+	 */
+	
+	@Override
+	public String getPath() {
+		return path;
+	}
+	
+	/**
+	 * Retrieves the number of accounts in the store.
+	 * 
+	 * @return the number of accounts
+	 */
+	
+	public synchronized int size() {
+		return count;
+	}
+	
+	/**
+	 * Retrieves the number of levels in the tree, counting the leaves.
+	 * 
+	 * @return the height
+	 */
+	
+	public synchronized int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * Retrieves the buffer pool's hit rate so far.
+	 * 
+	 * @return the fraction of page requests served from memory
+	 */
+	
+	public synchronized double getHitRate() {
+		long requests = pool.getHits() + pool.getMisses();
+		
+		return requests == 0 ? 0.0 : pool.getHits() / (double) requests;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Retrieves a copy of an open account.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the account, or null if there is no open account with that number
+	 * @throws IOException
+	 */
+	
+	@Override
+	public synchronized BankAccount get(long accountNumber) throws IOException {
+		int leaf = leaf(accountNumber);
+		ByteBuffer page = pool.get(leaf);
+		int i = search(page, accountNumber);
+		
+		if (i < 0) {
+			return null;
+		}
+		
+		BankAccount account = record(page, i);
+		return account.getStatus() == 'Y' ? account : null;
+	}
+	
+	/**
+	 * Writes one account, or two together, provided neither is stale. Each account's
+	 * version is checked against its leaf, and existing accounts are rewritten in place; a
+	 * new account is inserted in order. The changed pages are written before returning.
+	 * 
+	 * @param account the primary account
+	 * @param destination the secondary account, or null
+	 * @return true if the accounts were written, false if either was stale
+	 * @throws IOException
+	 */
+	
+	@Override
+	public synchronized boolean put(BankAccount account, BankAccount destination) throws IOException {
+		if (!isCurrent(account) || (destination != null && !isCurrent(destination))) {
+			return false;
+		}
+		
+		account.setVersion(account.getVersion() + 1);
+		write(account);
+		
+		if (destination != null && find(destination.getAccountNumber()) != null) {
+			destination.setVersion(destination.getVersion() + 1);
+			write(destination);
+		}
+		
+		pool.flush();
+		return true;
+	}
+	
+	/**
+	 * Visits every account in account number order.
+	 * 
+	 * @param visitor the visitor
+	 * @throws IOException
+	 */
+	
+	@Override
+	public void scan(Visitor visitor) throws IOException {
+		scan(Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+	}
+	
+	/**
+	 * Visits the accounts in a range of account numbers, in order. Only the leaves holding
+	 * the range are read. The store is locked one leaf at a time, so updates can go ahead
+	 * during a long scan; each leaf is seen as it was when it was read.
+	 * 
+	 * @param from the first account number in the range
+	 * @param to the last account number in the range
+	 * @param visitor the visitor
+	 * @throws IOException
+	 */
+	
+	public void scan(long from, long to, Visitor visitor) throws IOException {
+		List<BankAccount> accounts = new ArrayList<BankAccount>(LEAF_CAPACITY);
+		int next;
+		
+		synchronized (this) {
+			next = leaf(from);
+		}
+		
+		while (next != 0) {
+			boolean done = false;
+			
+			synchronized (this) {
+				ByteBuffer page = pool.get(next);
+				int n = page.getShort(2);
+				
+				for (int i = 0; i < n && !done; i++) {
+					long key = key(page, i);
+					
+					if (key > to) {
+						done = true;
+					} else if (key >= from) {
+						accounts.add(record(page, i));
+					}
+				}
+				next = done ? 0 : page.getInt(4);
+			}
+			
+			for (BankAccount account : accounts) {
+				visitor.visit(account);
+			}
+			accounts.clear();
+		}
+	}
+	
+	/**
+	 * Reserves the next unused account number.
+	 * 
+	 * @return the reserved account number
+	 */
+	
+	@Override
+	public synchronized long nextAccountNumber() {
+		return ++lastAccountNumber;
+	}
+	
+	/**
+	 * Writes any changed pages and closes the file, releasing its lock.
+	 * 
+	 * @throws IOException
+	 */
+	
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			pool.flush();
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Builds a B+tree file from a ledger, bottom up: the accounts are sorted by account
+	 * number and packed into full leaves, then each level of internal pages is packed over
+	 * the one below until a single root remains. The file is written beside its final name
+	 * and moved into place once complete.
+	 * 
+	 * @param path the ledger file, relative to the working directory
+	 * @throws IOException
+	 */
+	
+	private static void create(String path) throws IOException {
+		File temp = file(path + EXTENSION + ".tmp");
+		Database db = new Database(path);
+		
+		try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			OffHeapLedger ledger = db.getLedger();
+			int n = ledger.size();
+			
+			long[] order = new long[n];						// account number above slot, so sorting orders the slots
+			for (int slot = 0; slot < n; slot++) {
+				order[slot] = ledger.getAccountNumber(slot) << 32 | slot;
+			}
+			Arrays.sort(order);
+			
+			ByteBuffer page = ByteBuffer.allocate(PAGE_SIZE);
+			StringBuilder sb = new StringBuilder(Database.RECORD_LENGTH);
+			int leaves = Math.max(1, (n + LEAF_CAPACITY - 1) / LEAF_CAPACITY);
+			long[] keys = new long[leaves];
+			int[] pages = new int[leaves];
+			
+			for (int leaf = 0; leaf < leaves; leaf++) {
+				int first = leaf * LEAF_CAPACITY;
+				int entries = Math.min(LEAF_CAPACITY, n - first);
+				
+				Arrays.fill(page.array(), (byte) 0);
+				page.put(0, LEAF);
+				page.putShort(2, (short) entries);
+				page.putInt(4, leaf + 1 < leaves ? leaf + 2 : 0);
+				
+				for (int i = 0; i < entries; i++) {
+					int slot = (int) order[first + i];
+					
+					sb.setLength(0);
+					ledger.appendRecord(slot, sb);
+					putEntry(page, i, ledger.getAccountNumber(slot), sb);
+				}
+				
+				keys[leaf] = entries > 0 ? key(page, 0) : 0;
+				pages[leaf] = leaf + 1;
+				writePage(out, page, leaf + 1);
+			}
+			
+			int next = leaves + 1;
+			int height = 1;
+			while (pages.length > 1) {
+				int parents = (pages.length + INTERNAL_CAPACITY) / (INTERNAL_CAPACITY + 1);
+				long[] parentKeys = new long[parents];
+				int[] parentPages = new int[parents];
+				
+				for (int parent = 0; parent < parents; parent++) {
+					int first = parent * (INTERNAL_CAPACITY + 1);
+					int children = Math.min(INTERNAL_CAPACITY + 1, pages.length - first);
+					
+					Arrays.fill(page.array(), (byte) 0);
+					page.put(0, INTERNAL);
+					page.putShort(2, (short) (children - 1));
+					page.putInt(PAGE_HEADER, pages[first]);
+					for (int i = 1; i < children; i++) {
+						page.putLong(PAGE_HEADER + 4 + (i - 1) * INTERNAL_ENTRY, keys[first + i]);
+						page.putInt(PAGE_HEADER + 4 + (i - 1) * INTERNAL_ENTRY + 8, pages[first + i]);
+					}
+					
+					parentKeys[parent] = keys[first];
+					parentPages[parent] = next;
+					writePage(out, page, next++);
+				}
+				
+				keys = parentKeys;
+				pages = parentPages;
+				height++;
+			}
+			
+			Arrays.fill(page.array(), (byte) 0);
+			page.putLong(0, MAGIC);
+			page.putInt(8, PAGE_SIZE);
+			page.putInt(12, pages[0]);
+			page.putInt(16, height);
+			page.putInt(20, n);
+			page.putInt(24, Database.RECORD_LENGTH);
+			writePage(out, page, 0);
+			out.force(true);
+		} finally {
+			db.close();
+		}
+		
+		Files.move(temp.toPath(), file(path + EXTENSION).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/*
+	 * Finds the leaf that holds, or would hold, an account number, noting the internal
+	 * pages passed on the way down for a split to climb back up.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the leaf's page number
+	 * @throws IOException
+	 */
+	
+	private int leaf(long accountNumber) throws IOException {
+		int page = root;
+		
+		for (int level = 0; level < height - 1; level++) {
+			ByteBuffer internal = pool.get(page);
+			int n = internal.getShort(2);
+			int lo = 0;
+			int hi = n;
+			
+			while (lo < hi) {								// the number of separators at or below the key
+				int mid = (lo + hi) >>> 1;
+				
+				if (internal.getLong(PAGE_HEADER + 4 + mid * INTERNAL_ENTRY) <= accountNumber) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			
+			pathPages[level] = page;
+			pathIndexes[level] = lo;
+			page = child(internal, lo);
+		}
+		
+		return page;
+	}
+	
+	/*
+	 * Retrieves an account, whatever its status.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the account, or null if the store doesn't have it
+	 * @throws IOException
+	 */
+	
+	private BankAccount find(long accountNumber) throws IOException {
+		ByteBuffer page = pool.get(leaf(accountNumber));
+		int i = search(page, accountNumber);
+		
+		return i < 0 ? null : record(page, i);
+	}
+	
+	/*
+	 * Determines whether or not the store still has the version of an account the caller
+	 * read. An account the store doesn't have is current.
+	 * 
+	 * @param account the caller's copy
+	 * @return true if the account is current, false otherwise
+	 * @throws IOException
+	 */
+	
+	private boolean isCurrent(BankAccount account) throws IOException {
+		BankAccount stored = find(account.getAccountNumber());
+		
+		return stored == null || stored.getVersion() == account.getVersion();
+	}
+	
+	/*
+	 * Writes an account to its leaf, in place if it is there already, or inserted in order
+	 * if it is new.
+	 * 
+	 * @param account the account
+	 * @throws IOException
+	 */
+	
+	private void write(BankAccount account) throws IOException {
+		long accountNumber = account.getAccountNumber();
+		String record = account.toString();
+		
+		int leaf = leaf(accountNumber);
+		ByteBuffer page = pool.get(leaf);
+		int i = search(page, accountNumber);
+		
+		if (i >= 0) {
+			putEntry(page, i, accountNumber, record);
+			pool.dirty(leaf);
+			return;
+		}
+		
+		insert(leaf, page, -i - 1, accountNumber, record);
+		count++;
+		lastAccountNumber = Math.max(lastAccountNumber, accountNumber);
+		writeHeader();
+	}
+	
+	/*
+	 * Inserts an entry into a leaf, splitting it if it is full.
+	 * 
+	 * @param leaf the leaf's page number
+	 * @param page the leaf
+	 * @param index where the entry belongs
+	 * @param accountNumber the key
+	 * @param record the account's record
+	 * @throws IOException
+	 */
+	
+	private void insert(int leaf, ByteBuffer page, int index, long accountNumber, CharSequence record) throws IOException {
+		int n = page.getShort(2);
+		byte[] bytes = page.array();
+		
+		pool.dirty(leaf);
+		if (n < LEAF_CAPACITY) {
+			System.arraycopy(bytes, entry(index), bytes, entry(index + 1), (n - index) * LEAF_ENTRY);
+			putEntry(page, index, accountNumber, record);
+			page.putShort(2, (short) (n + 1));
+			return;
+		}
+		
+		int sibling = pool.allocate();
+		ByteBuffer right = pool.get(sibling);
+		page = pool.get(leaf);							// allocating may have evicted it
+		bytes = page.array();
+		pool.dirty(leaf);
+		
+		int keep = index == n && page.getInt(4) == 0 ? n : (n + 1) / 2;	// at the right edge, start a new leaf
+		int moved = n - keep;
+		
+		right.put(0, LEAF);
+		right.putInt(4, page.getInt(4));
+		page.putInt(4, sibling);
+		System.arraycopy(bytes, entry(keep), right.array(), entry(0), moved * LEAF_ENTRY);
+		Arrays.fill(bytes, entry(keep), entry(n), (byte) 0);
+		page.putShort(2, (short) keep);
+		right.putShort(2, (short) moved);
+		
+		if (index <= keep && keep < n) {
+			insert(leaf, page, index, accountNumber, record);
+		} else {
+			insert(sibling, right, index - keep, accountNumber, record);
+		}
+		
+		insertSeparator(height - 2, key(right, 0), sibling);
+	}
+	
+	/*
+	 * Adds a separator and the page to its right to an internal page on the path to the last
+	 * leaf found, splitting upward as needed, or grows a new root above the old one.
+	 * 
+	 * @param level the internal page's level on the path, root first, or -1 above the root
+	 * @param key the first key in the new page
+	 * @param child the new page
+	 * @throws IOException
+	 */
+	
+	private void insertSeparator(int level, long key, int child) throws IOException {
+		if (level < 0) {
+			int page = pool.allocate();
+			ByteBuffer internal = pool.get(page);
+			
+			internal.put(0, INTERNAL);
+			internal.putShort(2, (short) 1);
+			internal.putInt(PAGE_HEADER, root);
+			internal.putLong(PAGE_HEADER + 4, key);
+			internal.putInt(PAGE_HEADER + 12, child);
+			
+			root = page;
+			height++;
+			pathPages = new int[height];
+			pathIndexes = new int[height];
+			writeHeader();
+			return;
+		}
+		
+		int page = pathPages[level];
+		int index = pathIndexes[level];
+		ByteBuffer internal = pool.get(page);
+		int n = internal.getShort(2);
+		byte[] bytes = internal.array();
+		
+		pool.dirty(page);
+		if (n < INTERNAL_CAPACITY) {
+			int at = PAGE_HEADER + 4 + index * INTERNAL_ENTRY;
+			
+			System.arraycopy(bytes, at, bytes, at + INTERNAL_ENTRY, (n - index) * INTERNAL_ENTRY);
+			internal.putLong(at, key);
+			internal.putInt(at + 8, child);
+			internal.putShort(2, (short) (n + 1));
+			return;
+		}
+		
+		long[] keys = new long[n + 1];
+		int[] children = new int[n + 2];
+		children[0] = child(internal, 0);
+		for (int i = 0, j = 0; i <= n; i++) {
+			if (i == index) {
+				keys[i] = key;
+				children[i + 1] = child;
+			} else {
+				keys[i] = internal.getLong(PAGE_HEADER + 4 + j * INTERNAL_ENTRY);
+				children[i + 1] = internal.getInt(PAGE_HEADER + 4 + j * INTERNAL_ENTRY + 8);
+				j++;
+			}
+		}
+		
+		int promoted = index == n ? n : (n + 1) / 2;			// at the right edge, leave the page full
+		int sibling = pool.allocate();
+		ByteBuffer right = pool.get(sibling);
+		internal = pool.get(page);
+		pool.dirty(page);
+		
+		Arrays.fill(internal.array(), PAGE_HEADER, PAGE_SIZE, (byte) 0);
+		fillInternal(internal, keys, children, 0, promoted);
+		right.put(0, INTERNAL);
+		fillInternal(right, keys, children, promoted + 1, n + 1);
+		
+		insertSeparator(level - 1, keys[promoted], sibling);
+	}
+	
+	/*
+	 * Lays out part of a split internal page's keys and children.
+	 * 
+	 * @param page the page to fill
+	 * @param keys the keys
+	 * @param children the children, one more than the keys
+	 * @param from the first key to include
+	 * @param to the key after the last to include
+	 */
+	
+	private static void fillInternal(ByteBuffer page, long[] keys, int[] children, int from, int to) {
+		page.putShort(2, (short) (to - from));
+		page.putInt(PAGE_HEADER, children[from]);
+		
+		for (int i = from; i < to; i++) {
+			page.putLong(PAGE_HEADER + 4 + (i - from) * INTERNAL_ENTRY, keys[i]);
+			page.putInt(PAGE_HEADER + 4 + (i - from) * INTERNAL_ENTRY + 8, children[i + 1]);
+		}
+	}
+	
+	/*
+	 * Records the root, height and account count in the header page.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private void writeHeader() throws IOException {
+		ByteBuffer header = pool.get(0);
+		
+		header.putInt(12, root);
+		header.putInt(16, height);
+		header.putInt(20, count);
+		pool.dirty(0);
+	}
+	
+	/*
+	 * Finds the largest account number in the tree, following the last child down.
+	 * 
+	 * @return the largest account number, or 0 if the tree is empty
+	 * @throws IOException
+	 */
+	
+	private long last() throws IOException {
+		int page = root;
+		
+		for (int level = 0; level < height - 1; level++) {
+			ByteBuffer internal = pool.get(page);
+			page = child(internal, internal.getShort(2));
+		}
+		
+		ByteBuffer leaf = pool.get(page);
+		int n = leaf.getShort(2);
+		
+		return n == 0 ? 0 : key(leaf, n - 1);
+	}
+	
+	/*
+	 * Searches a leaf for an account number.
+	 * 
+	 * @param page the leaf
+	 * @param accountNumber the account number
+	 * @return the entry's index, or -(insertion point) - 1 if the leaf doesn't have it
+	 */
+	
+	private static int search(ByteBuffer page, long accountNumber) {
+		int lo = 0;
+		int hi = page.getShort(2) - 1;
+		
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			long key = key(page, mid);
+			
+			if (key < accountNumber) {
+				lo = mid + 1;
+			} else if (key > accountNumber) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		
+		return -lo - 1;
+	}
+	
+	/*
+	 * Retrieves a child of an internal page.
+	 * 
+	 * @param page the internal page
+	 * @param i the child's index, from 0 to the number of keys
+	 * @return the child's page number
+	 */
+	
+	private static int child(ByteBuffer page, int i) {
+		return i == 0 ? page.getInt(PAGE_HEADER) : page.getInt(PAGE_HEADER + 4 + (i - 1) * INTERNAL_ENTRY + 8);
+	}
+	
+	/*
+	 * Retrieves the key of a leaf entry.
+	 * 
+	 * @param page the leaf
+	 * @param i the entry's index
+	 * @return the account number
+	 */
+	
+	private static long key(ByteBuffer page, int i) {
+		return page.getLong(entry(i));
+	}
+	
+	/*
+	 * Parses the account in a leaf entry.
+	 * 
+	 * @param page the leaf
+	 * @param i the entry's index
+	 * @return a copy of the account
+	 */
+	
+	private static BankAccount record(ByteBuffer page, int i) {
+		return new BankAccount(new String(page.array(), entry(i) + 8, Database.RECORD_LENGTH, StandardCharsets.US_ASCII));
+	}
+	
+	/*
+	 * Writes a leaf entry; anything outside ASCII in the record becomes a question mark.
+	 * 
+	 * @param page the leaf
+	 * @param i the entry's index
+	 * @param accountNumber the key
+	 * @param record the account's record
+	 */
+	
+	private static void putEntry(ByteBuffer page, int i, long accountNumber, CharSequence record) {
+		int at = entry(i);
+		
+		page.putLong(at, accountNumber);
+		for (int c = 0; c < Database.RECORD_LENGTH; c++) {
+			char ch = record.charAt(c);
+			page.put(at + 8 + c, ch < 0x80 ? (byte) ch : (byte) '?');
+		}
+	}
+	
+	/*
+	 * Retrieves where a leaf entry starts in its page.
+	 * 
+	 * @param i the entry's index
+	 * @return the offset
+	 */
+	
+	private static int entry(int i) {
+		return PAGE_HEADER + i * LEAF_ENTRY;
+	}
+	
+	/*
+	 * Writes a whole page to a file being built.
+	 * 
+	 * @param out the file
+	 * @param page the page
+	 * @param number the page number
+	 * @throws IOException
+	 */
+	
+	private static void writePage(FileChannel out, ByteBuffer page, int number) throws IOException {
+		ByteBuffer buffer = page.duplicate();
+		long position = (long) number * PAGE_SIZE;
+		
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			out.write(buffer, position + buffer.position());
+		}
+	}
+	
+	/*
+	 * Resolves a path against the working directory.
+	 * 
+	 * @param name the path
+	 * @return the file
+	 */
+	
+	private static File file(String name) {
+		return new File(System.getProperty("user.dir") + File.separator + name);
+	}
+}
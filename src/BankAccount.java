@@ -6,6 +6,7 @@ public class BankAccount {
 	private long accountNumber;
 	private double balance;
 	private User user;
+	private long version;
 	
 	/**
 	 * Constructor for newly created accounts.
@@ -24,13 +25,27 @@ public class BankAccount {
 	}
 	
 	/**
-	 * Constructor for existing accounts retrieved from the database.
+	 * Constructor for existing accounts retrieved from the database. The record may be in
+	 * any RecordLayout; its length says which.
 	 * 
 	 * @param details
 	 */
 	
 	public BankAccount(String details) {
-		this(BankAccount.parseStatus(details), BankAccount.parseAccountNumber(details), BankAccount.parseBalance(details), BankAccount.parseUser(details));
+		BankAccount account = RecordLayout.of(details).parse(details);
+		
+		this.status = account.status;
+		this.accountNumber = account.accountNumber;
+		this.balance = account.balance;
+		this.user = account.user;
+		this.version = account.version;
+	}
+	
+	/**
+	 * Constructor for subclasses that keep their state elsewhere (see LedgerAccount).
+	 */
+	
+	protected BankAccount() {
 	}
 	
 	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
@@ -75,6 +90,16 @@ public class BankAccount {
 		return user;
 	}
 	
+	/**
+	 * Retrieves the account version, which the database increments on every write.
+	 * 
+	 * @return version
+	 */
+	
+	public long getVersion() {
+		return version;
+	}
+	
 	/**
 	 * Updates the account status.
 	 * 
@@ -95,6 +120,26 @@ public class BankAccount {
 		this.user = user;
 	}
 	
+	/**
+	 * Updates the account balance.
+	 * 
+	 * @param balance the new balance
+	 */
+	
+	protected void setBalance(double balance) {
+		this.balance = balance;
+	}
+	
+	/**
+	 * Updates the account version.
+	 * 
+	 * @param version the new version
+	 */
+	
+	protected void setVersion(long version) {
+		this.version = version;
+	}
+	
 	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
 	
 	/**
@@ -105,12 +150,12 @@ public class BankAccount {
 	 */
 	
 	public int deposit(double amount) {
-		if (amount <= 0) {
+		if (!Double.isFinite(amount) || amount <= 0) {
 			return ATM.INVALID_AMOUNT;
-		} else if ((amount + balance) > BankAccount.ACCOUNT_MAXIMUM) {
+		} else if ((amount + getBalance()) > BankAccount.ACCOUNT_MAXIMUM) {
 			return ATM.EXCEEDS_MAXIMUM;
 		} else {
-			balance = balance + amount;
+			setBalance(getBalance() + amount);
 			
 			return ATM.SUCCESS;
 		}
@@ -124,12 +169,12 @@ public class BankAccount {
 	 */
 	
 	public int withdraw(double amount) {
-		if (amount <= 0) {
+		if (!Double.isFinite(amount) || amount <= 0) {
 			return ATM.INVALID_AMOUNT;
-		} else if (amount > balance) {
+		} else if (amount > getBalance()) {
 			return ATM.INSUFFICIENT_FUNDS;
 		} else {
-			balance = balance - amount;
+			setBalance(getBalance() - amount);
 			
 			return ATM.SUCCESS;
 		}
@@ -158,183 +203,16 @@ public class BankAccount {
 	}
 	
 	/////////////////////////////////// OVERRIDDEN METHODS ///////////////////////////////////
-
+	
 	/*
-	 * Generates a String representation of the BankAccount
+	 * Generates a String representation of the BankAccount: its fixed-width record in the
+	 * current RecordLayout.
 	 * 
 	 * @return a String representation of the BankAccount
 	 */
 	
 	@Override
-	public String toString() {			
-		return String.format("%09d%04d%-15.2f%-20s%-15s%8d%10d%-30s%-30s%2s%5s%s",
-			accountNumber,
-			user.getPIN(),
-			balance,
-			user.getLastName(),
-			user.getFirstName(),
-			user.getDOB(),
-			user.getPhone(),
-			user.getStreetAddress(),
-			user.getCity(),
-			user.getState(),
-			user.getZip(),
-			status
-		);
-	}
-	
-	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
-	
-	/*
-	 * Parses the details of a User from the account string.
-	 * 
-	 * @param account the account string
-	 * @return a User
-	 */
-	
-	private static User parseUser(String account) {
-		return new User(
-			BankAccount.parsePIN(account),
-			BankAccount.parseDOB(account),
-			BankAccount.parsePhone(account),
-			BankAccount.parseFirstName(account),
-			BankAccount.parseLastName(account),
-			BankAccount.parseStreetAddress(account),
-			BankAccount.parseCity(account),
-			BankAccount.parseState(account),
-			BankAccount.parseZip(account)
-		);
-	}
-	
-	/*
-	 * Parses the account number from the account string.
-	 * 
-	 * @param account the account string
-	 * @return the parsed account number
-	 */
-	
-	private static long parseAccountNumber(String account) {
-		return Long.parseLong(account.substring(0, 9));
-	}
-	
-	/*
-	 * Parses the PIN from the account string.
-	 * 
-	 * @param account the account stirng
-	 * @return the parsed PIN
-	 */
-	
-	private static int parsePIN(String account) {
-		return Integer.parseInt(account.substring(9, 13));
-	}
-	
-	/*
-	 * Parses the balance from the account string.
-	 * 
-	 * @param account the account string
-	 * @return the parsed balance
-	 */
-	
-	private static double parseBalance(String account) {
-		return Double.parseDouble(account.substring(13, 28));
-	}
-	
-	/*
-	 * Parses the last name from the account string.
-	 * 
-	 * @param account the account string
-	 * @return the parsed last name
-	 */
-	
-	private static String parseLastName(String account) {
-		return account.substring(28, 48).trim();
-	}
-	
-	/*
-	 * Parses the first name from the account string.
-	 * 
-	 * @param account the account string
-	 * @return the parsed first name
-	 */
-	
-	private static String parseFirstName(String account) {
-		return account.substring(48, 63).trim();
-	}
-	
-	/*
-	 * Parses the date of birth from the account string.
-	 * 
-	 * @param account the account string
-	 * @return the parsed date of birth
-	 */
-	
-	private static int parseDOB(String account) {
-		return Integer.parseInt(account.substring(63, 71));
-	}
-	
-	/*
-	 * Parses the phone number from the account string.
-	 * 
-	 * @param account the account string
-	 * @return the parsed phone number
-	 */
-	
-	private static long parsePhone(String account) {
-		return Long.parseLong(account.substring(71, 81));
-	}
-	
-	/*
-	 * Parses the street address from the account string.
-	 * 
-	 * @param account the account string
-	 * @return the parsed street address
-	 */
-	
-	private static String parseStreetAddress(String account) {
-		return account.substring(81, 111).trim();
-	}
-	
-	/*
-	 * Parses the city from the account string.
-	 * 
-	 * @param account the account string
-	 * @return the parsed city
-	 */
-	
-	private static String parseCity(String account) {
-		return account.substring(111, 141).trim();
-	}
-	
-	/*
-	 * Parses the state from the account string.
-	 * 
-	 * @param account the account string
-	 * @return the parsed state
-	 */
-	
-	private static String parseState(String account) {
-		return account.substring(141, 143);
-	}
-	
-	/*
-	 * Parses the zip code from the account string.
-	 * 
-	 * @param account the account string
-	 * @return the parsed zip code
-	 */
-	
-	private static String parseZip(String account) {
-		return account.substring(143, 148);
-	}
-	
-	/*
-	 * Parses the account status from the account string.
-	 * 
-	 * @param account the account string
-	 * @return the parsed account status
-	 */
-	
-	private static char parseStatus(String account) {
-		return account.charAt(148);
+	public String toString() {
+		return RecordLayout.CURRENT.format(this);
 	}
 }
\ No newline at end of file
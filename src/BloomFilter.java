@@ -0,0 +1,107 @@
+/**
+ * The BloomFilter class answers whether a set of account numbers might contain a given
+ * one, in about ten bits per number. A "no" is always right; a "yes" is wrong for about
+ * one number in a hundred that isn't in the set, and the caller has to look.
+ */
+
+public class BloomFilter {
+	
+	public static final int BITS_PER_KEY = 10;
+	public static final int HASHES = 7;			// optimal for ten bits per key
+	
+	private long[] bits;
+	
+	/**
+	 * Constructs an empty filter sized for a number of keys.
+	 * 
+	 * @param keys the number of keys the filter will hold
+	 */
+	
+	public BloomFilter(int keys) {
+		this.bits = new long[Math.max(1, (int) (((long) keys * BITS_PER_KEY + 63) / 64))];
+	}
+	
+	/**
+	 * Constructs a filter from the bits of one built earlier.
+	 * 
+	 * @param bits the bits, as returned by getBits
+	 */
+	
+	public BloomFilter(long[] bits) {
+		this.bits = bits;
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the filter's bits, for saving it.
+	 * 
+	 * @return the bits
+	 */
+	
+	public long[] getBits() {
+		return bits;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Adds a key to the filter.
+	 * 
+	 * @param key the key
+	 */
+	
+	public void add(long key) {
+		long hash = mix(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long size = bits.length * 64L;
+		
+		for (int i = 0; i < HASHES; i++) {
+			long bit = ((h1 + i * h2) & 0x7FFFFFFF) % size;
+			bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+	
+	/**
+	 * Determines whether or not a key might have been added to the filter.
+	 * 
+	 * @param key the key
+	 * @return false if the key was never added, true if it might have been
+	 */
+	
+	public boolean mightContain(long key) {
+		long hash = mix(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long size = bits.length * 64L;
+		
+		for (int i = 0; i < HASHES; i++) {
+			long bit = ((h1 + i * h2) & 0x7FFFFFFF) % size;
+			if ((bits[(int) (bit >>> 6)] & 1L << bit) == 0) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Scrambles a key so that neighbouring account numbers set unrelated bits.
+	 * 
+	 * @param key the key
+	 * @return the hash
+	 */
+	
+	private static long mix(long key) {
+		key ^= key >>> 33;
+		key *= 0xFF51AFD7ED558CCDL;
+		key ^= key >>> 33;
+		key *= 0xC4CEB9FE1A85EC53L;
+		key ^= key >>> 33;
+		
+		return key;
+	}
+}
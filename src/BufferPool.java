@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The BufferPool class caches the fixed-size pages of a file in memory. A page is read
+ * on first use and kept until the pool is full, when the least recently used page is
+ * written back, if it was changed, and its buffer reused for the next page read.
+ * 
+ * Callers mark the pages they change as dirty and flush the pool when their changes
+ * should reach the file. Buffers are only handed out for the duration of one operation:
+ * the pages an operation touches are the most recently used, so as long as the pool holds
+ * more pages than any operation touches, none of them is evicted under the caller.
+ * 
+ * The pool is not synchronized; its owner serializes access.
+ */
+
+public class BufferPool {
+	
+	public static final int MINIMUM_PAGES = 16;
+	
+	private FileChannel channel;
+	private int pageSize;
+	private int capacity;
+	private int pageCount;
+	private LinkedHashMap<Integer, Frame> frames;
+	private List<Frame> dirty;
+	private long hits;
+	private long misses;
+	
+	/**
+	 * Constructs a pool over a file of pages.
+	 * 
+	 * @param channel the file, whose length is a whole number of pages
+	 * @param pageSize the size of a page in bytes
+	 * @param capacity the number of pages to keep in memory, at least MINIMUM_PAGES
+	 * @throws IOException
+	 */
+	
+	public BufferPool(FileChannel channel, int pageSize, int capacity) throws IOException {
+		this.channel = channel;
+		this.pageSize = pageSize;
+		this.capacity = Math.max(MINIMUM_PAGES, capacity);
+		this.pageCount = (int) (channel.size() / pageSize);
+		this.frames = new LinkedHashMap<Integer, Frame>(this.capacity * 2, 0.75f, true);
+		this.dirty = new ArrayList<Frame>();
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the number of pages in the file, including those not yet flushed.
+	 * 
+	 * @return the number of pages
+	 */
+	
+	public int getPageCount() {
+		return pageCount;
+	}
+	
+	/**
+	 * Retrieves the number of page requests served from memory.
+	 * 
+	 * @return hits
+	 */
+	
+	public long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * Retrieves the number of page requests that had to read the file.
+	 * 
+	 * @return misses
+	 */
+	
+	public long getMisses() {
+		return misses;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Retrieves a page, reading it if it isn't in memory.
+	 * 
+	 * @param page the page number
+	 * @return the page's buffer, valid until the caller's operation is over
+	 * @throws IOException
+	 */
+	
+	public ByteBuffer get(int page) throws IOException {
+		Frame frame = frames.get(page);
+		
+		if (frame != null) {
+			hits++;
+			return frame.buffer;
+		}
+		
+		misses++;
+		frame = frame(page);
+		
+		ByteBuffer buffer = frame.buffer;
+		long position = (long) page * pageSize;
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Page " + page + " is past the end of the file.");
+			}
+		}
+		buffer.clear();
+		
+		return buffer;
+	}
+	
+	/**
+	 * Adds a zeroed page to the end of the file. The page is dirty, so it is written on
+	 * the next flush.
+	 * 
+	 * @return the new page's number
+	 * @throws IOException
+	 */
+	
+	public int allocate() throws IOException {
+		int page = pageCount++;
+		Frame frame = frame(page);
+		
+		frame.dirty = true;
+		dirty.add(frame);
+		
+		return page;
+	}
+	
+	/**
+	 * Marks a page as changed, so it is written back before its buffer is reused and on
+	 * the next flush. The page must be in memory, as it is after get.
+	 * 
+	 * @param page the page number
+	 */
+	
+	public void dirty(int page) {
+		Frame frame = frames.get(page);
+		
+		if (!frame.dirty) {
+			frame.dirty = true;
+			dirty.add(frame);
+		}
+	}
+	
+	/**
+	 * Writes every changed page to the file, in page order.
+	 * 
+	 * @throws IOException
+	 */
+	
+	public void flush() throws IOException {
+		dirty.sort((a, b) -> Integer.compare(a.page, b.page));
+		
+		for (Frame frame : dirty) {
+			write(frame);
+		}
+		dirty.clear();
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Finds a buffer for a page, reusing the least recently used page's buffer once the pool
+	 * is full, and files it under the page. The buffer is zeroed.
+	 * 
+	 * @param page the page number
+	 * @return the frame
+	 * @throws IOException
+	 */
+	
+	private Frame frame(int page) throws IOException {
+		Frame frame;
+		
+		if (frames.size() < capacity) {
+			frame = new Frame(ByteBuffer.allocate(pageSize));
+		} else {
+			Iterator<Frame> eldest = frames.values().iterator();
+			frame = eldest.next();
+			eldest.remove();
+			
+			if (frame.dirty) {
+				write(frame);
+				dirty.remove(frame);
+			}
+			Arrays.fill(frame.buffer.array(), (byte) 0);
+		}
+		
+		frame.page = page;
+		frame.buffer.clear();
+		frames.put(page, frame);
+		
+		return frame;
+	}
+	
+	/*
+	 * Writes a page back to the file.
+	 * 
+	 * @param frame the page's frame
+	 * @throws IOException
+	 */
+	
+	private void write(Frame frame) throws IOException {
+		ByteBuffer buffer = frame.buffer.duplicate();
+		long position = (long) frame.page * pageSize;
+		
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+		frame.dirty = false;
+	}
+	
+	/**
+	 * A page's place in the pool.
+	 */
+	
+	private static class Frame {
+		
+		private ByteBuffer buffer;
+		private int page;
+		private boolean dirty;
+		
+		private Frame(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+}
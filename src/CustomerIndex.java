@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The CustomerIndex class maps each customer with an open account to that account, so
+ * that opening a second account for the same person can be caught with one hash lookup.
+ * A customer is identified by last name, first name, date of birth and phone number,
+ * normalized so that case, spacing and punctuation don't matter, and with the names cut
+ * to the width the ledger stores.
+ * 
+ * The index is built from the store once, then kept up to date as accounts are opened,
+ * closed and changed. An opening reserves its customer's entry before it creates the
+ * account, so of two concurrent openings for the same person, only one goes ahead. A
+ * change to a customer's details is reserved the same way, and refused if the new details
+ * belong to another open account.
+ * Accounts opened by other processes sharing the ledger aren't seen until the index is
+ * rebuilt.
+ */
+
+public class CustomerIndex {
+	
+	private static final Long PENDING = 0L;		// reserved by an opening still in progress
+	
+	private ConcurrentHashMap<String, Long> accounts;
+	
+	/**
+	 * Builds an index of the open accounts in a store.
+	 * 
+	 * @param store the store
+	 * @throws IOException
+	 */
+	
+	public CustomerIndex(AccountStore store) throws IOException {
+		this.accounts = new ConcurrentHashMap<String, Long>();
+		
+		store.scan(account -> {
+			if (account.getStatus() == 'Y') {
+				accounts.putIfAbsent(key(account.getUser()), account.getAccountNumber());
+			}
+		});
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the number of customers in the index.
+	 * 
+	 * @return size
+	 */
+	
+	public int size() {
+		return accounts.size();
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Finds a customer's open account.
+	 * 
+	 * @param user the customer
+	 * @return the account number, 0 if an account is being opened, or -1 if the customer
+	 *         has no open account
+	 */
+	
+	public long find(User user) {
+		Long accountNumber = accounts.get(key(user));
+		
+		return accountNumber == null ? -1 : accountNumber;
+	}
+	
+	/**
+	 * Reserves a customer's entry for an account about to be opened.
+	 * 
+	 * @param user the customer
+	 * @return true if the entry was reserved, false if the customer already has an open
+	 *         account or one being opened
+	 */
+	
+	public boolean reserve(User user) {
+		return accounts.putIfAbsent(key(user), PENDING) == null;
+	}
+	
+	/**
+	 * Reserves the details an account's customer is about to change to, so no other
+	 * account can open or change to them meanwhile.
+	 * 
+	 * @param user the customer, as changed
+	 * @param accountNumber the account
+	 * @return true if the details were reserved or already belong to the account, false if
+	 *         they belong to another open account or one being opened
+	 */
+	
+	public boolean claim(User user, long accountNumber) {
+		Long holder = accounts.putIfAbsent(key(user), PENDING);
+		
+		return holder == null || holder == accountNumber;
+	}
+	
+	/**
+	 * Records the account opened for a reserved customer.
+	 * 
+	 * @param user the customer
+	 * @param accountNumber the new account's number
+	 */
+	
+	public void assign(User user, long accountNumber) {
+		accounts.replace(key(user), PENDING, accountNumber);
+	}
+	
+	/**
+	 * Gives up a reservation whose account couldn't be opened or changed.
+	 * 
+	 * @param user the customer
+	 */
+	
+	public void release(User user) {
+		accounts.remove(key(user), PENDING);
+	}
+	
+	/**
+	 * Removes a closed account.
+	 * 
+	 * @param account the account
+	 */
+	
+	public void remove(BankAccount account) {
+		accounts.remove(key(account.getUser()), account.getAccountNumber());
+	}
+	
+	/**
+	 * Refiles an account whose customer details have changed to details reserved with
+	 * claim.
+	 * 
+	 * @param previous the account's key before the change, from key
+	 * @param account the account as changed
+	 */
+	
+	public void move(String previous, BankAccount account) {
+		String current = key(account.getUser());
+		
+		if (!current.equals(previous)) {
+			accounts.remove(previous, account.getAccountNumber());
+		}
+		accounts.replace(current, PENDING, account.getAccountNumber());
+	}
+	
+	/**
+	 * Normalizes the details that identify a customer: names in lower case, with
+	 * anything other than ASCII letters and digits dropped, and date of birth and phone
+	 * number as they are.
+	 * 
+	 * @param user the customer
+	 * @return the key
+	 */
+	
+	public static String key(User user) {
+		StringBuilder sb = new StringBuilder(48);
+		
+		normalize(sb, user.getLastName(), RecordLayout.CURRENT.getWidth(RecordLayout.LAST_NAME));
+		sb.append('|');
+		normalize(sb, user.getFirstName(), RecordLayout.CURRENT.getWidth(RecordLayout.FIRST_NAME));
+		sb.append('|').append(user.getDOB()).append('|').append(user.getPhone());
+		
+		return sb.toString();
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Appends a name in normalized form, as far as the ledger would store it.
+	 * 
+	 * @param sb the builder
+	 * @param name the name, or null
+	 * @param width the width of the name's field in the ledger
+	 */
+	
+	private static void normalize(StringBuilder sb, String name, int width) {
+		if (name == null) {
+			return;
+		}
+		
+		String stored = name.trim();
+		for (int i = 0; i < Math.min(stored.length(), width); i++) {
+			char ch = stored.charAt(i);
+			
+			if (ch >= 'A' && ch <= 'Z') {
+				sb.append((char) (ch + ('a' - 'A')));
+			} else if ((ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9')) {
+				sb.append(ch);
+			}
+		}
+	}
+}
@@ -0,0 +1,357 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The DailyLimits class caps how much can be withdrawn from each account in a day. Every
+ * account is held to a default limit unless it has a limit of its own.
+ * 
+ * What each account has withdrawn today is one long in memory, the day in the high bits
+ * and the cents in the low ones, so a check is a single compare-and-set. A counter left
+ * over from an earlier day reads as zero and is started over by the first withdrawal of
+ * the new day; nothing sweeps the counters at midnight.
+ * 
+ * Withdrawals and limits are appended to a sidecar file next to the ledger, so they
+ * survive a restart. Each line holds an account number, as wide as the current record
+ * layout makes it, a type (1), a day (6) and an amount in cents (15): a withdrawal adds
+ * its amount to that day's total, and a limit replaces the account's limit. Lines written
+ * under other layouts are told apart by their length. The file is only read when the
+ * limits are constructed, and checks never touch it. The first start on a day after the
+ * file was last written rewrites it with just the account limits.
+ * 
+ * Limits are enforced per process. Processes sharing a ledger each count only their own
+ * withdrawals, picking up each other's (and each other's limits) when they next start,
+ * so together they can withdraw more than an account's limit in a day.
+ */
+
+public class DailyLimits {
+	
+	public static final String EXTENSION = ".daily";
+	public static final int FIXED_LENGTH = 22;		// characters per line, excluding the account number
+	public static final long REJECTED = -1;
+	public static final long UNLIMITED = Long.MAX_VALUE;
+	
+	private static final char WITHDRAWAL = 'W';
+	private static final char LIMIT = 'L';
+	private static final int DAY_SHIFT = 40;		// counters hold the day above 40 bits of cents
+	private static final long CENTS_MASK = (1L << DAY_SHIFT) - 1;
+	
+	private String path;
+	private long defaultLimit;
+	private ConcurrentHashMap<Long, AtomicLong> counters;
+	private ConcurrentHashMap<Long, Long> limits;
+	private BufferedWriter writer;
+	private String format;
+	
+	/**
+	 * Constructs the daily limits for a ledger, loading today's withdrawals and any
+	 * account limits from the sidecar file.
+	 * 
+	 * @param path the sidecar file, relative to the working directory
+	 * @param defaultLimit the limit in cents for accounts without one of their own, or 0
+	 *        for no limit
+	 * @throws IOException
+	 */
+	
+	public DailyLimits(String path, long defaultLimit) throws IOException {
+		this.path = path;
+		this.defaultLimit = defaultLimit <= 0 ? UNLIMITED : defaultLimit;
+		this.counters = new ConcurrentHashMap<Long, AtomicLong>();
+		this.limits = new ConcurrentHashMap<Long, Long>();
+		this.format = "%0" + RecordLayout.CURRENT.getWidth(RecordLayout.ACCOUNT_NUMBER) + "d%c%06d%015d";
+		
+		File file = file();
+		long midnight = LocalDate.now().atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+		
+		load(file);
+		if (file.exists() && file.lastModified() < midnight) {
+			compact(file);
+		}
+		this.writer = new BufferedWriter(new FileWriter(file, true));
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves an account's daily limit.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the limit in cents, or UNLIMITED
+	 */
+	
+	public long getLimit(long accountNumber) {
+		Long limit = limits.get(accountNumber);
+		
+		return limit == null ? defaultLimit : limit;
+	}
+	
+	/**
+	 * Sets an account's daily limit.
+	 * 
+	 * @param accountNumber the account number
+	 * @param limit the limit in cents, or -1 to go back to the default
+	 * @throws IOException
+	 */
+	
+	public void setLimit(long accountNumber, long limit) throws IOException {
+		write(accountNumber, LIMIT, 0, Math.max(-1, limit));
+		apply(accountNumber, LIMIT, 0, limit);
+	}
+	
+	/**
+	 * Retrieves how much has been withdrawn from an account today.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the total in cents
+	 */
+	
+	public long getWithdrawn(long accountNumber) {
+		AtomicLong counter = counters.get(accountNumber);
+		long packed = counter == null ? 0 : counter.get();
+		
+		return packed >>> DAY_SHIFT == today() ? packed & CENTS_MASK : 0;
+	}
+	
+	/**
+	 * Retrieves how much more can be withdrawn from an account today.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the remainder in cents, or UNLIMITED
+	 */
+	
+	public long getRemaining(long accountNumber) {
+		long limit = getLimit(accountNumber);
+		
+		return limit == UNLIMITED ? UNLIMITED : Math.max(0, limit - getWithdrawn(accountNumber));
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Counts a withdrawal against today's limit, unless it would exceed it. The
+	 * withdrawal is only written to the sidecar file by commit, once it has gone ahead.
+	 * 
+	 * @param accountNumber the account number
+	 * @param cents the amount withdrawn, at least 0
+	 * @return the day the withdrawal counts against, to hand to commit or release, or
+	 *         REJECTED if it would exceed the limit
+	 */
+	
+	public long acquire(long accountNumber, long cents) {
+		Long own = limits.get(accountNumber);
+		long limit = own == null ? defaultLimit : own;
+		long day = today();
+		AtomicLong counter = counter(accountNumber);
+		
+		while (true) {
+			long packed = counter.get();
+			long withdrawn = packed >>> DAY_SHIFT == day ? packed & CENTS_MASK : 0;
+			
+			if (limit != UNLIMITED && withdrawn + cents > limit) {
+				return REJECTED;
+			} else if (counter.compareAndSet(packed, day << DAY_SHIFT | withdrawn + cents)) {
+				return day;
+			}
+		}
+	}
+	
+	/**
+	 * Writes a withdrawal counted by acquire to the sidecar file.
+	 * 
+	 * @param accountNumber the account number
+	 * @param cents the amount passed to acquire
+	 * @param day the day returned by acquire
+	 * @throws IOException
+	 */
+	
+	public void commit(long accountNumber, long cents, long day) throws IOException {
+		write(accountNumber, WITHDRAWAL, day, cents);
+	}
+	
+	/**
+	 * Takes back a withdrawal counted by acquire that didn't go ahead.
+	 * 
+	 * @param accountNumber the account number
+	 * @param cents the amount passed to acquire
+	 * @param day the day returned by acquire
+	 */
+	
+	public void release(long accountNumber, long cents, long day) {
+		if (day != REJECTED) {
+			apply(accountNumber, WITHDRAWAL, day, -cents);
+		}
+	}
+	
+	/**
+	 * Closes the sidecar file.
+	 * 
+	 * @throws IOException
+	 */
+	
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Adds a line to an account's totals: an amount withdrawn on a day, which only counts
+	 * if the account's counter isn't already on a later day, or a new limit.
+	 * 
+	 * @param accountNumber the account number
+	 * @param type WITHDRAWAL or LIMIT
+	 * @param day the day of a withdrawal
+	 * @param cents the amount withdrawn, or the limit (-1 for the default)
+	 */
+	
+	private void apply(long accountNumber, char type, long day, long cents) {
+		if (type == LIMIT) {
+			if (cents < 0) {
+				limits.remove(accountNumber);
+			} else {
+				limits.put(accountNumber, cents);
+			}
+			return;
+		}
+		
+		AtomicLong counter = counter(accountNumber);
+		while (true) {
+			long packed = counter.get();
+			long current = packed >>> DAY_SHIFT;
+			long next;
+			
+			if (current == day) {
+				next = packed + cents;
+			} else if (current < day && cents >= 0) {
+				next = day << DAY_SHIFT | cents;
+			} else {
+				return;
+			}
+			
+			if (counter.compareAndSet(packed, next)) {
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * Retrieves (creating if necessary) an account's counter.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the counter
+	 */
+	
+	private AtomicLong counter(long accountNumber) {
+		AtomicLong counter = counters.get(accountNumber);
+		
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(accountNumber, created);
+			
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		
+		return counter;
+	}
+	
+	/*
+	 * Appends a line to the sidecar file.
+	 * 
+	 * @param accountNumber the account number
+	 * @param type WITHDRAWAL or LIMIT
+	 * @param day the day of a withdrawal, or 0
+	 * @param cents the amount or limit
+	 * @throws IOException
+	 */
+	
+	private synchronized void write(long accountNumber, char type, long day, long cents) throws IOException {
+		writer.write(String.format(format, accountNumber, type, day, cents));
+		writer.newLine();
+		writer.flush();
+	}
+	
+	/*
+	 * Reads the sidecar file, if there is one, into the counters and limits. A damaged or
+	 * unfinished line is skipped.
+	 * 
+	 * @param file the sidecar file
+	 * @throws IOException
+	 */
+	
+	private void load(File file) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		
+		try (BufferedReader br = new BufferedReader(new FileReader(file), 1 << 16)) {
+			String line;
+			
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				
+				int width = line.length() - FIXED_LENGTH;
+				if (RecordLayout.forWidth(RecordLayout.ACCOUNT_NUMBER, width) != null) {
+					try {
+						apply(Long.parseLong(line.substring(0, width)), line.charAt(width), Long.parseLong(line.substring(width + 1, width + 7)),
+							Long.parseLong(line.substring(width + 7)));
+					} catch (NumberFormatException e) {
+						// damaged line; skip it
+					}
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Drops the withdrawals of earlier days from the sidecar file, keeping the account
+	 * limits, which outlive the day they were set. The file is rewritten in place rather
+	 * than replaced, so processes already appending to it keep doing so.
+	 * 
+	 * @param file the sidecar file
+	 * @throws IOException
+	 */
+	
+	private void compact(File file) throws IOException {
+		StringBuilder sb = new StringBuilder(limits.size() * (FIXED_LENGTH + 12));
+		
+		for (Map.Entry<Long, Long> entry : limits.entrySet()) {
+			sb.append(String.format(format, entry.getKey(), LIMIT, 0, entry.getValue())).append(System.lineSeparator());
+		}
+		
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+	
+	/*
+	 * Retrieves today's day number in the local time zone.
+	 * 
+	 * @return days since the epoch
+	 */
+	
+	private static long today() {
+		return LocalDate.now().toEpochDay();
+	}
+	
+	/*
+	 * Retrieves the sidecar file.
+	 * 
+	 * @return the file
+	 */
+	
+	private File file() {
+		return new File(System.getProperty("user.dir") + File.separator + path);
+	}
+}
@@ -1,105 +1,425 @@
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
-public class Database {
+public class Database implements AccountStore {
+	
+	public static final int RECORD_LENGTH = RecordLayout.CURRENT.getLength();		// characters per account, excluding the line terminator
+	public static final int LEGACY_RECORD_LENGTH = RecordLayout.LEGACY.getLength();	// the shortest record there is, from before accounts were versioned
+	public static final int CHUNK_SIZE = 4096;			// accounts published to readers at a time
+	public static final String NUMBERS_EXTENSION = ".next";	// sidecar holding the last account number handed out
+	
+	private static final long APPEND_LOCK = Long.MAX_VALUE - 1;	// a byte far past the end of the file, locked while appending
 	
 	private String path;
-	private String[] accounts;
+	private OffHeapLedger ledger;
+	private volatile LedgerIndex index;
+	private volatile int count;
+	private volatile boolean loaded;
+	private IOException failure;
+	private long lastAccountNumber;
+	private volatile CommitListener listener;
+	private volatile LedgerWatcher watcher;
+	private volatile boolean closed;
+	private long stampLength;		// the file's length and modification time when last read or written
+	private long stampModified;
+	private FileChannel channel;	// kept open while the database is; see channel()
+	private Object channelKey;
+	private long[] offsets;			// where each slot's record starts in the file, or -1; null if not known
 	
 	public Database(String path) throws FileNotFoundException, IOException {
 		this.path = path;
-		this.accounts = getAllAccounts();
+		this.count = 0;
+		this.loaded = false;
+		this.lastAccountNumber = -1L;
+		
+		load();
 	}
 	
 	/**
-	 * Initializes the database with all accounts.
+	 * Retrieves the path of the database file, relative to the working directory.
+	 * 
+	 * @return path
+	 */
+	
+	@Override
+	public String getPath() {
+		return path;
+	}
+	
+	/**
+	 * Registers a listener to be told about every committed change, such as a replication
+	 * primary. Only one listener is kept; a later call replaces it.
+	 * 
+	 * @param listener the listener, or null to remove it
+	 */
+	
+	public void setCommitListener(CommitListener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * Retrieves all accounts, waiting for the background load to finish if necessary.
 	 * 
 	 * @return an array of all accounts
+	 * @throws IOException
 	 */
 	
-	public String[] getAllAccounts() throws FileNotFoundException, IOException {
-		int count = 0;
-		String[] accounts = new String[10];
+	public String[] getAllAccounts() throws IOException {
+		awaitLoaded();
 		
-		FileReader altered = null;
-		InputStreamReader original = null;
-		try {
-			altered = new FileReader(System.getProperty("user.dir") + File.separator + path);			
-		} catch (FileNotFoundException e) {
-			original = new InputStreamReader(getClass().getResourceAsStream(path));
+		String[] accounts = new String[count];
+		StringBuilder sb = new StringBuilder(RECORD_LENGTH);
+		for (int i = 0; i < accounts.length; i++) {
+			sb.setLength(0);
+			ledger.appendRecord(i, sb);
+			accounts[i] = sb.toString();
 		}
 		
-		try (BufferedReader br = new BufferedReader(original != null ? original : altered)) {
-			String line;
-			
-			while ((line = br.readLine()) != null) {
-				if (count >= accounts.length) {
-					accounts = Arrays.copyOf(accounts, accounts.length + 10);
-				}
-				accounts[count++] = line;
-			}
-		}
+		return accounts;
+	}
+	
+	/**
+	 * Retrieves the off-heap ledger, waiting for the background load to finish if necessary.
+	 * Use OffHeapLedger.view for allocation-free scans.
+	 * 
+	 * @return the ledger
+	 * @throws IOException
+	 */
+	
+	public OffHeapLedger getLedger() throws IOException {
+		awaitLoaded();
+		
+		return ledger;
+	}
+	
+	/**
+	 * Retrieves the off-heap ledger the database already keeps, rather than building one.
+	 * 
+	 * @return the ledger
+	 * @throws IOException
+	 */
+	
+	@Override
+	public OffHeapLedger columns() throws IOException {
+		return getLedger();
+	}
+	
+	/**
+	 * Retrieves an open account. Same as getAccount.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the account, or null if there is no open account with that number
+	 * @throws IOException
+	 */
+	
+	@Override
+	public BankAccount get(long accountNumber) throws IOException {
+		return getAccount(accountNumber);
+	}
+	
+	/**
+	 * Writes one account, or two together, provided neither is stale. Same as updateAccount.
+	 * 
+	 * @param account the primary account
+	 * @param destination the secondary account, or null
+	 * @return true if the accounts were written, false if either was stale
+	 * @throws IOException
+	 */
+	
+	@Override
+	public boolean put(BankAccount account, BankAccount destination) throws IOException {
+		return updateAccount(account, destination);
+	}
+	
+	/**
+	 * Visits every account in file order, waiting for the background load to finish.
+	 * 
+	 * @param visitor the visitor
+	 * @throws IOException
+	 */
+	
+	@Override
+	public void scan(Visitor visitor) throws IOException {
+		awaitLoaded();
 		
-		return Arrays.copyOf(accounts, count);
+		int n = count;
+		for (int slot = 0; slot < n; slot++) {
+			visitor.visit(ledger.copy(slot));
+		}
 	}
 	
 	/**
-	 * Retrieves an account by account number.
+	 * Retrieves an account by account number. Accounts that have already been loaded
+	 * are searched immediately. While the rest are loading, an up-to-date index sidecar
+	 * lets the account be read straight from the file; without one, the account is
+	 * searched for as the rest arrive.
 	 * 
 	 * @param accountNumber the acocunt number of the account to retrieve
 	 * @return a BankAccount
+	 * @throws IOException
 	 */
 	
-	public BankAccount getAccount(long accountNumber) {
-		for (String account : accounts) {
-			if (account.startsWith(String.valueOf(accountNumber)) && account.endsWith("Y")) {
-				return new BankAccount(account);
+	public BankAccount getAccount(long accountNumber) throws IOException {
+		boolean done;
+		
+		do {
+			done = loaded;			// read before count so the final chunk is never skipped
+			int available = count;
+			int slot = ledger.find(accountNumber);
+			
+			if (slot >= 0 && slot < available) {
+				return ledger.getStatus(slot) == 'Y' ? ledger.copy(slot) : null;
 			}
+			
+			if (!done) {
+				LedgerIndex index = this.index;
+				
+				if (index != null) {
+					try {
+						String record = index.read(accountNumber);
+						BankAccount account = record == null ? null : new BankAccount(record);
+						
+						return account == null || account.getStatus() != 'Y' ? null : account;
+					} catch (IOException e) {
+						this.index = null;		// stale; wait for the loader instead
+					}
+				}
+				awaitChunk(available);
+			}
+		} while (!done);
+		
+		if (failure != null) {
+			throw failure;
 		}
 		
 		return null;
 	}
 	
 	/**
-	 * Updates a BankAccount.
+	 * Updates a BankAccount, provided neither account has been written since it was read.
+	 * Each account's version must still match the stored one; if either is stale, nothing
+	 * is written and the caller should read the accounts again and retry. On success, both
+	 * versions are incremented.
+	 * 
+	 * Other processes may share the database file. The records being updated are locked in
+	 * the file while their versions are checked against the file and while they are written
+	 * in place, so updates to different accounts go ahead side by side and updates to the
+	 * same account take turns. A new account is appended while the end of the file is
+	 * locked. If a record isn't where the ledger expects it, the whole file is locked and
+	 * rewritten instead.
 	 * 
 	 * @param account the primary account being updated
 	 * @param destination the secondary account being updated
-	 * @throws IOException 
+	 * @return true if the accounts were written, false if either was stale
+	 * @throws IOException
 	 */
 	
-	public void updateAccount(BankAccount account, BankAccount destination) throws IOException {
-		boolean newAccount = true;
+	public synchronized boolean updateAccount(BankAccount account, BankAccount destination) throws IOException {
+		awaitLoaded();
+		reload();
+		
+		int slot = ledger.find(account.getAccountNumber());
+		int other = destination == null ? -1 : ledger.find(destination.getAccountNumber());
+		List<FileLock> locks = lockRecords(slot, other);
 		
-		for (int i = 0; i < accounts.length; i++) {			
-			if (accounts[i].startsWith(String.valueOf(account.getAccountNumber()))) {
-				accounts[i] = account.toString();
-				newAccount = false;
+		if (locks == null) {
+			FileLock lock = channel().lock();
+			try {
+				merge(true);
+				slot = ledger.find(account.getAccountNumber());
+				other = destination == null ? -1 : ledger.find(destination.getAccountNumber());
+				
+				if (!isCurrent(slot, account) || !isCurrent(other, destination)) {
+					return false;
+				}
+				slot = put(slot, account);
+				other = other >= 0 ? put(other, destination) : -1;
+				write();
+			} finally {
+				lock.release();
+			}
+		} else {
+			try {
+				if (!isCurrent(slot, account) || !isCurrent(other, destination)) {
+					return false;
+				}
+				boolean appended = slot < 0;
+				
+				slot = put(slot, account);
+				other = other >= 0 ? put(other, destination) : -1;
+				writeRecords(other >= 0 ? new int[] { slot, other } : new int[] { slot }, appended ? slot : -1);
+			} finally {
+				release(locks);
+			}
+		}
+		
+		committed(other >= 0 ? new int[] { slot, other } : new int[] { slot });
+		
+		return true;
+	}
+	
+	/**
+	 * Applies account records committed elsewhere, such as on a replication primary, and
+	 * writes the ledger once. Each record replaces the account with the same number, version
+	 * included, or is added as a new account. The whole file is locked while it is written.
+	 * 
+	 * @param records the fixed-width account records
+	 * @throws IOException
+	 */
+	
+	public synchronized void applyRecords(String[] records) throws IOException {
+		awaitLoaded();
+		
+		if (records.length == 0) {
+			return;
+		}
+		
+		int[] slots = new int[records.length];
+		FileLock lock = channel().lock();
+		try {
+			merge(true);
+			
+			for (int i = 0; i < records.length; i++) {
+				BankAccount account = new BankAccount(records[i]);
+				int slot = ledger.find(account.getAccountNumber());
+				
+				if (slot < 0) {
+					slots[i] = ledger.append(account);
+					count = ledger.size();
+				} else {
+					ledger.set(slot, account);
+					slots[i] = slot;
+				}
+			}
+			write();
+		} finally {
+			lock.release();
+		}
+		committed(slots);
+	}
+	
+	/**
+	 * Recomputes the balance of every account and writes the ledger once for the whole
+	 * batch. The new balances are computed in parallel while the database, and the whole
+	 * file, are locked, so no other update, in this process or another, can interleave with
+	 * the batch; each account whose balance changes has its version incremented, so
+	 * sessions holding an older copy retry. The update is told which accounts will change
+	 * before the file is written.
+	 * 
+	 * @param update computes an account's new balance from its slot in the ledger
+	 * @return the number of accounts whose balance changed
+	 * @throws IOException
+	 */
+	
+	@Override
+	public synchronized int updateBalances(BalanceUpdate update) throws IOException {
+		awaitLoaded();
+		
+		int[] slots;
+		int changed = 0;
+		
+		FileLock lock = channel().lock();
+		try {
+			merge(true);
+			
+			final long[] balances = new long[count];
+			IntStream.range(0, balances.length)
+				.parallel()
+				.forEach(slot -> balances[slot] = update.apply(ledger, slot));
+			
+			slots = new int[balances.length];
+			for (int slot = 0; slot < balances.length; slot++) {
+				if (balances[slot] != ledger.getBalanceCents(slot)) {
+					slots[changed++] = slot;
+				}
 			}
 			
-			if (destination != null) {
-				if (accounts[i].startsWith(String.valueOf(destination.getAccountNumber()))) {
-					accounts[i] = destination.toString();
+			if (changed > 0) {
+				update.prepare(ledger, slots, changed);
+				for (int i = 0; i < changed; i++) {
+					ledger.setBalanceCents(slots[i], balances[slots[i]]);
+					ledger.setVersion(slots[i], ledger.getVersion(slots[i]) + 1);
 				}
+				write();
 			}
+		} finally {
+			lock.release();
+		}
+		
+		if (changed > 0) {
+			committed(Arrays.copyOf(slots, changed));
 		}
 		
-		if (newAccount) {
-			accounts = Arrays.copyOf(accounts, accounts.length + 1);
-			accounts[accounts.length - 1] = account.toString();
+		return changed;
+	}
+	
+	/**
+	 * Brings the ledger up to date with changes that other processes made to the database
+	 * file. Each record in the file is compared with its slot in the ledger, and only those
+	 * that differ are applied: a record with the same or a newer version replaces the
+	 * account, and accounts the ledger doesn't have are added. Where the file has an older
+	 * version of an account, or is missing one, something overwrote a change made here; the
+	 * ledger keeps the change and the file is rewritten with it, under a lock on the whole
+	 * file.
+	 * 
+	 * Every update calls this before checking versions, and a LedgerWatcher calls it when
+	 * the file changes. It returns at once if the file hasn't changed since it was last read
+	 * or written, and finds nothing to apply if the file is caught half-written.
+	 * 
+	 * @return the number of accounts changed in the ledger
+	 * @throws IOException
+	 */
+	
+	public synchronized int reload() throws IOException {
+		awaitLoaded();
+		
+		return merge(false);
+	}
+	
+	/**
+	 * Stops watching the database file for changes made by other processes, and closes the
+	 * channel that holds its locks.
+	 */
+	
+	@Override
+	public void close() {
+		closed = true;
+		
+		LedgerWatcher watcher = this.watcher;
+		
+		if (watcher != null) {
+			watcher.close();
 		}
 		
-		try (BufferedWriter bw = new BufferedWriter(new FileWriter(System.getProperty("user.dir") + File.separator + path))) {
-			for (String acct : accounts) {
-				bw.write(acct);
-				bw.newLine();
+		synchronized (this) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// already closed
+				}
+				channel = null;
 			}
 		}
 	}
@@ -108,13 +428,16 @@ public class Database {
 	 * Retrieves the largest account number in the database.
 	 * 
 	 * @return the largest account number
+	 * @throws IOException
 	 */
 	
-	public long getMaxAccountNumber() {
+	public long getMaxAccountNumber() throws IOException {
+		awaitLoaded();
+		
 		long max = -1L;
 		
-		for (String account : accounts) {
-			long accountNumber = Long.parseLong(account.substring(0, 9));
+		for (int i = 0; i < count; i++) {
+			long accountNumber = ledger.getAccountNumber(i);
 			
 			if (accountNumber > max) {
 				max = accountNumber;
@@ -123,4 +446,783 @@ public class Database {
 		
 		return max;
 	}
+	
+	/**
+	 * Reserves the next unused account number. Numbers are handed out once, even if
+	 * several sessions open accounts before any of them is written. The last number handed
+	 * out is kept in a sidecar next to the database file, locked while it is updated, so
+	 * processes sharing the file never hand out the same number either.
+	 * 
+	 * @return the reserved account number
+	 * @throws IOException
+	 */
+	
+	@Override
+	public synchronized long nextAccountNumber() throws IOException {
+		if (lastAccountNumber < 0) {
+			lastAccountNumber = getMaxAccountNumber();
+		}
+		
+		File file = file();
+		if (!file.isFile()) {
+			return ++lastAccountNumber;						// not written yet, so not shared yet
+		}
+		
+		Path sidecar = new File(file.getPath() + NUMBERS_EXTENSION).toPath();
+		try (FileChannel numbers = FileChannel.open(sidecar, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			
+			numbers.lock();									// released when the channel closes
+			readFully(numbers, buffer, 0);
+			if (!buffer.hasRemaining()) {
+				lastAccountNumber = Math.max(lastAccountNumber, buffer.getLong(0));
+			}
+			
+			buffer.clear();
+			buffer.putLong(0, ++lastAccountNumber);
+			writeFully(numbers, buffer, 0);
+		}
+		
+		return lastAccountNumber;
+	}
+	
+	/**
+	 * Is told about changes once they are written to the database file.
+	 */
+	
+	public interface CommitListener {
+		
+		/**
+		 * Receives the records of the accounts changed by one commit. Called while the
+		 * database is locked, in commit order, so it should return quickly.
+		 * 
+		 * @param records the fixed-width records of the changed accounts, as written
+		 */
+		
+		void committed(String[] records);
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Rewrites the database file from the ledger, then restamps the index sidecar, or
+	 * rewrites it if records moved. Callers must hold the database lock and a lock on the
+	 * whole file.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private void write() throws IOException {
+		File file = file();
+		long length = file.length();
+		long lastModified = file.lastModified();
+		long[] offsets = new long[count];
+		FileChannel channel = channel();
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		StringBuilder sb = new StringBuilder(RECORD_LENGTH + 1);
+		long offset = 0;
+		long written = 0;
+		
+		for (int i = 0; i < count; i++) {
+			sb.setLength(0);
+			ledger.appendRecord(i, sb);
+			sb.append('\n');
+			
+			if (buffer.remaining() < sb.length()) {
+				buffer.flip();
+				written += writeFully(channel, buffer, written);
+				buffer.clear();
+			}
+			encode(sb, buffer);
+			
+			offsets[i] = offset;
+			offset += sb.length();
+		}
+		
+		buffer.flip();
+		writeFully(channel, buffer, written);
+		channel.truncate(offset);
+		
+		this.offsets = offsets;
+		stampLength = file.length();
+		stampModified = modified(file);
+		
+		if (!LedgerIndex.touch(file, new File(file.getPath() + LedgerIndex.EXTENSION), length, lastModified)) {
+			writeIndex(file, offsets);
+		}
+	}
+	
+	/*
+	 * Applies the records in the database file that differ from the ledger, as described
+	 * for reload, and notes where each account's record starts. Without a lock on the file,
+	 * a read that catches another process writing finds nothing to apply, and a file that
+	 * is missing changes is locked and merged again before it is rewritten.
+	 * 
+	 * @param locked true if the caller holds a lock on the whole file
+	 * @return the number of accounts changed in the ledger
+	 * @throws IOException
+	 */
+	
+	private int merge(boolean locked) throws IOException {
+		File file = file();
+		long length = file.length();
+		long modified = modified(file);
+		
+		if (!file.isFile() || (length == stampLength && modified == stampModified)) {
+			return 0;
+		}
+		
+		List<String> changed = new ArrayList<String>();
+		long[] starts = new long[16];
+		long[] positions = new long[count];
+		BitSet seen = new BitSet(count);
+		long offset = 0;
+		
+		Arrays.fill(positions, -1);
+		
+		// not closed, since that would close the channel
+		BufferedReader br = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel().position(0)), StandardCharsets.US_ASCII), 1 << 16);
+		StringBuilder sb = new StringBuilder(RECORD_LENGTH);
+		String line;
+		
+		try {
+			while ((line = br.readLine()) != null) {
+				long start = offset;
+				offset += line.length() + 1;
+				
+				if (line.length() < LEGACY_RECORD_LENGTH) {
+					continue;
+				}
+				
+				int slot = ledger.find(RecordLayout.of(line).parseAccountNumber(line));
+				if (slot >= 0) {
+					seen.set(slot);
+					positions[slot] = start;
+					sb.setLength(0);
+					ledger.appendRecord(slot, sb);
+					
+					if (line.contentEquals(sb)) {
+						continue;
+					}
+				}
+				
+				if (changed.size() == starts.length) {
+					starts = Arrays.copyOf(starts, starts.length * 2);
+				}
+				starts[changed.size()] = start;
+				changed.add(line);
+			}
+		} catch (NumberFormatException e) {
+			return 0;										// garbled, most likely mid-write
+		}
+		
+		if (offset != length || file.length() != length || modified(file) != modified) {
+			return 0;										// written to while it was being read
+		}
+		
+		int[] slots = new int[changed.size()];
+		int adopted = 0;
+		boolean overwritten = seen.cardinality() < count;
+		
+		positions = Arrays.copyOf(positions, count + changed.size());
+		Arrays.fill(positions, count, positions.length, -1);
+		
+		for (int i = 0; i < changed.size(); i++) {
+			BankAccount account = new BankAccount(changed.get(i));
+			int slot = ledger.find(account.getAccountNumber());
+			
+			if (slot < 0) {
+				slot = ledger.append(account);
+				count = ledger.size();
+				positions[slot] = starts[i];
+				if (lastAccountNumber >= 0 && account.getAccountNumber() > lastAccountNumber) {
+					lastAccountNumber = account.getAccountNumber();
+				}
+			} else if (account.getVersion() >= ledger.getVersion(slot)) {
+				ledger.set(slot, account);
+			} else {
+				overwritten = true;
+				continue;
+			}
+			slots[adopted++] = slot;
+		}
+		
+		offsets = positions;
+		if (locked || !overwritten) {
+			stampLength = length;
+			stampModified = modified;
+		}
+		
+		if (adopted > 0) {
+			committed(Arrays.copyOf(slots, adopted));
+		}
+		
+		if (overwritten && locked) {
+			write();
+		} else if (overwritten) {
+			FileLock lock = channel().lock();
+			try {
+				adopted += merge(true);
+			} finally {
+				lock.release();
+			}
+		}
+		
+		return adopted;
+	}
+	
+	/*
+	 * Writes the records of some accounts in place, or at the end of the file for a new
+	 * account, then restamps the index sidecar. Callers must hold the database lock and
+	 * the records' locks from lockRecords.
+	 * 
+	 * @param slots the slots to write
+	 * @param appended the slot of a new account, or -1
+	 * @throws IOException
+	 */
+	
+	private void writeRecords(int[] slots, int appended) throws IOException {
+		File file = file();
+		long length = file.length();
+		long lastModified = file.lastModified();
+		boolean current = length == stampLength && modified(file) == stampModified;		// else another process wrote since the last reload
+		FileChannel channel = channel();
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_LENGTH + 1);
+		StringBuilder sb = new StringBuilder(RECORD_LENGTH + 1);
+		
+		for (int slot : slots) {
+			if (slot == appended) {
+				if (offsets.length <= slot) {
+					int known = offsets.length;
+					offsets = Arrays.copyOf(offsets, Math.max(slot + 1, known * 2));
+					Arrays.fill(offsets, known, offsets.length, -1);
+				}
+				offsets[slot] = channel.size();
+			}
+			
+			sb.setLength(0);
+			ledger.appendRecord(slot, sb);
+			sb.append('\n');
+			
+			buffer.clear();
+			encode(sb, buffer);
+			buffer.flip();
+			writeFully(channel, buffer, offsets[slot]);
+		}
+		
+		if (current) {
+			stampLength = file.length();
+			stampModified = modified(file);
+		}
+		
+		File sidecar = new File(file.getPath() + LedgerIndex.EXTENSION);
+		if (!LedgerIndex.touch(file, sidecar, length, lastModified)) {
+			sidecar.delete();								// the ledger may not know every account; the next load rebuilds it
+		}
+	}
+	
+	/*
+	 * Locks the records of the accounts in two slots so they can be updated in place, and
+	 * brings each account up to date with its record as it now is in the file. Records are
+	 * locked in file order, so processes locking the same records can't deadlock. A slot of
+	 * -1 is a new account, for which the end of the file is locked instead, last.
+	 * 
+	 * @param slot the primary account's slot, or -1
+	 * @param other the secondary account's slot, or -1
+	 * @return the locks, or null if a record isn't where the ledger expects it, in which
+	 *         case nothing is locked and the whole file has to be rewritten
+	 * @throws IOException
+	 */
+	
+	private List<FileLock> lockRecords(int slot, int other) throws IOException {
+		long[] offsets = this.offsets;
+		
+		if (!file().isFile() || offsets == null) {
+			return null;
+		}
+		
+		int[] slots = other < 0 || other == slot ? new int[] { slot } : new int[] { slot, other };
+		if (slots.length == 2 && (slot < 0 || (other >= 0 && offset(other) < offset(slot)))) {
+			slots = new int[] { other, slot };
+		}
+		
+		FileChannel channel = channel();
+		List<FileLock> locks = new ArrayList<FileLock>(slots.length);
+		boolean located = true;
+		
+		try {
+			for (int i = 0; i < slots.length && located; i++) {
+				if (slots[i] < 0) {
+					locks.add(channel.lock(APPEND_LOCK, 1, false));
+					located = endsWithLineFeed(channel);
+				} else if (offset(slots[i]) < 0) {
+					located = false;
+				} else {
+					locks.add(channel.lock(offset(slots[i]), RECORD_LENGTH + 1, false));
+					located = refresh(channel, slots[i]);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			release(locks);
+			throw e;
+		}
+		
+		if (!located) {
+			release(locks);
+			return null;
+		}
+		
+		return locks;
+	}
+	
+	/*
+	 * Reads an account's record from the file, which the caller has locked, and adopts it
+	 * if another process has written a newer version.
+	 * 
+	 * @param channel the channel on the database file
+	 * @param slot the account's slot
+	 * @return true if the record is where the ledger expects it, false otherwise
+	 * @throws IOException
+	 */
+	
+	private boolean refresh(FileChannel channel, int slot) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_LENGTH + 1);
+		
+		readFully(channel, buffer, offsets[slot]);
+		if (buffer.hasRemaining() || buffer.get(RECORD_LENGTH) != '\n') {
+			return false;
+		}
+		
+		String record = new String(buffer.array(), 0, RECORD_LENGTH, StandardCharsets.US_ASCII);
+		BankAccount account;
+		
+		try {
+			account = new BankAccount(record);
+		} catch (RuntimeException e) {
+			return false;
+		}
+		
+		if (account.getAccountNumber() != ledger.getAccountNumber(slot)) {
+			return false;
+		} else if (account.getVersion() > ledger.getVersion(slot)) {
+			ledger.set(slot, account);
+			committed(new int[] { slot });
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * Determines whether or not the ledger still has the version of an account the caller
+	 * read. A new account is always current.
+	 * 
+	 * @param slot the account's slot, or -1
+	 * @param account the caller's copy of the account, or null
+	 * @return true if the account is current, false otherwise
+	 */
+	
+	private boolean isCurrent(int slot, BankAccount account) {
+		return slot < 0 || account == null || ledger.getVersion(slot) == account.getVersion();
+	}
+	
+	/*
+	 * Increments an account's version and stores it in the ledger.
+	 * 
+	 * @param slot the account's slot, or -1 to add it
+	 * @param account the account
+	 * @return the account's slot
+	 */
+	
+	private int put(int slot, BankAccount account) {
+		account.setVersion(account.getVersion() + 1);
+		
+		if (slot < 0) {
+			slot = ledger.append(account);
+			count = ledger.size();
+		} else {
+			ledger.set(slot, account);
+		}
+		
+		return slot;
+	}
+	
+	/*
+	 * Releases file locks.
+	 * 
+	 * @param locks the locks
+	 * @throws IOException
+	 */
+	
+	private static void release(List<FileLock> locks) throws IOException {
+		for (FileLock lock : locks) {
+			lock.release();
+		}
+	}
+	
+	/*
+	 * Retrieves where an account's record starts in the file.
+	 * 
+	 * @param slot the account's slot
+	 * @return the offset, or -1 if it isn't known
+	 */
+	
+	private long offset(int slot) {
+		return slot < offsets.length ? offsets[slot] : -1;
+	}
+	
+	/*
+	 * Retrieves the channel on the database file used for positioned reads and writes and
+	 * for locks, opening it on first use and again if the file has been replaced. It stays
+	 * open, and the file is never opened any other way once loaded: the operating system
+	 * drops all of a process's locks on a file when any descriptor for the file is closed.
+	 * Callers must hold the database lock.
+	 * 
+	 * @return the channel
+	 * @throws IOException
+	 */
+	
+	private FileChannel channel() throws IOException {
+		Path file = file().toPath();
+		
+		if (channel != null && !Objects.equals(channelKey, fileKey(file))) {
+			channel.close();
+			channel = null;
+		}
+		if (channel == null) {
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+			channelKey = fileKey(file);
+		}
+		
+		return channel;
+	}
+	
+	/*
+	 * Retrieves the database file.
+	 * 
+	 * @return the file, resolved against the working directory
+	 */
+	
+	private File file() {
+		return new File(System.getProperty("user.dir") + File.separator + path);
+	}
+	
+	/*
+	 * Passes the records of the accounts in some slots to the commit listener, if any.
+	 * Callers must hold the database lock.
+	 * 
+	 * @param slots the changed slots
+	 */
+	
+	private void committed(int[] slots) {
+		CommitListener listener = this.listener;
+		
+		if (listener == null) {
+			return;
+		}
+		
+		String[] records = new String[slots.length];
+		StringBuilder sb = new StringBuilder(RECORD_LENGTH);
+		for (int i = 0; i < slots.length; i++) {
+			sb.setLength(0);
+			ledger.appendRecord(slots[i], sb);
+			records[i] = sb.toString();
+		}
+		
+		listener.committed(records);
+	}
+	
+	/*
+	 * Opens the database file and streams its accounts into the ledger on a background
+	 * thread. When the file is on disk, the ledger is sized up front from its length; the
+	 * classpath fallback has no known length, so the ledger grows geometrically instead.
+	 * 
+	 * @throws FileNotFoundException
+	 */
+	
+	private void load() throws FileNotFoundException {
+		final File file = new File(System.getProperty("user.dir") + File.separator + path);
+		final BufferedReader br;
+		
+		if (file.isFile()) {
+			stampLength = file.length();
+			stampModified = modified(file);
+			index = LedgerIndex.open(file, new File(file.getPath() + LedgerIndex.EXTENSION));
+			ledger = new OffHeapLedger((int) (file.length() / (LEGACY_RECORD_LENGTH + 1)) + 1);
+			br = new BufferedReader(new FileReader(file), 1 << 16);
+		} else {
+			InputStream original = getClass().getResourceAsStream(path);
+			
+			if (original == null) {
+				throw new FileNotFoundException(path);
+			}
+			ledger = new OffHeapLedger(CHUNK_SIZE);
+			br = new BufferedReader(new InputStreamReader(original), 1 << 16);
+		}
+		
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long[] offsets = null;
+				
+				try (BufferedReader reader = br) {
+					offsets = readChunks(reader, file.isFile() ? file.length() : -1);
+				} catch (IOException e) {
+					failure = e;
+				} finally {
+					synchronized (Database.this) {
+						if (failure == null && index == null && file.isFile()) {
+							writeIndex(file, offsets);
+						}
+						if (failure == null && offsets != null) {
+							Database.this.offsets = Arrays.copyOf(offsets, count);
+						}
+						index = null;
+						loaded = true;
+						Database.this.notifyAll();
+					}
+					
+					if (failure == null && file.isFile()) {
+						watch(file);
+					}
+				}
+			}
+		}, "database-loader");
+		
+		loader.setDaemon(true);
+		loader.start();
+	}
+	
+	/*
+	 * Reads accounts into the ledger, publishing them to readers one chunk at a time.
+	 * 
+	 * @param br the reader positioned at the first account
+	 * @param length the length of the file, or -1 if it isn't known
+	 * @return the offset of each account's record, or null if they aren't known
+	 * @throws IOException
+	 */
+	
+	private long[] readChunks(BufferedReader br, long length) throws IOException {
+		long[] offsets = new long[CHUNK_SIZE];
+		long offset = 0;
+		int n = 0;
+		String line;
+		
+		while ((line = br.readLine()) != null) {
+			long start = offset;
+			offset += line.length() + 1;
+			
+			if (line.length() < LEGACY_RECORD_LENGTH) {
+				continue;
+			}
+			ledger.append(line);
+			
+			if (n == offsets.length) {
+				offsets = Arrays.copyOf(offsets, n * 2);
+			}
+			offsets[n++] = start;
+			
+			if (n % CHUNK_SIZE == 0) {
+				publish(n);
+			}
+		}
+		publish(n);
+		
+		return offset == length ? offsets : null;		// lines that don't end with a bare line feed throw the offsets off
+	}
+	
+	/*
+	 * Writes a fresh index sidecar for the ledger file. The index only speeds up startup,
+	 * so a failure here is not an error; any old index is removed instead.
+	 * 
+	 * @param file the ledger file
+	 * @param offsets the offset of each account's record, or null if they aren't known
+	 */
+	
+	private void writeIndex(File file, long[] offsets) {
+		File sidecar = new File(file.getPath() + LedgerIndex.EXTENSION);
+		
+		try {
+			if (offsets == null) {
+				sidecar.delete();
+			} else {
+				LedgerIndex.write(file, sidecar, ledger, offsets, count);
+			}
+		} catch (IOException e) {
+			sidecar.delete();
+		}
+	}
+	
+	/*
+	 * Starts reloading the database file whenever another process changes it. Without a
+	 * watcher, changes are still picked up before each update.
+	 * 
+	 * @param file the database file
+	 */
+	
+	private void watch(File file) {
+		try {
+			watcher = new LedgerWatcher(this, file);
+			
+			if (closed) {
+				watcher.close();
+			}
+		} catch (IOException e) {
+			watcher = null;
+		}
+	}
+	
+	/*
+	 * Retrieves a file's modification time, as precisely as the file system records it.
+	 * 
+	 * @param file the file
+	 * @return the modification time in nanoseconds since the epoch, or -1 if it can't be read
+	 */
+	
+	private static long modified(File file) {
+		try {
+			return Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+	
+	/*
+	 * Retrieves the key that identifies a file on its file system, such as its inode.
+	 * 
+	 * @param file the file
+	 * @return the key, or null if the file doesn't exist or the file system has no keys
+	 */
+	
+	private static Object fileKey(Path file) {
+		try {
+			return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/*
+	 * Determines whether or not a file is empty or ends with a line feed, so a record can be
+	 * appended to it.
+	 * 
+	 * @param channel the channel on the file
+	 * @return true if a record can be appended, false otherwise
+	 * @throws IOException
+	 */
+	
+	private static boolean endsWithLineFeed(FileChannel channel) throws IOException {
+		long size = channel.size();
+		ByteBuffer last = ByteBuffer.allocate(1);
+		
+		if (size == 0) {
+			return true;
+		}
+		
+		readFully(channel, last, size - 1);
+		return !last.hasRemaining() && last.get(0) == '\n';
+	}
+	
+	/*
+	 * Puts characters into a buffer one byte each, as records are fixed-width in bytes;
+	 * anything outside ASCII becomes a question mark.
+	 * 
+	 * @param cs the characters
+	 * @param buffer the buffer, with room for them
+	 */
+	
+	private static void encode(CharSequence cs, ByteBuffer buffer) {
+		for (int i = 0; i < cs.length(); i++) {
+			char c = cs.charAt(i);
+			buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+		}
+	}
+	
+	/*
+	 * Reads from a channel at a position until the buffer is full or the file ends.
+	 * 
+	 * @param channel the channel
+	 * @param buffer the buffer to fill
+	 * @param position the position in the file to read from
+	 * @throws IOException
+	 */
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - start) < 0) {
+				break;
+			}
+		}
+	}
+	
+	/*
+	 * Writes a buffer's remaining bytes to a channel at a position.
+	 * 
+	 * @param channel the channel
+	 * @param buffer the bytes to write
+	 * @param position the position in the file to write to
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int n = buffer.remaining();
+		
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		
+		return n;
+	}
+	
+	/*
+	 * Makes the first n accounts visible to readers.
+	 * 
+	 * @param n the number of accounts loaded so far
+	 */
+	
+	private synchronized void publish(int n) {
+		count = n;
+		notifyAll();
+	}
+	
+	/*
+	 * Blocks until more than the given number of accounts are loaded, or loading finishes.
+	 * 
+	 * @param scanned the number of accounts already seen by the caller
+	 * @throws IOException
+	 */
+	
+	private synchronized void awaitChunk(int scanned) throws IOException {
+		try {
+			while (count == scanned && !loaded) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading accounts.", e);
+		}
+	}
+	
+	/*
+	 * Blocks until every account is loaded.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private synchronized void awaitLoaded() throws IOException {
+		try {
+			while (!loaded) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading accounts.", e);
+		}
+		
+		if (failure != null) {
+			throw failure;
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,332 @@
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The EventBus class hands account events from the threads that make changes to
+ * subscribers on a thread of its own, so a slow subscriber never holds up a transaction.
+ * 
+ * Events travel through a fixed ring of slots kept in primitive arrays. A publisher
+ * claims the next sequence number with compare-and-set, fills in the slot and marks it
+ * published by storing the sequence number in it; it never waits and allocates nothing.
+ * If the ring is full because the subscribers have fallen behind, the event is dropped
+ * and counted instead; batch jobs, which can afford to, publish with publishWaiting and
+ * wait for room rather than lose events. The "event-bus" thread reads published slots in
+ * order and passes each event to every subscriber, telling them when it has caught up, so
+ * they can flush in batches. It sleeps when there is nothing to read, and the first
+ * publisher to find it asleep wakes it.
+ * 
+ * With no subscribers, nothing is published and no thread is started.
+ */
+
+public class EventBus {
+	
+	public static final int DEFAULT_CAPACITY = 1 << 14;
+	public static final int SPINS = 100;				// empty polls before the thread sleeps
+	
+	private int mask;
+	private long[] times;
+	private char[] types;
+	private long[] accountNumbers;
+	private long[] counterparties;
+	private long[] amounts;
+	private long[] balances;
+	private String[] transactionIds;
+	private AtomicLongArray published;				// the sequence number each slot last held
+	private AtomicLong next;						// the next sequence number to claim
+	private volatile long consumed;					// the next sequence number to read
+	private AtomicLong dropped;
+	private CopyOnWriteArrayList<Subscriber> subscribers;
+	private Thread consumer;
+	private volatile boolean sleeping;
+	private volatile boolean running;
+	private volatile Exception failure;
+	
+	/**
+	 * Constructs a bus.
+	 * 
+	 * @param capacity the number of events that can wait for the subscribers, rounded up
+	 *        to a power of two
+	 */
+	
+	public EventBus(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		
+		this.mask = size - 1;
+		this.times = new long[size];
+		this.types = new char[size];
+		this.accountNumbers = new long[size];
+		this.counterparties = new long[size];
+		this.amounts = new long[size];
+		this.balances = new long[size];
+		this.transactionIds = new String[size];
+		this.published = new AtomicLongArray(size);
+		this.next = new AtomicLong();
+		this.consumed = 0;
+		this.dropped = new AtomicLong();
+		this.subscribers = new CopyOnWriteArrayList<Subscriber>();
+		this.running = true;
+		
+		for (int i = 0; i < size; i++) {
+			published.set(i, -1);
+		}
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the number of events the bus can hold.
+	 * 
+	 * @return capacity
+	 */
+	
+	public int getCapacity() {
+		return mask + 1;
+	}
+	
+	/**
+	 * Retrieves the number of events published so far.
+	 * 
+	 * @return published
+	 */
+	
+	public long getPublished() {
+		return next.get();
+	}
+	
+	/**
+	 * Retrieves the number of events dropped because the bus was full.
+	 * 
+	 * @return dropped
+	 */
+	
+	public long getDropped() {
+		return dropped.get();
+	}
+	
+	/**
+	 * Retrieves the most recent failure of a subscriber.
+	 * 
+	 * @return the exception, or null if no subscriber has failed
+	 */
+	
+	public Exception getFailure() {
+		return failure;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Adds a subscriber. It receives the events published from now on. The first
+	 * subscriber starts the bus's thread, and events still waiting when the process exits
+	 * are delivered before it does.
+	 * 
+	 * @param subscriber the subscriber
+	 */
+	
+	public synchronized void subscribe(Subscriber subscriber) {
+		subscribers.add(subscriber);
+		
+		if (consumer == null) {
+			consumer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					consume();
+				}
+			}, "event-bus");
+			consumer.setDaemon(true);
+			consumer.start();
+			
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						close();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "event-bus-drain"));
+		}
+	}
+	
+	/**
+	 * Removes a subscriber.
+	 * 
+	 * @param subscriber the subscriber
+	 */
+	
+	public void unsubscribe(Subscriber subscriber) {
+		subscribers.remove(subscriber);
+	}
+	
+	/**
+	 * Publishes an event, unless there are no subscribers or the bus is full. Never
+	 * blocks.
+	 * 
+	 * @param type the kind of change (see AccountEvent)
+	 * @param accountNumber the account changed
+	 * @param counterparty the other account in a transfer, or 0
+	 * @param amount the amount moved, in cents
+	 * @param balance the account's balance afterwards, in cents
+	 * @param transactionId the client's transaction ID, or null
+	 * @return true if the event was published, false otherwise
+	 */
+	
+	public boolean publish(char type, long accountNumber, long counterparty, long amount, long balance, String transactionId) {
+		return publish(type, accountNumber, counterparty, amount, balance, transactionId, false);
+	}
+	
+	/**
+	 * Publishes an event, unless there are no subscribers, waiting for room rather than
+	 * dropping the event if the bus is full. For batch jobs, which can afford to slow down
+	 * to the subscribers' pace.
+	 * 
+	 * @param type the kind of change (see AccountEvent)
+	 * @param accountNumber the account changed
+	 * @param counterparty the other account in a transfer, or 0
+	 * @param amount the amount moved, in cents
+	 * @param balance the account's balance afterwards, in cents
+	 * @param transactionId the client's transaction ID, or null
+	 * @return true if the event was published, false otherwise
+	 */
+	
+	public boolean publishWaiting(char type, long accountNumber, long counterparty, long amount, long balance, String transactionId) {
+		return publish(type, accountNumber, counterparty, amount, balance, transactionId, true);
+	}
+	
+	/**
+	 * Stops the bus once every event published so far has been delivered. Events
+	 * published afterwards are ignored.
+	 * 
+	 * @throws InterruptedException
+	 */
+	
+	public void close() throws InterruptedException {
+		Thread consumer;
+		
+		synchronized (this) {
+			running = false;
+			consumer = this.consumer;
+		}
+		
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+			consumer.join();
+		}
+	}
+	
+	/**
+	 * Receives the events published on a bus, on the bus's own thread.
+	 */
+	
+	public interface Subscriber {
+		
+		/**
+		 * Receives one event. Events arrive in the order they were published.
+		 * 
+		 * @param event the event
+		 * @param endOfBatch true if no further event is waiting just now
+		 * @throws IOException
+		 */
+		
+		void onEvent(AccountEvent event, boolean endOfBatch) throws IOException;
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Publishes an event, unless there are no subscribers.
+	 * 
+	 * @param type the kind of change (see AccountEvent)
+	 * @param accountNumber the account changed
+	 * @param counterparty the other account in a transfer, or 0
+	 * @param amount the amount moved, in cents
+	 * @param balance the account's balance afterwards, in cents
+	 * @param transactionId the client's transaction ID, or null
+	 * @param wait true to wait for room if the bus is full, false to drop the event
+	 * @return true if the event was published, false otherwise
+	 */
+	
+	private boolean publish(char type, long accountNumber, long counterparty, long amount, long balance, String transactionId, boolean wait) {
+		long sequence;
+		while (true) {
+			if (subscribers.isEmpty() || !running) {
+				return false;
+			}
+			sequence = next.get();
+			
+			if (sequence - consumed <= mask) {
+				if (next.compareAndSet(sequence, sequence + 1)) {
+					break;
+				}
+			} else if (wait) {
+				LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(100));
+			} else {
+				dropped.incrementAndGet();
+				return false;
+			}
+		}
+		
+		int i = (int) sequence & mask;
+		times[i] = System.currentTimeMillis();
+		types[i] = type;
+		accountNumbers[i] = accountNumber;
+		counterparties[i] = counterparty;
+		amounts[i] = amount;
+		balances[i] = balance;
+		transactionIds[i] = transactionId;
+		published.set(i, sequence);
+		
+		if (sleeping) {
+			LockSupport.unpark(consumer);
+		}
+		
+		return true;
+	}
+	
+	/*
+	 * Delivers published events to the subscribers in order until the bus is closed and
+	 * every claimed slot has been delivered.
+	 */
+	
+	private void consume() {
+		long sequence = consumed;
+		int idle = 0;
+		
+		while (running || sequence != next.get()) {
+			int i = (int) sequence & mask;
+			
+			if (published.get(i) != sequence) {
+				if (++idle < SPINS) {
+					Thread.yield();
+				} else {
+					sleeping = true;
+					if (published.get(i) != sequence && running) {
+						LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+					}
+					sleeping = false;
+				}
+				continue;
+			}
+			
+			AccountEvent event = new AccountEvent(sequence, times[i], types[i], accountNumbers[i], counterparties[i], amounts[i],
+				balances[i], transactionIds[i]);
+			transactionIds[i] = null;
+			consumed = ++sequence;
+			idle = 0;
+			
+			boolean endOfBatch = published.get((int) sequence & mask) != sequence;
+			for (Subscriber subscriber : subscribers) {
+				try {
+					subscriber.onEvent(event, endOfBatch);
+				} catch (IOException | RuntimeException e) {
+					failure = e;
+				}
+			}
+		}
+	}
+}
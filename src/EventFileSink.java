@@ -0,0 +1,68 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * The EventFileSink class appends the events published on an EventBus to a file, one
+ * fixed-width line per event (see AccountEvent.toString), for other systems to follow the
+ * way they would follow a log. Lines are written in batches, flushed whenever the bus
+ * has caught up.
+ * 
+ * Sequence numbers start from 0 each time the process starts, so a reader following the
+ * file across restarts should expect them to go back to 0. Each start also writes the
+ * current record layout's marker line (see RecordLayout.getMarker), which gives the width
+ * of the account numbers in the lines after it.
+ */
+
+public class EventFileSink implements EventBus.Subscriber {
+	
+	public static final String EXTENSION = ".events";
+	
+	private BufferedWriter writer;
+	
+	/**
+	 * Constructs a sink appending to a file.
+	 * 
+	 * @param path the file, relative to the working directory
+	 * @throws IOException
+	 */
+	
+	public EventFileSink(String path) throws IOException {
+		this.writer = new BufferedWriter(new FileWriter(System.getProperty("user.dir") + File.separator + path, true), 1 << 16);
+		
+		writer.write(RecordLayout.CURRENT.getMarker());
+		writer.newLine();
+		writer.flush();
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Writes an event, flushing the file at the end of a batch.
+	 * 
+	 * @param event the event
+	 * @param endOfBatch true if no further event is waiting just now
+	 * @throws IOException
+	 */
+	
+	@Override
+	public void onEvent(AccountEvent event, boolean endOfBatch) throws IOException {
+		writer.write(event.toString());
+		writer.newLine();
+		
+		if (endOfBatch) {
+			writer.flush();
+		}
+	}
+	
+	/**
+	 * Closes the file.
+	 * 
+	 * @throws IOException
+	 */
+	
+	public void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,59 @@
+import java.io.IOException;
+
+/**
+ * The InputSource interface supplies a session's input, one token or line at a time. It
+ * follows the semantics of java.util.Scanner, which the ATM was written against: a number
+ * that can't be parsed throws InputMismatchException and stays unread, and reading past
+ * the end of the input throws NoSuchElementException.
+ */
+
+public interface InputSource {
+	
+	/**
+	 * Reads the next token as an int.
+	 * 
+	 * @return the value
+	 */
+	
+	int nextInt();
+	
+	/**
+	 * Reads the next token as a long.
+	 * 
+	 * @return the value
+	 */
+	
+	long nextLong();
+	
+	/**
+	 * Reads the next token as a double.
+	 * 
+	 * @return the value
+	 */
+	
+	double nextDouble();
+	
+	/**
+	 * Reads the next whitespace-delimited token.
+	 * 
+	 * @return the token
+	 */
+	
+	String next();
+	
+	/**
+	 * Reads the rest of the current line and moves past its terminator.
+	 * 
+	 * @return the rest of the line, without the terminator
+	 */
+	
+	String nextLine();
+	
+	/**
+	 * Closes the underlying input.
+	 * 
+	 * @throws IOException
+	 */
+	
+	void close() throws IOException;
+}
@@ -0,0 +1,427 @@
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The InterestAccrual class credits interest to every active account, as a nightly batch
+ * job. Interest is computed in parallel over the ledger's balance column and committed
+ * through AccountStore.updateBalances, with a single write of the database file for the
+ * text ledger. The store is the one selected by the atm.store system property, as for
+ * the ATM.
+ * 
+ * Rates come from a tiered schedule: each tier gives a minimum balance and an annual
+ * rate in basis points, and an account earns the rate of the highest tier its balance
+ * reaches, on its whole balance. Interest for a run of days is the balance times the rate
+ * times days / 365, computed exactly in integer cents and rounded half-even once. Balances
+ * never go above BankAccount.ACCOUNT_MAXIMUM; accounts that would are credited up to it.
+ * 
+ * Each run records the last day it accrued for in a sidecar file next to the ledger, and
+ * a run covering a day that has already been accrued is refused, so a retried or
+ * repeated job never credits interest twice. Once the new balances are computed, and
+ * before any is written, the day is recorded and each credit is written to the
+ * transaction log as an interest transaction; if the batch then fails to be written, the
+ * day is cleared again. Once it is written, each credit is published on the event bus,
+ * as deposits are, so statements, recent histories and subscribers see it. Setting the
+ * atm.events system property to true appends the events to the ledger's events file.
+ * 
+ * Usage: java InterestAccrual [ledger file] [days] [schedule]
+ * 
+ * The schedule is a comma-separated list of minimum:rate pairs, with the minimum balance
+ * in dollars and the annual rate in percent, e.g. 0:0.01,10000:0.05,100000:0.10.
+ */
+
+public class InterestAccrual {
+	
+	public static final String EXTENSION = ".accrued";
+	public static final String DEFAULT_SCHEDULE = "0:0.01,10000:0.05,100000:0.10";
+	public static final long MAXIMUM_CENTS = Math.round(BankAccount.ACCOUNT_MAXIMUM * 100);
+	public static final int MAXIMUM_RATE = 10000;			// basis points, i.e. 100% a year
+	public static final int MAXIMUM_DAYS = 366;
+	
+	private static final long DAYS_PER_YEAR = 365;
+	private static final long BASIS_POINTS = 10000;
+	
+	private long[] minimums;
+	private int[] rates;
+	
+	/**
+	 * Constructs an accrual job from a rate schedule.
+	 * 
+	 * @param minimums the minimum balance of each tier in cents, in ascending order
+	 * @param rates the annual rate of each tier in basis points
+	 */
+	
+	public InterestAccrual(long[] minimums, int[] rates) {
+		if (minimums.length == 0 || minimums.length != rates.length) {
+			throw new IllegalArgumentException("Every tier needs a minimum balance and a rate.");
+		}
+		
+		for (int i = 0; i < rates.length; i++) {
+			if (rates[i] < 0 || rates[i] > MAXIMUM_RATE) {
+				throw new IllegalArgumentException("Rates must be between 0 and " + MAXIMUM_RATE + " basis points.");
+			} else if (i > 0 && minimums[i] <= minimums[i - 1]) {
+				throw new IllegalArgumentException("Tier minimums must be in ascending order.");
+			}
+		}
+		
+		this.minimums = minimums.clone();
+		this.rates = rates.clone();
+	}
+	
+	/**
+	 * Main method. Accrues interest on a ledger and prints a report.
+	 * 
+	 * @param args ledger file, days, schedule
+	 * @throws IOException
+	 */
+	
+	public static void main(String[] args) throws IOException {
+		String path = args.length > 0 ? args[0] : "accounts-db.txt";
+		int days = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		InterestAccrual job = parse(args.length > 2 ? args[2] : DEFAULT_SCHEDULE);
+		
+		AccountStore store = AccountStore.open(path);
+		TransactionLog log = new TransactionLog(path + TransactionLog.EXTENSION);
+		EventBus events = new EventBus(EventBus.DEFAULT_CAPACITY);
+		EventFileSink sink = Boolean.getBoolean(AtmService.EVENTS_PROPERTY) ? new EventFileSink(path + EventFileSink.EXTENSION) : null;
+		Report report;
+		
+		if (sink != null) {
+			events.subscribe(sink);
+		}
+		
+		try {
+			report = job.accrue(store, days, log, events);
+		} catch (IllegalStateException e) {
+			System.out.println(e.getMessage());
+			return;
+		} finally {
+			store.close();
+			log.close();
+			try {
+				events.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (sink != null) {
+				sink.close();
+			}
+		}
+		
+		System.out.println(String.format("Credited interest to %,d of %,d active accounts.", report.getCredited(), report.getActive()));
+		System.out.println(String.format("Total interest    : $%,.2f", report.getTotalCents() / 100.0));
+		System.out.println(String.format("Capped at maximum : %,d", report.getCapped()));
+		System.out.println(String.format("Completed in %,.1f ms.", report.getElapsedMillis()));
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Parses a rate schedule of comma-separated minimum:rate pairs, with minimums in dollars
+	 * and annual rates in percent. Rates finer than a basis point are rejected rather than
+	 * rounded.
+	 * 
+	 * @param schedule the schedule, e.g. 0:0.01,10000:0.05
+	 * @return an accrual job for the schedule
+	 */
+	
+	public static InterestAccrual parse(String schedule) {
+		String[] tiers = schedule.split(",");
+		long[] minimums = new long[tiers.length];
+		int[] rates = new int[tiers.length];
+		
+		for (int i = 0; i < tiers.length; i++) {
+			String[] pair = tiers[i].trim().split(":");
+			
+			if (pair.length != 2) {
+				throw new IllegalArgumentException("Invalid tier: " + tiers[i]);
+			}
+			
+			try {
+				minimums[i] = new BigDecimal(pair[0].trim()).movePointRight(2).longValueExact();
+				rates[i] = new BigDecimal(pair[1].trim()).movePointRight(2).intValueExact();
+			} catch (ArithmeticException | NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid tier: " + tiers[i], e);
+			}
+		}
+		
+		return new InterestAccrual(minimums, rates);
+	}
+	
+	/**
+	 * Credits interest for a number of days, up to and including today, to every active
+	 * account, in one batched update, without logging or publishing the credits.
+	 * 
+	 * @param store the account store
+	 * @param days the number of days to accrue, from 1 to MAXIMUM_DAYS
+	 * @return a report of the run
+	 * @throws IOException
+	 * @throws IllegalStateException if interest has already been accrued for one of the days
+	 */
+	
+	public Report accrue(AccountStore store, int days) throws IOException {
+		return accrue(store, days, null, null);
+	}
+	
+	/**
+	 * Credits interest for a number of days, up to and including today, to every active
+	 * account, in one batched update, recording each credit in a transaction log before the
+	 * update is written and publishing it on an event bus afterwards.
+	 * 
+	 * @param store the account store
+	 * @param days the number of days to accrue, from 1 to MAXIMUM_DAYS
+	 * @param log the transaction log, or null
+	 * @param events the event bus, or null
+	 * @return a report of the run
+	 * @throws IOException
+	 * @throws IllegalStateException if interest has already been accrued for one of the days
+	 */
+	
+	public Report accrue(AccountStore store, final int days, final TransactionLog log, EventBus events) throws IOException {
+		if (days < 1 || days > MAXIMUM_DAYS) {
+			throw new IllegalArgumentException("Days must be between 1 and " + MAXIMUM_DAYS + ".");
+		}
+		
+		final File file = new File(System.getProperty("user.dir") + File.separator + store.getPath() + EXTENSION);
+		final LocalDate through = LocalDate.now();
+		final LocalDate previous = lastAccrued(file);
+		if (previous != null && !previous.isBefore(through.minusDays(days - 1))) {
+			throw new IllegalStateException("Interest has already been accrued through " + previous + ".");
+		}
+		
+		final LongAdder active = new LongAdder();
+		final LongAdder capped = new LongAdder();
+		final LongAdder total = new LongAdder();
+		final AtomicReference<long[]> credits = new AtomicReference<long[]>();		// interest, by slot
+		final AtomicReference<long[][]> batch = new AtomicReference<long[][]>();	// account numbers, amounts and balances
+		long start = System.nanoTime();
+		int credited;
+		
+		try {
+			credited = store.updateBalances(new AccountStore.BalanceUpdate() {
+				@Override
+				public long apply(OffHeapLedger ledger, int slot) {
+					long balance = ledger.getBalanceCents(slot);
+					
+					if (ledger.getStatus(slot) != 'Y') {
+						return balance;
+					}
+					active.increment();
+					
+					long interest = interest(balance, rate(balance), days);
+					if (interest > MAXIMUM_CENTS - balance) {
+						interest = Math.max(0, MAXIMUM_CENTS - balance);
+						capped.increment();
+					}
+					total.add(interest);
+					
+					long[] slots = credits.get();
+					if (slots == null) {
+						credits.compareAndSet(null, new long[ledger.size()]);
+						slots = credits.get();
+					}
+					slots[slot] = interest;
+					
+					return balance + interest;
+				}
+				
+				@Override
+				public void prepare(OffHeapLedger ledger, int[] slots, int count) throws IOException {
+					long[][] records = new long[3][count];
+					
+					for (int i = 0; i < count; i++) {
+						records[0][i] = ledger.getAccountNumber(slots[i]);
+						records[1][i] = credits.get()[slots[i]];
+						records[2][i] = ledger.getBalanceCents(slots[i]) + records[1][i];
+					}
+					
+					markAccrued(file, through);
+					batch.set(records);
+					if (log != null) {
+						log.record(TransactionHistory.INTEREST, records[0], records[1], records[2], count);
+					}
+				}
+			});
+		} catch (IOException | RuntimeException e) {
+			if (batch.get() != null) {
+				markAccrued(file, previous);					// nothing was credited
+			}
+			throw e;
+		}
+		
+		long[][] recorded = batch.get();
+		if (recorded == null) {
+			markAccrued(file, through);							// nothing to credit
+		} else if (events != null) {
+			for (int i = 0; i < recorded[0].length; i++) {
+				events.publishWaiting(AccountEvent.INTEREST, recorded[0][i], 0, recorded[1][i], recorded[2][i], null);
+			}
+		}
+		
+		return new Report(active.intValue(), credited, capped.intValue(), total.sum(), (System.nanoTime() - start) / 1e6);
+	}
+	
+	/**
+	 * Computes the interest on a balance, exactly, rounded half-even to the nearest cent.
+	 * Balances at or below zero earn nothing.
+	 * 
+	 * @param cents the balance in cents, at most MAXIMUM_CENTS
+	 * @param rate the annual rate in basis points, at most MAXIMUM_RATE
+	 * @param days the number of days, at most MAXIMUM_DAYS
+	 * @return the interest in cents
+	 */
+	
+	public static long interest(long cents, int rate, int days) {
+		if (cents <= 0 || rate <= 0) {
+			return 0;
+		}
+		
+		// cents * rate * days can overflow a long, so the division is done in two steps:
+		// cents * rate = q * divisor + r, and r * days is small enough to divide directly
+		long divisor = BASIS_POINTS * DAYS_PER_YEAR;
+		long product = cents * rate;
+		long q = product / divisor;
+		long r = product % divisor * days;
+		long interest = q * days + r / divisor;
+		long remainder = r % divisor;
+		
+		if (remainder * 2 > divisor || (remainder * 2 == divisor && (interest & 1) == 1)) {
+			interest++;
+		}
+		
+		return interest;
+	}
+	
+	/**
+	 * Finds the annual rate for a balance: the rate of the highest tier whose minimum it
+	 * reaches, or 0 if it is below every tier.
+	 * 
+	 * @param cents the balance in cents
+	 * @return the rate in basis points
+	 */
+	
+	public int rate(long cents) {
+		int tier = Arrays.binarySearch(minimums, cents);
+		
+		if (tier < 0) {
+			tier = -tier - 2;
+		}
+		
+		return tier < 0 ? 0 : rates[tier];
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Reads the last day interest was accrued for.
+	 * 
+	 * @param file the sidecar file
+	 * @return the day, or null if interest has never been accrued
+	 * @throws IOException
+	 */
+	
+	private static LocalDate lastAccrued(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		
+		return LocalDate.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim());
+	}
+	
+	/*
+	 * Records the last day interest was accrued for, replacing the sidecar file in one
+	 * step.
+	 * 
+	 * @param file the sidecar file
+	 * @param day the day, or null to record that interest has never been accrued
+	 * @throws IOException
+	 */
+	
+	private static void markAccrued(File file, LocalDate day) throws IOException {
+		if (day == null) {
+			Files.deleteIfExists(file.toPath());
+			return;
+		}
+		
+		File temp = new File(file.getPath() + ".tmp");
+		Files.write(temp.toPath(), (day + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * The results of one accrual run.
+	 */
+	
+	public static class Report {
+		private final int active;
+		private final int credited;
+		private final int capped;
+		private final long totalCents;
+		private final double elapsedMillis;
+		
+		private Report(int active, int credited, int capped, long totalCents, double elapsedMillis) {
+			this.active = active;
+			this.credited = credited;
+			this.capped = capped;
+			this.totalCents = totalCents;
+			this.elapsedMillis = elapsedMillis;
+		}
+		
+		/**
+		 * Retrieves the number of active accounts.
+		 * 
+		 * @return active
+		 */
+		
+		public int getActive() {
+			return active;
+		}
+		
+		/**
+		 * Retrieves the number of accounts whose balance changed.
+		 * 
+		 * @return credited
+		 */
+		
+		public int getCredited() {
+			return credited;
+		}
+		
+		/**
+		 * Retrieves the number of accounts whose interest was cut short by the account maximum.
+		 * 
+		 * @return capped
+		 */
+		
+		public int getCapped() {
+			return capped;
+		}
+		
+		/**
+		 * Retrieves the total interest credited.
+		 * 
+		 * @return totalCents
+		 */
+		
+		public long getTotalCents() {
+			return totalCents;
+		}
+		
+		/**
+		 * Retrieves how long the run took, including the write.
+		 * 
+		 * @return elapsedMillis
+		 */
+		
+		public double getElapsedMillis() {
+			return elapsedMillis;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * The LedgerAccount class is a flyweight BankAccount backed by a slot in an OffHeapLedger.
+ * Reads and writes go straight to the ledger's columns, and the same instance can be moved
+ * from slot to slot, so scanning the whole ledger needs only one LedgerAccount per thread.
+ */
+
+public class LedgerAccount extends BankAccount {
+	
+	private OffHeapLedger ledger;
+	private int slot;
+	private LedgerUser user;
+	
+	/**
+	 * Constructs a view of a slot.
+	 * 
+	 * @param ledger the ledger
+	 * @param slot the slot
+	 */
+	
+	public LedgerAccount(OffHeapLedger ledger, int slot) {
+		this.ledger = ledger;
+		this.slot = slot;
+		this.user = new LedgerUser(ledger, slot);
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the slot this view is positioned on.
+	 * 
+	 * @return slot
+	 */
+	
+	public int getSlot() {
+		return slot;
+	}
+	
+	@Override
+	public char getStatus() {
+		return ledger.getStatus(slot);
+	}
+	
+	@Override
+	public long getAccountNumber() {
+		return ledger.getAccountNumber(slot);
+	}
+	
+	@Override
+	public double getBalance() {
+		return ledger.getBalanceCents(slot) / 100.0;
+	}
+	
+	@Override
+	public User getUser() {
+		return user;
+	}
+	
+	@Override
+	public long getVersion() {
+		return ledger.getVersion(slot);
+	}
+	
+	@Override
+	public void setStatus(char status) {
+		ledger.setStatus(slot, status);
+	}
+	
+	/**
+	 * Copies another user's details into this slot.
+	 * 
+	 * @param user the user whose details to store
+	 */
+	
+	@Override
+	public void setUser(User user) {
+		ledger.set(slot, new BankAccount(getStatus(), getAccountNumber(), getBalance(), user));
+	}
+	
+	@Override
+	protected void setBalance(double balance) {
+		ledger.setBalanceCents(slot, Math.round(balance * 100));
+	}
+	
+	@Override
+	protected void setVersion(long version) {
+		ledger.setVersion(slot, version);
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Repositions this view on another slot.
+	 * 
+	 * @param slot the slot
+	 * @return this view
+	 */
+	
+	public LedgerAccount moveTo(int slot) {
+		this.slot = slot;
+		this.user.moveTo(slot);
+		
+		return this;
+	}
+}
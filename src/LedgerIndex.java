@@ -0,0 +1,251 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The LedgerIndex class is a sidecar file that maps account numbers to the byte offset of
+ * their records in the ledger file. It is memory-mapped when the database opens, so an
+ * account can be read straight from the ledger file while the rest of the ledger is still
+ * loading, instead of waiting for the loader to reach it.
+ * 
+ * The file starts with a header holding the ledger's length and modification time when
+ * the index was written; an index whose header doesn't match the ledger is ignored. The
+ * rest of the file is an open-addressing hash table of (account number, offset) pairs.
+ */
+
+public class LedgerIndex {
+	
+	public static final String EXTENSION = ".idx";
+	
+	private static final long MAGIC = 0x41544D4944583031L;		// "ATMIDX01"
+	private static final int HEADER_LENGTH = 32;
+	private static final int ENTRY_LENGTH = 16;
+	
+	private File ledger;
+	private ByteBuffer table;
+	private int mask;
+	
+	/*
+	 * Constructs an index over a mapped table.
+	 * 
+	 * @param ledger the ledger file
+	 * @param table the hash table, without the header
+	 */
+	
+	private LedgerIndex(File ledger, ByteBuffer table) {
+		this.ledger = ledger;
+		this.table = table;
+		this.mask = table.capacity() / ENTRY_LENGTH - 1;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Maps an existing index, provided it was written for the ledger as it is now.
+	 * 
+	 * @param ledger the ledger file
+	 * @param sidecar the index file
+	 * @return the index, or null if it is missing, unreadable or stale
+	 */
+	
+	public static LedgerIndex open(File ledger, File sidecar) {
+		if (!sidecar.isFile() || sidecar.length() < HEADER_LENGTH) {
+			return null;
+		}
+		
+		try (FileChannel channel = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			int capacity = map.getInt(24);
+			
+			if (map.getLong(0) != MAGIC || map.getLong(8) != ledger.length() || map.getLong(16) != ledger.lastModified()) {
+				return null;
+			} else if (Integer.bitCount(capacity) != 1 || (long) capacity * ENTRY_LENGTH != channel.size() - HEADER_LENGTH) {
+				return null;
+			}
+			
+			map.position(HEADER_LENGTH);
+			
+			return new LedgerIndex(ledger, map.slice());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Writes a new index for a ledger file, replacing any existing one.
+	 * 
+	 * @param ledger the ledger file
+	 * @param sidecar the index file
+	 * @param accounts the accounts, in the order they appear in the file
+	 * @param offsets the offset of each account's record
+	 * @param count the number of accounts
+	 * @throws IOException
+	 */
+	
+	public static void write(File ledger, File sidecar, OffHeapLedger accounts, long[] offsets, int count) throws IOException {
+		int capacity = Integer.highestOneBit(Math.max(16, count * 2 - 1)) * 2;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_LENGTH + capacity * ENTRY_LENGTH);
+		
+		buffer.putLong(0, MAGIC);
+		buffer.putLong(8, ledger.length());
+		buffer.putLong(16, ledger.lastModified());
+		buffer.putInt(24, capacity);
+		buffer.putInt(28, count);
+		
+		for (int slot = 0; slot < count; slot++) {
+			long accountNumber = accounts.getAccountNumber(slot);
+			
+			for (int i = hash(accountNumber) & (capacity - 1); ; i = (i + 1) & (capacity - 1)) {
+				int entry = HEADER_LENGTH + i * ENTRY_LENGTH;
+				long existing = buffer.getLong(entry);
+				
+				if (existing == 0) {
+					buffer.putLong(entry, accountNumber);
+					buffer.putLong(entry + 8, offsets[slot]);
+					break;
+				} else if (existing == accountNumber) {
+					break;								// the first record wins, as in OffHeapLedger
+				}
+			}
+		}
+		
+		File temp = new File(sidecar.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+		Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Restamps an index after the ledger was rewritten without moving any records, so it
+	 * stays valid. The index must have been valid for the ledger as it was before.
+	 * 
+	 * @param ledger the ledger file
+	 * @param sidecar the index file
+	 * @param length the ledger's length before it was rewritten
+	 * @param lastModified the ledger's modification time before it was rewritten
+	 * @return true if the index was restamped, false if it has to be rewritten instead
+	 */
+	
+	public static boolean touch(File ledger, File sidecar, long length, long lastModified) {
+		if (!sidecar.isFile() || ledger.length() != length) {
+			return false;
+		}
+		
+		try (FileChannel channel = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(24);
+			
+			readFully(channel, header, 0);
+			if (header.hasRemaining() || header.getLong(0) != MAGIC || header.getLong(8) != length || header.getLong(16) != lastModified) {
+				return false;
+			}
+			
+			ByteBuffer stamp = ByteBuffer.allocate(8);
+			stamp.putLong(0, ledger.lastModified());
+			while (stamp.hasRemaining()) {
+				channel.write(stamp, 16 + stamp.position());
+			}
+			
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Reads an account's record straight from the ledger file.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the record, or null if the account isn't in the ledger
+	 * @throws IOException if the record can't be read, or the index no longer matches the file
+	 */
+	
+	public String read(long accountNumber) throws IOException {
+		long offset = find(accountNumber);
+		
+		if (offset < 0) {
+			return null;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(Database.RECORD_LENGTH + 1);
+		try (FileChannel channel = FileChannel.open(ledger.toPath(), StandardOpenOption.READ)) {
+			readFully(channel, buffer, offset);
+		}
+		
+		String record = new String(buffer.array(), 0, buffer.position(), StandardCharsets.ISO_8859_1);
+		int end = record.indexOf('\n');
+		if (end >= 0) {
+			record = record.substring(0, end > 0 && record.charAt(end - 1) == '\r' ? end - 1 : end);
+		}
+		
+		try {
+			if (record.length() < Database.LEGACY_RECORD_LENGTH || RecordLayout.of(record).parseAccountNumber(record) != accountNumber) {
+				throw new IOException("Index does not match the ledger at offset " + offset + ".");
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Index does not match the ledger at offset " + offset + ".", e);
+		}
+		
+		return record;
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Looks up the offset of an account's record.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the offset, or -1 if the account isn't in the index
+	 */
+	
+	private long find(long accountNumber) {
+		for (int i = hash(accountNumber) & mask; ; i = (i + 1) & mask) {
+			long existing = table.getLong(i * ENTRY_LENGTH);
+			
+			if (existing == 0) {
+				return -1;
+			} else if (existing == accountNumber) {
+				return table.getLong(i * ENTRY_LENGTH + 8);
+			}
+		}
+	}
+	
+	/*
+	 * Reads from a position until the buffer is full or the file ends.
+	 * 
+	 * @param channel the file
+	 * @param buffer the buffer to fill
+	 * @param position where to start reading
+	 * @throws IOException
+	 */
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+	}
+	
+	/*
+	 * Spreads the bits of an account number across the table. This is part of the file
+	 * format, so it must not change without changing MAGIC.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the hash
+	 */
+	
+	private static int hash(long accountNumber) {
+		long h = accountNumber * 0x9E3779B97F4A7C15L;
+		
+		return (int) (h ^ (h >>> 32));
+	}
+}
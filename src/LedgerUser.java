@@ -0,0 +1,122 @@
+/**
+ * The LedgerUser class is a flyweight User backed by a slot in an OffHeapLedger. It is
+ * normally obtained through LedgerAccount.getUser and moves along with its account.
+ */
+
+public class LedgerUser extends User {
+	
+	private OffHeapLedger ledger;
+	private int slot;
+	
+	/**
+	 * Constructs a view of a slot.
+	 * 
+	 * @param ledger the ledger
+	 * @param slot the slot
+	 */
+	
+	public LedgerUser(OffHeapLedger ledger, int slot) {
+		this.ledger = ledger;
+		this.slot = slot;
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	@Override
+	public int getPIN() {
+		return ledger.getPIN(slot);
+	}
+	
+	@Override
+	public int getDOB() {
+		return ledger.getDOB(slot);
+	}
+	
+	@Override
+	public long getPhone() {
+		return ledger.getPhone(slot);
+	}
+	
+	@Override
+	public String getFirstName() {
+		return ledger.getFirstName(slot);
+	}
+	
+	@Override
+	public String getLastName() {
+		return ledger.getLastName(slot);
+	}
+	
+	@Override
+	public String getStreetAddress() {
+		return ledger.getStreetAddress(slot);
+	}
+	
+	@Override
+	public String getCity() {
+		return ledger.getCity(slot);
+	}
+	
+	@Override
+	public String getState() {
+		return ledger.getState(slot);
+	}
+	
+	@Override
+	public String getZip() {
+		return ledger.getZip(slot);
+	}
+	
+	@Override
+	public void setPIN(int current, int pin) {
+		if (pin < 0 || pin > 9999) return;
+		if (getPIN() != current) return;
+		
+		ledger.setPIN(slot, pin);
+	}
+	
+	@Override
+	public void redactPIN() {
+		ledger.setPIN(slot, REDACTED_PIN);
+	}
+	
+	@Override
+	public void setPhone(long phone) {
+		ledger.setPhone(slot, phone);
+	}
+	
+	@Override
+	public void setStreetAddress(String streetAddress) {
+		ledger.setStreetAddress(slot, streetAddress);
+	}
+	
+	@Override
+	public void setCity(String city) {
+		ledger.setCity(slot, city);
+	}
+	
+	@Override
+	public void setState(String state) {
+		ledger.setState(slot, state);
+	}
+	
+	@Override
+	public void setZip(String zip) {
+		ledger.setZip(slot, zip);
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Repositions this view on another slot.
+	 * 
+	 * @param slot the slot
+	 * @return this view
+	 */
+	
+	public LedgerUser moveTo(int slot) {
+		this.slot = slot;
+		
+		return this;
+	}
+}
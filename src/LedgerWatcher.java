@@ -0,0 +1,117 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * The LedgerWatcher class watches a ledger file for changes made by other processes and
+ * has the Database reload them. Events usually come in bursts while a file is being
+ * written, so the watcher waits for the file to settle before reloading; a reload that
+ * catches the file half-written finds nothing to apply and is retried on the next event.
+ * 
+ * The database's own writes trigger events too. Database.reload recognizes them and
+ * returns without reading the file.
+ */
+
+public class LedgerWatcher {
+	
+	public static final int SETTLE_MILLIS = 50;
+	
+	private Database db;
+	private File file;
+	private WatchService service;
+	
+	/**
+	 * Starts watching a ledger file on a background thread.
+	 * 
+	 * @param db the database to reload
+	 * @param file the ledger file
+	 * @throws IOException if the file's directory can't be watched
+	 */
+	
+	public LedgerWatcher(Database db, File file) throws IOException {
+		this.db = db;
+		this.file = file.getAbsoluteFile();
+		this.service = FileSystems.getDefault().newWatchService();
+		
+		this.file.getParentFile().toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		
+		Thread watcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "database-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Stops watching.
+	 */
+	
+	public void close() {
+		try {
+			service.close();
+		} catch (IOException e) {
+			// already closed
+		}
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Waits for events on the ledger file and reloads after each burst, until closed.
+	 */
+	
+	private void watch() {
+		Path name = file.toPath().getFileName();
+		
+		try {
+			while (true) {
+				WatchKey key = service.take();
+				boolean changed = false;
+				
+				for (WatchEvent<?> event : key.pollEvents()) {
+					changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context());
+				}
+				key.reset();
+				
+				if (changed) {
+					Thread.sleep(SETTLE_MILLIS);
+					drain();
+					
+					try {
+						db.reload();
+					} catch (IOException e) {
+						// unreadable for now; the next event or update tries again
+					}
+				}
+			}
+		} catch (ClosedWatchServiceException e) {
+			// closed
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/*
+	 * Discards events that arrived while the file was settling; the reload covers them.
+	 */
+	
+	private void drain() {
+		WatchKey key;
+		
+		while ((key = service.poll()) != null) {
+			key.pollEvents();
+			key.reset();
+		}
+	}
+}
@@ -0,0 +1,400 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The LoadGenerator class drives the ATM with synthetic customers. It writes a ledger
+ * of the requested size in the accounts-db.txt format, then runs concurrent customers
+ * that each feed scripted sessions (open/login, deposit, withdraw, transfer, logout)
+ * into their own ATM and reports throughput and latency. In service mode the same
+ * flows call AtmService directly, and latency is reported per operation instead. The
+ * atm.store system property selects the account store, as it does for the ATM.
+ * 
+ * The velocity and daily limits are turned off for the run unless their properties are
+ * set on the command line, since the synthetic customers come back to the same accounts
+ * far more often than real ones would. When they are set, service mode counts the
+ * operations they (or anything else) turn down separately from those that go ahead.
+ * 
+ * Usage: java LoadGenerator [accounts] [customers] [sessions per customer] [ledger file] [console|service]
+ */
+
+public class LoadGenerator {
+	
+	public static final long FIRST_ACCOUNT_NUMBER = 100000001L;
+	public static final int OPERATIONS = 5;				// timed service calls per session
+	
+	private static final String[] FIRST_NAMES = { "Ryan", "John", "Cindy", "Maria", "David", "Susan", "James", "Linda" };
+	private static final String[] LAST_NAMES = { "Wilson", "Smith", "Johnson", "Garcia", "Miller", "Davis", "Lopez", "Clark" };
+	private static final String[] CITIES = { "Scotch Plains", "Rahway", "Linden", "Westfield", "Cranford", "Clark" };
+	private static final String[] STATUSES = { "invalid amount", "exceeds maximum", "insufficient funds", "account not found",
+		"success", "account locked", "velocity exceeded", "daily limit exceeded",
+		"customer exists" };
+	
+	private int accounts;
+	private int customers;
+	private int sessions;
+	private String path;
+	private boolean console;
+	private int[] pins;
+	
+	/**
+	 * Constructs a load generator.
+	 * 
+	 * @param accounts the number of accounts in the synthetic ledger
+	 * @param customers the number of concurrent customers
+	 * @param sessions the number of sessions each customer runs
+	 * @param path the ledger file, relative to the working directory
+	 * @param console true to drive the console ATM, false to call AtmService directly
+	 */
+	
+	public LoadGenerator(int accounts, int customers, int sessions, String path, boolean console) {
+		this.accounts = accounts;
+		this.customers = customers;
+		this.sessions = sessions;
+		this.path = path;
+		this.console = console;
+	}
+	
+	/**
+	 * Main method. Generates a ledger, runs the load, and prints a report.
+	 * 
+	 * @param args accounts, customers, sessions per customer, ledger file, mode
+	 * @throws Exception
+	 */
+	
+	public static void main(String[] args) throws Exception {
+		int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int customers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int sessions = args.length > 2 ? Integer.parseInt(args[2]) : 25;
+		String path = args.length > 3 ? args[3] : "loadtest-db.txt";
+		boolean console = args.length > 4 ? !args[4].equals("service") : true;
+		
+		for (String property : new String[] { AtmService.WITHDRAWAL_LIMIT_PROPERTY, AtmService.TRANSFER_LIMIT_PROPERTY, AtmService.DAILY_LIMIT_PROPERTY }) {
+			if (System.getProperty(property) == null) {
+				System.setProperty(property, "0");
+			}
+		}
+		
+		LoadGenerator generator = new LoadGenerator(accounts, customers, sessions, path, console);
+		generator.generateLedger(42L);
+		generator.run();
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Writes a synthetic ledger, remembering each account's PIN for later logins. Every
+	 * sidecar of the old ledger is deleted, so each run starts from the same state.
+	 * 
+	 * @param seed the random seed
+	 * @throws IOException
+	 */
+	
+	public void generateLedger(long seed) throws IOException {
+		Random random = new Random(seed);
+		pins = new int[accounts];
+		
+		long start = System.nanoTime();
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(System.getProperty("user.dir") + File.separator + path), 1 << 16)) {
+			for (int i = 0; i < accounts; i++) {
+				pins[i] = random.nextInt(10000);
+				
+				BankAccount account = new BankAccount(
+					'Y',
+					FIRST_ACCOUNT_NUMBER + i,
+					random.nextInt(1000000) / 100.0,
+					new User(
+						pins[i],
+						19500101 + random.nextInt(50) * 10000 + random.nextInt(12) * 100 + random.nextInt(28),
+						5550000000L + random.nextInt(10000000),
+						FIRST_NAMES[random.nextInt(FIRST_NAMES.length)],
+						LAST_NAMES[random.nextInt(LAST_NAMES.length)],
+						(1 + random.nextInt(9999)) + " Main Street",
+						CITIES[random.nextInt(CITIES.length)],
+						User.STATE_ABBREVIATIONS[random.nextInt(User.STATE_ABBREVIATIONS.length)],
+						String.format("%05d", random.nextInt(100000))
+					)
+				);
+				bw.write(account.toString());
+				bw.newLine();
+			}
+		}
+		
+		String[] sidecars = { SlottedStore.EXTENSION, BTreeStore.EXTENSION, LedgerIndex.EXTENSION, Database.NUMBERS_EXTENSION,
+			PinStore.EXTENSION, TransactionLog.EXTENSION, TransactionLog.EXTENSION + TransactionLog.CHECKPOINT_EXTENSION,
+			DailyLimits.EXTENSION, EventFileSink.EXTENSION, InterestAccrual.EXTENSION };
+		for (String extension : sidecars) {
+			new File(System.getProperty("user.dir") + File.separator + path + extension).delete();		// rebuilt, or left over from the old ledger
+		}
+		LsmStore.delete(path);
+		
+		System.out.printf("Generated %,d accounts in %s in %,d ms.%n", accounts, path, (System.nanoTime() - start) / 1000000);
+	}
+	
+	/**
+	 * Runs every customer to completion and prints throughput and latency figures.
+	 * 
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	
+	public void run() throws IOException, InterruptedException {
+		final AccountStore store = AccountStore.open(path);
+		final ReplicationPrimary primary = store instanceof Database ? ReplicationPrimary.start((Database) store) : null;
+		final AtmService service = new AtmService(store);
+		final long[][] latencies = new long[customers][];
+		final int[] samples = new int[customers];
+		final AtomicInteger operations = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		final AtomicIntegerArray rejections = new AtomicIntegerArray(STATUSES.length);
+		final PrintStream sink = new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				// discard
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// discard
+			}
+		});
+		
+		ExecutorService pool = Executors.newFixedThreadPool(customers);
+		long start = System.nanoTime();
+		
+		for (int c = 0; c < customers; c++) {
+			final int customer = c;
+			final Random random = new Random(c);
+			latencies[c] = new long[console ? sessions : sessions * OPERATIONS];
+			
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					long[] mine = latencies[customer];
+					
+					for (int s = 0; s < sessions; s++) {
+						try {
+							if (console) {
+								int[] ops = new int[1];
+								String script = script(random, ops);
+								ATM atm = new ATM(service, new ByteArrayInputStream(script.getBytes()), sink);
+								atm.setAnimated(false);
+								
+								long begin = System.nanoTime();
+								atm.run();
+								mine[samples[customer]++] = System.nanoTime() - begin;
+								operations.addAndGet(ops[0]);
+							} else {
+								samples[customer] = session(service, random, mine, samples[customer], rejections);
+							}
+						} catch (Exception e) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		
+		long elapsed = System.nanoTime() - start;
+		long[] sorted = new long[0];
+		for (int c = 0; c < customers; c++) {
+			int offset = sorted.length;
+			sorted = Arrays.copyOf(sorted, offset + samples[c]);
+			System.arraycopy(latencies[c], 0, sorted, offset, samples[c]);
+		}
+		Arrays.sort(sorted);
+		
+		int rejected = 0;
+		StringBuilder reasons = new StringBuilder();
+		for (int status = 0; status < STATUSES.length; status++) {
+			int count = rejections.get(status);
+			
+			if (count > 0) {
+				rejected += count;
+				reasons.append(reasons.length() == 0 ? " (" : ", ").append(String.format("%,d %s", count, STATUSES[status]));
+			}
+		}
+		if (reasons.length() > 0) {
+			reasons.append(')');
+		}
+		
+		if (!console) {
+			operations.set(sorted.length - rejected);
+		}
+		String unit = console ? "Session" : "     Op";
+		
+		System.out.printf("%n%,d customers x %,d sessions against %,d accounts (%s)%n", customers, sessions, accounts, console ? "console" : "service");
+		System.out.printf("      Sessions : %,d (%,d failed)%n", customers * sessions - errors.get(), errors.get());
+		System.out.printf("    Operations : %,d%n", operations.get());
+		if (!console) {
+			System.out.printf("      Rejected : %,d%s%n", rejected, reasons);
+		}
+		System.out.printf("       Elapsed : %,.1f ms%n", elapsed / 1e6);
+		System.out.printf("    Throughput : %,.1f sessions/s, %,.1f ops/s%n", (customers * sessions - errors.get()) / (elapsed / 1e9), operations.get() / (elapsed / 1e9));
+		System.out.printf("   %s p50 : %,.3f ms%n", unit, percentile(sorted, 0.50) / 1e6);
+		System.out.printf("   %s p99 : %,.3f ms%n", unit, percentile(sorted, 0.99) / 1e6);
+		System.out.printf("   %s max : %,.3f ms%n", unit, percentile(sorted, 1.00) / 1e6);
+		
+		if (primary != null) {
+			long lag = primary.getMaxLag();
+			long begin = System.nanoTime();
+			boolean caughtUp = primary.awaitFollowers(10000);
+			
+			System.out.printf("   Replication : %,d follower(s), %,d commits behind at the end, %s%n", primary.getFollowerCount(), lag,
+				caughtUp ? String.format("caught up in %,.1f ms", (System.nanoTime() - begin) / 1e6) : "not caught up after 10 s");
+			primary.close();
+		}
+		service.close();
+		store.close();
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Builds the console input for one session. Amounts are chosen so that every prompt
+	 * is answered exactly once (withdrawals and transfers never exceed what was deposited).
+	 * 
+	 * @param random the customer's random source
+	 * @param ops receives the number of operations in the session
+	 * @return the scripted input
+	 */
+	
+	private String script(Random random, int[] ops) {
+		StringBuilder sb = new StringBuilder();
+		
+		if (random.nextInt(10) == 0) {
+			sb.append("1\n")
+				.append(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)]).append('\n')
+				.append(LAST_NAMES[random.nextInt(LAST_NAMES.length)]).append('\n')
+				.append("01/15/1980\n")
+				.append(5550000000L + random.nextInt(10000000)).append('\n')
+				.append("1 Load Street\n")
+				.append(CITIES[random.nextInt(CITIES.length)]).append('\n')
+				.append("NJ\n")
+				.append("07076\n")
+				.append(String.format("%04d", random.nextInt(10000))).append('\n');
+		} else {
+			int index = random.nextInt(accounts);
+			sb.append("2\n").append(FIRST_ACCOUNT_NUMBER + index).append('\n').append(pins[index]).append('\n');
+		}
+		
+		int deposit = 100 + random.nextInt(900);
+		int withdrawal = 1 + random.nextInt(deposit / 2);
+		int transfer = 1 + random.nextInt(deposit / 2);
+		long destination = FIRST_ACCOUNT_NUMBER + random.nextInt(accounts);
+		
+		sb.append("1\n").append(deposit).append('\n');
+		sb.append("2\n").append(withdrawal).append('\n');
+		sb.append("3\n").append(destination).append('\n').append(transfer).append('\n');
+		sb.append("4\n");
+		sb.append("9\n");
+		sb.append("3\n");
+		ops[0] = 6;
+		
+		return sb.toString();
+	}
+	
+	/*
+	 * Runs one session against the service, timing each operation.
+	 * 
+	 * @param service the service under test
+	 * @param random the customer's random source
+	 * @param latencies receives the latency of each operation
+	 * @param n the number of latencies recorded so far
+	 * @param rejections counts, by status code, the operations that didn't go ahead
+	 * @return the number of latencies recorded after this session
+	 * @throws IOException
+	 */
+	
+	private int session(AtmService service, Random random, long[] latencies, int n, AtomicIntegerArray rejections) throws IOException {
+		long accountNumber;
+		long begin = System.nanoTime();
+		
+		if (random.nextInt(10) == 0) {
+			User user = new User(
+				random.nextInt(10000),
+				19800115,
+				5550000000L + random.nextInt(10000000),
+				FIRST_NAMES[random.nextInt(FIRST_NAMES.length)],
+				LAST_NAMES[random.nextInt(LAST_NAMES.length)],
+				"1 Load Street",
+				CITIES[random.nextInt(CITIES.length)],
+				"NJ",
+				"07076"
+			);
+			BankAccount opened = service.openAccount(user);
+			accountNumber = opened == null ? FIRST_ACCOUNT_NUMBER + random.nextInt(accounts) : opened.getAccountNumber();
+		} else {
+			int index = random.nextInt(accounts);
+			accountNumber = FIRST_ACCOUNT_NUMBER + index;
+			count(service.login(accountNumber, pins[index]), rejections);
+		}
+		latencies[n++] = System.nanoTime() - begin;
+		
+		int deposit = 100 + random.nextInt(900);
+		int withdrawal = 1 + random.nextInt(deposit / 2);
+		int transfer = 1 + random.nextInt(deposit / 2);
+		long destination = FIRST_ACCOUNT_NUMBER + random.nextInt(accounts);
+		
+		begin = System.nanoTime();
+		count(service.deposit(accountNumber, deposit), rejections);
+		latencies[n++] = System.nanoTime() - begin;
+		
+		begin = System.nanoTime();
+		count(service.withdraw(accountNumber, withdrawal), rejections);
+		latencies[n++] = System.nanoTime() - begin;
+		
+		begin = System.nanoTime();
+		count(service.transfer(accountNumber, destination, transfer), rejections);
+		latencies[n++] = System.nanoTime() - begin;
+		
+		begin = System.nanoTime();
+		service.getAccount(accountNumber);
+		latencies[n++] = System.nanoTime() - begin;
+		
+		return n;
+	}
+	
+	/*
+	 * Counts an operation's status if it didn't go ahead.
+	 * 
+	 * @param status the status code the service returned
+	 * @param rejections counts, by status code, the operations that didn't go ahead
+	 */
+	
+	private static void count(int status, AtomicIntegerArray rejections) {
+		if (status != ATM.SUCCESS) {
+			rejections.incrementAndGet(status);
+		}
+	}
+	
+	/*
+	 * Reads a percentile from sorted samples.
+	 * 
+	 * @param sorted the sorted samples
+	 * @param p the percentile, between 0 and 1
+	 * @return the sample at that percentile
+	 */
+	
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
@@ -0,0 +1,1131 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * The LsmStore class keeps accounts in a log-structured merge tree, for ledgers that see
+ * far more updates than anything else. Writes never touch the files accounts were read
+ * from: each put appends the changed records to a log and puts them in a sorted
+ * in-memory table, the memtable. When the memtable fills up, it is frozen, a new log is
+ * started, and a background thread writes the frozen table out as an immutable sorted
+ * segment file and deletes its log. When segments pile up, the same thread merges them
+ * into one, keeping only the newest copy of each account. Every write is a sequential
+ * append, so deposit and transfer storms run at the speed of the log.
+ * 
+ * An account is looked up in the memtable, then the frozen memtable, then the segments
+ * from newest to oldest. Each segment has a bloom filter, so segments that don't have the
+ * account are skipped without reading them, and a table of the first account number in
+ * every block of entries, so a segment that does is read one block at a time.
+ * 
+ * The files live in a directory next to the text ledger, which is built from the ledger
+ * the first time the store is opened. Segment and log files are numbered; logs newer
+ * than the newest segment are replayed into the memtable on opening, and a log is only
+ * deleted once its segment is in place, so nothing acknowledged is lost if the process
+ * dies. The directory is locked for as long as the store is open, so only one process
+ * can use it at a time.
+ */
+
+public class LsmStore implements AccountStore {
+	
+	public static final String EXTENSION = ".lsm";
+	public static final String MEMTABLE_PROPERTY = "atm.lsm.memtable";	// accounts held before flushing
+	public static final int DEFAULT_MEMTABLE_ACCOUNTS = 32768;
+	public static final int COMPACTION_THRESHOLD = 4;					// segments allowed before merging
+	
+	private static final long MAGIC = 0x41544D4C534D5331L;				// "ATMLSMS1"
+	private static final int HEADER_LENGTH = 32;
+	private static final int ENTRY_LENGTH = 8 + Database.RECORD_LENGTH;	// account number, record
+	private static final int BLOCK = 16;								// entries per block read
+	private static final String LOCK = "lock";
+	private static final String SEGMENT = ".seg";
+	private static final String LOG = ".log";
+	
+	private String path;
+	private File directory;
+	private FileChannel lock;
+	private int memtableLimit;
+	private TreeMap<Long, byte[]> memtable;
+	private TreeMap<Long, byte[]> flushing;	// frozen and being written out, or null
+	private int flushingNumber;
+	private FileChannel log;
+	private int logNumber;
+	private long logLength;
+	private int nextNumber;
+	private List<Segment> segments;				// newest first
+	private List<Segment> retired;				// merged away, but still being scanned
+	private int scans;
+	private ByteBuffer block;
+	private long lastAccountNumber;
+	private boolean closed;
+	private IOException failure;
+	private Thread writer;
+	
+	/**
+	 * Opens an existing LSM directory, replaying any logs not yet written to segments.
+	 * 
+	 * @param path the ledger file the store was built from, relative to the working directory
+	 * @throws IOException if the files can't be read, aren't LSM files, or are in use
+	 */
+	
+	public LsmStore(String path) throws IOException {
+		this.path = path;
+		this.directory = file(path + EXTENSION);
+		this.memtableLimit = Math.max(1, Integer.getInteger(MEMTABLE_PROPERTY, DEFAULT_MEMTABLE_ACCOUNTS));
+		this.memtable = new TreeMap<Long, byte[]>();
+		this.segments = new ArrayList<Segment>();
+		this.retired = new ArrayList<Segment>();
+		this.block = ByteBuffer.allocate(BLOCK * ENTRY_LENGTH);
+		this.lock = FileChannel.open(new File(directory, LOCK).toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		
+		try {
+			if (lock.tryLock() == null) {
+				throw new IOException(path + EXTENSION + " is in use by another process.");
+			}
+			
+			recover();
+		} catch (IOException | RuntimeException e) {
+			closeFiles();
+			throw e;
+		}
+		
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "lsm-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Opens the LSM directory for a ledger, building it from the ledger first if there
+	 * isn't one.
+	 * 
+	 * @param path the ledger file, relative to the working directory
+	 * @return the store
+	 * @throws IOException
+	 */
+	
+	public static LsmStore open(String path) throws IOException {
+		if (!file(path + EXTENSION).isDirectory()) {
+			create(path);
+		}
+		
+		return new LsmStore(path);
+	}
+	
+	/**
+	 * Deletes the LSM directory for a ledger, if there is one, so that it is rebuilt from
+	 * the ledger the next time it is opened. The store must not be open.
+	 * 
+	 * @param path the ledger file, relative to the working directory
+	 */
+	
+	public static void delete(String path) {
+		deleteDirectory(file(path + EXTENSION));
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the path of the ledger the store was built from.
+	 * 
+	 * @return path
+	 */
+	
+	@Override
+	public String getPath() {
+		return path;
+	}
+	
+	/**
+	 * Retrieves the number of segment files accounts are currently read from.
+	 * 
+	 * @return the number of segments
+	 */
+	
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Retrieves a copy of an open account.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the account, or null if there is no open account with that number
+	 * @throws IOException
+	 */
+	
+	@Override
+	public synchronized BankAccount get(long accountNumber) throws IOException {
+		check();
+		
+		byte[] record = find(accountNumber);
+		if (record == null || record[RecordLayout.CURRENT.getOffset(RecordLayout.STATUS)] != 'Y') {
+			return null;
+		}
+		
+		return account(record);
+	}
+	
+	/**
+	 * Writes one account, or two together, provided neither is stale. Both records are
+	 * appended to the log in one write before the memtable sees them. If the memtable is
+	 * full, it is handed to the background writer, waiting first if the previous one
+	 * hasn't been written out yet.
+	 * 
+	 * @param account the primary account
+	 * @param destination the secondary account, or null
+	 * @return true if the accounts were written, false if either was stale
+	 * @throws IOException
+	 */
+	
+	@Override
+	public synchronized boolean put(BankAccount account, BankAccount destination) throws IOException {
+		check();
+		
+		if (!isCurrent(account) || (destination != null && !isCurrent(destination))) {
+			return false;
+		}
+		
+		BankAccount[] accounts = destination == null ? new BankAccount[] { account } : new BankAccount[] { account, destination };
+		byte[][] records = new byte[accounts.length][];
+		ByteBuffer buffer = ByteBuffer.allocate(accounts.length * ENTRY_LENGTH);
+		
+		for (BankAccount a : accounts) {
+			a.setVersion(a.getVersion() + 1);
+		}
+		
+		try {
+			for (int i = 0; i < accounts.length; i++) {
+				records[i] = encode(accounts[i].toString());
+				buffer.putLong(accounts[i].getAccountNumber()).put(records[i]);
+			}
+			buffer.flip();
+			logLength += writeFully(log, buffer, logLength);
+		} catch (IOException | RuntimeException e) {
+			for (BankAccount a : accounts) {
+				a.setVersion(a.getVersion() - 1);
+			}
+			throw e;
+		}
+		
+		for (int i = 0; i < accounts.length; i++) {
+			memtable.put(accounts[i].getAccountNumber(), records[i]);
+			lastAccountNumber = Math.max(lastAccountNumber, accounts[i].getAccountNumber());
+		}
+		
+		if (memtable.size() >= memtableLimit) {
+			freeze();
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Visits every account in account number order. The scan sees the store as it was
+	 * when it began; writes made during the scan go ahead without waiting for it.
+	 * 
+	 * @param visitor the visitor
+	 * @throws IOException
+	 */
+	
+	@Override
+	public void scan(Visitor visitor) throws IOException {
+		List<Cursor> sources = new ArrayList<Cursor>();
+		
+		synchronized (this) {
+			check();
+			
+			sources.add(new MapCursor(new TreeMap<Long, byte[]>(memtable), 0));
+			if (flushing != null) {
+				sources.add(new MapCursor(flushing, 1));
+			}
+			for (Segment segment : segments) {
+				sources.add(new SegmentCursor(segment, sources.size()));
+			}
+			scans++;
+		}
+		
+		try {
+			Cursor merged = new MergeCursor(sources);
+			
+			while (merged.advance()) {
+				visitor.visit(account(merged.record));
+			}
+		} finally {
+			synchronized (this) {
+				if (--scans == 0) {
+					for (Segment segment : retired) {
+						segment.close();
+					}
+					retired.clear();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reserves the next unused account number.
+	 * 
+	 * @return the reserved account number
+	 */
+	
+	@Override
+	public synchronized long nextAccountNumber() {
+		return ++lastAccountNumber;
+	}
+	
+	/**
+	 * Stops the background writer, once any segment it is writing is in place, and closes
+	 * the store's files. The memtable needn't be written out; its log is replayed the next
+	 * time the store is opened.
+	 * 
+	 * @throws IOException
+	 */
+	
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing " + path + EXTENSION + ".", e);
+		}
+		
+		synchronized (this) {
+			closeFiles();
+		}
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Builds an LSM directory from a ledger: a single segment holding every account, in
+	 * account number order. The directory is built beside its final name and moved into
+	 * place once complete.
+	 * 
+	 * @param path the ledger file, relative to the working directory
+	 * @throws IOException
+	 */
+	
+	private static void create(String path) throws IOException {
+		File temp = file(path + EXTENSION + ".tmp");
+		
+		deleteDirectory(temp);
+		if (!temp.mkdir()) {
+			throw new IOException("Couldn't create " + path + EXTENSION + ".tmp.");
+		}
+		
+		Database db = new Database(path);
+		try {
+			final OffHeapLedger ledger = db.getLedger();
+			final int n = ledger.size();
+			final long[] order = new long[n];						// account number above slot, so sorting orders the slots
+			
+			for (int slot = 0; slot < n; slot++) {
+				order[slot] = ledger.getAccountNumber(slot) << 32 | slot;
+			}
+			Arrays.sort(order);
+			
+			Segment.write(temp, 1, new Cursor(0) {
+				private int i = 0;
+				private StringBuilder sb = new StringBuilder(Database.RECORD_LENGTH);
+				
+				@Override
+				boolean advance() {
+					if (i == n) {
+						return false;
+					}
+					
+					int slot = (int) order[i++];
+					sb.setLength(0);
+					ledger.appendRecord(slot, sb);
+					key = ledger.getAccountNumber(slot);
+					record = encode(sb);
+					return true;
+				}
+			}, n).close();
+		} finally {
+			db.close();
+		}
+		
+		Files.move(temp.toPath(), file(path + EXTENSION).toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/*
+	 * Opens the segments and replays the logs written since the newest of them into the
+	 * memtable. The newest log is kept open for appending. Logs already written to a
+	 * segment, and files left behind by an interrupted write, are deleted.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private void recover() throws IOException {
+		List<Integer> logs = new ArrayList<Integer>();
+		int newest = 0;
+		
+		for (File f : directory.listFiles()) {
+			String name = f.getName();
+			
+			if (name.endsWith(".tmp")) {
+				f.delete();
+			} else if (name.endsWith(SEGMENT)) {
+				Segment segment = new Segment(f, number(name));
+				segments.add(segment);
+				newest = Math.max(newest, segment.number);
+				lastAccountNumber = Math.max(lastAccountNumber, segment.lastKey);
+			} else if (name.endsWith(LOG)) {
+				logs.add(number(name));
+			}
+		}
+		segments.sort((a, b) -> Integer.compare(b.number, a.number));
+		
+		logs.sort(null);
+		nextNumber = newest + 1;
+		for (int number : logs) {
+			if (number <= newest) {
+				new File(directory, name(number, LOG)).delete();
+			} else {
+				replay(number);
+				nextNumber = number + 1;
+			}
+		}
+		
+		if (log == null) {
+			openLog(nextNumber++);
+		}
+		if (!memtable.isEmpty()) {
+			lastAccountNumber = Math.max(lastAccountNumber, memtable.lastKey());
+		}
+	}
+	
+	/*
+	 * Reads a log into the memtable and opens it for appending. An entry cut short by a
+	 * crash was never acknowledged, so it is dropped.
+	 * 
+	 * @param number the log's number
+	 * @throws IOException
+	 */
+	
+	private void replay(int number) throws IOException {
+		if (log != null) {
+			log.close();
+		}
+		openLog(number);
+		
+		ByteBuffer buffer = ByteBuffer.allocate(BLOCK * ENTRY_LENGTH);
+		long position = 0;
+		long complete = log.size() / ENTRY_LENGTH * ENTRY_LENGTH;
+		
+		while (position < complete) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), complete - position));
+			position += readFully(log, buffer, position);
+			buffer.flip();
+			
+			while (buffer.hasRemaining()) {
+				long key = buffer.getLong();
+				byte[] record = new byte[Database.RECORD_LENGTH];
+				buffer.get(record);
+				memtable.put(key, record);
+			}
+		}
+		
+		log.truncate(complete);
+		logLength = complete;
+	}
+	
+	/*
+	 * Opens a log for appending, creating it if need be.
+	 * 
+	 * @param number the log's number
+	 * @throws IOException
+	 */
+	
+	private void openLog(int number) throws IOException {
+		log = FileChannel.open(new File(directory, name(number, LOG)).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		logNumber = number;
+		logLength = log.size();
+	}
+	
+	/*
+	 * Hands the memtable to the background writer and starts a new one with a new log.
+	 * Only one memtable is written out at a time, so this waits for the previous one.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private void freeze() throws IOException {
+		try {
+			while (flushing != null && failure == null && !closed) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + path + EXTENSION + ".", e);
+		}
+		check();
+		
+		flushing = memtable;
+		flushingNumber = logNumber;
+		memtable = new TreeMap<Long, byte[]>();
+		
+		log.close();
+		openLog(nextNumber++);
+		notifyAll();
+	}
+	
+	/*
+	 * Runs the background writer: writes out each frozen memtable, and merges the segments
+	 * whenever there are too many, until the store is closed.
+	 */
+	
+	private void work() {
+		try {
+			while (true) {
+				TreeMap<Long, byte[]> frozen;
+				int number;
+				List<Segment> inputs = null;
+				
+				synchronized (this) {
+					while (!closed && flushing == null && segments.size() <= COMPACTION_THRESHOLD) {
+						wait();
+					}
+					if (closed) {
+						return;
+					}
+					
+					frozen = flushing;
+					number = flushingNumber;
+					if (frozen == null) {
+						inputs = new ArrayList<Segment>(segments);
+					}
+				}
+				
+				if (frozen != null) {
+					flush(frozen, number);
+				} else {
+					compact(inputs);
+				}
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+				notifyAll();
+			}
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				failure = new IOException("Interrupted while writing " + path + EXTENSION + ".", e);
+				notifyAll();
+			}
+		}
+	}
+	
+	/*
+	 * Writes a frozen memtable out as the newest segment, then deletes the logs it
+	 * replaces.
+	 * 
+	 * @param frozen the memtable
+	 * @param number the number of its log, and so of the segment
+	 * @throws IOException
+	 */
+	
+	private void flush(TreeMap<Long, byte[]> frozen, int number) throws IOException {
+		Segment segment = Segment.write(directory, number, new MapCursor(frozen, 0), frozen.size());
+		
+		synchronized (this) {
+			segments.add(0, segment);
+			flushing = null;
+			notifyAll();
+		}
+		
+		for (File f : directory.listFiles()) {
+			if (f.getName().endsWith(LOG) && number(f.getName()) <= number) {
+				f.delete();
+			}
+		}
+	}
+	
+	/*
+	 * Merges segments into one, keeping the newest copy of each account. The merged
+	 * segment takes the number of the newest input and replaces its file, so until the
+	 * older inputs are deleted, lookups find the merged copies first.
+	 * 
+	 * @param inputs the segments, newest first
+	 * @throws IOException
+	 */
+	
+	private void compact(List<Segment> inputs) throws IOException {
+		List<Cursor> sources = new ArrayList<Cursor>();
+		int expected = 0;
+		
+		for (Segment segment : inputs) {
+			sources.add(new SegmentCursor(segment, sources.size()));
+			expected += segment.count;
+		}
+		
+		Segment merged = Segment.write(directory, inputs.get(0).number, new MergeCursor(sources), expected);
+		
+		synchronized (this) {
+			segments.removeAll(inputs);
+			segments.add(merged);
+			segments.sort((a, b) -> Integer.compare(b.number, a.number));
+			
+			if (scans == 0) {
+				for (Segment segment : inputs) {
+					segment.close();
+				}
+			} else {
+				retired.addAll(inputs);
+			}
+		}
+		
+		for (Segment segment : inputs) {
+			if (segment.number != merged.number) {
+				new File(directory, name(segment.number, SEGMENT)).delete();
+			}
+		}
+	}
+	
+	/*
+	 * Finds the newest record of an account, whatever its status.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the record, or null if the store doesn't have the account
+	 * @throws IOException
+	 */
+	
+	private byte[] find(long accountNumber) throws IOException {
+		byte[] record = memtable.get(accountNumber);
+		
+		if (record == null && flushing != null) {
+			record = flushing.get(accountNumber);
+		}
+		for (int i = 0; record == null && i < segments.size(); i++) {
+			record = segments.get(i).find(accountNumber, block);
+		}
+		
+		return record;
+	}
+	
+	/*
+	 * Determines whether or not the store still has the version of an account the caller
+	 * read. An account the store doesn't have is current.
+	 * 
+	 * @param account the caller's copy
+	 * @return true if the account is current, false otherwise
+	 * @throws IOException
+	 */
+	
+	private boolean isCurrent(BankAccount account) throws IOException {
+		byte[] record = find(account.getAccountNumber());
+		
+		return record == null || version(record) == account.getVersion();
+	}
+	
+	/*
+	 * Throws the background writer's failure, if it had one, or complains if the store
+	 * has been closed.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private void check() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (closed) {
+			throw new IOException(path + EXTENSION + " is closed.");
+		}
+	}
+	
+	/*
+	 * Closes every file the store has open, releasing the directory's lock last.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private void closeFiles() throws IOException {
+		try {
+			if (log != null) {
+				log.close();
+			}
+			for (Segment segment : segments) {
+				segment.close();
+			}
+			for (Segment segment : retired) {
+				segment.close();
+			}
+		} finally {
+			lock.close();
+		}
+	}
+	
+	/*
+	 * Deletes a directory and the files in it, if it exists.
+	 * 
+	 * @param directory the directory
+	 */
+	
+	private static void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+			directory.delete();
+		}
+	}
+	
+	/*
+	 * Parses an account's record.
+	 * 
+	 * @param record the record
+	 * @return the account
+	 */
+	
+	private static BankAccount account(byte[] record) {
+		return new BankAccount(new String(record, StandardCharsets.US_ASCII));
+	}
+	
+	/*
+	 * Reads the version from an account's record.
+	 * 
+	 * @param record the record
+	 * @return the version
+	 */
+	
+	private static long version(byte[] record) {
+		int from = RecordLayout.CURRENT.getOffset(RecordLayout.VERSION);
+		long version = 0;
+		
+		for (int i = from; i < from + RecordLayout.CURRENT.getWidth(RecordLayout.VERSION); i++) {
+			version = version * 10 + (record[i] - '0');
+		}
+		
+		return version;
+	}
+	
+	/*
+	 * Converts a record to bytes; anything outside ASCII becomes a question mark.
+	 * 
+	 * @param record the record
+	 * @return the bytes
+	 */
+	
+	private static byte[] encode(CharSequence record) {
+		byte[] bytes = new byte[Database.RECORD_LENGTH];
+		
+		for (int i = 0; i < bytes.length; i++) {
+			char c = record.charAt(i);
+			bytes[i] = c < 0x80 ? (byte) c : (byte) '?';
+		}
+		
+		return bytes;
+	}
+	
+	/*
+	 * Names a segment or log file.
+	 * 
+	 * @param number the file's number
+	 * @param extension SEGMENT or LOG
+	 * @return the name
+	 */
+	
+	private static String name(int number, String extension) {
+		return String.format("%08d", number) + extension;
+	}
+	
+	/*
+	 * Parses the number from a segment or log file's name.
+	 * 
+	 * @param name the name
+	 * @return the number
+	 */
+	
+	private static int number(String name) {
+		return Integer.parseInt(name.substring(0, name.indexOf('.')));
+	}
+	
+	/*
+	 * Reads from a file until a buffer is full or the file ends.
+	 * 
+	 * @param channel the file
+	 * @param buffer the buffer
+	 * @param position where to start reading
+	 * @return the number of bytes read
+	 * @throws IOException
+	 */
+	
+	private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int total = 0;
+		
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + total);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		
+		return total;
+	}
+	
+	/*
+	 * Writes the whole of a buffer to a file.
+	 * 
+	 * @param channel the file
+	 * @param buffer the buffer
+	 * @param position where to start writing
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int total = 0;
+		
+		while (buffer.hasRemaining()) {
+			total += channel.write(buffer, position + total);
+		}
+		
+		return total;
+	}
+	
+	/*
+	 * Resolves a path against the working directory.
+	 * 
+	 * @param name the path
+	 * @return the file
+	 */
+	
+	private static File file(String name) {
+		return new File(System.getProperty("user.dir") + File.separator + name);
+	}
+	
+	/**
+	 * An immutable, sorted segment file. After a 32-byte header come the entries, each an
+	 * account number and the account's record, then the bloom filter and the first account
+	 * number of every block of entries, both of which are kept in memory.
+	 */
+	
+	private static class Segment {
+		
+		private int number;
+		private FileChannel channel;
+		private int count;
+		private long lastKey;
+		private BloomFilter bloom;
+		private long[] fences;
+		
+		/*
+		 * Opens a segment file.
+		 * 
+		 * @param f the file
+		 * @param number the segment's number
+		 * @throws IOException if the file can't be read or isn't a segment
+		 */
+		
+		private Segment(File f, int number) throws IOException {
+			this.number = number;
+			this.channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			
+			try {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+				if (readFully(channel, header, 0) < HEADER_LENGTH || header.getLong(0) != MAGIC || header.getInt(12) != ENTRY_LENGTH) {
+					throw new IOException(f.getName() + " is not a segment file.");
+				}
+				
+				this.count = header.getInt(8);
+				long[] bits = new long[header.getInt(16)];
+				this.fences = new long[header.getInt(20)];
+				
+				ByteBuffer footer = ByteBuffer.allocate((bits.length + fences.length) * 8);
+				readFully(channel, footer, header.getLong(24));
+				footer.flip();
+				footer.asLongBuffer().get(bits).get(fences);
+				this.bloom = new BloomFilter(bits);
+				
+				ByteBuffer last = ByteBuffer.allocate(8);
+				if (count > 0) {
+					readFully(channel, last, HEADER_LENGTH + (long) (count - 1) * ENTRY_LENGTH);
+				}
+				this.lastKey = count > 0 ? last.getLong(0) : 0;
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+		
+		/*
+		 * Writes a segment from a sorted source of entries, beside its final name, then
+		 * moves it into place, replacing any segment with the same number.
+		 * 
+		 * @param directory the directory
+		 * @param number the segment's number
+		 * @param source the entries, in account number order, each account once
+		 * @param expected at least the number of entries, to size the bloom filter
+		 * @return the segment, open
+		 * @throws IOException
+		 */
+		
+		private static Segment write(File directory, int number, Cursor source, int expected) throws IOException {
+			File temp = new File(directory, name(number, SEGMENT) + ".tmp");
+			BloomFilter bloom = new BloomFilter(expected);
+			long[] fences = new long[(expected + BLOCK - 1) / BLOCK];
+			int count = 0;
+			
+			try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer buffer = ByteBuffer.allocate(BLOCK * ENTRY_LENGTH);
+				long position = HEADER_LENGTH;
+				
+				while (source.advance()) {
+					if (count % BLOCK == 0) {
+						fences[count / BLOCK] = source.key;
+					}
+					bloom.add(source.key);
+					buffer.putLong(source.key).put(source.record);
+					count++;
+					
+					if (!buffer.hasRemaining()) {
+						buffer.flip();
+						position += writeFully(out, buffer, position);
+						buffer.clear();
+					}
+				}
+				buffer.flip();
+				position += writeFully(out, buffer, position);
+				
+				long[] bits = bloom.getBits();
+				int blocks = (count + BLOCK - 1) / BLOCK;
+				ByteBuffer footer = ByteBuffer.allocate((bits.length + blocks) * 8);
+				footer.asLongBuffer().put(bits).put(fences, 0, blocks);
+				writeFully(out, footer, position);
+				
+				ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+				header.putLong(MAGIC).putInt(count).putInt(ENTRY_LENGTH).putInt(bits.length).putInt(blocks).putLong(position);
+				header.flip();
+				writeFully(out, header, 0);
+				out.force(true);
+			}
+			
+			File f = new File(directory, name(number, SEGMENT));
+			Files.move(temp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			
+			return new Segment(f, number);
+		}
+		
+		/*
+		 * Finds an account's record, reading at most one block.
+		 * 
+		 * @param accountNumber the account number
+		 * @param buffer a buffer of at least one block
+		 * @return the record, or null if the segment doesn't have the account
+		 * @throws IOException
+		 */
+		
+		private byte[] find(long accountNumber, ByteBuffer buffer) throws IOException {
+			if (!bloom.mightContain(accountNumber)) {
+				return null;
+			}
+			
+			int b = Arrays.binarySearch(fences, accountNumber);
+			if (b < 0) {
+				b = -b - 2;							// the block before the insertion point
+			}
+			if (b < 0) {
+				return null;
+			}
+			
+			int entries = Math.min(BLOCK, count - b * BLOCK);
+			buffer.clear();
+			buffer.limit(entries * ENTRY_LENGTH);
+			readFully(channel, buffer, HEADER_LENGTH + (long) b * BLOCK * ENTRY_LENGTH);
+			
+			int lo = 0;
+			int hi = entries - 1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				long key = buffer.getLong(mid * ENTRY_LENGTH);
+				
+				if (key < accountNumber) {
+					lo = mid + 1;
+				} else if (key > accountNumber) {
+					hi = mid - 1;
+				} else {
+					byte[] record = new byte[Database.RECORD_LENGTH];
+					buffer.position(mid * ENTRY_LENGTH + 8);
+					buffer.get(record);
+					return record;
+				}
+			}
+			
+			return null;
+		}
+		
+		/*
+		 * Closes the segment's file.
+		 * 
+		 * @throws IOException
+		 */
+		
+		private void close() throws IOException {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * A position in a sorted source of entries. Sources are ranked from newest to oldest,
+	 * so that when two have the same account, the newer record wins.
+	 */
+	
+	private abstract static class Cursor {
+		
+		protected int rank;
+		protected long key;
+		protected byte[] record;
+		
+		private Cursor(int rank) {
+			this.rank = rank;
+		}
+		
+		/*
+		 * Moves to the next entry.
+		 * 
+		 * @return true if there was one, false if the source is exhausted
+		 * @throws IOException
+		 */
+		
+		abstract boolean advance() throws IOException;
+	}
+	
+	/**
+	 * Walks a memtable.
+	 */
+	
+	private static class MapCursor extends Cursor {
+		
+		private Iterator<Map.Entry<Long, byte[]>> entries;
+		
+		private MapCursor(TreeMap<Long, byte[]> map, int rank) {
+			super(rank);
+			this.entries = map.entrySet().iterator();
+		}
+		
+		@Override
+		boolean advance() {
+			if (!entries.hasNext()) {
+				return false;
+			}
+			
+			Map.Entry<Long, byte[]> entry = entries.next();
+			key = entry.getKey();
+			record = entry.getValue();
+			return true;
+		}
+	}
+	
+	/**
+	 * Walks a segment file, a block at a time.
+	 */
+	
+	private static class SegmentCursor extends Cursor {
+		
+		private Segment segment;
+		private ByteBuffer buffer;
+		private int index;
+		
+		private SegmentCursor(Segment segment, int rank) {
+			super(rank);
+			this.segment = segment;
+			this.buffer = ByteBuffer.allocate(BLOCK * ENTRY_LENGTH);
+			this.buffer.limit(0);
+		}
+		
+		@Override
+		boolean advance() throws IOException {
+			if (index == segment.count) {
+				return false;
+			}
+			
+			if (!buffer.hasRemaining()) {
+				buffer.clear();
+				buffer.limit(Math.min(BLOCK, segment.count - index) * ENTRY_LENGTH);
+				readFully(segment.channel, buffer, HEADER_LENGTH + (long) index * ENTRY_LENGTH);
+				buffer.flip();
+			}
+			
+			key = buffer.getLong();
+			record = new byte[Database.RECORD_LENGTH];
+			buffer.get(record);
+			index++;
+			return true;
+		}
+	}
+	
+	/**
+	 * Merges sources into one, in account number order, keeping only the newest record
+	 * of each account.
+	 */
+	
+	private static class MergeCursor extends Cursor {
+		
+		private PriorityQueue<Cursor> queue;
+		
+		private MergeCursor(List<Cursor> sources) throws IOException {
+			super(0);
+			this.queue = new PriorityQueue<Cursor>(Math.max(1, sources.size()), (a, b) -> a.key != b.key ? Long.compare(a.key, b.key) : Integer.compare(a.rank, b.rank));
+			
+			for (Cursor source : sources) {
+				if (source.advance()) {
+					queue.add(source);
+				}
+			}
+		}
+		
+		@Override
+		boolean advance() throws IOException {
+			Cursor newest = queue.poll();
+			
+			if (newest == null) {
+				return false;
+			}
+			
+			key = newest.key;
+			record = newest.record;
+			if (newest.advance()) {
+				queue.add(newest);
+			}
+			
+			while (!queue.isEmpty() && queue.peek().key == key) {
+				Cursor older = queue.poll();
+				if (older.advance()) {
+					queue.add(older);
+				}
+			}
+			
+			return true;
+		}
+	}
+}
@@ -0,0 +1,790 @@
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * The OffHeapLedger class stores accounts outside of the Java heap, one packed column per
+ * field (struct-of-arrays) in direct ByteBuffers. Numbers are stored as binary values, the
+ * balance in cents, the state as an index into User.STATE_ABBREVIATIONS, and text fields as
+ * fixed-width ISO-8859-1 bytes. An open-addressing hash table, also off-heap, maps account
+ * numbers to slots.
+ * 
+ * Apart from a handful of buffer objects, the heap cost of the ledger does not depend on
+ * the number of accounts. Objects are only created on demand: copy() materializes a
+ * detached BankAccount, and view() returns a LedgerAccount flyweight that reads and writes
+ * the columns directly and can be moved from slot to slot.
+ */
+
+public class OffHeapLedger {
+	
+	public static final int LAST_NAME_WIDTH = RecordLayout.CURRENT.getWidth(RecordLayout.LAST_NAME);
+	public static final int FIRST_NAME_WIDTH = RecordLayout.CURRENT.getWidth(RecordLayout.FIRST_NAME);
+	public static final int STREET_ADDRESS_WIDTH = RecordLayout.CURRENT.getWidth(RecordLayout.STREET_ADDRESS);
+	public static final int CITY_WIDTH = RecordLayout.CURRENT.getWidth(RecordLayout.CITY);
+	
+	private volatile Columns columns;
+	private int size;
+	
+	/**
+	 * Constructs an empty ledger.
+	 * 
+	 * @param capacity the number of accounts to allocate room for
+	 */
+	
+	public OffHeapLedger(int capacity) {
+		this.columns = new Columns(Math.max(16, capacity));
+		this.size = 0;
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the number of accounts in the ledger.
+	 * 
+	 * @return size
+	 */
+	
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * Retrieves the account number in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return accountNumber
+	 */
+	
+	public long getAccountNumber(int slot) {
+		return columns.numbers.getLong(slot * 8);
+	}
+	
+	/**
+	 * Retrieves the account status in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return status
+	 */
+	
+	public char getStatus(int slot) {
+		return (char) columns.statuses.get(slot);
+	}
+	
+	/**
+	 * Retrieves the balance in a slot, in cents.
+	 * 
+	 * @param slot the slot
+	 * @return balance
+	 */
+	
+	public long getBalanceCents(int slot) {
+		return columns.balances.getLong(slot * 8);
+	}
+	
+	/**
+	 * Retrieves the version of the account in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return version
+	 */
+	
+	public long getVersion(int slot) {
+		return columns.versions.getLong(slot * 8);
+	}
+	
+	/**
+	 * Retrieves the PIN in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return pin, or User.REDACTED_PIN
+	 */
+	
+	public int getPIN(int slot) {
+		return columns.pins.getShort(slot * 2);
+	}
+	
+	/**
+	 * Retrieves the date of birth in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return dob
+	 */
+	
+	public int getDOB(int slot) {
+		return columns.dobs.getInt(slot * 4);
+	}
+	
+	/**
+	 * Retrieves the phone number in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return phone
+	 */
+	
+	public long getPhone(int slot) {
+		return columns.phones.getLong(slot * 8);
+	}
+	
+	/**
+	 * Retrieves the last name in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return lastName
+	 */
+	
+	public String getLastName(int slot) {
+		return readText(columns.lastNames, LAST_NAME_WIDTH, slot);
+	}
+	
+	/**
+	 * Retrieves the first name in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return firstName
+	 */
+	
+	public String getFirstName(int slot) {
+		return readText(columns.firstNames, FIRST_NAME_WIDTH, slot);
+	}
+	
+	/**
+	 * Retrieves the street address in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return streetAddress
+	 */
+	
+	public String getStreetAddress(int slot) {
+		return readText(columns.streets, STREET_ADDRESS_WIDTH, slot);
+	}
+	
+	/**
+	 * Retrieves the city in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return city
+	 */
+	
+	public String getCity(int slot) {
+		return readText(columns.cities, CITY_WIDTH, slot);
+	}
+	
+	/**
+	 * Retrieves the state of an account as an index into User.STATE_ABBREVIATIONS.
+	 * 
+	 * @param slot the slot
+	 * @return the state ordinal, or -1 if unknown
+	 */
+	
+	public int getStateOrdinal(int slot) {
+		return columns.states.get(slot);
+	}
+	
+	/**
+	 * Retrieves the state abbreviation in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return state
+	 */
+	
+	public String getState(int slot) {
+		int ordinal = getStateOrdinal(slot);
+		
+		return ordinal < 0 ? "" : User.STATE_ABBREVIATIONS[ordinal].toUpperCase();
+	}
+	
+	/**
+	 * Retrieves the postal code of an account as a number.
+	 * 
+	 * @param slot the slot
+	 * @return the postal code, or -1 if it is not numeric
+	 */
+	
+	public int getZipCode(int slot) {
+		return columns.zips.getInt(slot * 4);
+	}
+	
+	/**
+	 * Retrieves the postal code in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return zip
+	 */
+	
+	public String getZip(int slot) {
+		int zip = getZipCode(slot);
+		
+		return zip < 0 ? "" : String.format("%05d", zip);
+	}
+	
+	/**
+	 * Updates the account status in a slot.
+	 * 
+	 * @param slot the slot
+	 * @param status the new status
+	 */
+	
+	public synchronized void setStatus(int slot, char status) {
+		columns.statuses.put(slot, (byte) status);
+	}
+	
+	/**
+	 * Updates the balance in a slot.
+	 * 
+	 * @param slot the slot
+	 * @param cents the new balance, in cents
+	 */
+	
+	public synchronized void setBalanceCents(int slot, long cents) {
+		columns.balances.putLong(slot * 8, cents);
+	}
+	
+	/**
+	 * Updates the version of the account in a slot.
+	 * 
+	 * @param slot the slot
+	 * @param version the new version
+	 */
+	
+	public synchronized void setVersion(int slot, long version) {
+		columns.versions.putLong(slot * 8, version);
+	}
+	
+	/**
+	 * Updates the PIN in a slot.
+	 * 
+	 * @param slot the slot
+	 * @param pin the new PIN
+	 */
+	
+	public synchronized void setPIN(int slot, int pin) {
+		columns.pins.putShort(slot * 2, (short) pin);
+	}
+	
+	/**
+	 * Updates the phone number in a slot.
+	 * 
+	 * @param slot the slot
+	 * @param phone the new phone number
+	 */
+	
+	public synchronized void setPhone(int slot, long phone) {
+		columns.phones.putLong(slot * 8, phone);
+	}
+	
+	/**
+	 * Updates the street address in a slot.
+	 * 
+	 * @param slot the slot
+	 * @param streetAddress the new street address
+	 */
+	
+	public synchronized void setStreetAddress(int slot, String streetAddress) {
+		writeText(columns.streets, STREET_ADDRESS_WIDTH, slot, streetAddress);
+	}
+	
+	/**
+	 * Updates the city in a slot.
+	 * 
+	 * @param slot the slot
+	 * @param city the new city
+	 */
+	
+	public synchronized void setCity(int slot, String city) {
+		writeText(columns.cities, CITY_WIDTH, slot, city);
+	}
+	
+	/**
+	 * Updates the state in a slot.
+	 * 
+	 * @param slot the slot
+	 * @param state the new state, by name or abbreviation
+	 */
+	
+	public synchronized void setState(int slot, String state) {
+		columns.states.put(slot, (byte) stateOrdinal(state));
+	}
+	
+	/**
+	 * Updates the postal code in a slot.
+	 * 
+	 * @param slot the slot
+	 * @param zip the new postal code
+	 */
+	
+	public synchronized void setZip(int slot, String zip) {
+		columns.zips.putInt(slot * 4, zipCode(zip, 0, zip.length()));
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Finds the slot holding an account.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the slot, or -1 if the account is not in the ledger
+	 */
+	
+	public synchronized int find(long accountNumber) {
+		Columns c = columns;
+		int mask = c.index.capacity() - 1;
+		
+		for (int i = hash(accountNumber) & mask; ; i = (i + 1) & mask) {
+			int entry = c.index.get(i);
+			
+			if (entry == 0) {
+				return -1;
+			} else if (c.numbers.getLong((entry - 1) * 8) == accountNumber) {
+				return entry - 1;
+			}
+		}
+	}
+	
+	/**
+	 * Appends an account given as a fixed-width record in any RecordLayout, parsing it
+	 * straight into the columns without creating any intermediate objects.
+	 * 
+	 * @param record the account string
+	 * @return the slot the account was stored in
+	 */
+	
+	public synchronized int append(CharSequence record) {
+		RecordLayout layout = RecordLayout.of(record);
+		int slot = reserve();
+		Columns c = columns;
+		
+		c.numbers.putLong(slot * 8, parseLong(record, layout, RecordLayout.ACCOUNT_NUMBER));
+		c.pins.putShort(slot * 2, (short) (record.charAt(layout.getOffset(RecordLayout.PIN)) == '*' ? User.REDACTED_PIN : (int) parseLong(record, layout, RecordLayout.PIN)));
+		c.balances.putLong(slot * 8, parseCents(record, layout.getOffset(RecordLayout.BALANCE), layout.getOffset(RecordLayout.BALANCE) + layout.getWidth(RecordLayout.BALANCE)));
+		copyText(record, layout, RecordLayout.LAST_NAME, c.lastNames, LAST_NAME_WIDTH, slot);
+		copyText(record, layout, RecordLayout.FIRST_NAME, c.firstNames, FIRST_NAME_WIDTH, slot);
+		c.dobs.putInt(slot * 4, (int) parseLong(record, layout, RecordLayout.DOB));
+		c.phones.putLong(slot * 8, parseLong(record, layout, RecordLayout.PHONE));
+		copyText(record, layout, RecordLayout.STREET_ADDRESS, c.streets, STREET_ADDRESS_WIDTH, slot);
+		copyText(record, layout, RecordLayout.CITY, c.cities, CITY_WIDTH, slot);
+		int state = layout.getOffset(RecordLayout.STATE);
+		c.states.put(slot, (byte) stateOrdinal(record.subSequence(state, state + layout.getWidth(RecordLayout.STATE)).toString().trim()));
+		int zip = layout.getOffset(RecordLayout.ZIP);
+		c.zips.putInt(slot * 4, zipCode(record, zip, zip + layout.getWidth(RecordLayout.ZIP)));
+		c.statuses.put(slot, (byte) record.charAt(layout.getOffset(RecordLayout.STATUS)));
+		c.versions.putLong(slot * 8, parseLong(record, layout, RecordLayout.VERSION));
+		
+		index(slot);
+		
+		return slot;
+	}
+	
+	/**
+	 * Appends an account.
+	 * 
+	 * @param account the account
+	 * @return the slot the account was stored in
+	 */
+	
+	public synchronized int append(BankAccount account) {
+		int slot = reserve();
+		
+		columns.numbers.putLong(slot * 8, account.getAccountNumber());
+		set(slot, account);
+		index(slot);
+		
+		return slot;
+	}
+	
+	/**
+	 * Overwrites the slot holding an account with its current state.
+	 * 
+	 * @param slot the slot
+	 * @param account the account
+	 */
+	
+	public synchronized void set(int slot, BankAccount account) {
+		Columns c = columns;
+		User user = account.getUser();
+		
+		c.statuses.put(slot, (byte) account.getStatus());
+		c.versions.putLong(slot * 8, account.getVersion());
+		c.balances.putLong(slot * 8, Math.round(account.getBalance() * 100));
+		c.pins.putShort(slot * 2, (short) user.getPIN());
+		c.dobs.putInt(slot * 4, user.getDOB());
+		c.phones.putLong(slot * 8, user.getPhone());
+		writeText(c.lastNames, LAST_NAME_WIDTH, slot, user.getLastName());
+		writeText(c.firstNames, FIRST_NAME_WIDTH, slot, user.getFirstName());
+		writeText(c.streets, STREET_ADDRESS_WIDTH, slot, user.getStreetAddress());
+		writeText(c.cities, CITY_WIDTH, slot, user.getCity());
+		c.states.put(slot, (byte) stateOrdinal(user.getState()));
+		c.zips.putInt(slot * 4, zipCode(user.getZip(), 0, user.getZip().length()));
+	}
+	
+	/**
+	 * Materializes an account as ordinary, detached objects.
+	 * 
+	 * @param slot the slot
+	 * @return a BankAccount that is not backed by the ledger
+	 */
+	
+	public synchronized BankAccount copy(int slot) {
+		BankAccount account = new BankAccount(
+			getStatus(slot),
+			getAccountNumber(slot),
+			getBalanceCents(slot) / 100.0,
+			new User(
+				getPIN(slot),
+				getDOB(slot),
+				getPhone(slot),
+				getFirstName(slot),
+				getLastName(slot),
+				getStreetAddress(slot),
+				getCity(slot),
+				getState(slot),
+				getZip(slot)
+			)
+		);
+		account.setVersion(getVersion(slot));
+		
+		return account;
+	}
+	
+	/**
+	 * Creates a flyweight view of a slot. Move it with LedgerAccount.moveTo to visit other
+	 * slots without allocating.
+	 * 
+	 * @param slot the slot
+	 * @return a view backed by the ledger
+	 */
+	
+	public LedgerAccount view(int slot) {
+		return new LedgerAccount(this, slot);
+	}
+	
+	/**
+	 * Writes the fixed-width record for a slot in the current RecordLayout, the same format
+	 * as BankAccount.toString.
+	 * 
+	 * @param slot the slot
+	 * @param sb the builder to append to
+	 */
+	
+	public void appendRecord(int slot, StringBuilder sb) {
+		RecordLayout layout = RecordLayout.CURRENT;
+		Columns c = columns;
+		
+		pad(sb, c.numbers.getLong(slot * 8), layout.getWidth(RecordLayout.ACCOUNT_NUMBER), '0');
+		int pin = c.pins.getShort(slot * 2);
+		if (pin == User.REDACTED_PIN) {
+			sb.append("****");
+		} else {
+			pad(sb, pin, layout.getWidth(RecordLayout.PIN), '0');
+		}
+		
+		int start = sb.length();
+		long cents = c.balances.getLong(slot * 8);
+		sb.append(cents / 100).append('.');
+		pad(sb, cents % 100, 2, '0');
+		while (sb.length() - start < layout.getWidth(RecordLayout.BALANCE)) sb.append(' ');
+		
+		appendText(sb, c.lastNames, LAST_NAME_WIDTH, slot);
+		appendText(sb, c.firstNames, FIRST_NAME_WIDTH, slot);
+		pad(sb, c.dobs.getInt(slot * 4), layout.getWidth(RecordLayout.DOB), ' ');
+		pad(sb, c.phones.getLong(slot * 8), layout.getWidth(RecordLayout.PHONE), ' ');
+		appendText(sb, c.streets, STREET_ADDRESS_WIDTH, slot);
+		appendText(sb, c.cities, CITY_WIDTH, slot);
+		
+		int state = c.states.get(slot);
+		sb.append(state < 0 ? "  " : User.STATE_ABBREVIATIONS[state].toUpperCase());
+		int zip = c.zips.getInt(slot * 4);
+		if (zip < 0) {
+			sb.append("     ");
+		} else {
+			pad(sb, zip, layout.getWidth(RecordLayout.ZIP), '0');
+		}
+		sb.append((char) c.statuses.get(slot));
+		pad(sb, c.versions.getLong(slot * 8), layout.getWidth(RecordLayout.VERSION), '0');
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Claims the next slot, doubling every column (and rebuilding the index) when full.
+	 * 
+	 * @return the new slot
+	 */
+	
+	private int reserve() {
+		if (size == columns.capacity) {
+			Columns grown = new Columns(columns.capacity * 2);
+			grown.copyFrom(columns, size);
+			
+			for (int slot = 0; slot < size; slot++) {
+				insert(grown, slot);
+			}
+			columns = grown;
+		}
+		
+		return size++;
+	}
+	
+	/*
+	 * Adds a slot to the account number index.
+	 * 
+	 * @param slot the slot
+	 */
+	
+	private void index(int slot) {
+		insert(columns, slot);
+	}
+	
+	/*
+	 * Adds a slot to the index of the given columns, keeping the first slot seen for
+	 * any duplicated account number.
+	 * 
+	 * @param c the columns
+	 * @param slot the slot
+	 */
+	
+	private static void insert(Columns c, int slot) {
+		long accountNumber = c.numbers.getLong(slot * 8);
+		int mask = c.index.capacity() - 1;
+		
+		for (int i = hash(accountNumber) & mask; ; i = (i + 1) & mask) {
+			int entry = c.index.get(i);
+			
+			if (entry == 0) {
+				c.index.put(i, slot + 1);
+				return;
+			} else if (c.numbers.getLong((entry - 1) * 8) == accountNumber) {
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * Spreads the bits of an account number across the index.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the hash
+	 */
+	
+	private static int hash(long accountNumber) {
+		long h = accountNumber * 0x9E3779B97F4A7C15L;
+		
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	/*
+	 * Parses an unsigned number field, ignoring spaces. A field the layout doesn't have
+	 * is 0.
+	 */
+	
+	private static long parseLong(CharSequence s, RecordLayout layout, int field) {
+		int from = layout.getOffset(field);
+		int to = from + layout.getWidth(field);
+		long value = 0;
+		
+		for (int i = from; i < to; i++) {
+			char ch = s.charAt(i);
+			
+			if (ch >= '0' && ch <= '9') {
+				value = value * 10 + (ch - '0');
+			}
+		}
+		
+		return value;
+	}
+	
+	/*
+	 * Parses a dollar amount such as "123.45" into cents.
+	 */
+	
+	private static long parseCents(CharSequence s, int from, int to) {
+		long cents = 0;
+		int decimals = -1;
+		
+		for (int i = from; i < to && decimals < 2; i++) {
+			char ch = s.charAt(i);
+			
+			if (ch == '.') {
+				decimals = 0;
+			} else if (ch >= '0' && ch <= '9') {
+				cents = cents * 10 + (ch - '0');
+				if (decimals >= 0) decimals++;
+			}
+		}
+		
+		for (int d = Math.max(decimals, 0); d < 2; d++) {
+			cents *= 10;
+		}
+		
+		return cents;
+	}
+	
+	/*
+	 * Parses a postal code, returning -1 unless it is exactly five digits.
+	 */
+	
+	private static int zipCode(CharSequence s, int from, int to) {
+		if (to - from != 5) return -1;
+		
+		int zip = 0;
+		for (int i = from; i < to; i++) {
+			char ch = s.charAt(i);
+			
+			if (ch < '0' || ch > '9') return -1;
+			zip = zip * 10 + (ch - '0');
+		}
+		
+		return zip;
+	}
+	
+	/*
+	 * Looks up a state's index in User.STATE_ABBREVIATIONS from its name or abbreviation.
+	 */
+	
+	private static int stateOrdinal(String state) {
+		if (state == null) return -1;
+		
+		int ordinal = Arrays.asList(User.STATE_ABBREVIATIONS).indexOf(state.toLowerCase());
+		if (ordinal < 0) {
+			ordinal = Arrays.asList(User.STATES).indexOf(state.toLowerCase());
+		}
+		
+		return ordinal;
+	}
+	
+	/*
+	 * Writes a space-padded, truncated text field.
+	 */
+	
+	private static void writeText(ByteBuffer column, int width, int slot, String text) {
+		int base = slot * width;
+		int length = text == null ? 0 : Math.min(text.length(), width);
+		
+		for (int i = 0; i < width; i++) {
+			char ch = i < length ? text.charAt(i) : ' ';
+			column.put(base + i, (byte) (ch < 256 ? ch : '?'));
+		}
+	}
+	
+	/*
+	 * Copies a text field straight from a record, padding or cutting it to the column's
+	 * width.
+	 */
+	
+	private static void copyText(CharSequence record, RecordLayout layout, int field, ByteBuffer column, int width, int slot) {
+		int offset = layout.getOffset(field);
+		int length = Math.min(width, layout.getWidth(field));
+		int base = slot * width;
+		
+		for (int i = 0; i < width; i++) {
+			char ch = i < length ? record.charAt(offset + i) : ' ';
+			column.put(base + i, (byte) (ch < 256 ? ch : '?'));
+		}
+	}
+	
+	/*
+	 * Reads a text field, trimming the padding.
+	 */
+	
+	private static String readText(ByteBuffer column, int width, int slot) {
+		int base = slot * width;
+		int from = 0;
+		int to = width;
+		
+		while (from < to && column.get(base + from) == ' ') from++;
+		while (to > from && column.get(base + to - 1) == ' ') to--;
+		
+		char[] chars = new char[to - from];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) (column.get(base + from + i) & 0xFF);
+		}
+		
+		return new String(chars);
+	}
+	
+	/*
+	 * Appends a text field with its padding.
+	 */
+	
+	private static void appendText(StringBuilder sb, ByteBuffer column, int width, int slot) {
+		int base = slot * width;
+		
+		for (int i = 0; i < width; i++) {
+			sb.append((char) (column.get(base + i) & 0xFF));
+		}
+	}
+	
+	/*
+	 * Appends a non-negative number, left-padded to a width.
+	 */
+	
+	private static void pad(StringBuilder sb, long value, int width, char padding) {
+		int start = sb.length();
+		
+		sb.append(value);
+		while (sb.length() - start < width) {
+			sb.insert(start, padding);
+		}
+	}
+	
+	/*
+	 * One generation of column storage. Replaced wholesale when the ledger grows.
+	 */
+	
+	private static class Columns {
+		private final int capacity;
+		private final ByteBuffer numbers;
+		private final ByteBuffer statuses;
+		private final ByteBuffer versions;
+		private final ByteBuffer balances;
+		private final ByteBuffer pins;
+		private final ByteBuffer dobs;
+		private final ByteBuffer phones;
+		private final ByteBuffer lastNames;
+		private final ByteBuffer firstNames;
+		private final ByteBuffer streets;
+		private final ByteBuffer cities;
+		private final ByteBuffer states;
+		private final ByteBuffer zips;
+		private final IntBuffer index;
+		
+		private Columns(int capacity) {
+			this.capacity = capacity;
+			this.numbers = ByteBuffer.allocateDirect(capacity * 8);
+			this.statuses = ByteBuffer.allocateDirect(capacity);
+			this.versions = ByteBuffer.allocateDirect(capacity * 8);
+			this.balances = ByteBuffer.allocateDirect(capacity * 8);
+			this.pins = ByteBuffer.allocateDirect(capacity * 2);
+			this.dobs = ByteBuffer.allocateDirect(capacity * 4);
+			this.phones = ByteBuffer.allocateDirect(capacity * 8);
+			this.lastNames = ByteBuffer.allocateDirect(capacity * LAST_NAME_WIDTH);
+			this.firstNames = ByteBuffer.allocateDirect(capacity * FIRST_NAME_WIDTH);
+			this.streets = ByteBuffer.allocateDirect(capacity * STREET_ADDRESS_WIDTH);
+			this.cities = ByteBuffer.allocateDirect(capacity * CITY_WIDTH);
+			this.states = ByteBuffer.allocateDirect(capacity);
+			this.zips = ByteBuffer.allocateDirect(capacity * 4);
+			this.index = ByteBuffer.allocateDirect(Integer.highestOneBit(capacity * 2 - 1) * 2 * 4).asIntBuffer();
+		}
+		
+		private void copyFrom(Columns other, int size) {
+			copy(other.numbers, numbers, size * 8);
+			copy(other.statuses, statuses, size);
+			copy(other.versions, versions, size * 8);
+			copy(other.balances, balances, size * 8);
+			copy(other.pins, pins, size * 2);
+			copy(other.dobs, dobs, size * 4);
+			copy(other.phones, phones, size * 8);
+			copy(other.lastNames, lastNames, size * LAST_NAME_WIDTH);
+			copy(other.firstNames, firstNames, size * FIRST_NAME_WIDTH);
+			copy(other.streets, streets, size * STREET_ADDRESS_WIDTH);
+			copy(other.cities, cities, size * CITY_WIDTH);
+			copy(other.states, states, size);
+			copy(other.zips, zips, size * 4);
+		}
+		
+		private static void copy(ByteBuffer from, ByteBuffer to, int length) {
+			ByteBuffer source = from.duplicate();
+			source.position(0).limit(length);
+			to.duplicate().put(source);
+		}
+	}
+}
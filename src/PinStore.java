@@ -0,0 +1,241 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * The PinStore class keeps salted PIN hashes in a sidecar file next to the ledger, so
+ * PINs never have to be stored in the clear. The file is append-only; each line holds
+ * an account number, a salt and a PBKDF2 hash, and later lines replace earlier ones.
+ * Account numbers are as wide as the current record layout makes them; lines written
+ * under other layouts are told apart by their length.
+ * 
+ * Other processes sharing the ledger append to the same file. Before a PIN is looked up,
+ * any lines added since the file was last read are read, so PINs enrolled or changed
+ * elsewhere are seen.
+ */
+
+public class PinStore {
+	
+	public static final String EXTENSION = ".pins";
+	public static final int ITERATIONS = 20000;
+	public static final int SALT_LENGTH = 16;
+	public static final int HASH_LENGTH = 32;
+	
+	private String path;
+	private ConcurrentHashMap<Long, byte[]> hashes;
+	private SecureRandom random;			// created on first use; seeding it slows down startup
+	private long length;					// bytes read so far, up to the end of the last complete line
+	private final Object reading;
+	
+	/**
+	 * Constructs a PIN store, loading any hashes already on disk.
+	 * 
+	 * @param path the sidecar file, relative to the working directory
+	 * @throws IOException
+	 */
+	
+	public PinStore(String path) throws IOException {
+		this.path = path;
+		this.hashes = new ConcurrentHashMap<Long, byte[]>();
+		this.length = 0;
+		this.reading = new Object();
+		
+		refresh();
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Determines whether or not an account has a hashed PIN.
+	 * 
+	 * @param accountNumber the account number
+	 * @return true if a hash is on file, false otherwise
+	 */
+	
+	public boolean contains(long accountNumber) {
+		refreshQuietly();
+		
+		return hashes.containsKey(accountNumber);
+	}
+	
+	/**
+	 * Checks a PIN against the stored hash.
+	 * 
+	 * @param accountNumber the account number
+	 * @param pin the PIN to check
+	 * @return true if the PIN matches, false otherwise
+	 */
+	
+	public boolean verify(long accountNumber, int pin) {
+		refreshQuietly();
+		
+		byte[] stored = hashes.get(accountNumber);
+		
+		if (stored == null) {
+			return false;
+		}
+		
+		byte[] salt = new byte[SALT_LENGTH];
+		byte[] expected = new byte[HASH_LENGTH];
+		System.arraycopy(stored, 0, salt, 0, SALT_LENGTH);
+		System.arraycopy(stored, SALT_LENGTH, expected, 0, HASH_LENGTH);
+		
+		return MessageDigest.isEqual(expected, hash(salt, pin));
+	}
+	
+	/**
+	 * Hashes a new PIN for an account with a fresh salt and records it.
+	 * 
+	 * @param accountNumber the account number
+	 * @param pin the new PIN
+	 * @throws IOException
+	 */
+	
+	public synchronized void enroll(long accountNumber, int pin) throws IOException {
+		if (random == null) {
+			random = new SecureRandom();
+		}
+		
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		
+		byte[] stored = new byte[SALT_LENGTH + HASH_LENGTH];
+		System.arraycopy(salt, 0, stored, 0, SALT_LENGTH);
+		System.arraycopy(hash(salt, pin), 0, stored, SALT_LENGTH, HASH_LENGTH);
+		
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(System.getProperty("user.dir") + File.separator + path, true))) {
+			bw.write(String.format("%0" + RecordLayout.CURRENT.getWidth(RecordLayout.ACCOUNT_NUMBER) + "d", accountNumber));
+			bw.write(toHex(stored));
+			bw.newLine();
+		}
+		hashes.put(accountNumber, stored);
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Reads the lines added to the sidecar file since it was last read, if there is one.
+	 * A line still being written is left for the next read. If the file has shrunk, it was
+	 * replaced, and is read again from the start.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private void refresh() throws IOException {
+		File file = new File(System.getProperty("user.dir") + File.separator + path);
+		
+		synchronized (reading) {
+			long available = file.length();
+			
+			if (available == length) {
+				return;
+			} else if (available < length) {
+				length = 0;
+			}
+			
+			try (FileInputStream fis = new FileInputStream(file)) {
+				InputStream in = new BufferedInputStream(fis, 1 << 16);
+				StringBuilder sb = new StringBuilder(RecordLayout.CURRENT.getWidth(RecordLayout.ACCOUNT_NUMBER) + 2 * (SALT_LENGTH + HASH_LENGTH) + 2);
+				long read = length;
+				int b;
+				
+				fis.getChannel().position(length);
+				while ((b = in.read()) != -1) {
+					read++;
+					
+					if (b != '\n') {
+						sb.append((char) b);
+						continue;
+					}
+					
+					String line = sb.toString().trim();
+					int width = line.length() - 2 * (SALT_LENGTH + HASH_LENGTH);
+					if (RecordLayout.forWidth(RecordLayout.ACCOUNT_NUMBER, width) != null) {
+						hashes.put(Long.parseLong(line.substring(0, width)), fromHex(line.substring(width)));
+					}
+					sb.setLength(0);
+					length = read;
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Reads any lines added to the sidecar file, keeping the hashes already read if it
+	 * can't be read just now.
+	 */
+	
+	private void refreshQuietly() {
+		try {
+			refresh();
+		} catch (IOException e) {
+			// unreadable for now; try again on the next lookup
+		}
+	}
+	
+	/*
+	 * Derives the hash of a PIN.
+	 * 
+	 * @param salt the salt
+	 * @param pin the PIN
+	 * @return the derived hash
+	 */
+	
+	private static byte[] hash(byte[] salt, int pin) {
+		char[] digits = String.format("%04d", pin).toCharArray();
+		
+		try {
+			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+			
+			return factory.generateSecret(new PBEKeySpec(digits, salt, ITERATIONS, HASH_LENGTH * 8)).getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("PBKDF2WithHmacSHA256 is not available.", e);
+		}
+	}
+	
+	/*
+	 * Encodes bytes as lowercase hexadecimal.
+	 * 
+	 * @param bytes the bytes to encode
+	 * @return the hexadecimal string
+	 */
+	
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		
+		return sb.toString();
+	}
+	
+	/*
+	 * Decodes a hexadecimal string.
+	 * 
+	 * @param hex the string to decode
+	 * @return the decoded bytes
+	 */
+	
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		
+		return bytes;
+	}
+}
@@ -0,0 +1,474 @@
+/**
+ * The RecordLayout class describes one version of the ledger's fixed-width record: the
+ * width of each field, in order, and so where each one starts. Every layout has a
+ * different total length, so a record's length identifies the layout it was written in,
+ * and a file can hold a mix while it is being upgraded.
+ * 
+ * Records are always written in the current layout, which is V1 unless the atm.layout
+ * system property selects another. To widen a field, add a layout with the new widths
+ * and make it current; records in older layouts are still read, and are rewritten in
+ * the current one as the file is. Writing truncates text that is too long for its field
+ * instead of letting it push the later fields out of place, so every record in a layout
+ * has the same length and can be found by offset.
+ * 
+ * The codec works on characters at the precomputed offsets, without substrings or
+ * regular expressions.
+ * 
+ * Sidecar files that hold account numbers rather than whole records size them by a
+ * layout too. A file of fixed-length lines tells the width of each line's account number
+ * from its length; any other file holds a marker line (see getMarker) before the first
+ * line in each new width, and its lines before any marker are in V1.
+ */
+
+public class RecordLayout {
+	
+	public static final String LAYOUT_PROPERTY = "atm.layout";
+	public static final String MARKER = "#layout ";
+	
+	public static final int ACCOUNT_NUMBER = 0;
+	public static final int PIN = 1;
+	public static final int BALANCE = 2;
+	public static final int LAST_NAME = 3;
+	public static final int FIRST_NAME = 4;
+	public static final int DOB = 5;
+	public static final int PHONE = 6;
+	public static final int STREET_ADDRESS = 7;
+	public static final int CITY = 8;
+	public static final int STATE = 9;
+	public static final int ZIP = 10;
+	public static final int STATUS = 11;
+	public static final int VERSION = 12;
+	
+	public static final RecordLayout LEGACY = new RecordLayout(0, 9, 4, 15, 20, 15, 8, 10, 30, 30, 2, 5, 1, 0);	// 149, before accounts were versioned
+	public static final RecordLayout V1 = new RecordLayout(1, 9, 4, 15, 20, 15, 8, 10, 30, 30, 2, 5, 1, 10);		// 159
+	public static final RecordLayout V2 = new RecordLayout(2, 10, 4, 15, 30, 20, 8, 10, 40, 30, 2, 5, 1, 10);	// 185, wider account numbers, names and streets
+	
+	private static final RecordLayout[] LAYOUTS = { LEGACY, V1, V2 };	// shortest first
+	
+	public static final RecordLayout CURRENT = forVersion(Integer.getInteger(LAYOUT_PROPERTY, 1));
+	
+	private int version;
+	private int[] widths;
+	private int[] offsets;
+	private int length;
+	
+	/*
+	 * Constructs a layout.
+	 * 
+	 * @param version the layout's version
+	 * @param widths the width of each field, in record order
+	 */
+	
+	private RecordLayout(int version, int... widths) {
+		this.version = version;
+		this.widths = widths;
+		this.offsets = new int[widths.length];
+		
+		for (int field = 0; field < widths.length; field++) {
+			offsets[field] = length;
+			length += widths[field];
+		}
+	}
+	
+	/**
+	 * Retrieves the layout with a given version.
+	 * 
+	 * @param version the version
+	 * @return the layout
+	 * @throws IllegalArgumentException if there is no such layout
+	 */
+	
+	public static RecordLayout forVersion(int version) {
+		for (RecordLayout layout : LAYOUTS) {
+			if (layout.version == version) {
+				return layout;
+			}
+		}
+		
+		throw new IllegalArgumentException("Unknown record layout: " + version + ".");
+	}
+	
+	/**
+	 * Retrieves the layout a record was written in: the longest one that fits in it.
+	 * 
+	 * @param record the record, without its line terminator
+	 * @return the layout
+	 * @throws IllegalArgumentException if the record is too short for any layout
+	 */
+	
+	public static RecordLayout of(CharSequence record) {
+		int length = record.length();
+		
+		for (int i = LAYOUTS.length - 1; i >= 0; i--) {
+			if (LAYOUTS[i].length <= length) {
+				return LAYOUTS[i];
+			}
+		}
+		
+		throw new IllegalArgumentException("Record is too short: " + length + " characters.");
+	}
+	
+	/**
+	 * Retrieves the newest layout that gives a field a width.
+	 * 
+	 * @param field the field, such as ACCOUNT_NUMBER
+	 * @param width the width
+	 * @return the layout, or null if no layout gives the field that width
+	 */
+	
+	public static RecordLayout forWidth(int field, int width) {
+		for (int i = LAYOUTS.length - 1; i >= 0; i--) {
+			if (LAYOUTS[i].widths[field] == width) {
+				return LAYOUTS[i];
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Retrieves the layout a marker line names.
+	 * 
+	 * @param line the line, without its line terminator
+	 * @return the layout, or null if the line isn't a marker
+	 * @throws IllegalArgumentException if the marker names an unknown layout
+	 */
+	
+	public static RecordLayout ofMarker(String line) {
+		if (!line.startsWith(MARKER)) {
+			return null;
+		}
+		
+		try {
+			return forVersion(Integer.parseInt(line.substring(MARKER.length()).trim()));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Damaged layout marker: " + line + ".");
+		}
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the layout's version.
+	 * 
+	 * @return version
+	 */
+	
+	public int getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Retrieves the length of a record in this layout, excluding the line terminator.
+	 * 
+	 * @return length
+	 */
+	
+	public int getLength() {
+		return length;
+	}
+	
+	/**
+	 * Retrieves the width of a field.
+	 * 
+	 * @param field the field, such as LAST_NAME
+	 * @return the width, which is 0 for a field the layout doesn't have
+	 */
+	
+	public int getWidth(int field) {
+		return widths[field];
+	}
+	
+	/**
+	 * Retrieves where a field starts in a record.
+	 * 
+	 * @param field the field, such as LAST_NAME
+	 * @return the offset
+	 */
+	
+	public int getOffset(int field) {
+		return offsets[field];
+	}
+	
+	/**
+	 * Retrieves the marker line that puts the lines after it in this layout.
+	 * 
+	 * @return the marker, without a line terminator
+	 */
+	
+	public String getMarker() {
+		return MARKER + version;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Parses an account from a record in this layout.
+	 * 
+	 * @param record the record
+	 * @return the account
+	 * @throws NumberFormatException if a numeric field isn't a number
+	 */
+	
+	public BankAccount parse(CharSequence record) {
+		BankAccount account = new BankAccount(
+			record.charAt(offsets[STATUS]),
+			parseAccountNumber(record),
+			parseCents(record) / 100.0,
+			new User(
+				record.charAt(offsets[PIN]) == '*' ? User.REDACTED_PIN : (int) parseNumber(record, PIN),
+				(int) parseNumber(record, DOB),
+				parseNumber(record, PHONE),
+				parseText(record, FIRST_NAME),
+				parseText(record, LAST_NAME),
+				parseText(record, STREET_ADDRESS),
+				parseText(record, CITY),
+				record.subSequence(offsets[STATE], offsets[STATE] + widths[STATE]).toString(),
+				record.subSequence(offsets[ZIP], offsets[ZIP] + widths[ZIP]).toString()
+			)
+		);
+		account.setVersion(widths[VERSION] == 0 ? 0L : parseNumber(record, VERSION));
+		
+		return account;
+	}
+	
+	/**
+	 * Parses just the account number from a record in this layout.
+	 * 
+	 * @param record the record
+	 * @return the account number
+	 * @throws NumberFormatException if it isn't a number
+	 */
+	
+	public long parseAccountNumber(CharSequence record) {
+		return parseNumber(record, ACCOUNT_NUMBER);
+	}
+	
+	/**
+	 * Formats an account as a record in this layout. Text longer than its field is cut
+	 * short, so the record is always exactly getLength characters.
+	 * 
+	 * @param account the account
+	 * @return the record
+	 * @throws IllegalArgumentException if a number is too wide for its field
+	 */
+	
+	public String format(BankAccount account) {
+		StringBuilder sb = new StringBuilder(length);
+		
+		format(account, sb);
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Appends an account to a builder as a record in this layout.
+	 * 
+	 * @param account the account
+	 * @param sb the builder
+	 * @throws IllegalArgumentException if a number is too wide for its field
+	 */
+	
+	public void format(BankAccount account, StringBuilder sb) {
+		User user = account.getUser();
+		
+		appendNumber(sb, account.getAccountNumber(), ACCOUNT_NUMBER, '0');
+		if (user.getPIN() == User.REDACTED_PIN) {
+			appendText(sb, "****", PIN, false);
+		} else {
+			appendNumber(sb, user.getPIN(), PIN, '0');
+		}
+		appendBalance(sb, Math.round(account.getBalance() * 100));
+		appendText(sb, user.getLastName(), LAST_NAME, true);
+		appendText(sb, user.getFirstName(), FIRST_NAME, true);
+		appendNumber(sb, user.getDOB(), DOB, ' ');
+		appendNumber(sb, user.getPhone(), PHONE, ' ');
+		appendText(sb, user.getStreetAddress(), STREET_ADDRESS, true);
+		appendText(sb, user.getCity(), CITY, true);
+		appendText(sb, user.getState(), STATE, false);
+		appendText(sb, user.getZip(), ZIP, false);
+		sb.append(account.getStatus());
+		if (widths[VERSION] > 0) {
+			appendNumber(sb, account.getVersion(), VERSION, '0');
+		}
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Parses a non-negative whole number field, which may be padded with leading spaces.
+	 * 
+	 * @param record the record
+	 * @param field the field
+	 * @return the number
+	 * @throws NumberFormatException if the field holds anything else
+	 */
+	
+	private long parseNumber(CharSequence record, int field) {
+		int i = offsets[field];
+		int end = i + widths[field];
+		long value = 0;
+		
+		while (i < end && record.charAt(i) == ' ') {
+			i++;
+		}
+		if (i == end) {
+			throw new NumberFormatException("Field " + field + " is blank.");
+		}
+		
+		for (; i < end; i++) {
+			char ch = record.charAt(i);
+			
+			if (ch < '0' || ch > '9') {
+				throw new NumberFormatException("Field " + field + " is not a number.");
+			}
+			value = value * 10 + (ch - '0');
+		}
+		
+		return value;
+	}
+	
+	/*
+	 * Parses the balance field, a dollar amount such as "123.45" padded with trailing
+	 * spaces, into cents.
+	 * 
+	 * @param record the record
+	 * @return the balance in cents
+	 * @throws NumberFormatException if the field holds anything else
+	 */
+	
+	private long parseCents(CharSequence record) {
+		int i = offsets[BALANCE];
+		int end = i + widths[BALANCE];
+		boolean negative = record.charAt(i) == '-';
+		long cents = 0;
+		int digits = 0;
+		int decimals = -1;
+		
+		for (i += negative ? 1 : 0; i < end && record.charAt(i) != ' '; i++) {
+			char ch = record.charAt(i);
+			
+			if (ch == '.' && decimals < 0) {
+				decimals = 0;
+			} else if (ch >= '0' && ch <= '9' && decimals < 2) {
+				cents = cents * 10 + (ch - '0');
+				digits++;
+				if (decimals >= 0) {
+					decimals++;
+				}
+			} else {
+				throw new NumberFormatException("The balance is not an amount.");
+			}
+		}
+		for (; i < end; i++) {
+			if (record.charAt(i) != ' ') {
+				throw new NumberFormatException("The balance is not an amount.");
+			}
+		}
+		if (digits == 0) {
+			throw new NumberFormatException("The balance is blank.");
+		}
+		
+		for (int d = Math.max(decimals, 0); d < 2; d++) {
+			cents *= 10;
+		}
+		
+		return negative ? -cents : cents;
+	}
+	
+	/*
+	 * Parses a text field, trimming its padding.
+	 * 
+	 * @param record the record
+	 * @param field the field
+	 * @return the text
+	 */
+	
+	private String parseText(CharSequence record, int field) {
+		int from = offsets[field];
+		int to = from + widths[field];
+		
+		while (from < to && record.charAt(from) == ' ') {
+			from++;
+		}
+		while (to > from && record.charAt(to - 1) == ' ') {
+			to--;
+		}
+		
+		return record.subSequence(from, to).toString();
+	}
+	
+	/*
+	 * Appends a non-negative number, right-aligned in its field.
+	 * 
+	 * @param sb the builder
+	 * @param value the number
+	 * @param field the field
+	 * @param padding the character to pad with
+	 * @throws IllegalArgumentException if the number doesn't fit
+	 */
+	
+	private void appendNumber(StringBuilder sb, long value, int field, char padding) {
+		int start = sb.length();
+		
+		sb.append(value);
+		if (value < 0 || sb.length() - start > widths[field]) {
+			throw new IllegalArgumentException("Field " + field + " can't hold " + value + ".");
+		}
+		while (sb.length() - start < widths[field]) {
+			sb.insert(start, padding);
+		}
+	}
+	
+	/*
+	 * Appends the balance with two decimal places, left-aligned in its field.
+	 * 
+	 * @param sb the builder
+	 * @param cents the balance in cents
+	 * @throws IllegalArgumentException if the balance doesn't fit
+	 */
+	
+	private void appendBalance(StringBuilder sb, long cents) {
+		int start = sb.length();
+		long magnitude = Math.abs(cents);
+		
+		if (cents < 0) {
+			sb.append('-');
+		}
+		sb.append(magnitude / 100).append('.');
+		if (magnitude % 100 < 10) {
+			sb.append('0');
+		}
+		sb.append(magnitude % 100);
+		
+		if (sb.length() - start > widths[BALANCE]) {
+			throw new IllegalArgumentException("The balance field can't hold " + cents + " cents.");
+		}
+		while (sb.length() - start < widths[BALANCE]) {
+			sb.append(' ');
+		}
+	}
+	
+	/*
+	 * Appends text, padded to its field with spaces and cut short if it is too long.
+	 * 
+	 * @param sb the builder
+	 * @param text the text, or null for none
+	 * @param field the field
+	 * @param left true to left-align the text, false to right-align it
+	 */
+	
+	private void appendText(StringBuilder sb, String text, int field, boolean left) {
+		int length = text == null ? 0 : Math.min(text.length(), widths[field]);
+		
+		for (int i = length; !left && i < widths[field]; i++) {
+			sb.append(' ');
+		}
+		if (length > 0) {
+			sb.append(text, 0, length);
+		}
+		for (int i = length; left && i < widths[field]; i++) {
+			sb.append(' ');
+		}
+	}
+}
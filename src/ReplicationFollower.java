@@ -0,0 +1,512 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The ReplicationFollower class keeps a standby copy of a ledger in step with a
+ * ReplicationPrimary running in another process on the same machine. Journal entries are
+ * applied to the follower's own Database and sidecars (see ReplicationPrimary.SIDECARS) as
+ * they arrive. The epoch and sequence number applied so far, with the length each
+ * sidecar had then, are kept in a file of their own next to the ledger, so a restarted
+ * follower resumes where it left off, cutting off any lines written after its last saved
+ * entry.
+ * When the primary is unreachable, or either side fails the ReplicationKey handshake, the
+ * follower keeps retrying.
+ * 
+ * A follower can be promoted: it stops following and serves the ATM on its copy of the
+ * ledger, shipping its own commits to any followers of its own. The PIN hashes, daily
+ * totals and transaction log come with the copy, so customers keep their PINs, their
+ * limits and their statements, and the dedup cache is rebuilt from the log as on any
+ * start. A transaction log checkpoint is never shipped; the promoted ATM replays the
+ * whole log the first time.
+ * 
+ * Usage: java ReplicationFollower [ledger file] [primary port] [port once promoted]
+ * 
+ * Commands, one per line on standard input: status, promote, quit.
+ */
+
+public class ReplicationFollower {
+	
+	public static final String EXTENSION = ".repl";
+	public static final int RETRY_MILLIS = 1000;
+	
+	private String path;
+	private int port;
+	private ReplicationKey key;
+	private long[] lengths;
+	private volatile Database db;
+	private long epoch;
+	private volatile long applied;
+	private volatile long primaryHead;
+	private volatile long lastContact;
+	private volatile long lastDelay;
+	private volatile boolean connected;
+	private volatile boolean promoted;
+	private volatile Socket socket;
+	private Thread follower;
+	
+	/**
+	 * Constructs a follower for a ledger file. The file is created empty if it doesn't
+	 * exist, and the follower's progress is read back from its sidecar.
+	 * 
+	 * @param path the ledger file, relative to the working directory
+	 * @param port the loopback port the primary listens on
+	 * @throws IOException
+	 */
+	
+	public ReplicationFollower(String path, int port) throws IOException {
+		this.path = path;
+		this.port = port;
+		this.key = ReplicationKey.load();
+		this.lengths = new long[ReplicationPrimary.SIDECARS.length];
+		this.epoch = 0;
+		this.applied = 0;
+		this.lastDelay = -1;
+		
+		File ledger = file(path);
+		if (!ledger.isFile()) {
+			ledger.createNewFile();
+		}
+		loadState();
+		
+		this.db = new Database(path);
+	}
+	
+	/**
+	 * Main method. Follows a primary until told to promote or quit.
+	 * 
+	 * @param args ledger file, primary port, port once promoted
+	 * @throws Exception
+	 */
+	
+	public static void main(String[] args) throws Exception {
+		String path = args.length > 0 ? args[0] : "accounts-db.txt";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+		int promotedPort = args.length > 2 ? Integer.parseInt(args[2]) : port;
+		
+		ReplicationFollower follower = new ReplicationFollower(path, port);
+		follower.start();
+		System.out.println("Following the primary on port " + port + ". Commands: status, promote, quit.");
+		
+		String command;
+		while ((command = readLine(System.in)) != null) {
+			command = command.trim();
+			
+			if (command.equals("status")) {
+				System.out.println(follower.describe());
+			} else if (command.equals("promote")) {
+				Database db = follower.promote();
+				System.out.println("Promoted at sequence " + follower.getApplied() + ".");
+				
+				ReplicationPrimary primary = new ReplicationPrimary(db, promotedPort);
+				try {
+					new ATM(new AtmService(db), System.in, System.out).run();
+				} finally {
+					primary.close();
+				}
+				return;
+			} else if (command.equals("quit")) {
+				break;
+			} else if (!command.isEmpty()) {
+				System.out.println("Commands: status, promote, quit.");
+			}
+		}
+		
+		follower.promote();
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the sequence number of the last entry applied.
+	 * 
+	 * @return applied
+	 */
+	
+	public long getApplied() {
+		return applied;
+	}
+	
+	/**
+	 * Retrieves how many entries the primary has committed that the follower has yet to
+	 * apply, as of the last frame received.
+	 * 
+	 * @return the lag in entries
+	 */
+	
+	public long getLag() {
+		return Math.max(0, primaryHead - applied);
+	}
+	
+	/**
+	 * Retrieves the time from the last applied entry's commit on the primary to its
+	 * application here.
+	 * 
+	 * @return the delay in milliseconds, or -1 if nothing has been applied yet
+	 */
+	
+	public long getLastDelayMillis() {
+		return lastDelay;
+	}
+	
+	/**
+	 * Determines whether or not the follower is connected to the primary.
+	 * 
+	 * @return true if connected, false otherwise
+	 */
+	
+	public boolean isConnected() {
+		return connected;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Starts following the primary on a background thread.
+	 */
+	
+	public synchronized void start() {
+		follower = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				follow();
+			}
+		}, "replication-follower");
+		follower.setDaemon(true);
+		follower.start();
+	}
+	
+	/**
+	 * Stops following the primary, after any entry being applied has been written, so the
+	 * ledger can be used on its own. This can take up to RETRY_MILLIS if the follower is
+	 * waiting to reconnect.
+	 * 
+	 * @return the follower's database
+	 * @throws InterruptedException
+	 */
+	
+	public synchronized Database promote() throws InterruptedException {
+		promoted = true;
+		
+		Socket socket = this.socket;
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+		
+		if (follower != null) {
+			follower.join();
+		}
+		
+		return db;
+	}
+	
+	/**
+	 * Summarizes the follower's progress and lag.
+	 * 
+	 * @return a one-line summary
+	 */
+	
+	public String describe() {
+		StringBuilder sb = new StringBuilder();
+		
+		sb.append(connected ? "Connected" : "Disconnected");
+		sb.append(String.format(", applied %,d of %,d (%,d behind)", applied, Math.max(applied, primaryHead), getLag()));
+		if (lastDelay >= 0) {
+			sb.append(String.format(", last entry applied %,d ms after commit", lastDelay));
+		}
+		if (lastContact > 0) {
+			sb.append(String.format(", last heard from the primary %,d ms ago", System.currentTimeMillis() - lastContact));
+		}
+		
+		return sb.append('.').toString();
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Connects to the primary and applies what it sends, reconnecting after failures,
+	 * until the follower is promoted.
+	 */
+	
+	private void follow() {
+		while (!promoted) {
+			try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+				this.socket = socket;
+				if (promoted) {
+					break;
+				}
+				
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				
+				socket.setTcpNoDelay(true);
+				key.connectToPrimary(socket, in, out);
+				out.writeLong(epoch);
+				out.writeLong(applied);
+				out.flush();
+				
+				long primaryEpoch = in.readLong();
+				connected = true;
+				
+				while (!promoted) {
+					receive(in, primaryEpoch);
+					out.writeLong(applied);
+					out.flush();
+				}
+			} catch (IOException e) {
+				// the primary is down, the connection dropped, or the handshake failed; try again
+			} finally {
+				connected = false;
+				socket = null;
+			}
+			
+			try {
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * Reads one frame from the primary and applies it.
+	 * 
+	 * @param in the stream from the primary
+	 * @param primaryEpoch the primary's epoch
+	 * @throws IOException
+	 */
+	
+	private void receive(DataInputStream in, long primaryEpoch) throws IOException {
+		byte type = in.readByte();
+		long sequence = in.readLong();
+		long time = in.readLong();
+		String[] records = new String[in.readInt()];
+		for (int i = 0; i < records.length; i++) {
+			records[i] = in.readUTF();
+		}
+		
+		lastContact = System.currentTimeMillis();
+		primaryHead = Math.max(type == ReplicationPrimary.SNAPSHOT ? 0 : primaryHead, sequence);
+		
+		if (type == ReplicationPrimary.SNAPSHOT) {
+			restore(records);
+		} else if (type == ReplicationPrimary.ENTRY) {
+			if (primaryEpoch != epoch || sequence != applied + 1) {
+				throw new IOException("Expected entry " + (applied + 1) + " but received " + sequence + ".");
+			}
+			db.applyRecords(records);
+		}
+		
+		for (int i = 0; i < lengths.length; i++) {
+			receiveSidecar(in, i, in.readBoolean(), in.readLong());
+		}
+		
+		if (type != ReplicationPrimary.HEARTBEAT) {
+			epoch = primaryEpoch;
+			applied = sequence;
+			lastDelay = System.currentTimeMillis() - time;
+			saveState();
+		}
+	}
+	
+	/*
+	 * Reads one sidecar's part of a frame into the follower's copy.
+	 * 
+	 * @param in the stream from the primary
+	 * @param sidecar the sidecar's index in ReplicationPrimary.SIDECARS
+	 * @param replace true to replace the copy, false to append to it
+	 * @param length the number of bytes
+	 * @throws IOException
+	 */
+	
+	private void receiveSidecar(DataInputStream in, int sidecar, boolean replace, long length) throws IOException {
+		String name = path + ReplicationPrimary.SIDECARS[sidecar];
+		
+		if (replace) {
+			File temp = file(name + ".tmp");
+			copy(in, temp, length, false);
+			Files.move(temp.toPath(), file(name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			file(name + TransactionLog.CHECKPOINT_EXTENSION).delete();
+			lengths[sidecar] = length;
+		} else if (length > 0) {
+			copy(in, file(name), length, true);
+			lengths[sidecar] += length;
+		}
+	}
+	
+	/*
+	 * Replaces the ledger with a snapshot from the primary and reopens the database over it.
+	 * 
+	 * @param records every account record
+	 * @throws IOException
+	 */
+	
+	private void restore(String[] records) throws IOException {
+		File ledger = file(path);
+		File temp = file(path + ".tmp");
+		
+		this.db.close();									// so it doesn't merge its accounts back into the snapshot
+		writeLines(path + ".tmp", records, false);
+		Files.move(temp.toPath(), ledger.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		file(path + LedgerIndex.EXTENSION).delete();
+		
+		Database db = new Database(path);
+		db.getLedger();
+		this.db = db;
+	}
+	
+	/*
+	 * Reads the epoch and sequence number applied so far, if the follower has run before,
+	 * and cuts the sidecars back to the lengths they had then; anything after was written
+	 * for an entry that wasn't saved as applied, and will be received again.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private void loadState() throws IOException {
+		File file = file(path + EXTENSION);
+		
+		for (int i = 0; i < lengths.length; i++) {
+			lengths[i] = file(path + ReplicationPrimary.SIDECARS[i]).length();
+		}
+		
+		if (!file.isFile()) {
+			return;
+		}
+		
+		try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+			String[] state = br.readLine().trim().split(" ");
+			
+			epoch = Long.parseLong(state[0]);
+			applied = Long.parseLong(state[1]);
+			for (int i = 0; i < lengths.length && i + 2 < state.length; i++) {
+				lengths[i] = Math.min(lengths[i], Long.parseLong(state[i + 2]));
+			}
+		} catch (RuntimeException e) {
+			epoch = 0;										// unreadable; start from a snapshot
+			applied = 0;
+		}
+		
+		for (int i = 0; i < lengths.length; i++) {
+			String name = path + ReplicationPrimary.SIDECARS[i];
+			
+			if (file(name).length() > lengths[i]) {
+				try (RandomAccessFile sidecar = new RandomAccessFile(file(name), "rw")) {
+					sidecar.setLength(lengths[i]);
+				}
+				file(name + TransactionLog.CHECKPOINT_EXTENSION).delete();
+			}
+		}
+	}
+	
+	/*
+	 * Records the epoch and sequence number applied so far, and the sidecars' lengths.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private void saveState() throws IOException {
+		StringBuilder sb = new StringBuilder().append(epoch).append(' ').append(applied);
+		
+		for (long length : lengths) {
+			sb.append(' ').append(length);
+		}
+		
+		writeLines(path + EXTENSION, new String[] { sb.toString() }, false);
+	}
+	
+	/*
+	 * Copies bytes from a stream to a file.
+	 * 
+	 * @param in the stream
+	 * @param file the file
+	 * @param length the number of bytes
+	 * @param append true to add to the end of the file, false to replace it
+	 * @throws IOException
+	 */
+	
+	private static void copy(DataInputStream in, File file, long length, boolean append) throws IOException {
+		byte[] buffer = new byte[1 << 16];
+		
+		try (FileOutputStream out = new FileOutputStream(file, append)) {
+			for (long copied = 0; copied < length; copied += buffer.length) {
+				int n = (int) Math.min(buffer.length, length - copied);
+				in.readFully(buffer, 0, n);
+				out.write(buffer, 0, n);
+			}
+		}
+	}
+	
+	/*
+	 * Writes lines to a file, each followed by a line feed.
+	 * 
+	 * @param name the file, relative to the working directory
+	 * @param lines the lines
+	 * @param append true to add to the end of the file, false to replace it
+	 * @throws IOException
+	 */
+	
+	private static void writeLines(String name, String[] lines, boolean append) throws IOException {
+		if (append && lines.length == 0) {
+			return;
+		}
+		
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(file(name), append), 1 << 16)) {
+			for (String line : lines) {
+				bw.write(line);
+				bw.write('\n');
+			}
+		}
+	}
+	
+	/*
+	 * Resolves a path against the working directory.
+	 * 
+	 * @param name the path
+	 * @return the file
+	 */
+	
+	private static File file(String name) {
+		return new File(System.getProperty("user.dir") + File.separator + name);
+	}
+	
+	/*
+	 * Reads a line a byte at a time, so nothing after it is consumed from the stream; once
+	 * promoted, the ATM reads the rest of standard input.
+	 * 
+	 * @param in the stream
+	 * @return the line, or null at the end of the stream
+	 * @throws IOException
+	 */
+	
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (b != '\r') {
+				sb.append((char) b);
+			}
+		}
+		
+		return b == -1 && sb.length() == 0 ? null : sb.toString();
+	}
+}
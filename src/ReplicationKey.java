@@ -0,0 +1,243 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.Set;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The ReplicationKey class holds the secret a ReplicationPrimary and its followers share,
+ * and proves to each side of a connection that the other side knows it, before anything
+ * else is sent. Without it, any local process could connect to the primary's port and
+ * read the ledger and PIN hashes, or pose as a primary and overwrite a follower's ledger.
+ * 
+ * The secret is 32 random bytes in a file named by the atm.replication.secret system
+ * property, replication.key in the working directory by default. The first process to
+ * need it creates it, readable and writable by its owner only; a file that anyone else
+ * can read or write is refused.
+ * 
+ * The handshake is a mutual challenge-response: the primary sends a random nonce, the
+ * follower answers with a nonce of its own and an HMAC-SHA256 of both nonces, and the
+ * primary checks it and answers with its own HMAC of both. Each side labels its HMAC
+ * with its role, so one side's answer can't be played back as the other's.
+ */
+
+public class ReplicationKey {
+	
+	public static final String SECRET_PROPERTY = "atm.replication.secret";
+	public static final String DEFAULT_SECRET = "replication.key";
+	public static final int KEY_BYTES = 32;
+	public static final int NONCE_BYTES = 32;
+	public static final int HANDSHAKE_MILLIS = 5000;
+	
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final byte PRIMARY = 'P';
+	private static final byte FOLLOWER = 'F';
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
+	private SecretKeySpec key;
+	
+	/**
+	 * Constructs a key from its bytes.
+	 * 
+	 * @param bytes the secret
+	 */
+	
+	public ReplicationKey(byte[] bytes) {
+		this.key = new SecretKeySpec(bytes, ALGORITHM);
+	}
+	
+	/**
+	 * Loads the key named by the atm.replication.secret system property, creating it if it
+	 * doesn't exist yet.
+	 * 
+	 * @return the key
+	 * @throws IOException if the file can't be created or read, or others can access it
+	 */
+	
+	public static ReplicationKey load() throws IOException {
+		return load(new File(System.getProperty("user.dir") + File.separator + System.getProperty(SECRET_PROPERTY, DEFAULT_SECRET)));
+	}
+	
+	/**
+	 * Loads a key from a file, creating it if it doesn't exist yet.
+	 * 
+	 * @param file the file
+	 * @return the key
+	 * @throws IOException if the file can't be created or read, or others can access it
+	 */
+	
+	public static ReplicationKey load(File file) throws IOException {
+		Path path = file.toPath();
+		boolean posix = Files.getFileStore(path.toAbsolutePath().getParent()).supportsFileAttributeView(PosixFileAttributeView.class);
+		
+		if (!file.exists()) {
+			create(path, posix);
+		}
+		
+		if (posix) {
+			Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+			permissions.removeAll(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+			
+			if (!permissions.isEmpty()) {
+				throw new IOException(file + " can be accessed by other users; make it readable by its owner only (chmod 600).");
+			}
+		}
+		
+		byte[] bytes = Files.readAllBytes(path);
+		if (bytes.length < KEY_BYTES) {
+			throw new IOException(file + " is too short to be a replication key.");
+		}
+		
+		return new ReplicationKey(bytes);
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Authenticates a follower that has just connected, as the primary. Nothing but a
+	 * nonce is sent until the follower has proved it knows the key.
+	 * 
+	 * @param socket the connection
+	 * @param in the connection's input
+	 * @param out the connection's output
+	 * @throws IOException if the follower doesn't know the key, or doesn't answer in time
+	 */
+	
+	public void acceptFollower(Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+		int timeout = socket.getSoTimeout();
+		byte[] ours = nonce();
+		byte[] theirs = new byte[NONCE_BYTES];
+		byte[] proof = new byte[mac(FOLLOWER, ours, theirs).length];
+		
+		socket.setSoTimeout(HANDSHAKE_MILLIS);
+		out.write(ours);
+		out.flush();
+		in.readFully(theirs);
+		in.readFully(proof);
+		
+		if (!MessageDigest.isEqual(proof, mac(FOLLOWER, ours, theirs))) {
+			throw new IOException("The follower doesn't know the replication key.");
+		}
+		
+		out.write(mac(PRIMARY, ours, theirs));
+		out.flush();
+		socket.setSoTimeout(timeout);
+	}
+	
+	/**
+	 * Authenticates the primary a follower has just connected to, as the follower.
+	 * 
+	 * @param socket the connection
+	 * @param in the connection's input
+	 * @param out the connection's output
+	 * @throws IOException if the primary doesn't know the key, or doesn't answer in time
+	 */
+	
+	public void connectToPrimary(Socket socket, DataInputStream in, DataOutputStream out) throws IOException {
+		int timeout = socket.getSoTimeout();
+		byte[] ours = nonce();
+		byte[] theirs = new byte[NONCE_BYTES];
+		
+		socket.setSoTimeout(HANDSHAKE_MILLIS);
+		in.readFully(theirs);
+		out.write(ours);
+		out.write(mac(FOLLOWER, theirs, ours));
+		out.flush();
+		
+		byte[] proof = new byte[mac(PRIMARY, theirs, ours).length];
+		in.readFully(proof);
+		if (!MessageDigest.isEqual(proof, mac(PRIMARY, theirs, ours))) {
+			throw new IOException("The primary doesn't know the replication key.");
+		}
+		
+		socket.setSoTimeout(timeout);
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Computes one side's proof for a handshake.
+	 * 
+	 * @param role PRIMARY or FOLLOWER
+	 * @param primaryNonce the primary's nonce
+	 * @param followerNonce the follower's nonce
+	 * @return the HMAC
+	 */
+	
+	private byte[] mac(byte role, byte[] primaryNonce, byte[] followerNonce) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			mac.update(role);
+			mac.update(primaryNonce);
+			mac.update(followerNonce);
+			
+			return mac.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(ALGORITHM + " is unavailable.", e);
+		}
+	}
+	
+	/*
+	 * Generates a random nonce.
+	 * 
+	 * @return the nonce
+	 */
+	
+	private static byte[] nonce() {
+		byte[] nonce = new byte[NONCE_BYTES];
+		RANDOM.nextBytes(nonce);
+		
+		return nonce;
+	}
+	
+	/*
+	 * Creates a key file holding a new random key, readable and writable by its owner
+	 * only. If another process creates it first, its key is kept.
+	 * 
+	 * @param path the file
+	 * @param posix true if the file system supports POSIX permissions
+	 * @throws IOException
+	 */
+	
+	private static void create(Path path, boolean posix) throws IOException {
+		byte[] bytes = new byte[KEY_BYTES];
+		RANDOM.nextBytes(bytes);
+		
+		Path temp = path.resolveSibling(path.getFileName() + "." + System.nanoTime() + ".tmp");
+		if (posix) {
+			Files.createFile(temp, PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+		} else {
+			File file = Files.createFile(temp).toFile();
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+		
+		try {
+			try (OutputStream out = Files.newOutputStream(temp)) {
+				out.write(bytes);
+			}
+			Files.createLink(path, temp);
+		} catch (FileAlreadyExistsException e) {
+			// created by another process meanwhile
+		} finally {
+			Files.delete(temp);
+		}
+	}
+}
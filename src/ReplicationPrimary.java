@@ -0,0 +1,631 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The ReplicationPrimary class ships every change committed to a database to follower
+ * processes (see ReplicationFollower) over a socket on the loopback interface, so each
+ * follower keeps its own copy of the ledger up to date.
+ * 
+ * Each commit becomes a journal entry holding the records of the changed accounts. The
+ * sidecars the ATM keeps next to the ledger (the PinStore's PIN hashes, the transaction
+ * log, which the dedup cache is rebuilt from, and the daily limits) are shipped too: a
+ * "replication-sidecars" thread looks for lines appended to them every SIDECAR_MILLIS and
+ * makes each batch an entry of its own, with no records. A sidecar that has shrunk, or
+ * whose last shipped line is no longer where it was, has been rewritten, and is shipped
+ * whole for the follower to replace its copy. Entries are numbered from 1 within an
+ * epoch, which is new every time the primary starts. Recent entries are kept in a bounded
+ * backlog; a follower that reconnects within the backlog resumes where it left off, and
+ * one that is too far behind, or was following another epoch, receives a snapshot of the
+ * whole ledger and sidecars first.
+ * 
+ * Followers acknowledge each entry they apply, so the primary can report how far behind
+ * each one is. Heartbeats carrying the latest sequence number are sent when there is
+ * nothing else to send, so followers can tell an idle primary from a dead one.
+ * 
+ * Every connection starts with the ReplicationKey handshake, so nothing is sent to a
+ * process that doesn't know the shared secret. The follower then sends the epoch and
+ * sequence number it last applied, and the primary answers with its own epoch. Frames
+ * follow: a type byte, the sequence number, the commit time in milliseconds, then a count
+ * and that many records, in modified UTF-8 as written by DataOutputStream.writeUTF, then
+ * for each of the SIDECARS in order a flag that is true if the follower should replace its
+ * copy rather than append to it, a byte count and that many bytes. The follower answers
+ * each frame with the sequence number it has applied.
+ */
+
+public class ReplicationPrimary implements Database.CommitListener {
+	
+	public static final String PORT_PROPERTY = "atm.replication.port";
+	public static final byte ENTRY = 'E';
+	public static final byte SNAPSHOT = 'S';
+	public static final byte HEARTBEAT = 'H';
+	public static final int HEARTBEAT_MILLIS = 1000;
+	public static final int BACKLOG_RECORDS = 100000;		// records and sidecar lines kept for followers that reconnect
+	public static final int SIDECAR_MILLIS = 50;
+	public static final String[] SIDECARS = { PinStore.EXTENSION, TransactionLog.EXTENSION, DailyLimits.EXTENSION };
+	
+	private Database db;
+	private ServerSocket server;
+	private ReplicationKey key;
+	private Sidecar[] sidecars;
+	private long epoch;
+	private long head;
+	private ArrayDeque<Entry> backlog;
+	private int backlogRecords;
+	private CopyOnWriteArrayList<Link> followers;
+	private volatile boolean running;
+	
+	/**
+	 * Constructs a primary for a database and starts accepting followers. The database's
+	 * commits are shipped from now on.
+	 * 
+	 * @param db the database
+	 * @param port the loopback port to listen on
+	 * @throws IOException if the port can't be bound or the replication key can't be loaded
+	 */
+	
+	public ReplicationPrimary(Database db, int port) throws IOException {
+		this.db = db;
+		this.key = ReplicationKey.load();
+		this.server = new ServerSocket();
+		this.sidecars = new Sidecar[SIDECARS.length];
+		this.epoch = System.currentTimeMillis();
+		this.head = 0;
+		this.backlog = new ArrayDeque<Entry>();
+		this.backlogRecords = 0;
+		this.followers = new CopyOnWriteArrayList<Link>();
+		this.running = true;
+		
+		for (int i = 0; i < SIDECARS.length; i++) {
+			sidecars[i] = new Sidecar(new File(System.getProperty("user.dir") + File.separator + db.getPath() + SIDECARS[i]));
+		}
+		
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		db.setCommitListener(this);
+		
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "replication-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		
+		Thread poller = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				pollSidecars();
+			}
+		}, "replication-sidecars");
+		poller.setDaemon(true);
+		poller.start();
+	}
+	
+	/**
+	 * Starts a primary for a database if the atm.replication.port system property is set.
+	 * 
+	 * @param db the database
+	 * @return the primary, or null if replication isn't configured
+	 * @throws IOException if the port can't be bound or the replication key can't be loaded
+	 */
+	
+	public static ReplicationPrimary start(Database db) throws IOException {
+		String port = System.getProperty(PORT_PROPERTY);
+		
+		return port == null ? null : new ReplicationPrimary(db, Integer.parseInt(port));
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the sequence number of the latest journal entry.
+	 * 
+	 * @return head
+	 */
+	
+	public synchronized long getHead() {
+		return head;
+	}
+	
+	/**
+	 * Retrieves the number of connected followers.
+	 * 
+	 * @return the number of followers
+	 */
+	
+	public int getFollowerCount() {
+		return followers.size();
+	}
+	
+	/**
+	 * Retrieves how many journal entries the furthest-behind follower has yet to
+	 * acknowledge.
+	 * 
+	 * @return the lag in entries, or 0 if there are no followers
+	 */
+	
+	public long getMaxLag() {
+		long head = getHead();
+		long lag = 0;
+		
+		for (Link follower : followers) {
+			lag = Math.max(lag, head - follower.acknowledged);
+		}
+		
+		return lag;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Records a commit as the next journal entry and wakes the followers' senders. Called
+	 * by the database while it is locked, so entries are numbered in commit order.
+	 * 
+	 * @param records the records of the changed accounts
+	 */
+	
+	@Override
+	public synchronized void committed(String[] records) {
+		add(new Entry(++head, System.currentTimeMillis(), records, null, null, records.length));
+	}
+	
+	/**
+	 * Waits until every follower has acknowledged the latest journal entry.
+	 * 
+	 * @param timeout the longest to wait, in milliseconds
+	 * @return true if the followers caught up, false if the timeout ran out first
+	 * @throws InterruptedException
+	 */
+	
+	public boolean awaitFollowers(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		
+		while (getMaxLag() > 0) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Stops accepting followers and disconnects the current ones.
+	 */
+	
+	public void close() {
+		running = false;
+		db.setCommitListener(null);
+		
+		try {
+			server.close();
+		} catch (IOException e) {
+			// already closed
+		}
+		
+		for (Link follower : followers) {
+			follower.close();
+		}
+		
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Accepts followers until the primary is closed, serving each on its own thread.
+	 */
+	
+	private void accept() {
+		while (running) {
+			try {
+				final Link follower = new Link(server.accept());
+				
+				Thread sender = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(follower);
+					}
+				}, "replication-sender");
+				sender.setDaemon(true);
+				sender.start();
+			} catch (IOException e) {
+				// closed, or a follower that failed to connect
+			}
+		}
+	}
+	
+	/*
+	 * Brings a follower up to date and keeps it there until it disconnects.
+	 * 
+	 * @param follower the follower
+	 */
+	
+	private void serve(final Link follower) {
+		try {
+			key.acceptFollower(follower.socket, follower.in, follower.out);
+			followers.add(follower);
+			
+			long followerEpoch = follower.in.readLong();
+			long next = follower.in.readLong() + 1;
+			
+			follower.out.writeLong(epoch);
+			follower.out.flush();
+			follower.acknowledged = followerEpoch == epoch ? next - 1 : 0;
+			if (followerEpoch != epoch || !inBacklog(next)) {
+				next = sendSnapshot(follower) + 1;
+			}
+			
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							follower.acknowledged = follower.in.readLong();
+						}
+					} catch (IOException e) {
+						follower.close();
+					}
+				}
+			}, "replication-acknowledgements");
+			reader.setDaemon(true);
+			reader.start();
+			
+			while (running && !follower.closed) {
+				List<Entry> pending = new ArrayList<Entry>();
+				long latest;
+				long time;
+				
+				synchronized (this) {
+					if (head < next) {
+						wait(HEARTBEAT_MILLIS);
+					}
+					
+					if (!inBacklog(next)) {
+						pending = null;
+					} else {
+						for (Entry entry : backlog) {
+							if (entry.sequence >= next) {
+								pending.add(entry);
+							}
+						}
+					}
+					latest = head;
+					time = System.currentTimeMillis();
+				}
+				
+				if (pending == null) {
+					next = sendSnapshot(follower) + 1;				// fell out of the backlog
+				} else if (pending.isEmpty()) {
+					follower.send(HEARTBEAT, latest, time, new String[0], null, null);
+				} else {
+					for (Entry entry : pending) {
+						follower.send(ENTRY, entry.sequence, entry.time, entry.records, entry.sidecars, entry.replaced);
+					}
+					next = pending.get(pending.size() - 1).sequence + 1;
+				}
+			}
+		} catch (IOException e) {
+			// the follower went away, or failed the handshake; it will reconnect and resume
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			follower.close();
+			followers.remove(follower);
+		}
+	}
+	
+	/*
+	 * Determines whether or not a follower can resume from a sequence number using the
+	 * backlog.
+	 * 
+	 * @param next the next sequence number the follower needs
+	 * @return true if every entry from next on is in the backlog
+	 */
+	
+	private synchronized boolean inBacklog(long next) {
+		if (next > head + 1 || next < 1) {
+			return false;
+		}
+		
+		return next == head + 1 || (!backlog.isEmpty() && backlog.peek().sequence <= next);
+	}
+	
+	/*
+	 * Sends a snapshot of the whole ledger and sidecars. The database is locked while the
+	 * snapshot is taken, so no commit can slip in between the accounts and the sequence
+	 * number they are sent with, and the sidecars are sent as far as the entries up to that
+	 * sequence number have shipped them.
+	 * 
+	 * @param follower the follower
+	 * @return the sequence number of the snapshot
+	 * @throws IOException
+	 */
+	
+	private long sendSnapshot(Link follower) throws IOException {
+		String[] records;
+		long[] ends = new long[sidecars.length];
+		long sequence;
+		long time;
+		
+		db.getLedger();
+		synchronized (db) {
+			records = db.getAllAccounts();
+			synchronized (this) {
+				sequence = head;
+				time = System.currentTimeMillis();
+				for (int i = 0; i < sidecars.length; i++) {
+					ends[i] = sidecars[i].offset;
+				}
+			}
+		}
+		
+		follower.sendSnapshot(sequence, time, records, sidecars, ends);
+		
+		return sequence;
+	}
+	
+	/*
+	 * Adds an entry to the backlog, dropping the oldest entries beyond BACKLOG_RECORDS, and
+	 * wakes the followers' senders. Callers must hold this primary's lock.
+	 * 
+	 * @param entry the entry
+	 */
+	
+	private void add(Entry entry) {
+		backlog.add(entry);
+		backlogRecords += entry.size;
+		while (backlogRecords > BACKLOG_RECORDS && backlog.size() > 1) {
+			backlogRecords -= backlog.poll().size;
+		}
+		
+		notifyAll();
+	}
+	
+	/*
+	 * Ships the lines appended to the sidecars every SIDECAR_MILLIS until the primary is
+	 * closed, each batch as an entry with no records.
+	 */
+	
+	private void pollSidecars() {
+		while (running) {
+			synchronized (this) {
+				byte[][] data = new byte[sidecars.length][];
+				boolean[] replaced = new boolean[sidecars.length];
+				boolean found = false;
+				int lines = 0;
+				
+				for (int i = 0; i < sidecars.length; i++) {
+					try {
+						data[i] = sidecars[i].read();
+					} catch (IOException e) {
+						data[i] = null;						// try again next time
+					}
+					
+					if (data[i] != null) {
+						replaced[i] = sidecars[i].replaced;
+						lines += sidecars[i].lines;
+						found = true;
+					}
+				}
+				
+				if (found) {
+					add(new Entry(++head, System.currentTimeMillis(), new String[0], data, replaced, lines));
+				}
+			}
+			
+			try {
+				Thread.sleep(SIDECAR_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * One journal entry, as shipped to followers.
+	 */
+	
+	private static class Entry {
+		private final long sequence;
+		private final long time;
+		private final String[] records;
+		private final byte[][] sidecars;				// the lines for each sidecar, or null
+		private final boolean[] replaced;
+		private final int size;							// records and sidecar lines
+		
+		private Entry(long sequence, long time, String[] records, byte[][] sidecars, boolean[] replaced, int size) {
+			this.sequence = sequence;
+			this.time = time;
+			this.records = records;
+			this.sidecars = sidecars;
+			this.replaced = replaced;
+			this.size = size;
+		}
+	}
+	
+	/*
+	 * A sidecar file, and how far it has been shipped.
+	 */
+	
+	private static class Sidecar {
+		private final File file;
+		private long offset;							// the end of the last byte shipped
+		private byte[] last;							// the last line shipped, with its line feed
+		private boolean replaced;						// whether the last read found the file rewritten
+		private int lines;								// the number of lines the last read found
+		
+		private Sidecar(File file) {
+			this.file = file;
+			this.offset = file.length();
+		}
+		
+		/*
+		 * Reads the complete lines appended since the last read, or the whole file if it
+		 * has been rewritten. A partly written last line is left for the next read.
+		 * 
+		 * @return the lines, with their line feeds, or null if there are none
+		 * @throws IOException
+		 */
+		
+		private byte[] read() throws IOException {
+			long length = file.length();
+			
+			if (length == offset) {
+				return null;
+			}
+			
+			replaced = length < offset;
+			byte[] bytes = replaced ? read(0, length) : read(offset - (last == null ? 0 : last.length), length);
+			int from = replaced || last == null ? 0 : last.length;
+			
+			if (!replaced && last != null && !Arrays.equals(last, Arrays.copyOf(bytes, last.length))) {
+				replaced = true;								// rewritten in place
+				bytes = read(0, length);
+				from = 0;
+			}
+			
+			int to = bytes.length;
+			while (to > from && bytes[to - 1] != '\n') {
+				to--;
+			}
+			if (to == from && !replaced) {
+				return null;
+			}
+			
+			int start = to - 1;
+			while (start > from && bytes[start - 1] != '\n') {
+				start--;
+			}
+			
+			lines = 0;
+			for (int i = from; i < to; i++) {
+				if (bytes[i] == '\n') {
+					lines++;
+				}
+			}
+			offset = (replaced ? 0 : offset) + to - from;
+			last = to > from ? Arrays.copyOfRange(bytes, start, to) : null;
+			
+			return Arrays.copyOfRange(bytes, from, to);
+		}
+		
+		/*
+		 * Reads a range of the file.
+		 * 
+		 * @param from the offset to start at
+		 * @param to the offset to stop at
+		 * @return the bytes
+		 * @throws IOException
+		 */
+		
+		private byte[] read(long from, long to) throws IOException {
+			if (to <= from) {
+				return new byte[0];
+			}
+			
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				byte[] bytes = new byte[(int) (Math.min(to, raf.length()) - from)];
+				raf.seek(from);
+				raf.readFully(bytes);
+				
+				return bytes;
+			}
+		}
+	}
+	
+	/*
+	 * The connection to one follower.
+	 */
+	
+	private static class Link {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		private volatile long acknowledged;
+		private volatile boolean closed;
+		
+		private Link(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			
+			socket.setTcpNoDelay(true);
+		}
+		
+		private void send(byte type, long sequence, long time, String[] records, byte[][] sidecars, boolean[] replaced) throws IOException {
+			sendRecords(type, sequence, time, records);
+			for (int i = 0; i < SIDECARS.length; i++) {
+				byte[] bytes = sidecars == null || sidecars[i] == null ? new byte[0] : sidecars[i];
+				
+				out.writeBoolean(replaced != null && replaced[i]);
+				out.writeLong(bytes.length);
+				out.write(bytes);
+			}
+			out.flush();
+		}
+		
+		private void sendSnapshot(long sequence, long time, String[] records, Sidecar[] sidecars, long[] ends) throws IOException {
+			sendRecords(SNAPSHOT, sequence, time, records);
+			for (int i = 0; i < sidecars.length; i++) {
+				if (!sidecars[i].file.isFile()) {
+					out.writeBoolean(true);
+					out.writeLong(0);
+					continue;
+				}
+				
+				try (RandomAccessFile raf = new RandomAccessFile(sidecars[i].file, "r")) {
+					long length = Math.min(ends[i], raf.length());
+					byte[] buffer = new byte[1 << 16];
+					
+					out.writeBoolean(true);
+					out.writeLong(length);
+					for (long sent = 0; sent < length; sent += buffer.length) {
+						int n = (int) Math.min(buffer.length, length - sent);
+						raf.readFully(buffer, 0, n);
+						out.write(buffer, 0, n);
+					}
+				}
+			}
+			out.flush();
+		}
+		
+		private void sendRecords(byte type, long sequence, long time, String[] records) throws IOException {
+			out.writeByte(type);
+			out.writeLong(sequence);
+			out.writeLong(time);
+			out.writeInt(records.length);
+			for (String record : records) {
+				out.writeUTF(record);
+			}
+		}
+		
+		private void close() {
+			closed = true;
+			
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The SessionOutput class buffers everything one session prints and passes it on to
+ * the shared output stream in a single write when flushed. The ATM flushes once per
+ * interaction, when it starts waiting for input, so a session takes the shared stream's
+ * lock once per prompt rather than once per line, and its text is never interleaved
+ * with another session's.
+ * 
+ * A session is used by one thread at a time, so the buffer itself is not synchronized.
+ */
+
+public class SessionOutput extends OutputStream {
+	
+	private OutputStream target;
+	private byte[] buffer;
+	private int count;
+	
+	/**
+	 * Constructs a session buffer over a shared stream.
+	 * 
+	 * @param target the stream to flush to
+	 */
+	
+	public SessionOutput(OutputStream target) {
+		this.target = target;
+		this.buffer = new byte[1024];
+		this.count = 0;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Buffers one byte.
+	 * 
+	 * @param b the byte
+	 */
+	
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buffer[count++] = (byte) b;
+	}
+	
+	/**
+	 * Buffers part of an array.
+	 * 
+	 * @param b the bytes
+	 * @param off the first byte to write
+	 * @param len the number of bytes to write
+	 */
+	
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+	
+	/**
+	 * Writes everything buffered to the shared stream in one call, then flushes it.
+	 * 
+	 * @throws IOException
+	 */
+	
+	@Override
+	public void flush() throws IOException {
+		if (count > 0) {
+			target.write(buffer, 0, count);
+			count = 0;
+		}
+		target.flush();
+	}
+	
+	/**
+	 * Flushes the buffer. The shared stream is left open for other sessions.
+	 * 
+	 * @throws IOException
+	 */
+	
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Grows the buffer to hold at least a given number of bytes.
+	 * 
+	 * @param capacity the number of bytes needed
+	 */
+	
+	private void ensureCapacity(int capacity) {
+		if (capacity > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+		}
+	}
+}
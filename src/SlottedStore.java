@@ -0,0 +1,453 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The SlottedStore class keeps accounts in a binary file of fixed-size slots, one account
+ * per slot in the order they were added, after a short header. Only a table from account
+ * number to slot is kept in memory, so a large ledger costs a few bytes per account
+ * rather than the whole ledger, and an account is read or written in place with one
+ * positioned read or write.
+ * 
+ * Each slot holds the account's fixed-width record, without a line terminator. The file
+ * lives next to the text ledger and is built from it the first time the store is opened;
+ * the text ledger is left as it was. The file is locked for as long as the store is open,
+ * so only one process can use it at a time.
+ */
+
+public class SlottedStore implements AccountStore {
+	
+	public static final String EXTENSION = ".slots";
+	public static final long MAGIC = 0x41544D534C4F5431L;		// "ATMSLOT1"
+	public static final int HEADER_LENGTH = 16;				// magic and slot length, then padding
+	public static final int SLOT_LENGTH = Database.RECORD_LENGTH;
+	
+	private String path;
+	private FileChannel channel;
+	private long[] keys;				// account numbers, open addressing; 0 is empty
+	private int[] slots;
+	private int count;
+	private long lastAccountNumber;
+	
+	/**
+	 * Opens an existing slot file.
+	 * 
+	 * @param path the ledger file the slots were built from, relative to the working directory
+	 * @throws IOException if the file can't be read, isn't a slot file, or is in use
+	 */
+	
+	public SlottedStore(String path) throws IOException {
+		this.path = path;
+		this.channel = FileChannel.open(file(path + EXTENSION).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		
+		try {
+			if (channel.tryLock() == null) {
+				throw new IOException(path + EXTENSION + " is in use by another process.");
+			}
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			readFully(header, 0);
+			if (header.hasRemaining() || header.getLong(0) != MAGIC || header.getInt(8) != SLOT_LENGTH) {
+				throw new IOException(path + EXTENSION + " is not a slot file.");
+			}
+			
+			index();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Opens the slot file for a ledger, building it from the ledger first if there isn't one.
+	 * 
+	 * @param path the ledger file, relative to the working directory
+	 * @return the store
+	 * @throws IOException
+	 */
+	
+	public static SlottedStore open(String path) throws IOException {
+		if (!file(path + EXTENSION).isFile()) {
+			create(path);
+		}
+		
+		return new SlottedStore(path);
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the path of the ledger the slots were built from.
+	 * 
+	 * @return path
+	 */
+	
+	@Override
+	public String getPath() {
+		return path;
+	}
+	
+	/**
+	 * Retrieves the number of accounts in the store.
+	 * 
+	 * @return the number of accounts
+	 */
+	
+	public synchronized int size() {
+		return count;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Retrieves a copy of an open account, reading its slot.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the account, or null if there is no open account with that number
+	 * @throws IOException
+	 */
+	
+	@Override
+	public synchronized BankAccount get(long accountNumber) throws IOException {
+		int slot = find(accountNumber);
+		
+		if (slot < 0) {
+			return null;
+		}
+		
+		BankAccount account = read(slot);
+		return account.getStatus() == 'Y' ? account : null;
+	}
+	
+	/**
+	 * Writes one account, or two together, provided neither is stale. Each account's
+	 * version is checked against its slot, and the slots are rewritten in place; a new
+	 * account gets the next slot.
+	 * 
+	 * @param account the primary account
+	 * @param destination the secondary account, or null
+	 * @return true if the accounts were written, false if either was stale
+	 * @throws IOException
+	 */
+	
+	@Override
+	public synchronized boolean put(BankAccount account, BankAccount destination) throws IOException {
+		int slot = find(account.getAccountNumber());
+		int other = destination == null ? -1 : find(destination.getAccountNumber());
+		
+		if (slot >= 0 && read(slot).getVersion() != account.getVersion()) {
+			return false;
+		} else if (other >= 0 && read(other).getVersion() != destination.getVersion()) {
+			return false;
+		}
+		
+		account.setVersion(account.getVersion() + 1);
+		if (slot < 0) {
+			slot = count;
+			write(slot, account);
+			add(account.getAccountNumber(), slot);
+		} else {
+			write(slot, account);
+		}
+		
+		if (other >= 0) {
+			destination.setVersion(destination.getVersion() + 1);
+			write(other, destination);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Visits every account in slot order, reading the file sequentially.
+	 * 
+	 * @param visitor the visitor
+	 * @throws IOException
+	 */
+	
+	@Override
+	public void scan(Visitor visitor) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SLOT_LENGTH * 512);
+		int n = size();
+		
+		for (int first = 0; first < n; first += 512) {
+			buffer.clear();
+			buffer.limit(Math.min(512, n - first) * SLOT_LENGTH);
+			readFully(buffer, position(first));
+			
+			for (int offset = 0; offset + SLOT_LENGTH <= buffer.position(); offset += SLOT_LENGTH) {
+				visitor.visit(new BankAccount(new String(buffer.array(), offset, SLOT_LENGTH, StandardCharsets.US_ASCII)));
+			}
+		}
+	}
+	
+	/**
+	 * Reserves the next unused account number.
+	 * 
+	 * @return the reserved account number
+	 */
+	
+	@Override
+	public synchronized long nextAccountNumber() {
+		return ++lastAccountNumber;
+	}
+	
+	/**
+	 * Closes the slot file, releasing its lock.
+	 * 
+	 * @throws IOException
+	 */
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Builds a slot file from a ledger, writing it beside the final name and moving it into
+	 * place once complete.
+	 * 
+	 * @param path the ledger file, relative to the working directory
+	 * @throws IOException
+	 */
+	
+	private static void create(String path) throws IOException {
+		File temp = file(path + EXTENSION + ".tmp");
+		Database db = new Database(path);
+		
+		try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer buffer = ByteBuffer.allocate(SLOT_LENGTH * 512);
+			
+			buffer.putLong(MAGIC).putInt(SLOT_LENGTH).putInt(0);
+			db.scan(account -> {
+				if (buffer.remaining() < SLOT_LENGTH) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						out.write(buffer);
+					}
+					buffer.clear();
+				}
+				encode(account.toString(), buffer);
+			});
+			
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			out.force(true);
+		} finally {
+			db.close();
+		}
+		
+		Files.move(temp.toPath(), file(path + EXTENSION).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/*
+	 * Reads the account number from every slot into the table. A slot cut short at the end
+	 * of the file, by a crash while an account was being added, is ignored and reused.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private void index() throws IOException {
+		int n = (int) ((channel.size() - HEADER_LENGTH) / SLOT_LENGTH);
+		ByteBuffer buffer = ByteBuffer.allocate(SLOT_LENGTH * 512);
+		
+		keys = new long[Integer.highestOneBit(Math.max(n, 8) * 2) * 2];
+		slots = new int[keys.length];
+		count = 0;
+		lastAccountNumber = 0;
+		
+		for (int first = 0; first < n; first += 512) {
+			buffer.clear();
+			buffer.limit(Math.min(512, n - first) * SLOT_LENGTH);
+			readFully(buffer, position(first));
+			
+			for (int offset = 0; offset + SLOT_LENGTH <= buffer.position(); offset += SLOT_LENGTH) {
+				long accountNumber = 0;
+				for (int i = 0; i < 9; i++) {
+					accountNumber = accountNumber * 10 + (buffer.get(offset + i) - '0');
+				}
+				add(accountNumber, count);
+			}
+		}
+	}
+	
+	/*
+	 * Records the slot an account is in, growing the table to keep it at most half full.
+	 * 
+	 * @param accountNumber the account number
+	 * @param slot the slot
+	 */
+	
+	private void add(long accountNumber, int slot) {
+		if ((count + 1) * 2 > keys.length) {
+			long[] oldKeys = keys;
+			int[] oldSlots = slots;
+			
+			keys = new long[oldKeys.length * 2];
+			slots = new int[keys.length];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != 0) {
+					insert(oldKeys[i], oldSlots[i]);
+				}
+			}
+		}
+		
+		insert(accountNumber, slot);
+		count = Math.max(count, slot + 1);
+		lastAccountNumber = Math.max(lastAccountNumber, accountNumber);
+	}
+	
+	/*
+	 * Puts an entry in the table, which has room for it.
+	 * 
+	 * @param accountNumber the account number
+	 * @param slot the slot
+	 */
+	
+	private void insert(long accountNumber, int slot) {
+		int mask = keys.length - 1;
+		int i = hash(accountNumber) & mask;
+		
+		while (keys[i] != 0 && keys[i] != accountNumber) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = accountNumber;
+		slots[i] = slot;
+	}
+	
+	/*
+	 * Looks up the slot an account is in.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the slot, or -1 if the store doesn't have the account
+	 */
+	
+	private int find(long accountNumber) {
+		int mask = keys.length - 1;
+		int i = hash(accountNumber) & mask;
+		
+		while (keys[i] != 0) {
+			if (keys[i] == accountNumber) {
+				return slots[i];
+			}
+			i = (i + 1) & mask;
+		}
+		
+		return -1;
+	}
+	
+	/*
+	 * Reads the account in a slot.
+	 * 
+	 * @param slot the slot
+	 * @return the account
+	 * @throws IOException
+	 */
+	
+	private BankAccount read(int slot) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SLOT_LENGTH);
+		
+		readFully(buffer, position(slot));
+		if (buffer.hasRemaining()) {
+			throw new IOException("Slot " + slot + " of " + path + EXTENSION + " is incomplete.");
+		}
+		
+		return new BankAccount(new String(buffer.array(), 0, SLOT_LENGTH, StandardCharsets.US_ASCII));
+	}
+	
+	/*
+	 * Writes an account to a slot.
+	 * 
+	 * @param slot the slot
+	 * @param account the account
+	 * @throws IOException
+	 */
+	
+	private void write(int slot, BankAccount account) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SLOT_LENGTH);
+		long position = position(slot);
+		
+		encode(account.toString(), buffer);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	/*
+	 * Reads from the file at a position until the buffer is full or the file ends.
+	 * 
+	 * @param buffer the buffer to fill
+	 * @param position the position in the file to read from
+	 * @throws IOException
+	 */
+	
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - start) < 0) {
+				break;
+			}
+		}
+	}
+	
+	/*
+	 * Retrieves where a slot starts in the file.
+	 * 
+	 * @param slot the slot
+	 * @return the offset
+	 */
+	
+	private static long position(int slot) {
+		return HEADER_LENGTH + (long) slot * SLOT_LENGTH;
+	}
+	
+	/*
+	 * Spreads an account number's bits, since account numbers are sequential.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the hash
+	 */
+	
+	private static int hash(long accountNumber) {
+		long h = accountNumber * 0x9E3779B97F4A7C15L;
+		
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	/*
+	 * Puts a record into a buffer one byte per character; anything outside ASCII becomes a
+	 * question mark.
+	 * 
+	 * @param record the record
+	 * @param buffer the buffer, with room for it
+	 */
+	
+	private static void encode(String record, ByteBuffer buffer) {
+		for (int i = 0; i < record.length(); i++) {
+			char c = record.charAt(i);
+			buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+		}
+	}
+	
+	/*
+	 * Resolves a path against the working directory.
+	 * 
+	 * @param name the path
+	 * @return the file
+	 */
+	
+	private static File file(String name) {
+		return new File(System.getProperty("user.dir") + File.separator + name);
+	}
+}
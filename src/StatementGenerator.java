@@ -0,0 +1,552 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The StatementGenerator class writes an end-of-day statement for every active account
+ * into a single file. The ledger is split into chunks that are formatted in parallel,
+ * each by one LedgerAccount flyweight, and the finished chunks are written to a
+ * FileChannel in ledger order. Only a few chunks are held in memory at once, so the
+ * ledger size doesn't matter. The accounts come from the store selected by the atm.store
+ * system property, as for the ATM.
+ * 
+ * When a transaction log is given, each statement also lists every transaction the
+ * account made on the statement day. Before any statement is formatted, the log is split
+ * into byte ranges that are scanned in parallel, each from the first line starting in it;
+ * lines from other days are skipped on their time alone, and the rest are grouped by
+ * account. A line's account numbers are as wide as the digits before its type, so lines
+ * written under any record layout are read alike.
+ * 
+ * Usage: java StatementGenerator [ledger file] [output file] [threads]
+ */
+
+public class StatementGenerator {
+	
+	public static final int CHUNK_SIZE = 4096;
+	public static final int LOG_CHUNK_BYTES = 8 << 20;
+	
+	private static final String RULE = "================================================================================\n";
+	private static final int MAX_LINE = 256;		// longest log line, with room to spare
+	
+	private AccountStore store;
+	private String log;
+	private int threads;
+	
+	/**
+	 * Constructs a statement generator.
+	 * 
+	 * @param store the account store
+	 * @param log the transaction log file, relative to the working directory, or null to
+	 *        leave transactions off the statements
+	 * @param threads the number of formatting threads
+	 */
+	
+	public StatementGenerator(AccountStore store, String log, int threads) {
+		this.store = store;
+		this.log = log;
+		this.threads = Math.max(1, threads);
+	}
+	
+	/**
+	 * Main method. Generates today's statements and prints a summary.
+	 * 
+	 * @param args ledger file, output file, threads
+	 * @throws Exception
+	 */
+	
+	public static void main(String[] args) throws Exception {
+		String path = args.length > 0 ? args[0] : "accounts-db.txt";
+		String output = args.length > 1 ? args[1] : "statements-" + new SimpleDateFormat("yyyyMMdd").format(new Date()) + ".txt";
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		
+		AccountStore store = AccountStore.open(path);
+		String log = null;
+		if (new File(System.getProperty("user.dir") + File.separator + path + TransactionLog.EXTENSION).isFile()) {
+			log = path + TransactionLog.EXTENSION;
+		}
+		
+		long start = System.nanoTime();
+		int statements;
+		try {
+			statements = new StatementGenerator(store, log, threads).generate(output, System.currentTimeMillis());
+		} finally {
+			store.close();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e6;
+		
+		System.out.println(String.format("Wrote %,d statements to %s in %,.1f ms.", statements, output, elapsed));
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Writes a statement for every active account.
+	 * 
+	 * @param output the statement file, relative to the working directory
+	 * @param date the statement date in milliseconds since the epoch
+	 * @return the number of statements written
+	 * @throws IOException
+	 */
+	
+	public int generate(String output, long date) throws IOException {
+		final OffHeapLedger ledger = store.columns();
+		final int size = ledger.size();
+		final String heading = "Statement Date: " + new SimpleDateFormat("MM/dd/yyyy").format(new Date(date));
+		final long since = startOfDay(date);
+		
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+		int statements = 0;
+		
+		try (FileOutputStream out = new FileOutputStream(System.getProperty("user.dir") + File.separator + output);
+				FileChannel channel = out.getChannel()) {
+			final Map<Long, Transactions> transactions = log == null ? null : scan(pool, since, startOfDay(since + 36 * 60 * 60 * 1000L));
+			
+			for (int from = 0; from < size; from += CHUNK_SIZE) {
+				final int first = from;
+				final int last = Math.min(from + CHUNK_SIZE, size);
+				
+				pending.add(pool.submit(new Callable<Chunk>() {
+					@Override
+					public Chunk call() {
+						return format(ledger, first, last, heading, transactions);
+					}
+				}));
+				
+				if (pending.size() > threads * 2) {
+					statements += write(channel, pending.poll());
+				}
+			}
+			
+			while (!pending.isEmpty()) {
+				statements += write(channel, pending.poll());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		return statements;
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Formats the statements for a range of slots.
+	 * 
+	 * @param ledger the ledger
+	 * @param from the first slot
+	 * @param to one past the last slot
+	 * @param heading the statement date heading
+	 * @param transactions each account's transactions for the statement day, or null to
+	 *        leave them off
+	 * @return the encoded statements
+	 */
+	
+	private static Chunk format(OffHeapLedger ledger, int from, int to, String heading, Map<Long, Transactions> transactions) {
+		StringBuilder sb = new StringBuilder((to - from) * 320);
+		LedgerAccount account = ledger.view(from);
+		SimpleDateFormat time = new SimpleDateFormat("MM/dd/yyyy hh:mm a");
+		int statements = 0;
+		
+		for (int slot = from; slot < to; slot++) {
+			account.moveTo(slot);
+			
+			if (account.getStatus() != 'Y') {
+				continue;
+			}
+			
+			User user = account.getUser();
+			sb.append(RULE);
+			int line = sb.length();
+			sb.append("STATEMENT OF ACCOUNT");
+			pad(sb, line + 80 - heading.length());
+			sb.append(heading).append('\n');
+			sb.append(RULE);
+			sb.append("     Account # : ").append(account.getAccountNumber()).append('\n');
+			sb.append("Account Holder : ").append(user.getName()).append('\n');
+			sb.append("       Address : ").append(user.getStreetAddress()).append('\n');
+			sb.append("                 ").append(user.getFormattedAddress()).append('\n');
+			sb.append("     Telephone : ").append(user.getFormattedPhone()).append('\n');
+			
+			if (transactions != null) {
+				appendTransactions(sb, transactions.get(account.getAccountNumber()), time);
+			}
+			
+			sb.append("\nClosing Balance : ");
+			appendMoney(sb, ledger.getBalanceCents(slot));
+			sb.append("\n\n");
+			statements++;
+		}
+		
+		ByteBuffer bytes = ByteBuffer.allocate(sb.length());
+		for (int i = 0; i < sb.length(); i++) {
+			char ch = sb.charAt(i);
+			bytes.put((byte) (ch < 256 ? ch : '?'));
+		}
+		bytes.flip();
+		
+		return new Chunk(bytes, statements);
+	}
+	
+	/*
+	 * Reads the statement day's transactions from the log, grouped by account. The log is
+	 * scanned in byte ranges on the pool, and the ranges' findings are combined in log
+	 * order.
+	 * 
+	 * @param pool the pool to scan on
+	 * @param since the start of the statement day
+	 * @param until the start of the next day
+	 * @return each account's transactions, in log order
+	 * @throws IOException
+	 */
+	
+	private Map<Long, Transactions> scan(ExecutorService pool, final long since, final long until) throws IOException {
+		final File file = new File(System.getProperty("user.dir") + File.separator + log);
+		final long length = file.length();
+		List<Future<Map<Long, Transactions>>> ranges = new ArrayList<Future<Map<Long, Transactions>>>();
+		Map<Long, Transactions> found = new HashMap<Long, Transactions>();
+		
+		for (long from = 0; from < length; from += LOG_CHUNK_BYTES) {
+			final long first = from;
+			final long last = Math.min(from + LOG_CHUNK_BYTES, length);
+			
+			ranges.add(pool.submit(new Callable<Map<Long, Transactions>>() {
+				@Override
+				public Map<Long, Transactions> call() throws IOException {
+					return scan(file, length, first, last, since, until);
+				}
+			}));
+		}
+		
+		for (Future<Map<Long, Transactions>> range : ranges) {
+			try {
+				for (Map.Entry<Long, Transactions> entry : range.get().entrySet()) {
+					Transactions existing = found.putIfAbsent(entry.getKey(), entry.getValue());
+					
+					if (existing != null) {
+						existing.addAll(entry.getValue());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading the transaction log.", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Unable to read the transaction log.", e.getCause());
+			}
+		}
+		
+		return found;
+	}
+	
+	/*
+	 * Reads the transactions made between two times from the lines that start within a
+	 * byte range of the log. Lines that aren't complete transactions, such as layout
+	 * markers and a line still being written, are skipped.
+	 * 
+	 * @param file the log
+	 * @param length the length of the log when the scan began
+	 * @param from the start of the range
+	 * @param to the end of the range
+	 * @param since the earliest time to read
+	 * @param until the time to read up to
+	 * @return each account's transactions in the range, in log order
+	 * @throws IOException
+	 */
+	
+	private static Map<Long, Transactions> scan(File file, long length, long from, long to, long since, long until) throws IOException {
+		Map<Long, Transactions> found = new HashMap<Long, Transactions>();
+		long start = Math.max(0, from - 1);
+		MappedByteBuffer buffer;
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(to + MAX_LINE, length) - start);
+		}
+		
+		int end = (int) (to - start);
+		int position = 0;
+		if (from > 0) {
+			while (position < buffer.limit() && buffer.get(position++) != '\n') {
+				// skip the rest of the line the previous range reads
+			}
+		}
+		
+		while (position < end) {
+			int line = position;
+			
+			while (position < buffer.limit() && buffer.get(position) != '\n') {
+				position++;
+			}
+			if (position == buffer.limit()) {
+				break;								// still being written
+			}
+			int stop = position > line && buffer.get(position - 1) == '\r' ? position - 1 : position;
+			position++;
+			
+			long time = parseNumber(buffer, line, 13);
+			if (stop - line < TransactionLog.FIXED_LENGTH || time < since || time >= until) {
+				continue;
+			}
+			
+			int type = line + 13;
+			while (type < stop && Character.isDigit((char) buffer.get(type))) {
+				type++;
+			}
+			
+			int width = type - line - 13;
+			if (RecordLayout.forWidth(RecordLayout.ACCOUNT_NUMBER, width) == null || stop - line < TransactionLog.FIXED_LENGTH + 2 * width) {
+				continue;
+			}
+			
+			long accountNumber = parseNumber(buffer, line + 13, width);
+			long amount = parseNumber(buffer, type + 1, 15);
+			long balance = parseNumber(buffer, type + 16, 15);
+			long counterparty = parseNumber(buffer, type + 31, width);
+			if (accountNumber < 0 || amount < 0 || balance < 0 || counterparty < 0) {
+				continue;
+			}
+			
+			Transactions account = found.get(accountNumber);
+			if (account == null) {
+				account = new Transactions();
+				found.put(accountNumber, account);
+			}
+			account.add(time, (char) buffer.get(type), amount, balance, counterparty);
+		}
+		
+		return found;
+	}
+	
+	/*
+	 * Parses an unsigned number from a run of ASCII digits.
+	 * 
+	 * @param buffer the bytes
+	 * @param offset where the digits start
+	 * @param width the number of digits
+	 * @return the number, or -1 if the run holds anything but digits
+	 */
+	
+	private static long parseNumber(ByteBuffer buffer, int offset, int width) {
+		long value = 0;
+		
+		if (offset + width > buffer.limit()) {
+			return -1;
+		}
+		
+		for (int i = offset; i < offset + width; i++) {
+			int digit = buffer.get(i) - '0';
+			
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		
+		return value;
+	}
+	
+	/*
+	 * Appends an account's transactions for the statement day, in the order they were
+	 * made.
+	 * 
+	 * @param sb the builder to append to
+	 * @param transactions the account's transactions, or null if it made none
+	 * @param time the format for transaction times
+	 */
+	
+	private static void appendTransactions(StringBuilder sb, Transactions transactions, SimpleDateFormat time) {
+		sb.append("\nTransactions\n");
+		if (transactions == null) {
+			sb.append("   None\n");
+			return;
+		}
+		
+		for (int i = 0; i < transactions.size; i++) {
+			int start = sb.length();
+			
+			sb.append("   ").append(time.format(new Date(transactions.times[i]))).append("   ");
+			switch (transactions.types[i]) {
+				case TransactionHistory.DEPOSIT: sb.append("Deposit"); break;
+				case TransactionHistory.WITHDRAWAL: sb.append("Withdrawal"); break;
+				case TransactionHistory.TRANSFER_OUT: sb.append("Transfer to ").append(transactions.counterparties[i]); break;
+				case TransactionHistory.TRANSFER_IN: sb.append("Transfer from ").append(transactions.counterparties[i]); break;
+				case TransactionHistory.INTEREST: sb.append("Interest"); break;
+				default: sb.append("Unknown");
+			}
+			pad(sb, start + 50);
+			
+			int amount = sb.length();
+			appendMoney(sb, transactions.amounts[i]);
+			padLeft(sb, amount, 15);
+			
+			int balance = sb.length();
+			appendMoney(sb, transactions.balances[i]);
+			padLeft(sb, balance, 15);
+			sb.append('\n');
+		}
+	}
+	
+	/*
+	 * Appends an amount in cents as dollars, e.g. $1,234.56.
+	 * 
+	 * @param sb the builder to append to
+	 * @param cents the amount in cents
+	 */
+	
+	private static void appendMoney(StringBuilder sb, long cents) {
+		if (cents < 0) {
+			sb.append('-');
+			cents = -cents;
+		}
+		sb.append('$');
+		
+		int start = sb.length();
+		sb.append(cents / 100);
+		for (int i = sb.length() - 3; i > start; i -= 3) {
+			sb.insert(i, ',');
+		}
+		
+		sb.append('.').append((char) ('0' + cents % 100 / 10)).append((char) ('0' + cents % 10));
+	}
+	
+	/*
+	 * Pads with spaces up to a column.
+	 * 
+	 * @param sb the builder to pad
+	 * @param column the length to pad to
+	 */
+	
+	private static void pad(StringBuilder sb, int column) {
+		while (sb.length() < column) {
+			sb.append(' ');
+		}
+	}
+	
+	/*
+	 * Right-aligns the text appended since start within a field.
+	 * 
+	 * @param sb the builder
+	 * @param start where the field starts
+	 * @param width the field width
+	 */
+	
+	private static void padLeft(StringBuilder sb, int start, int width) {
+		while (sb.length() - start < width) {
+			sb.insert(start, ' ');
+		}
+	}
+	
+	/*
+	 * Writes a finished chunk, in full, to the output channel.
+	 * 
+	 * @param channel the output channel
+	 * @param future the chunk being formatted
+	 * @return the number of statements in the chunk
+	 * @throws IOException
+	 */
+	
+	private static int write(FileChannel channel, Future<Chunk> future) throws IOException {
+		Chunk chunk;
+		
+		try {
+			chunk = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while generating statements.", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to format statements.", e.getCause());
+		}
+		
+		while (chunk.bytes.hasRemaining()) {
+			channel.write(chunk.bytes);
+		}
+		
+		return chunk.statements;
+	}
+	
+	/*
+	 * Computes midnight, local time, of the day containing a given time.
+	 * 
+	 * @param time milliseconds since the epoch
+	 * @return the start of that day
+	 */
+	
+	private static long startOfDay(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		
+		return calendar.getTimeInMillis();
+	}
+	
+	/*
+	 * One account's transactions for the statement day, each field in its own growable
+	 * primitive array.
+	 */
+	
+	private static class Transactions {
+		private long[] times = new long[4];
+		private char[] types = new char[4];
+		private long[] amounts = new long[4];
+		private long[] balances = new long[4];
+		private long[] counterparties = new long[4];
+		private int size;
+		
+		private void add(long time, char type, long amount, long balance, long counterparty) {
+			if (size == times.length) {
+				times = Arrays.copyOf(times, size * 2);
+				types = Arrays.copyOf(types, size * 2);
+				amounts = Arrays.copyOf(amounts, size * 2);
+				balances = Arrays.copyOf(balances, size * 2);
+				counterparties = Arrays.copyOf(counterparties, size * 2);
+			}
+			
+			times[size] = time;
+			types[size] = type;
+			amounts[size] = amount;
+			balances[size] = balance;
+			counterparties[size] = counterparty;
+			size++;
+		}
+		
+		private void addAll(Transactions later) {
+			for (int i = 0; i < later.size; i++) {
+				add(later.times[i], later.types[i], later.amounts[i], later.balances[i], later.counterparties[i]);
+			}
+		}
+	}
+	
+	/*
+	 * The encoded statements for one range of slots.
+	 */
+	
+	private static class Chunk {
+		private final ByteBuffer bytes;
+		private final int statements;
+		
+		private Chunk(ByteBuffer bytes, int statements) {
+			this.bytes = bytes;
+			this.statements = statements;
+		}
+	}
+}
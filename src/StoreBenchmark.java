@@ -0,0 +1,237 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The StoreBenchmark class checks that each kind of AccountStore behaves as AtmService
+ * expects, and compares how fast they are. For each store it writes a synthetic ledger,
+ * opens the store on it, times random reads, random read-modify-writes and a full scan,
+ * then runs the same conformance checks against every store: lookups, optimistic
+ * version checks, paired writes, closed and new accounts, and that all of it survives
+ * closing and reopening the store.
+ * 
+ * Usage: java StoreBenchmark [accounts] [operations] [store ...]
+ */
+
+public class StoreBenchmark {
+	
+	private int accounts;
+	private int operations;
+	
+	/**
+	 * Constructs a benchmark.
+	 * 
+	 * @param accounts the number of accounts in each synthetic ledger
+	 * @param operations the number of timed reads, and of timed writes
+	 */
+	
+	public StoreBenchmark(int accounts, int operations) {
+		this.accounts = accounts;
+		this.operations = operations;
+	}
+	
+	/**
+	 * Main method. Benchmarks and checks each store named, or every kind if none are.
+	 * Exits with status 1 if any store fails a check.
+	 * 
+	 * @param args accounts, operations, store kinds
+	 * @throws Exception
+	 */
+	
+	public static void main(String[] args) throws Exception {
+		int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int operations = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		String[] kinds = args.length > 2 ? Arrays.copyOfRange(args, 2, args.length) : new String[] { AccountStore.TEXT, AccountStore.SLOTTED, AccountStore.BTREE, AccountStore.LSM };
+		
+		StoreBenchmark benchmark = new StoreBenchmark(accounts, operations);
+		List<String> results = new ArrayList<String>();
+		int failures = 0;
+		
+		for (String kind : kinds) {
+			List<String> failed = new ArrayList<String>();
+			
+			results.add(benchmark.run(kind, failed));
+			for (String failure : failed) {
+				System.out.println("FAILED " + kind + ": " + failure);
+			}
+			failures += failed.size();
+		}
+		
+		System.out.printf("%n%,d accounts, %,d operations%n", accounts, operations);
+		System.out.printf("%-8s %10s %10s %10s %12s %12s %10s%n", "Store", "Open ms", "Get p50 us", "Get p99 us", "Gets/s", "Updates/s", "Scan ms");
+		for (String result : results) {
+			System.out.println(result);
+		}
+		
+		if (failures > 0) {
+			System.out.printf("%n%,d check(s) failed.%n", failures);
+			System.exit(1);
+		}
+		System.out.println("\nAll stores passed the conformance checks.");
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Benchmarks and checks one kind of store on a fresh ledger.
+	 * 
+	 * @param kind the kind of store
+	 * @param failures collects a description of each failed check
+	 * @return a row of the results table
+	 * @throws IOException
+	 */
+	
+	public String run(String kind, List<String> failures) throws IOException {
+		String path = "benchmark-" + kind + ".txt";
+		for (String extension : new String[] { LedgerIndex.EXTENSION, Database.NUMBERS_EXTENSION, PinStore.EXTENSION }) {
+			new File(System.getProperty("user.dir") + File.separator + path + extension).delete();
+		}
+		new LoadGenerator(accounts, 1, 1, path, false).generateLedger(42L);
+		
+		long start = System.nanoTime();
+		AccountStore store = AccountStore.open(path, kind);
+		store.get(LoadGenerator.FIRST_ACCOUNT_NUMBER + accounts - 1);		// the text store loads in the background
+		double open = (System.nanoTime() - start) / 1e6;
+		
+		Random random = new Random(7L);
+		long[] latencies = new long[operations];
+		long began = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			long accountNumber = LoadGenerator.FIRST_ACCOUNT_NUMBER + random.nextInt(accounts);
+			long t = System.nanoTime();
+			store.get(accountNumber);
+			latencies[i] = System.nanoTime() - t;
+		}
+		double gets = operations / ((System.nanoTime() - began) / 1e9);
+		Arrays.sort(latencies);
+		
+		began = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			long accountNumber = LoadGenerator.FIRST_ACCOUNT_NUMBER + random.nextInt(accounts);
+			BankAccount account;
+			
+			do {
+				account = store.get(accountNumber);
+				account.deposit(0.01);
+			} while (!store.put(account, null));
+		}
+		double updates = operations / ((System.nanoTime() - began) / 1e9);
+		
+		began = System.nanoTime();
+		final int[] scanned = { 0 };
+		store.scan(account -> scanned[0]++);
+		double scan = (System.nanoTime() - began) / 1e6;
+		
+		store = check(store, path, kind, failures);
+		store.close();
+		
+		return String.format("%-8s %,10.1f %,10.2f %,10.2f %,12.0f %,12.0f %,10.1f", kind, open,
+			latencies[operations / 2] / 1e3, latencies[(int) Math.min(operations - 1, operations * 0.99)] / 1e3, gets, updates, scan);
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Runs the conformance checks against a store, reopening it partway through.
+	 * 
+	 * @param store the store, open on a ledger of the benchmark's size
+	 * @param path the ledger file
+	 * @param kind the kind of store
+	 * @param failures collects a description of each failed check
+	 * @return the reopened store
+	 * @throws IOException
+	 */
+	
+	private AccountStore check(AccountStore store, String path, String kind, List<String> failures) throws IOException {
+		long first = LoadGenerator.FIRST_ACCOUNT_NUMBER;
+		long last = first + accounts - 1;
+		
+		final BitSet seen = new BitSet(accounts);
+		final int[] visited = { 0 };
+		store.scan(account -> {
+			visited[0]++;
+			seen.set((int) (account.getAccountNumber() - LoadGenerator.FIRST_ACCOUNT_NUMBER));
+		});
+		expect(visited[0] == accounts && seen.cardinality() == accounts, "scan visits every account once", failures);
+		
+		BankAccount account = store.get(first);
+		expect(account != null && account.getAccountNumber() == first, "get finds an account", failures);
+		expect(store.get(last + 1000) == null, "get returns null for a missing account", failures);
+		
+		BankAccount stale = store.get(first);
+		long version = account.getVersion();
+		double balance = account.getBalance();
+		account.deposit(10.00);
+		expect(store.put(account, null), "put succeeds with the current version", failures);
+		expect(account.getVersion() == version + 1, "put increments the version", failures);
+		expect(store.get(first).getBalance() == account.getBalance(), "get sees what put wrote", failures);
+		
+		stale.deposit(20.00);
+		expect(!store.put(stale, null), "put fails with a stale version", failures);
+		expect(store.get(first).getBalance() == balance + 10.00, "a failed put changes nothing", failures);
+		
+		BankAccount source = store.get(first + 1);
+		BankAccount destination = store.get(first + 2);
+		long sourceVersion = source.getVersion();
+		long destinationVersion = destination.getVersion();
+		source.transfer(destination, 0.01);
+		expect(store.put(source, destination), "put writes two accounts together", failures);
+		expect(store.get(first + 1).getVersion() == sourceVersion + 1 && store.get(first + 2).getVersion() == destinationVersion + 1, "a paired put increments both versions", failures);
+		
+		BankAccount closing = store.get(first + 3);
+		closing.setStatus('N');
+		store.put(closing, null);
+		expect(store.get(first + 3) == null, "get returns null for a closed account", failures);
+		
+		long number = store.nextAccountNumber();
+		expect(number > last && store.nextAccountNumber() > number, "nextAccountNumber hands out unused numbers once", failures);
+		
+		BankAccount opened = new BankAccount('Y', number, 0.0, account.getUser());
+		expect(store.put(opened, null), "put adds a new account", failures);
+		expect(store.get(number) != null, "get finds a new account", failures);
+		expect(!store.put(new BankAccount('Y', number, 5.0, account.getUser()), null), "put refuses to add an account twice", failures);
+		
+		store.close();
+		store = AccountStore.open(path, kind);
+		
+		BankAccount reopened = store.get(first);
+		expect(reopened != null && reopened.getBalance() == balance + 10.00 && reopened.getVersion() == version + 1, "updates survive reopening", failures);
+		expect(store.get(number) != null && store.get(first + 3) == null, "new and closed accounts survive reopening", failures);
+		
+		visited[0] = 0;
+		store.scan(a -> visited[0]++);
+		expect(visited[0] == accounts + 1, "scan includes closed and new accounts", failures);
+		
+		if (store instanceof BTreeStore) {
+			final long[] previous = { first + 99 };
+			final boolean[] ordered = { true };
+			visited[0] = 0;
+			((BTreeStore) store).scan(first + 100, first + 199, a -> {
+				ordered[0] &= a.getAccountNumber() == previous[0] + 1;
+				previous[0] = a.getAccountNumber();
+				visited[0]++;
+			});
+			expect(ordered[0] && visited[0] == Math.max(0, Math.min(100, accounts - 100)), "a range scan visits its accounts in order", failures);
+		}
+		
+		return store;
+	}
+	
+	/*
+	 * Records a failed check.
+	 * 
+	 * @param condition true if the check passed
+	 * @param description what was checked
+	 * @param failures collects a description of each failed check
+	 */
+	
+	private static void expect(boolean condition, String description, List<String> failures) {
+		if (!condition) {
+			failures.add(description);
+		}
+	}
+}
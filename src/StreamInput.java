@@ -0,0 +1,326 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+/**
+ * The StreamInput class is an InputSource over a character stream. It tokenizes its own
+ * buffer instead of matching regular expressions as Scanner does, so it is cheap to
+ * create for every session and cheap per read.
+ * 
+ * Before it blocks for more input, it flushes the session's output, so everything a
+ * session prints for one interaction reaches the terminal in a single write, just as the
+ * session starts waiting for the customer's answer.
+ */
+
+public class StreamInput implements InputSource {
+	
+	private Reader reader;
+	private Flushable output;
+	private char[] buffer;
+	private int position;
+	private int limit;
+	private boolean eof;
+	
+	/**
+	 * Constructs an input source over a byte stream in the platform's default charset.
+	 * 
+	 * @param in the stream
+	 * @param output flushed before waiting for input, or null
+	 */
+	
+	public StreamInput(InputStream in, Flushable output) {
+		this(new InputStreamReader(in), output);
+	}
+	
+	/**
+	 * Constructs an input source over a character stream.
+	 * 
+	 * @param reader the stream
+	 * @param output flushed before waiting for input, or null
+	 */
+	
+	public StreamInput(Reader reader, Flushable output) {
+		this.reader = reader;
+		this.output = output;
+		this.buffer = new char[256];
+		this.position = 0;
+		this.limit = 0;
+		this.eof = false;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Reads the next token as an int. Digits may be grouped with commas, as Scanner allows.
+	 * 
+	 * @return the value
+	 */
+	
+	@Override
+	public int nextInt() {
+		return (int) nextInteger(Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Reads the next token as a long. Digits may be grouped with commas, as Scanner allows.
+	 * 
+	 * @return the value
+	 */
+	
+	@Override
+	public long nextLong() {
+		return nextInteger(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Reads the next token as a double: a decimal number with an optional exponent. Digits
+	 * may be grouped with commas, as Scanner allows. Unlike Scanner, NaN, Infinity and
+	 * numbers too large to be finite are rejected.
+	 * 
+	 * @return the value
+	 */
+	
+	@Override
+	public double nextDouble() {
+		int end = token();
+		String token = ungroup(new String(buffer, position, end - position));
+		double value = isDecimal(token) ? Double.parseDouble(token) : Double.NaN;
+		
+		if (!Double.isFinite(value)) {
+			throw new InputMismatchException("For input string: \"" + token + "\"");
+		}
+		
+		position = end;
+		return value;
+	}
+	
+	/**
+	 * Reads the next whitespace-delimited token.
+	 * 
+	 * @return the token
+	 */
+	
+	@Override
+	public String next() {
+		int end = token();
+		String token = new String(buffer, position, end - position);
+		
+		position = end;
+		return token;
+	}
+	
+	/**
+	 * Reads the rest of the current line and moves past its terminator.
+	 * 
+	 * @return the rest of the line, without the terminator
+	 */
+	
+	@Override
+	public String nextLine() {
+		int length = 0;				// counted from position, which moves when the buffer is filled
+		
+		while (true) {
+			if (position + length == limit && !fill()) {
+				if (length == 0) {
+					throw new NoSuchElementException("No line found");
+				}
+				break;
+			}
+			if (buffer[position + length] == '\n') {
+				break;
+			}
+			length++;
+		}
+		
+		int end = position + length;
+		String line = new String(buffer, position, length > 0 && buffer[end - 1] == '\r' ? length - 1 : length);
+		position = end < limit ? end + 1 : end;
+		return line;
+	}
+	
+	/**
+	 * Closes the underlying stream.
+	 * 
+	 * @throws IOException
+	 */
+	
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Reads the next token as an integer within a range. A token that isn't one is left
+	 * unread.
+	 * 
+	 * @param min the smallest value allowed
+	 * @param max the largest value allowed
+	 * @return the value
+	 */
+	
+	private long nextInteger(long min, long max) {
+		int end = token();
+		String token = ungroup(new String(buffer, position, end - position));
+		long value;
+		
+		try {
+			value = Long.parseLong(token);
+		} catch (NumberFormatException e) {
+			throw new InputMismatchException("For input string: \"" + token + "\"");
+		}
+		
+		if (value < min || value > max) {
+			throw new InputMismatchException("Value out of range: \"" + token + "\"");
+		}
+		
+		position = end;
+		return value;
+	}
+	
+	/*
+	 * Skips whitespace and finds the end of the next token, without consuming the token.
+	 * 
+	 * @return the index just past the token; the token starts at position
+	 */
+	
+	private int token() {
+		while (true) {
+			if (position == limit && !fill()) {
+				throw new NoSuchElementException();
+			}
+			if (!Character.isWhitespace(buffer[position])) {
+				break;
+			}
+			position++;
+		}
+		
+		int length = 0;				// counted from position, which moves when the buffer is filled
+		while ((position + length < limit || fill()) && !Character.isWhitespace(buffer[position + length])) {
+			length++;
+		}
+		
+		return position + length;
+	}
+	
+	/*
+	 * Reads more input into the buffer, keeping the unread part. Flushes the session's
+	 * output first, since reading may block until the customer answers.
+	 * 
+	 * @return true if more input was read, false at the end of the stream
+	 */
+	
+	private boolean fill() {
+		if (eof) {
+			return false;
+		}
+		
+		try {
+			if (output != null) {
+				output.flush();
+			}
+			
+			if (position > 0) {
+				System.arraycopy(buffer, position, buffer, 0, limit - position);
+				limit -= position;
+				position = 0;
+			}
+			if (limit == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			
+			int n = reader.read(buffer, limit, buffer.length - limit);
+			if (n < 0) {
+				eof = true;
+				return false;
+			}
+			limit += n;
+			
+			return true;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/*
+	 * Removes grouping commas from a number, provided they group the digits in threes.
+	 * 
+	 * @param token the token
+	 * @return the token without its grouping, or the token itself if it isn't grouped
+	 */
+	
+	private static String ungroup(String token) {
+		int comma = token.indexOf(',');
+		
+		if (comma < 0) {
+			return token;
+		}
+		
+		int start = token.startsWith("-") || token.startsWith("+") ? 1 : 0;
+		int point = token.indexOf('.');
+		int end = point < 0 ? token.length() : point;
+		
+		if (comma == start || comma - start > 3) {
+			return token;
+		}
+		for (int i = comma; i < end; i += 4) {
+			if (token.charAt(i) != ',' || i + 4 > end || (i + 4 < end && token.charAt(i + 4) != ',')) {
+				return token;
+			}
+		}
+		
+		return token.substring(0, end).replace(",", "") + token.substring(end);
+	}
+	
+	/*
+	 * Determines whether or not a token is a finite decimal number. Scanner's nextDouble
+	 * also accepts NaN and Infinity, and Double.parseDouble hexadecimal and type suffixes;
+	 * none of these is a usable amount, so all are rejected here.
+	 * 
+	 * @param token the token
+	 * @return true if the token is a decimal number, false otherwise
+	 */
+	
+	private static boolean isDecimal(String token) {
+		int i = token.startsWith("-") || token.startsWith("+") ? 1 : 0;
+		int digits = 0;
+		while (i < token.length() && Character.isDigit(token.charAt(i))) {
+			i++;
+			digits++;
+		}
+		if (i < token.length() && token.charAt(i) == '.') {
+			i++;
+			while (i < token.length() && Character.isDigit(token.charAt(i))) {
+				i++;
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		
+		if (i < token.length() && (token.charAt(i) == 'e' || token.charAt(i) == 'E')) {
+			i++;
+			if (i < token.length() && (token.charAt(i) == '-' || token.charAt(i) == '+')) {
+				i++;
+			}
+			
+			int exponent = i;
+			while (i < token.length() && Character.isDigit(token.charAt(i))) {
+				i++;
+			}
+			if (i == exponent) {
+				return false;
+			}
+		}
+		
+		return i == token.length();
+	}
+}
@@ -0,0 +1,233 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The TransactionCache class remembers the outcome of recent transactions by their
+ * client-supplied transaction ID, so a client that retries a transaction after a timeout
+ * gets the original outcome back instead of applying the transaction twice. A retry that
+ * arrives while the original is still running waits for it to finish. An ID is scoped to
+ * the operation and account it was sent with (see key), so the same ID sent for another
+ * operation or account is a different transaction.
+ * 
+ * Outcomes are kept for WINDOW_MILLIS after the transaction completes, and at most
+ * MAX_ENTRIES are kept at once; the oldest completed outcomes are dropped first.
+ */
+
+public class TransactionCache {
+	
+	public static final long WINDOW_MILLIS = 15 * 60 * 1000L;
+	public static final int MAX_ENTRIES = 100000;
+	public static final int MAX_ID_LENGTH = 36;
+	public static final int ABANDONED = -1;				// the original attempt failed without an outcome
+	
+	private ConcurrentHashMap<String, Outcome> outcomes;
+	private ConcurrentLinkedQueue<String> order;
+	
+	/**
+	 * Constructs an empty cache.
+	 */
+	
+	public TransactionCache() {
+		this.outcomes = new ConcurrentHashMap<String, Outcome>();
+		this.order = new ConcurrentLinkedQueue<String>();
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Claims a transaction. If it hasn't been seen within the window, the caller now owns
+	 * it and must call complete or abandon once the transaction is done. Otherwise the
+	 * earlier outcome is returned.
+	 * 
+	 * @param key the transaction's key (see key)
+	 * @return null if the caller owns the transaction, or the outcome of the earlier attempt
+	 */
+	
+	public Outcome claim(String key) {
+		long now = System.currentTimeMillis();
+		Outcome created = new Outcome();
+		
+		while (true) {
+			Outcome existing = outcomes.putIfAbsent(key, created);
+			
+			if (existing == null) {
+				order.add(key);
+				evict(now);
+				
+				return null;
+			} else if (!existing.isExpired(now) || !outcomes.remove(key, existing)) {
+				return existing;
+			}
+		}
+	}
+	
+	/**
+	 * Records the outcome of a claimed transaction and releases any retries waiting on it.
+	 * 
+	 * @param key the transaction's key (see key)
+	 * @param status the status code returned by the transaction
+	 */
+	
+	public void complete(String key, int status) {
+		Outcome outcome = outcomes.get(key);
+		
+		if (outcome != null) {
+			outcome.complete(status, System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * Releases a claimed transaction that failed without an outcome, so it can be retried.
+	 * 
+	 * @param key the transaction's key (see key)
+	 */
+	
+	public void abandon(String key) {
+		Outcome outcome = outcomes.remove(key);
+		
+		if (outcome != null) {
+			outcome.complete(ABANDONED, System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * Records the outcome of a transaction that completed earlier, such as one replayed
+	 * from the transaction log. Outcomes older than the window are ignored, and so is a
+	 * transaction the cache already knows, which may still be running.
+	 * 
+	 * @param key the transaction's key (see key)
+	 * @param status the status code the transaction returned
+	 * @param time when the transaction completed, in milliseconds since the epoch
+	 */
+	
+	public void remember(String key, int status, long time) {
+		long now = System.currentTimeMillis();
+		
+		if (time + WINDOW_MILLIS <= now) {
+			return;
+		}
+		
+		Outcome outcome = new Outcome();
+		outcome.complete(status, time);
+		if (outcomes.putIfAbsent(key, outcome) == null) {
+			order.add(key);
+			evict(now);
+		}
+	}
+	
+	/**
+	 * Builds the key a transaction is cached under: its ID, scoped to the operation and the
+	 * account it was sent for.
+	 * 
+	 * @param operation the transaction type (see TransactionHistory)
+	 * @param accountNumber the account number, or the sending account of a transfer
+	 * @param transactionId the client's transaction ID
+	 * @return the key
+	 * @throws IllegalArgumentException if the transaction ID isn't valid
+	 */
+	
+	public static String key(char operation, long accountNumber, String transactionId) {
+		if (!isValid(transactionId)) {
+			throw new IllegalArgumentException("Invalid transaction ID: " + transactionId);
+		}
+		
+		return operation + Long.toString(accountNumber) + ' ' + transactionId;
+	}
+	
+	/**
+	 * Determines whether or not a string can be used as a transaction ID: 1 to
+	 * MAX_ID_LENGTH printable ASCII characters, without spaces.
+	 * 
+	 * @param transactionId the string to check
+	 * @return true if it is a valid transaction ID, false otherwise
+	 */
+	
+	public static boolean isValid(String transactionId) {
+		if (transactionId == null || transactionId.isEmpty() || transactionId.length() > MAX_ID_LENGTH) {
+			return false;
+		}
+		
+		for (int i = 0; i < transactionId.length(); i++) {
+			char ch = transactionId.charAt(i);
+			
+			if (ch <= ' ' || ch > '~') {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Drops expired outcomes from the front of the queue, then the oldest completed
+	 * outcomes until the cache is back under its limit. Outcomes still pending are
+	 * moved to the back of the queue rather than dropped.
+	 * 
+	 * @param now the current time
+	 */
+	
+	private void evict(long now) {
+		for (int requeued = 0; requeued < MAX_ENTRIES; ) {
+			String oldest = order.peek();
+			Outcome outcome = oldest == null ? null : outcomes.get(oldest);
+			
+			if (oldest == null || (outcome != null && !outcome.isExpired(now) && outcomes.size() <= MAX_ENTRIES)) {
+				break;
+			} else if ((oldest = order.poll()) == null) {
+				break;
+			}
+			
+			outcome = outcomes.get(oldest);
+			if (outcome == null) {
+				continue;								// abandoned, or dropped already
+			} else if (outcome.isDone() && (outcome.isExpired(now) || outcomes.size() > MAX_ENTRIES)) {
+				outcomes.remove(oldest, outcome);
+			} else {
+				order.add(oldest);
+				requeued++;
+			}
+		}
+	}
+	
+	/**
+	 * The outcome of one transaction, which may still be in progress.
+	 */
+	
+	public static class Outcome {
+		private boolean done;
+		private int status;
+		private long completed;
+		
+		/**
+		 * Waits for the transaction to finish.
+		 * 
+		 * @return the status code it returned, or ABANDONED if it failed without one
+		 * @throws InterruptedException
+		 */
+		
+		public synchronized int await() throws InterruptedException {
+			while (!done) {
+				wait();
+			}
+			
+			return status;
+		}
+		
+		private synchronized void complete(int status, long time) {
+			this.done = true;
+			this.status = status;
+			this.completed = time;
+			notifyAll();
+		}
+		
+		private synchronized boolean isDone() {
+			return done;
+		}
+		
+		private synchronized boolean isExpired(long now) {
+			return done && completed + WINDOW_MILLIS <= now;
+		}
+	}
+}
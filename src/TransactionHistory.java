@@ -0,0 +1,167 @@
+/**
+ * The TransactionHistory class holds an account's most recent transactions in a fixed-size
+ * ring. Each field lives in its own primitive array, so adding a transaction never allocates.
+ * Index 0 is the most recent transaction.
+ */
+
+public class TransactionHistory {
+	
+	public static final char DEPOSIT = 'D';
+	public static final char WITHDRAWAL = 'W';
+	public static final char TRANSFER_OUT = 'T';
+	public static final char TRANSFER_IN = 'R';
+	public static final char INTEREST = 'I';
+	
+	private long[] times;
+	private char[] types;
+	private long[] amounts;
+	private long[] balances;
+	private long[] counterparties;
+	private int next;
+	private int size;
+	
+	/**
+	 * Constructs an empty history.
+	 * 
+	 * @param capacity the number of transactions to keep
+	 */
+	
+	public TransactionHistory(int capacity) {
+		this.times = new long[capacity];
+		this.types = new char[capacity];
+		this.amounts = new long[capacity];
+		this.balances = new long[capacity];
+		this.counterparties = new long[capacity];
+		this.next = 0;
+		this.size = 0;
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the number of transactions held.
+	 * 
+	 * @return size
+	 */
+	
+	public synchronized int size() {
+		return size;
+	}
+	
+	/**
+	 * Retrieves when a transaction happened.
+	 * 
+	 * @param i the transaction, 0 being the most recent
+	 * @return the time in milliseconds since the epoch
+	 */
+	
+	public synchronized long getTime(int i) {
+		return times[slot(i)];
+	}
+	
+	/**
+	 * Retrieves the type of a transaction.
+	 * 
+	 * @param i the transaction, 0 being the most recent
+	 * @return DEPOSIT, WITHDRAWAL, TRANSFER_OUT or TRANSFER_IN
+	 */
+	
+	public synchronized char getType(int i) {
+		return types[slot(i)];
+	}
+	
+	/**
+	 * Retrieves the amount of a transaction.
+	 * 
+	 * @param i the transaction, 0 being the most recent
+	 * @return the amount in cents
+	 */
+	
+	public synchronized long getAmount(int i) {
+		return amounts[slot(i)];
+	}
+	
+	/**
+	 * Retrieves the balance after a transaction.
+	 * 
+	 * @param i the transaction, 0 being the most recent
+	 * @return the balance in cents
+	 */
+	
+	public synchronized long getBalance(int i) {
+		return balances[slot(i)];
+	}
+	
+	/**
+	 * Retrieves the other account involved in a transfer.
+	 * 
+	 * @param i the transaction, 0 being the most recent
+	 * @return the other account number, or 0 for deposits and withdrawals
+	 */
+	
+	public synchronized long getCounterparty(int i) {
+		return counterparties[slot(i)];
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Adds a transaction, overwriting the oldest one when the history is full.
+	 * 
+	 * @param time the time in milliseconds since the epoch
+	 * @param type the transaction type
+	 * @param amount the amount in cents
+	 * @param balance the balance afterwards in cents
+	 * @param counterparty the other account in a transfer, or 0
+	 */
+	
+	public synchronized void add(long time, char type, long amount, long balance, long counterparty) {
+		times[next] = time;
+		types[next] = type;
+		amounts[next] = amount;
+		balances[next] = balance;
+		counterparties[next] = counterparty;
+		
+		next = (next + 1) % times.length;
+		if (size < times.length) {
+			size++;
+		}
+	}
+	
+	/**
+	 * Copies this history so it can be read without further locking.
+	 * 
+	 * @return a copy of this history
+	 */
+	
+	public synchronized TransactionHistory copy() {
+		TransactionHistory copy = new TransactionHistory(times.length);
+		
+		System.arraycopy(times, 0, copy.times, 0, times.length);
+		System.arraycopy(types, 0, copy.types, 0, types.length);
+		System.arraycopy(amounts, 0, copy.amounts, 0, amounts.length);
+		System.arraycopy(balances, 0, copy.balances, 0, balances.length);
+		System.arraycopy(counterparties, 0, copy.counterparties, 0, counterparties.length);
+		copy.next = next;
+		copy.size = size;
+		
+		return copy;
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Maps a logical index (0 being the most recent) to a position in the arrays.
+	 * 
+	 * @param i the logical index
+	 * @return the array position
+	 */
+	
+	private int slot(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException(String.valueOf(i));
+		}
+		
+		return (next - 1 - i + times.length) % times.length;
+	}
+}
@@ -0,0 +1,784 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The TransactionLog class appends every completed transaction to a fixed-width log file
+ * next to the ledger and keeps each account's most recent transactions in memory, so they
+ * can be shown without reading the file back.
+ * 
+ * Each line holds the time (13), account number, type (1), amount in cents (15),
+ * balance afterwards in cents (15) and the other account of a transfer, followed by the
+ * client's transaction ID when one was given. Account numbers are as wide as the record
+ * layout the lines follow (see RecordLayout.getMarker): 9 digits until a marker says
+ * otherwise. When the current layout is wider or narrower than the log's, a marker is
+ * appended before the first new line, so the lines already written stay as they are.
+ * 
+ * A transaction made under a transaction ID is journaled before it is committed: an
+ * intent line, starting with INTENT, holds the time (13), type (1), account number, the
+ * version the commit gives the account (15) and the ID. The transaction's own lines
+ * carry the ID if it succeeds; any other outcome is an outcome line, starting with
+ * OUTCOME, holding the time, type, account number, status code (2) and ID. Outcomes
+ * still within the retry window are loaded into the cache on start, and an intent a
+ * crash left without an outcome is settled against the store by resolve.
+ * 
+ * The log is never trimmed, so rather than read it all back on every start, the
+ * in-memory histories and the outcomes and intents still within the retry window are
+ * saved to a checkpoint file next to the log: after a start that read anything new, every
+ * CHECKPOINT_INTERVAL transactions, and on close. A start loads the checkpoint and reads
+ * only the lines written after it. A checkpoint is only saved while nothing but this
+ * process has written to the log since it started, and is ignored if the log no longer
+ * ends where it did when the checkpoint was saved. The histories are copied while
+ * transactions wait, but written on a background thread, except on close.
+ */
+
+public class TransactionLog {
+	
+	public static final String EXTENSION = ".log";
+	public static final String CHECKPOINT_EXTENSION = ".ckpt";
+	public static final int FIXED_LENGTH = 44;		// characters per line, excluding the account numbers and any transaction ID
+	public static final int HISTORY_SIZE = 10;
+	public static final int CHECKPOINT_INTERVAL = 100000;
+	
+	public static final char INTENT = '?';
+	public static final char OUTCOME = '=';
+	
+	private static final char TRANSACTION_ID = '+';	// starts a checkpoint line from before IDs were scoped to an account
+	
+	private String path;
+	private BufferedWriter writer;
+	private ConcurrentHashMap<Long, TransactionHistory> histories;
+	private TransactionCache cache;
+	private RecordLayout layout;					// the layout of the last line in the file
+	private String format;
+	private String intentFormat;
+	private String outcomeFormat;
+	private ArrayDeque<String> recent;				// outcome lines still within the retry window, oldest first
+	private Map<String, Intent> pending;			// intents without an outcome, by cache key
+	private long length;							// bytes of the log reflected in memory
+	private String last;							// the last line of the log reflected in memory, or an empty string
+	private int sinceCheckpoint;
+	private Thread checkpointer;					// saving the last checkpoint, or null
+	
+	/**
+	 * Constructs a transaction log, replaying any existing file into memory.
+	 * 
+	 * @param path the log file, relative to the working directory
+	 * @throws IOException
+	 */
+	
+	public TransactionLog(String path) throws IOException {
+		this(path, null);
+	}
+	
+	/**
+	 * Constructs a transaction log, replaying any existing file into memory and the
+	 * transaction IDs it holds into a cache. Only the lines written since the last
+	 * checkpoint are read from the file.
+	 * 
+	 * @param path the log file, relative to the working directory
+	 * @param cache the cache to replay recent transaction IDs into, or null
+	 * @throws IOException
+	 */
+	
+	public TransactionLog(String path, TransactionCache cache) throws IOException {
+		this.path = path;
+		this.histories = new ConcurrentHashMap<Long, TransactionHistory>();
+		this.cache = cache;
+		this.layout = RecordLayout.V1;
+		this.recent = new ArrayDeque<String>();
+		this.pending = new HashMap<String, Intent>();
+		this.last = "";
+		
+		int width = RecordLayout.CURRENT.getWidth(RecordLayout.ACCOUNT_NUMBER);
+		this.format = "%013d%0" + width + "d%c%015d%015d%0" + width + "d%s";
+		this.intentFormat = INTENT + "%013d%c%0" + width + "d%015d%s";
+		this.outcomeFormat = OUTCOME + "%013d%c%0" + width + "d%02d%s";
+		
+		long checkpointed = restore();
+		replay();
+		this.writer = new BufferedWriter(new FileWriter(file(path), true));
+		
+		if (width != layout.getWidth(RecordLayout.ACCOUNT_NUMBER)) {
+			layout = RecordLayout.CURRENT;
+			append(layout.getMarker());
+		}
+		
+		if (length > checkpointed) {
+			checkpoint();
+		}
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Records a transaction in the log and in the account's recent history.
+	 * 
+	 * @param accountNumber the account number
+	 * @param type the transaction type (see TransactionHistory)
+	 * @param amount the amount in dollars
+	 * @param balance the balance afterwards in dollars
+	 * @param counterparty the other account in a transfer, or 0
+	 * @throws IOException
+	 */
+	
+	public void record(long accountNumber, char type, double amount, double balance, long counterparty) throws IOException {
+		record(accountNumber, type, amount, balance, counterparty, null);
+	}
+	
+	/**
+	 * Records a transaction made under a client-supplied transaction ID. This is also the
+	 * outcome of its intent; the receiving side of a transfer is keyed by the sending side.
+	 * 
+	 * @param accountNumber the account number
+	 * @param type the transaction type (see TransactionHistory)
+	 * @param amount the amount in dollars
+	 * @param balance the balance afterwards in dollars
+	 * @param counterparty the other account in a transfer, or 0
+	 * @param transactionId the transaction ID, or null
+	 * @throws IOException
+	 */
+	
+	public void record(long accountNumber, char type, double amount, double balance, long counterparty, String transactionId) throws IOException {
+		long time = System.currentTimeMillis();
+		long cents = Math.round(amount * 100);
+		long balanceCents = Math.round(balance * 100);
+		
+		synchronized (this) {
+			append(String.format(format, time, accountNumber, type, cents, balanceCents, counterparty,
+				transactionId == null ? "" : transactionId));
+			history(accountNumber).add(time, type, cents, balanceCents, counterparty);
+			
+			if (transactionId != null && type != TransactionHistory.TRANSFER_IN) {
+				remember(time, type, accountNumber, ATM.SUCCESS, transactionId);
+			}
+			if (++sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+				checkpoint();
+			}
+		}
+	}
+	
+	/**
+	 * Records a batch of transactions of one type, such as a night's interest credits,
+	 * flushing the log once for the whole batch.
+	 * 
+	 * @param type the transaction type (see TransactionHistory)
+	 * @param accountNumbers the account numbers
+	 * @param amounts the amounts in cents
+	 * @param balances the balances afterwards in cents
+	 * @param count the number of transactions
+	 * @throws IOException
+	 */
+	
+	public void record(char type, long[] accountNumbers, long[] amounts, long[] balances, int count) throws IOException {
+		long time = System.currentTimeMillis();
+		
+		synchronized (this) {
+			for (int i = 0; i < count; i++) {
+				write(String.format(format, time, accountNumbers[i], type, amounts[i], balances[i], 0, ""));
+				history(accountNumbers[i]).add(time, type, amounts[i], balances[i], 0);
+			}
+			writer.flush();
+			
+			if ((sinceCheckpoint += count) >= CHECKPOINT_INTERVAL) {
+				checkpoint();
+			}
+		}
+	}
+	
+	/**
+	 * Journals a transaction about to be committed under a client-supplied transaction ID,
+	 * so a start after a crash can tell whether the commit was made (see resolve).
+	 * 
+	 * @param type the transaction type (see TransactionHistory)
+	 * @param accountNumber the account number, or the sending account of a transfer
+	 * @param version the version the commit gives the account
+	 * @param transactionId the transaction ID
+	 * @throws IOException
+	 */
+	
+	public synchronized void intend(char type, long accountNumber, long version, String transactionId) throws IOException {
+		long time = System.currentTimeMillis();
+		
+		append(String.format(intentFormat, time, type, accountNumber, version, transactionId));
+		pending.put(TransactionCache.key(type, accountNumber, transactionId), new Intent(time, type, accountNumber, version, transactionId));
+	}
+	
+	/**
+	 * Journals the outcome of a transaction made under a client-supplied transaction ID
+	 * that didn't succeed, so a retry after a restart gets the same status back.
+	 * 
+	 * @param type the transaction type (see TransactionHistory)
+	 * @param accountNumber the account number, or the sending account of a transfer
+	 * @param status the status code the transaction returned
+	 * @param transactionId the transaction ID
+	 * @throws IOException
+	 */
+	
+	public void conclude(char type, long accountNumber, int status, String transactionId) throws IOException {
+		conclude(System.currentTimeMillis(), type, accountNumber, status, transactionId);
+	}
+	
+	/**
+	 * Settles the intents a crash left without an outcome. A commit was made if the
+	 * account has reached the version it would have given it; the transaction is then
+	 * remembered as a success, and otherwise released so a retry carries it out.
+	 * 
+	 * @param store the store the transactions were committed to
+	 * @throws IOException
+	 */
+	
+	public void resolve(AccountStore store) throws IOException {
+		List<Intent> unsettled;
+		
+		synchronized (this) {
+			unsettled = new ArrayList<Intent>(pending.values());
+		}
+		
+		for (Intent intent : unsettled) {
+			BankAccount account = store.get(intent.accountNumber);
+			boolean committed = account != null && account.getVersion() >= intent.version;
+			
+			conclude(intent.time, intent.type, intent.accountNumber, committed ? ATM.SUCCESS : TransactionCache.ABANDONED, intent.transactionId);
+		}
+	}
+	
+	/**
+	 * Retrieves an account's recent transactions from memory.
+	 * 
+	 * @param accountNumber the account number
+	 * @return a copy of the account's recent history
+	 */
+	
+	public TransactionHistory getRecent(long accountNumber) {
+		TransactionHistory history = histories.get(accountNumber);
+		
+		return history == null ? new TransactionHistory(HISTORY_SIZE) : history.copy();
+	}
+	
+	/**
+	 * Closes the log file and saves a checkpoint, once any checkpoint being saved in the
+	 * background is finished.
+	 * 
+	 * @throws IOException
+	 */
+	
+	public synchronized void close() throws IOException {
+		writer.close();
+		
+		if (checkpointer != null) {
+			try {
+				checkpointer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		Checkpoint checkpoint = snapshot();
+		if (checkpoint != null) {
+			save(checkpoint);
+		}
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Retrieves (creating if necessary) the in-memory history for an account.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the history
+	 */
+	
+	private TransactionHistory history(long accountNumber) {
+		TransactionHistory history = histories.get(accountNumber);
+		
+		if (history == null) {
+			TransactionHistory created = new TransactionHistory(HISTORY_SIZE);
+			history = histories.putIfAbsent(accountNumber, created);
+			
+			if (history == null) {
+				history = created;
+			}
+		}
+		
+		return history;
+	}
+	
+	/*
+	 * Writes a line to the log and flushes it.
+	 * 
+	 * @param line the line, without a line terminator
+	 * @throws IOException
+	 */
+	
+	private void append(String line) throws IOException {
+		write(line);
+		writer.flush();
+	}
+	
+	/*
+	 * Writes a line to the log, leaving it buffered.
+	 * 
+	 * @param line the line, without a line terminator
+	 * @throws IOException
+	 */
+	
+	private void write(String line) throws IOException {
+		writer.write(line);
+		writer.newLine();
+		
+		length += line.length() + System.lineSeparator().length();
+		last = line;
+	}
+	
+	/*
+	 * Adds a transaction line to the in-memory histories and, if it has a transaction ID,
+	 * the outcomes kept for the retry window.
+	 * 
+	 * @param line the line
+	 * @param width the width of its account numbers
+	 * @throws NumberFormatException if a numeric field isn't a number
+	 */
+	
+	private void apply(String line, int width) {
+		long time = Long.parseLong(line.substring(0, 13));
+		int type = 13 + width;
+		
+		history(Long.parseLong(line.substring(13, type))).add(
+			time,
+			line.charAt(type),
+			Long.parseLong(line.substring(type + 1, type + 16)),
+			Long.parseLong(line.substring(type + 16, type + 31)),
+			Long.parseLong(line.substring(type + 31, type + 31 + width))
+		);
+		
+		if (line.length() > FIXED_LENGTH + 2 * width && line.charAt(type) != TransactionHistory.TRANSFER_IN) {
+			remember(time, line.charAt(type), Long.parseLong(line.substring(13, type)), ATM.SUCCESS, line.substring(FIXED_LENGTH + 2 * width));
+		}
+	}
+	
+	/*
+	 * Journals the outcome of a transaction made under a transaction ID.
+	 * 
+	 * @param time when the transaction completed, in milliseconds since the epoch
+	 * @param type the transaction type
+	 * @param accountNumber the account number, or the sending account of a transfer
+	 * @param status the status code, or ABANDONED if the transaction can be retried
+	 * @param transactionId the transaction ID
+	 * @throws IOException
+	 */
+	
+	private synchronized void conclude(long time, char type, long accountNumber, int status, String transactionId) throws IOException {
+		append(String.format(outcomeFormat, time, type, accountNumber, status, transactionId));
+		remember(time, type, accountNumber, status, transactionId);
+	}
+	
+	/*
+	 * Adds an intent line to the intents without an outcome.
+	 * 
+	 * @param line the line
+	 * @param width the width of its account number
+	 * @throws NumberFormatException if a numeric field isn't a number
+	 */
+	
+	private void intend(String line, int width) {
+		long time = Long.parseLong(line.substring(1, 14));
+		char type = line.charAt(14);
+		long accountNumber = Long.parseLong(line.substring(15, 15 + width));
+		String transactionId = line.substring(30 + width);
+		
+		if (TransactionCache.isValid(transactionId) && time + TransactionCache.WINDOW_MILLIS > System.currentTimeMillis()) {
+			pending.put(TransactionCache.key(type, accountNumber, transactionId),
+				new Intent(time, type, accountNumber, Long.parseLong(line.substring(15 + width, 30 + width)), transactionId));
+		}
+	}
+	
+	/*
+	 * Adds an outcome line to the outcomes kept for the retry window.
+	 * 
+	 * @param line the line
+	 * @param width the width of its account number
+	 * @throws NumberFormatException if a numeric field isn't a number
+	 */
+	
+	private void conclude(String line, int width) {
+		remember(
+			Long.parseLong(line.substring(1, 14)),
+			line.charAt(14),
+			Long.parseLong(line.substring(15, 15 + width)),
+			Integer.parseInt(line.substring(15 + width, 17 + width)),
+			line.substring(17 + width)
+		);
+	}
+	
+	/*
+	 * Keeps the outcome of a transaction made under a transaction ID for the retry
+	 * window, in the cache and for the next checkpoint, settling its intent, and forgets
+	 * those that have left the window.
+	 * 
+	 * @param time when the transaction completed, in milliseconds since the epoch
+	 * @param type the transaction type
+	 * @param accountNumber the account number, or the sending account of a transfer
+	 * @param status the status code, or ABANDONED if the transaction can be retried
+	 * @param transactionId the transaction ID
+	 */
+	
+	private void remember(long time, char type, long accountNumber, int status, String transactionId) {
+		long now = System.currentTimeMillis();
+		
+		if (!TransactionCache.isValid(transactionId)) {
+			return;
+		}
+		
+		String key = TransactionCache.key(type, accountNumber, transactionId);
+		pending.remove(key);
+		if (time + TransactionCache.WINDOW_MILLIS <= now || status == TransactionCache.ABANDONED) {
+			return;
+		} else if (cache != null) {
+			cache.remember(key, status, time);
+		}
+		
+		recent.add(String.format(outcomeFormat, time, type, accountNumber, status, transactionId));
+		while (Long.parseLong(recent.peek().substring(1, 14)) + TransactionCache.WINDOW_MILLIS <= now) {
+			recent.poll();
+		}
+	}
+	
+	/*
+	 * Loads the checkpoint, if there is one that still matches the log.
+	 * 
+	 * @return the length of the log the checkpoint covers, or 0 if there is none
+	 * @throws IOException
+	 */
+	
+	private long restore() throws IOException {
+		File file = file(path + CHECKPOINT_EXTENSION);
+		List<String> lines = new ArrayList<String>();
+		
+		if (!file.isFile()) {
+			return 0;
+		}
+		
+		try (BufferedReader br = new BufferedReader(new FileReader(file), 1 << 16)) {
+			String line;
+			
+			while ((line = br.readLine()) != null) {
+				lines.add(line);
+			}
+		}
+		
+		try {
+			String[] header = lines.get(0).split(" ");
+			long covered = Long.parseLong(header[0]);
+			RecordLayout at = RecordLayout.forVersion(Integer.parseInt(header[1]));
+			
+			if (!endsWith(file(path), covered, lines.get(1))) {
+				return 0;
+			}
+			
+			int width = RecordLayout.V1.getWidth(RecordLayout.ACCOUNT_NUMBER);
+			for (String line : lines.subList(2, lines.size())) {
+				RecordLayout marked = RecordLayout.ofMarker(line);
+				
+				if (marked != null) {
+					width = marked.getWidth(RecordLayout.ACCOUNT_NUMBER);
+				} else if (line.charAt(0) == INTENT) {
+					intend(line, width);
+				} else if (line.charAt(0) == OUTCOME) {
+					conclude(line, width);
+				} else if (line.charAt(0) == TRANSACTION_ID) {
+					throw new IllegalArgumentException("The checkpoint's transaction IDs have no account.");
+				} else {
+					apply(line, width);
+				}
+			}
+			
+			layout = at;
+			length = covered;
+			last = lines.get(1);
+			
+			return covered;
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			histories.clear();				// damaged or outdated; read the whole log instead
+			recent.clear();
+			pending.clear();
+			
+			return 0;
+		}
+	}
+	
+	/*
+	 * Reads the log from where memory leaves off into the in-memory histories, outcomes
+	 * and intents, following its layout markers. A line still being written is
+	 * left out.
+	 * 
+	 * @throws IOException
+	 */
+	
+	private void replay() throws IOException {
+		File file = file(path);
+		
+		if (!file.isFile() || file.length() <= length) {
+			return;
+		}
+		
+		try (FileInputStream fis = new FileInputStream(file)) {
+			InputStream in = new BufferedInputStream(fis, 1 << 16);
+			StringBuilder sb = new StringBuilder(128);
+			int width = layout.getWidth(RecordLayout.ACCOUNT_NUMBER);
+			long read = length;
+			int b;
+			
+			fis.getChannel().position(length);
+			while ((b = in.read()) != -1) {
+				read++;
+				
+				if (b != '\n') {
+					sb.append((char) b);
+					continue;
+				}
+				
+				String line = sb.toString().trim();
+				RecordLayout marked = RecordLayout.ofMarker(line);
+				
+				if (marked != null) {
+					layout = marked;
+					width = layout.getWidth(RecordLayout.ACCOUNT_NUMBER);
+				} else if (line.length() > 30 + width && line.charAt(0) == INTENT) {
+					intend(line, width);
+				} else if (line.length() > 17 + width && line.charAt(0) == OUTCOME) {
+					conclude(line, width);
+				} else if (line.length() >= FIXED_LENGTH + 2 * width) {
+					apply(line, width);
+				}
+				sb.setLength(0);
+				length = read;
+				last = line;
+			}
+		}
+	}
+	
+	/*
+	 * Starts saving the in-memory histories and the outcomes and intents still within the
+	 * retry window on a background thread, unless another process has written to the log
+	 * since this one read it. If the last checkpoint is still being saved, this one is
+	 * left for the next transaction.
+	 */
+	
+	private void checkpoint() {
+		if (checkpointer != null && checkpointer.isAlive()) {
+			return;
+		}
+		sinceCheckpoint = 0;
+		
+		final Checkpoint checkpoint = snapshot();
+		if (checkpoint == null) {
+			return;
+		}
+		
+		checkpointer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					save(checkpoint);
+				} catch (IOException e) {
+					// the transactions are logged; the next start just reads further back
+				}
+			}
+		}, "transaction-log-checkpoint");
+		checkpointer.setDaemon(true);
+		checkpointer.start();
+	}
+	
+	/*
+	 * Copies what a checkpoint saves, unless another process has written to the log since
+	 * this one read it.
+	 * 
+	 * @return the copy, or null if no checkpoint can be saved
+	 */
+	
+	private Checkpoint snapshot() {
+		if (file(path).length() != length) {
+			return null;
+		}
+		
+		Checkpoint checkpoint = new Checkpoint(length, layout.getVersion(), last, new ArrayList<String>(recent));
+		for (Intent intent : pending.values()) {
+			checkpoint.recent.add(String.format(intentFormat, intent.time, intent.type, intent.accountNumber, intent.version, intent.transactionId));
+		}
+		for (Map.Entry<Long, TransactionHistory> entry : histories.entrySet()) {
+			checkpoint.histories.put(entry.getKey(), entry.getValue().copy());
+		}
+		
+		return checkpoint;
+	}
+	
+	/*
+	 * Writes a checkpoint file, replacing the last one in one step.
+	 * 
+	 * @param checkpoint the copy to save
+	 * @throws IOException
+	 */
+	
+	private void save(Checkpoint checkpoint) throws IOException {
+		File temp = file(path + CHECKPOINT_EXTENSION + ".tmp");
+		try (BufferedWriter bw = new BufferedWriter(new FileWriter(temp), 1 << 16)) {
+			bw.write(checkpoint.length + " " + checkpoint.version);
+			bw.newLine();
+			bw.write(checkpoint.last);
+			bw.newLine();
+			bw.write(RecordLayout.CURRENT.getMarker());
+			bw.newLine();
+			
+			for (Map.Entry<Long, TransactionHistory> entry : checkpoint.histories.entrySet()) {
+				TransactionHistory history = entry.getValue();
+				
+				for (int i = history.size() - 1; i >= 0; i--) {
+					bw.write(String.format(format, history.getTime(i), entry.getKey(), history.getType(i), history.getAmount(i),
+						history.getBalance(i), history.getCounterparty(i), ""));
+					bw.newLine();
+				}
+			}
+			
+			for (String line : checkpoint.recent) {
+				bw.write(line);
+				bw.newLine();
+			}
+		}
+		Files.move(temp.toPath(), file(path + CHECKPOINT_EXTENSION).toPath(), StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/*
+	 * Determines whether or not the first bytes of a file end with a line.
+	 * 
+	 * @param file the file
+	 * @param length the number of bytes
+	 * @param line the line, without its line terminator, or an empty string if length is 0
+	 * @return true if the file is that long and the line ends there, false otherwise
+	 * @throws IOException
+	 */
+	
+	private static boolean endsWith(File file, long length, String line) throws IOException {
+		if (length == 0) {
+			return line.isEmpty();
+		} else if (!file.isFile() || file.length() < length) {
+			return false;
+		}
+		
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			byte[] tail = new byte[(int) Math.min(length, line.length() + 3)];		// room for the terminators on both sides
+			
+			raf.seek(length - tail.length);
+			raf.readFully(tail);
+			
+			int end = tail.length - 1;
+			if (tail[end] != '\n') {
+				return false;
+			} else if (end > 0 && tail[end - 1] == '\r') {
+				end--;
+			}
+			
+			int start = end - line.length();
+			if (start < 0 || (start > 0 ? tail[start - 1] != '\n' : length != tail.length)) {
+				return false;
+			}
+			
+			for (int i = 0; i < line.length(); i++) {
+				if (tail[start + i] != line.charAt(i)) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+	}
+	
+	/*
+	 * Retrieves a file next to the ledger.
+	 * 
+	 * @param name the file, relative to the working directory
+	 * @return the file
+	 */
+	
+	private static File file(String name) {
+		return new File(System.getProperty("user.dir") + File.separator + name);
+	}
+	
+	/*
+	 * What a checkpoint saves, copied from memory so it can be written while
+	 * transactions carry on.
+	 */
+	
+	private static class Checkpoint {
+		
+		private long length;
+		private int version;
+		private String last;
+		private List<String> recent;
+		private Map<Long, TransactionHistory> histories;
+		
+		/*
+		 * Constructs a checkpoint with no histories yet.
+		 * 
+		 * @param length the bytes of the log it covers
+		 * @param version the version of the layout the log ends in
+		 * @param last the last line it covers, or an empty string
+		 * @param recent the outcome and intent lines still within the retry window
+		 */
+		
+		private Checkpoint(long length, int version, String last, List<String> recent) {
+			this.length = length;
+			this.version = version;
+			this.last = last;
+			this.recent = recent;
+			this.histories = new HashMap<Long, TransactionHistory>();
+		}
+	}
+	
+	/*
+	 * A transaction journaled before its commit that has no outcome yet.
+	 */
+	
+	private static class Intent {
+		
+		private long time;
+		private char type;
+		private long accountNumber;
+		private long version;
+		private String transactionId;
+		
+		/*
+		 * Constructs an intent.
+		 * 
+		 * @param time when the transaction was about to be committed
+		 * @param type the transaction type
+		 * @param accountNumber the account number, or the sending account of a transfer
+		 * @param version the version the commit gives the account
+		 * @param transactionId the transaction ID
+		 */
+		
+		private Intent(long time, char type, long accountNumber, long version, String transactionId) {
+			this.time = time;
+			this.type = type;
+			this.accountNumber = accountNumber;
+			this.version = version;
+			this.transactionId = transactionId;
+		}
+	}
+}
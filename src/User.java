@@ -16,6 +16,8 @@ public class User {
 		"wa", "wv", "wi", "wy", "dc"
 	};
 	
+	public final static int REDACTED_PIN = -1;		// the PIN is kept hashed in the PinStore instead
+	
 	private int pin;
 	private int dob;
 	private long phone;
@@ -52,6 +54,13 @@ public class User {
 		this.zip = zip;
 	}
 	
+	/**
+	 * Constructor for subclasses that keep their state elsewhere (see LedgerUser).
+	 */
+	
+	protected User() {
+	}
+	
 	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
 	
 	/**
@@ -157,6 +166,14 @@ public class User {
 		
 		this.pin = pin;
 	}
+	
+	/**
+	 * Removes the user's PIN from this record once it is stored hashed elsewhere.
+	 */
+	
+	public void redactPIN() {
+		this.pin = REDACTED_PIN;
+	}
 		
 	/**
 	 * Updates the user's phone number.
@@ -223,7 +240,7 @@ public class User {
 	 */
 	
 	public String getName() {
-		return firstName + " " + lastName;
+		return getFirstName() + " " + getLastName();
 	}
 	
 	/**
@@ -234,9 +251,11 @@ public class User {
 	 */
 	
 	public String getFormattedPhone() {
-		return "(" + Integer.parseInt(String.valueOf(phone).substring(0, 3)) + ") " +
-			Integer.parseInt(String.valueOf(phone).substring(3, 6)) + "-" +
-			Integer.parseInt(String.valueOf(phone).substring(6, 10));
+		String phone = String.valueOf(getPhone());
+		
+		return "(" + Integer.parseInt(phone.substring(0, 3)) + ") " +
+			Integer.parseInt(phone.substring(3, 6)) + "-" +
+			Integer.parseInt(phone.substring(6, 10));
 	}
 	
 	/**
@@ -247,9 +266,10 @@ public class User {
 	 */
 	
 	public String getFormattedDOB() {
-		int year = Integer.parseInt(String.valueOf(dob).substring(0, 4));
-		int month = Integer.parseInt(String.valueOf(dob).substring(4, 6));
-		int day = Integer.parseInt(String.valueOf(dob).substring(6, 8));
+		String dob = String.valueOf(getDOB());
+		int year = Integer.parseInt(dob.substring(0, 4));
+		int month = Integer.parseInt(dob.substring(4, 6));
+		int day = Integer.parseInt(dob.substring(6, 8));
 		
 		return getMonth(month) + " " + day + ", " + year;
 	}
@@ -261,7 +281,7 @@ public class User {
 	 */
 	
 	public String getFormattedAddress() {
-		return city + ", " + state + " " + zip;
+		return getCity() + ", " + getState() + " " + getZip();
 	}
 	
 	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
@@ -0,0 +1,197 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The VelocityLimiter class caps how much each account can do within a sliding window
+ * of time: so many withdrawals a minute, say, or so many dollars transferred a day.
+ * 
+ * Each account's window is split into a fixed ring of buckets, each packed into one
+ * long (the bucket's period in the high half, the amount recorded in it in the low
+ * half) and updated with compare-and-set, so a check takes no lock and allocates
+ * nothing once the account has been seen. A bucket is reused as soon as its period
+ * falls out of the window, which makes the window slide in steps of one bucket.
+ * 
+ * An amount is recorded first and checked second, and taken back out if it breaks the
+ * limit, so concurrent requests against one account can never exceed it together.
+ * Limits are kept in memory and per process: they start afresh when the process does,
+ * and processes sharing a ledger each enforce their own.
+ */
+
+public class VelocityLimiter {
+	
+	public static final int BUCKETS = 24;
+	public static final long REJECTED = -1;
+	
+	private static final long AMOUNT_MASK = 0xFFFFFFFFL;
+	
+	private long windowMillis;
+	private long bucketMillis;
+	private long limit;
+	private ConcurrentHashMap<Long, AtomicLongArray> windows;
+	
+	/**
+	 * Constructs a limiter.
+	 * 
+	 * @param windowMillis the length of the window, in milliseconds
+	 * @param limit the most each account can record within the window, or 0 for no limit
+	 */
+	
+	public VelocityLimiter(long windowMillis, long limit) {
+		if (windowMillis < BUCKETS) {
+			throw new IllegalArgumentException("Window must be at least " + BUCKETS + " ms.");
+		} else if (limit < 0 || limit > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Limit must be between 0 and " + Integer.MAX_VALUE + ".");
+		}
+		
+		this.windowMillis = windowMillis;
+		this.bucketMillis = windowMillis / BUCKETS;
+		this.limit = limit;
+		this.windows = new ConcurrentHashMap<Long, AtomicLongArray>();
+	}
+	
+	/////////////////////////////////// GETTERS AND SETTERS ///////////////////////////////////
+	
+	/**
+	 * Retrieves the length of the window.
+	 * 
+	 * @return windowMillis
+	 */
+	
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+	
+	/**
+	 * Retrieves the most each account can record within the window.
+	 * 
+	 * @return limit, or 0 if there is no limit
+	 */
+	
+	public long getLimit() {
+		return limit;
+	}
+	
+	/////////////////////////////////// INSTANCE METHODS ///////////////////////////////////
+	
+	/**
+	 * Records an amount against an account, unless it would take the account over the
+	 * limit.
+	 * 
+	 * @param accountNumber the account number
+	 * @param amount the amount, at least 0
+	 * @return a stamp to hand to release if the operation doesn't go ahead after all, or
+	 *         REJECTED if the amount would exceed the limit
+	 */
+	
+	public long acquire(long accountNumber, long amount) {
+		long period = System.currentTimeMillis() / bucketMillis & AMOUNT_MASK;
+		
+		if (limit == 0) {
+			return period;
+		} else if (amount > limit) {
+			return REJECTED;
+		}
+		
+		AtomicLongArray buckets = windows.get(accountNumber);
+		if (buckets == null) {
+			AtomicLongArray created = new AtomicLongArray(BUCKETS);
+			buckets = windows.putIfAbsent(accountNumber, created);
+			
+			if (buckets == null) {
+				buckets = created;
+			}
+		}
+		
+		add(buckets, period, amount);
+		if (sum(buckets, period) > limit) {
+			add(buckets, period, -amount);
+			return REJECTED;
+		}
+		
+		return period;
+	}
+	
+	/**
+	 * Takes back an amount recorded by acquire, for an operation that failed. Nothing is
+	 * taken back if the amount has already left the window.
+	 * 
+	 * @param accountNumber the account number
+	 * @param amount the amount passed to acquire
+	 * @param stamp the stamp returned by acquire
+	 */
+	
+	public void release(long accountNumber, long amount, long stamp) {
+		AtomicLongArray buckets = limit == 0 || stamp == REJECTED ? null : windows.get(accountNumber);
+		
+		if (buckets != null) {
+			add(buckets, stamp, -amount);
+		}
+	}
+	
+	/**
+	 * Retrieves how much an account has recorded within the window.
+	 * 
+	 * @param accountNumber the account number
+	 * @return the total
+	 */
+	
+	public long getUsage(long accountNumber) {
+		AtomicLongArray buckets = windows.get(accountNumber);
+		
+		return buckets == null ? 0 : sum(buckets, System.currentTimeMillis() / bucketMillis & AMOUNT_MASK);
+	}
+	
+	/////////////////////////////////// PRIVATE METHODS ///////////////////////////////////
+	
+	/*
+	 * Adds to the bucket for a period, starting the bucket over if it last held an older
+	 * period. A negative amount is only taken out of the period it was added to.
+	 * 
+	 * @param buckets the account's buckets
+	 * @param period the period
+	 * @param amount the amount to add
+	 */
+	
+	private static void add(AtomicLongArray buckets, long period, long amount) {
+		int i = (int) (period % BUCKETS);
+		
+		while (true) {
+			long bucket = buckets.get(i);
+			long next;
+			
+			if (bucket >>> 32 == period) {
+				next = bucket + amount;
+			} else if (amount >= 0) {
+				next = period << 32 | amount;
+			} else {
+				return;
+			}
+			
+			if (buckets.compareAndSet(i, bucket, next)) {
+				return;
+			}
+		}
+	}
+	
+	/*
+	 * Totals the buckets whose periods fall within the window ending at a period.
+	 * 
+	 * @param buckets the account's buckets
+	 * @param period the current period
+	 * @return the total
+	 */
+	
+	private static long sum(AtomicLongArray buckets, long period) {
+		long total = 0;
+		
+		for (int i = 0; i < BUCKETS; i++) {
+			long bucket = buckets.get(i);
+			
+			if ((period - (bucket >>> 32) & AMOUNT_MASK) < BUCKETS) {
+				total += bucket & AMOUNT_MASK;
+			}
+		}
+		
+		return total;
+	}
+}